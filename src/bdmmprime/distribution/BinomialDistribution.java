@@ -13,7 +13,7 @@ public class BinomialDistribution extends ParametricDistribution {
     final public Input<RealParameter> pInput = new Input<>("p", "probability p parameter, defaults to 0.5");
     final public Input<RealParameter> trialsInput = new Input<>("trials", "number of trials parameter, defaults to 1");
 
-    static org.apache.commons.math.distribution.BinomialDistribution dist = new BinomialDistributionImpl(1, 0.5);
+    org.apache.commons.math.distribution.BinomialDistribution dist = new BinomialDistributionImpl(1, 0.5);
 
 
     // Must provide empty constructor for construction by XML. Note that this constructor DOES NOT call initAndValidate();
@@ -1,5 +1,6 @@
 package bdmmprime.distribution;
 
+import bdmmprime.parameterization.NodeTimeTable;
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.util.Utils;
 import beast.base.core.*;
@@ -108,6 +109,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
     private Parameterization parameterization;
     private Function finalSampleOffset;
+    private NodeTimeTable nodeTimes;
 
     private double[][] pInitialConditions;
 
@@ -128,6 +130,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         tree = treeInput.get();
 
         finalSampleOffset = finalSampleOffsetInput.get();
+        nodeTimes = new NodeTimeTable(parameterization, tree, finalSampleOffset);
 
         if (parameterization.getNTypes() != 1 && (typeTraitSetInput.get() == null && typeLabelInput.get() == null))
             throw new RuntimeException("Error: For models with >1 type, either typeTraitSet or typeLabel must be specified.");
@@ -188,7 +191,9 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         Node root = tree.getRoot();
 
-        if (Utils.lessThanWithPrecision(parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue()), 0)) {
+        nodeTimes.update();
+
+        if (Utils.lessThanWithPrecision(nodeTimes.getNodeTime(root), 0)) {
             if (savePartialLikelihoodsToFileInput.get() != null)
                 Log.err("Tree MRCA older than start of process.");
             logP = Double.NEGATIVE_INFINITY;
@@ -263,10 +268,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             Node child2 = root.getChild(1);
 
             P0GeState child1state = calculateSubtreeLikelihood(child1, 0,
-                    parameterization.getNodeTime(child1, finalSampleOffset.getArrayValue()),
+                    nodeTimes.getNodeTime(child1),
                     system, 0);
             P0GeState child2state = calculateSubtreeLikelihood(child2, 0,
-                    parameterization.getNodeTime(child2, finalSampleOffset.getArrayValue()),
+                    nodeTimes.getNodeTime(child2),
                     system, 0);
 
             int intervalIndex = parameterization.getIntervalIndex(0);
@@ -293,7 +298,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             // Condition on origin time:
 
             finalP0Ge = calculateSubtreeLikelihood(root, 0,
-                    parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue()),
+                    nodeTimes.getNodeTime(root),
                     system, 0);
         }
 
@@ -388,7 +393,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         P0GeState state = new P0GeState(parameterization.getNTypes());
 
-        int intervalIdx = parameterization.getIntervalIndex(tBottom);
+        int intervalIdx = nodeTimes.getNodeInterval(node);
 
         if (node.isLeaf()) { // sampling event
 
@@ -452,7 +457,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
                 P0GeState g = calculateSubtreeLikelihood(
                         node.getChild(childIndex), tBottom,
-                        parameterization.getNodeTime(node.getChild(childIndex), finalSampleOffset.getArrayValue()),
+                        nodeTimes.getNodeTime(node.getChild(childIndex)),
                         system, depth + 1);
 
                 int saNodeType = getNodeType(node.getChild(childIndex ^ 1), false); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
@@ -512,12 +517,12 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                         // start a new thread to take care of the second subtree
                         Future<P0GeState> secondChildTraversal = pool.submit(
                                 new TraversalService(node.getChild(indexSecondChild), tBottom,
-                                        parameterization.getNodeTime(node.getChild(indexSecondChild), finalSampleOffset.getArrayValue()),
+                                        nodeTimes.getNodeTime(node.getChild(indexSecondChild)),
                                         depth + 1));
 
                         childState1 = calculateSubtreeLikelihood(
                                 node.getChild(indexFirstChild), tBottom,
-                                parameterization.getNodeTime(node.getChild(indexFirstChild), finalSampleOffset.getArrayValue()),
+                                nodeTimes.getNodeTime(node.getChild(indexFirstChild)),
                                 system, depth + 1);
                         childState2 = secondChildTraversal.get();
                     } catch (InterruptedException | ExecutionException e) {
@@ -529,10 +534,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                 } else {
                     childState1 = calculateSubtreeLikelihood(node.getChild(
                             indexFirstChild), tBottom,
-                            parameterization.getNodeTime(node.getChild(indexFirstChild), finalSampleOffset.getArrayValue()),
+                            nodeTimes.getNodeTime(node.getChild(indexFirstChild)),
                             system, depth + 1);
                     childState2 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), tBottom,
-                            parameterization.getNodeTime(node.getChild(indexSecondChild), finalSampleOffset.getArrayValue()),
+                            nodeTimes.getNodeTime(node.getChild(indexSecondChild)),
                             system, depth + 1);
                 }
 
@@ -601,7 +606,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         int[] indicesSortedByLeafTime = new int[leafCount];
 
         for (int i = 0; i < leafCount; i++) { // get all leaf times
-            leafTimes[i] = parameterization.getNodeTime(tree.getNode(i), finalSampleOffset.getArrayValue());
+            leafTimes[i] = nodeTimes.getNodeTime(tree.getNode(i));
 //            leafTimes[i] = parameterization.getTotalProcessLength() - tree.getNode(i).getHeight();
             indicesSortedByLeafTime[i] = i;
         }
@@ -720,9 +725,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         // contains the factor by which the numbers were multiplied.
         ScaledNumbers pgScaled = state.getScaledState();
 
-        double thisTime = parameterization.getNodeTime(baseNode, finalSampleOffset.getArrayValue());
-        int thisInterval = parameterization.getIntervalIndex(thisTime);
-        int endInterval = parameterization.getIntervalIndex(tTop);
+        double thisTime = nodeTimes.getNodeTime(baseNode);
+        int thisInterval = nodeTimes.getNodeInterval(baseNode);
+
+        int endInterval = nodeTimes.getEdgeTopInterval(baseNode);
         double oneMinusRho;
 
         system.setInterval(thisInterval);
@@ -920,12 +926,12 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         if (conditionOnRootInput.get()) {
 
-            double t_root = parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue());
+            double t_root = nodeTimes.getNodeTime(tree.getRoot());
             logP = getSingleTypeSubtreeLogLikelihood(tree.getRoot().getChild(0), t_root, A, B, Bplus1)
                     + getSingleTypeSubtreeLogLikelihood(tree.getRoot().getChild(1), t_root, A, B, Bplus1)
                     + Math.log(2);
 
-            int i_root = parameterization.getIntervalIndex(t_root);
+            int i_root = nodeTimes.getNodeInterval(tree.getRoot());
             logP += 2*get_logq_i(A[i_root], B[i_root], Bplus1[i_root], parameterization.getIntervalEndTimes()[i_root], 0.0);
 
         } else {
@@ -965,8 +971,8 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                                                      double[] A, double[] B,
                                                      double[] Bplus1) {
 
-        double t_node = parameterization.getNodeTime(subtreeRoot, finalSampleOffset.getArrayValue());
-        int i = parameterization.getIntervalIndex(t_node);
+        double t_node = nodeTimes.getNodeTime(subtreeRoot);
+        int i = nodeTimes.getNodeInterval(subtreeRoot);
         double t_i = parameterization.getIntervalEndTimes()[i];
 
         double rho_i = parameterization.getRhoValues()[i][0];
@@ -7,19 +7,29 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
 
+/**
+ * Base class for loggers of typed tree statistics.  The statistics
+ * themselves are computed by a TypedTreeStats object, so that each logger
+ * is simply a view on the results of a single traversal.  Loggers given the
+ * same object via the stats input share this traversal; otherwise each
+ * logger creates a private one from its typedTree, typeSet and typeLabel
+ * inputs.
+ */
 public abstract class AbstractTypeTreeStatsLogger extends CalculationNode implements Loggable {
 
+    public Input<TypedTreeStats> statsInput = new Input<>("stats",
+            "Typed tree statistics shared with other loggers. Replaces " +
+                    "the typedTree, typeSet and typeLabel inputs.");
+
     public Input<Tree> typedTreeInput = new Input<>("typedTree",
-            "Tree with type changes mapped.",
-            Input.Validate.REQUIRED);
+            "Tree with type changes mapped. Required unless stats is given.");
 
     public Input<TypeSet> typeSetInput = new Input<>("typeSet",
-            "Type set specifying model types.",
-            Input.Validate.REQUIRED);
+            "Type set specifying model types. Required unless stats is given.");
 
     public Input<String> typeLabelInput = new Input<>("typeLabel",
-            "Type label used to store type information on tree.",
-            Input.Validate.REQUIRED);
+            "Type label used to store type information on tree. " +
+                    "Required unless stats is given.");
 
     public Input<Boolean> includeRootEdgeInput = new Input<>(
             "includeRootEdge",
@@ -32,27 +42,35 @@ public abstract class AbstractTypeTreeStatsLogger extends CalculationNode implem
     String typeLabel;
     boolean includeRootEdge;
 
+    TypedTreeStats stats;
+
     @Override
     public void initAndValidate() {
-        tree = typedTreeInput.get();
-        typeSet = typeSetInput.get();
+        if (statsInput.get() != null) {
+            if (typedTreeInput.get() != null || typeSetInput.get() != null || typeLabelInput.get() != null)
+                throw new IllegalArgumentException("The typedTree, typeSet and typeLabel inputs " +
+                        "must not be given together with stats.");
+
+            stats = statsInput.get();
+        } else {
+            if (typedTreeInput.get() == null || typeSetInput.get() == null || typeLabelInput.get() == null)
+                throw new IllegalArgumentException("Either stats or all of typedTree, " +
+                        "typeSet and typeLabel must be given.");
+
+            stats = new TypedTreeStats();
+            stats.initByName("typedTree", typedTreeInput.get(),
+                    "typeSet", typeSetInput.get(),
+                    "typeLabel", typeLabelInput.get());
+        }
+
+        tree = stats.getTree();
+        typeSet = stats.getTypeSet();
         nTypes = typeSet.getNTypes();
-        typeLabel = typeLabelInput.get();
+        typeLabel = stats.getTypeLabel();
         includeRootEdge = includeRootEdgeInput.get();
-
     }
 
     protected int getType(Node node) {
-        Object typeObj = node.getMetaData(typeLabel);
-        if (typeObj == null)
-            throw new RuntimeException("Tree does not have type metadata with the label '" + typeLabel + "'");
-
-        if (typeObj instanceof Integer)
-            return (int)typeObj;
-
-        if (typeObj instanceof String)
-            return typeSet.getTypeIndex((String)typeObj);
-
-        throw new RuntimeException("Tree does not contain valid type metadata.");
+        return stats.getType(node);
     }
 }
@@ -0,0 +1,119 @@
+package bdmmprime.mapping;
+
+import bdmmprime.parameterization.Parameterization;
+import beast.base.evolution.tree.Node;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+
+/**
+ * <p>System of ODEs describing the "outside" probabilities q_i(t) used in the
+ * downward (root-to-tip) pass of the marginal type probability calculation.</p>
+ *
+ * <p>These are the adjoint of the ge equations in ODESystem: they are chosen so
+ * that sum_i q_i(t) ge_i(t) is constant along each edge, meaning that
+ * q_i(t) ge_i(t) is proportional to the marginal probability of the lineage
+ * being of type i at time t.  The p0 values required by the equations are
+ * read from the backward-time integration results held by the mapped tree.</p>
+ *
+ * <p>Optionally, the system is augmented with reward equations which
+ * accumulate the posterior expected time spent in each type (elements
+ * nTypes .. 2*nTypes-1) and the posterior expected number of i->j type
+ * changes (elements 2*nTypes + i*nTypes + j) along the edge.  As the
+ * integrands are normalized pointwise, they are unaffected by any rescaling
+ * of the q_i.</p>
+ */
+public class DownwardODESystem implements FirstOrderDifferentialEquations {
+
+    private Parameterization param;
+    private TypeMappedTree mappedTree;
+    private boolean computeRewards;
+
+    private Node baseNode;
+    private int interval;
+
+    public DownwardODESystem(Parameterization parameterization, TypeMappedTree mappedTree,
+                             boolean computeRewards) {
+        this.param = parameterization;
+        this.mappedTree = mappedTree;
+        this.computeRewards = computeRewards;
+    }
+
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @param baseNode node below the edge currently being integrated
+     */
+    public void setBaseNode(Node baseNode) {
+        this.baseNode = baseNode;
+    }
+
+    /* FirstOrderDifferentialEquations implementation */
+
+    @Override
+    public int getDimension() {
+        int nTypes = param.getNTypes();
+
+        return computeRewards
+                ? nTypes*(2 + nTypes)
+                : nTypes;
+    }
+
+    @Override
+    public void computeDerivatives(double t, double[] q, double[] qDot)
+            throws MaxCountExceededException, DimensionMismatchException {
+
+        int nTypes = param.getNTypes();
+
+        double[] y = mappedTree.getBackwardsIntegrationResult(baseNode, t);
+
+        for (int i = 0; i<nTypes; i++) {
+
+            qDot[i] = -(param.getBirthRates()[interval][i]
+                    + param.getDeathRates()[interval][i]
+                    + param.getSamplingRates()[interval][i]
+                    - 2*param.getBirthRates()[interval][i]*y[i]) * q[i];
+
+            for (int j = 0; j < nTypes; j++) {
+
+                if (i==j)
+                    continue;
+
+                qDot[i] -= (param.getCrossBirthRates()[interval][i][j] * (1.0 - y[j])
+                        + param.getMigRates()[interval][i][j]) * q[i];
+
+                qDot[i] += (param.getCrossBirthRates()[interval][j][i] * y[j]
+                        + param.getMigRates()[interval][j][i]) * q[j];
+            }
+        }
+
+        if (!computeRewards)
+            return;
+
+        /* Reward equations */
+
+        double Z = 0.0;
+        for (int i = 0; i<nTypes; i++)
+            Z += q[i]*y[nTypes+i];
+
+        for (int i = 0; i<nTypes; i++) {
+
+            qDot[nTypes + i] = Z > 0.0 ? q[i]*y[nTypes+i]/Z : 0.0;
+
+            for (int j = 0; j < nTypes; j++) {
+
+                if (i==j || Z <= 0.0) {
+                    qDot[2*nTypes + i*nTypes + j] = 0.0;
+                    continue;
+                }
+
+                qDot[2*nTypes + i*nTypes + j] = q[i]
+                        * (param.getCrossBirthRates()[interval][i][j] * y[i]
+                        + param.getMigRates()[interval][i][j])
+                        * y[nTypes+j] / Z;
+            }
+        }
+    }
+}
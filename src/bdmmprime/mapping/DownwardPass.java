@@ -0,0 +1,359 @@
+package bdmmprime.mapping;
+
+import bdmmprime.parameterization.Parameterization;
+import bdmmprime.util.Utils;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+
+/**
+ * <p>Downward (root-to-tip) pass complementing the backward-time integration
+ * performed by TypeMappedTree.  Together, these yield exact marginal posterior
+ * type probabilities at every node and edge midpoint of the untyped tree and,
+ * optionally, the posterior expected number of type changes between each pair
+ * of types and the expected time spent in each type.</p>
+ *
+ * <p>The expected type change counts follow the conventions used by
+ * TypedTreeStatsLogger: changes along edges arise from migration and from
+ * birth events with unobserved offspring of the original type, while birth
+ * events at internal nodes contribute one change for each child whose type
+ * differs from that of the parent.</p>
+ */
+public class DownwardPass {
+
+    private TypeMappedTree mappedTree;
+    private Parameterization param;
+    private Tree untypedTree;
+    private boolean computeRewards;
+
+    private DownwardODESystem downwardSystem;
+    private FirstOrderIntegrator odeIntegrator;
+
+    private double[][] nodeTypeProbs, edgeMidpointTypeProbs;
+    private double[][] expectedCounts;
+    private double[] expectedLengths;
+    private boolean includeRootEdge;
+
+    /**
+     * Parameters for forward-time numerical integration.
+     */
+    private final double FORWARD_INTEGRATION_MIN_STEP = 1e-100;
+    private final double FORWARD_INTEGRATION_MAX_STEP = 0.1;
+    private final double FORWARD_INTEGRATION_ABS_TOLERANCE = 1e-100;
+    private final double FORWARD_INTEGRATION_REL_TOLERANCE = 1e-7;
+
+    /**
+     * @param mappedTree type mapped tree providing backward-time integration results
+     * @param computeRewards if true, also compute expected type change counts and
+     *                       expected times spent in each type
+     */
+    public DownwardPass(TypeMappedTree mappedTree, boolean computeRewards) {
+        this.mappedTree = mappedTree;
+        this.param = mappedTree.getParameterization();
+        this.untypedTree = mappedTree.getUntypedTree();
+        this.computeRewards = computeRewards;
+    }
+
+    /**
+     * Perform backward-time integration followed by the downward pass
+     * for the current state.
+     *
+     * @param includeRootEdge if true, include the edge above the root in
+     *                        expected count and length calculations
+     */
+    public void update(boolean includeRootEdge) {
+        this.includeRootEdge = includeRootEdge;
+
+        mappedTree.doBackwardIntegration();
+
+        odeIntegrator = new DormandPrince54Integrator(
+                param.getTotalProcessLength()*FORWARD_INTEGRATION_MIN_STEP,
+                param.getTotalProcessLength()*FORWARD_INTEGRATION_MAX_STEP,
+                FORWARD_INTEGRATION_ABS_TOLERANCE, FORWARD_INTEGRATION_REL_TOLERANCE);
+
+        downwardSystem = new DownwardODESystem(param, mappedTree, computeRewards);
+
+        int nTypes = param.getNTypes();
+
+        nodeTypeProbs = new double[untypedTree.getNodeCount()][nTypes];
+        edgeMidpointTypeProbs = new double[untypedTree.getNodeCount()][nTypes];
+        expectedCounts = new double[nTypes][nTypes];
+        expectedLengths = new double[nTypes];
+
+        double[] q = new double[nTypes];
+        for (int type=0; type<nTypes; type++)
+            q[type] = mappedTree.getFrequencies().getValue(type);
+
+        downwardPassSubtree(untypedTree.getRoot(), 0.0, q);
+    }
+
+    /**
+     * Integrate outside probabilities from the top of the edge above
+     * subtreeRoot down to the tips below it, recording the marginal type
+     * probabilities at each node and edge midpoint.
+     *
+     * @param subtreeRoot root node of untyped subtree
+     * @param timeOfSubtreeRootEdgeTop time of top of edge above subtree
+     * @param qTop outside probabilities at top of edge
+     */
+    private void downwardPassSubtree(Node subtreeRoot, double timeOfSubtreeRootEdgeTop, double[] qTop) {
+
+        int nTypes = param.getNTypes();
+
+        double delta = 2*Utils.globalPrecisionThreshold;
+
+        double timeOfSubtreeRootEdgeBottom = mappedTree.getNodeTimes().getNodeTime(subtreeRoot);
+        double midpointTime = 0.5*(timeOfSubtreeRootEdgeTop + timeOfSubtreeRootEdgeBottom);
+
+        // Integration state includes reward accumulators following the
+        // outside probabilities when these are required.
+        double[] z = new double[downwardSystem.getDimension()];
+        System.arraycopy(qTop, 0, z, 0, nTypes);
+
+        integrateForward(subtreeRoot, timeOfSubtreeRootEdgeTop + delta, midpointTime, z);
+        computeTypeProbs(subtreeRoot, midpointTime, z, edgeMidpointTypeProbs[subtreeRoot.getNr()]);
+
+        integrateForward(subtreeRoot, midpointTime, timeOfSubtreeRootEdgeBottom - delta, z);
+        computeTypeProbs(subtreeRoot, timeOfSubtreeRootEdgeBottom, z, nodeTypeProbs[subtreeRoot.getNr()]);
+
+        if (computeRewards && (includeRootEdge || !subtreeRoot.isRoot())) {
+            for (int i=0; i<nTypes; i++) {
+                expectedLengths[i] += z[nTypes + i];
+                for (int j=0; j<nTypes; j++)
+                    expectedCounts[i][j] += z[2*nTypes + i*nTypes + j];
+            }
+        }
+
+        double[] q = new double[nTypes];
+        System.arraycopy(z, 0, q, 0, nTypes);
+
+        switch (mappedTree.getNodeKind(subtreeRoot)) {
+            case LEAF:
+                break;
+
+            case SA:
+                Node daChild = subtreeRoot.getDirectAncestorChild();
+                int saType = mappedTree.getLeafType(daChild);
+
+                double[] qChild = new double[nTypes];
+                for (int type=0; type<nTypes; type++) {
+                    qChild[type] = type == saType ? 1.0 : 0.0;
+                    nodeTypeProbs[daChild.getNr()][type] = qChild[type];
+                    edgeMidpointTypeProbs[daChild.getNr()][type] = qChild[type];
+                }
+
+                downwardPassSubtree(subtreeRoot.getNonDirectAncestorChild(), timeOfSubtreeRootEdgeBottom, qChild);
+                break;
+
+            case INTERNAL:
+                if (computeRewards)
+                    addExpectedBirthNodeCounts(subtreeRoot, q);
+
+                double[] qLeft = getChildOutsideProbs(subtreeRoot, q, subtreeRoot.getChild(1));
+                double[] qRight = getChildOutsideProbs(subtreeRoot, q, subtreeRoot.getChild(0));
+
+                downwardPassSubtree(subtreeRoot.getChild(0), timeOfSubtreeRootEdgeBottom, qLeft);
+                downwardPassSubtree(subtreeRoot.getChild(1), timeOfSubtreeRootEdgeBottom, qRight);
+                break;
+        }
+    }
+
+    /**
+     * Compute outside probabilities at the top of a child edge of an internal
+     * node, given the outside probabilities at the node and the backward-time
+     * integration results along the other child edge.
+     *
+     * @param internalNode internal node
+     * @param q outside probabilities at internal node
+     * @param otherChild child of internal node not below the edge of interest
+     * @return outside probabilities at the top of the child edge
+     */
+    private double[] getChildOutsideProbs(Node internalNode, double[] q, Node otherChild) {
+
+        double t = mappedTree.getNodeTimes().getNodeTime(internalNode);
+        int nodeInterval = mappedTree.getNodeTimes().getNodeInterval(internalNode);
+
+        double[] yOther = mappedTree.getBackwardsIntegrationResult(otherChild, t);
+
+        int N = param.getNTypes();
+        double[] qChild = new double[N];
+
+        for (int type=0; type<N; type++) {
+            qChild[type] = q[type]*param.getBirthRates()[nodeInterval][type]*yOther[N+type];
+
+            for (int typeOther=0; typeOther<N; typeOther++) {
+                if (typeOther == type)
+                    continue;
+
+                qChild[type] += 0.5*param.getCrossBirthRates()[nodeInterval][type][typeOther]
+                        *q[type]*yOther[N+typeOther];
+                qChild[type] += 0.5*param.getCrossBirthRates()[nodeInterval][typeOther][type]
+                        *q[typeOther]*yOther[N+typeOther];
+            }
+        }
+
+        rescale(qChild, N);
+
+        return qChild;
+    }
+
+    /**
+     * Add expected number of type changes occurring at a birth event to
+     * the expected count totals.
+     *
+     * @param internalNode internal node at which birth occurs
+     * @param q outside probabilities at internal node
+     */
+    private void addExpectedBirthNodeCounts(Node internalNode, double[] q) {
+
+        double t = mappedTree.getNodeTimes().getNodeTime(internalNode);
+        int nodeInterval = mappedTree.getNodeTimes().getNodeInterval(internalNode);
+
+        double[] yLeft = mappedTree.getBackwardsIntegrationResult(internalNode.getChild(0), t);
+        double[] yRight = mappedTree.getBackwardsIntegrationResult(internalNode.getChild(1), t);
+
+        int N = param.getNTypes();
+
+        double Z = 0.0;
+        double[][] counts = new double[N][N];
+
+        for (int type=0; type<N; type++) {
+            Z += q[type]*param.getBirthRates()[nodeInterval][type]*yLeft[N+type]*yRight[N+type];
+
+            for (int typeOther=0; typeOther<N; typeOther++) {
+                if (typeOther == type)
+                    continue;
+
+                counts[type][typeOther] = q[type]*0.5*param.getCrossBirthRates()[nodeInterval][type][typeOther]
+                        *(yLeft[N+type]*yRight[N+typeOther] + yLeft[N+typeOther]*yRight[N+type]);
+                Z += counts[type][typeOther];
+            }
+        }
+
+        if (Z <= 0.0)
+            return;
+
+        for (int type=0; type<N; type++) {
+            for (int typeOther=0; typeOther<N; typeOther++)
+                expectedCounts[type][typeOther] += counts[type][typeOther]/Z;
+        }
+    }
+
+    /**
+     * Integrate outside probabilities (and rewards) forward in time from
+     * tStart to tEnd along the edge above baseNode, stopping at each interval
+     * boundary to switch rates and apply any rho sampling.
+     *
+     * @param baseNode node below edge
+     * @param tStart time at which integration starts (the earlier time)
+     * @param tEnd time at which integration ends (the later time)
+     * @param z integration state at tStart, replaced by that at tEnd
+     */
+    private void integrateForward(Node baseNode, double tStart, double tEnd, double[] z) {
+
+        downwardSystem.setBaseNode(baseNode);
+
+        double thisTime = tStart;
+        int thisInterval = param.getIntervalIndex(thisTime);
+        int endInterval = param.getIntervalIndex(tEnd);
+
+        while (thisInterval < endInterval) {
+            double nextTime = param.getIntervalEndTimes()[thisInterval];
+
+            if (Utils.lessThanWithPrecision(thisTime, nextTime)) {
+                downwardSystem.setInterval(thisInterval);
+                odeIntegrator.integrate(downwardSystem, thisTime, z, nextTime, z);
+                thisTime = nextTime;
+            }
+
+            // Include effect of the rho sampling time we've just passed:
+            for (int type=0; type<param.getNTypes(); type++)
+                z[type] *= 1.0 - param.getRhoValues()[thisInterval][type];
+
+            thisInterval += 1;
+        }
+
+        if (Utils.lessThanWithPrecision(thisTime, tEnd)) {
+            downwardSystem.setInterval(thisInterval);
+            odeIntegrator.integrate(downwardSystem, thisTime, z, tEnd, z);
+        }
+
+        rescale(z, param.getNTypes());
+    }
+
+    /**
+     * Combine outside probabilities with backward-time integration results to
+     * obtain normalized marginal type probabilities.
+     *
+     * @param baseNode node below edge
+     * @param time time on edge
+     * @param q outside probabilities at this time
+     * @param result array in which to store the type probabilities
+     */
+    private void computeTypeProbs(Node baseNode, double time, double[] q, double[] result) {
+        double[] y = mappedTree.getBackwardsIntegrationResult(baseNode, time);
+
+        double total = 0.0;
+        for (int type=0; type<param.getNTypes(); type++) {
+            result[type] = Math.max(q[type], 0.0)*y[param.getNTypes() + type];
+            total += result[type];
+        }
+
+        if (total > 0.0) {
+            for (int type=0; type<param.getNTypes(); type++)
+                result[type] /= total;
+        }
+    }
+
+    /**
+     * Scale the first n elements of a vector so that the largest of these
+     * is 1.0, preventing underflow.
+     *
+     * @param q vector to scale
+     * @param n number of elements to scale
+     */
+    private void rescale(double[] q, int n) {
+        double C = 0.0;
+        for (int i=0; i<n; i++)
+            C = Math.max(C, q[i]);
+
+        if (C <= 0.0)
+            return;
+
+        for (int i=0; i<n; i++)
+            q[i] /= C;
+    }
+
+    /**
+     * @param nodeNr number of node in untyped tree
+     * @return marginal type probabilities at node from most recent update
+     */
+    public double[] getNodeTypeProbs(int nodeNr) {
+        return nodeTypeProbs[nodeNr];
+    }
+
+    /**
+     * @param nodeNr number of node in untyped tree
+     * @return marginal type probabilities at midpoint of edge above node
+     * from most recent update
+     */
+    public double[] getEdgeMidpointTypeProbs(int nodeNr) {
+        return edgeMidpointTypeProbs[nodeNr];
+    }
+
+    /**
+     * @return expected number of type changes between each pair of types
+     * from most recent update
+     */
+    public double[][] getExpectedCounts() {
+        return expectedCounts;
+    }
+
+    /**
+     * @return expected time spent in each type from most recent update
+     */
+    public double[] getExpectedLengths() {
+        return expectedLengths;
+    }
+}
@@ -0,0 +1,116 @@
+package bdmmprime.mapping;
+
+import bdmmprime.parameterization.TypeSet;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+
+import java.io.PrintStream;
+
+/**
+ * <p>Logger for the posterior expected values of the statistics reported
+ * by TypedTreeStatsLogger: the time spent in each type and the number of
+ * changes between each pair of types.</p>
+ *
+ * <p>Instead of averaging over sampled stochastic mappings, these expectations
+ * are computed deterministically by integrating reward ODEs alongside the
+ * outside probabilities of the downward pass (see DownwardPass), which
+ * combine with the backward-time p0/ge integration results of the given
+ * TypeMappedTree.</p>
+ */
+public class ExpectedTypeTreeStatsLogger extends CalculationNode implements Loggable {
+
+    public Input<TypeMappedTree> typeMappedTreeInput = new Input<>("typeMappedTree",
+            "Type mapped tree providing the model, untyped tree and " +
+                    "backward-time integration.",
+            Input.Validate.REQUIRED);
+
+    public Input<Boolean> includeRootEdgeInput = new Input<>(
+            "includeRootEdge",
+            "If true, include root edge in summary stats calculations.",
+            false);
+
+    private Tree mappedTree;
+    private TypeSet typeSet;
+    private int nTypes;
+    private boolean includeRootEdge;
+
+    private DownwardPass downwardPass;
+
+    @Override
+    public void initAndValidate() {
+        TypeMappedTree typeMappedTree = typeMappedTreeInput.get();
+        mappedTree = typeMappedTree;
+        typeSet = typeMappedTree.getParameterization().getTypeSet();
+        nTypes = typeSet.getNTypes();
+        includeRootEdge = includeRootEdgeInput.get();
+
+        downwardPass = new DownwardPass(typeMappedTree, true);
+    }
+
+    /**
+     * Compute expected statistics for the current state.
+     */
+    void update() {
+        downwardPass.update(includeRootEdge);
+    }
+
+    /**
+     * @return expected number of changes between each pair of types
+     * from the most recent update
+     */
+    double[][] getExpectedCounts() {
+        return downwardPass.getExpectedCounts();
+    }
+
+    /**
+     * @return expected time spent in each type from the most recent update
+     */
+    double[] getExpectedLengths() {
+        return downwardPass.getExpectedLengths();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+
+        String prefix = mappedTree.getID() != null
+                ? mappedTree.getID() + "."
+                : "";
+
+        for (int type=0; type<nTypes; type++) {
+            out.print(prefix + "expectedLength_" + typeSet.getTypeName(type) + "\t");
+
+            for (int typeP=0; typeP<nTypes; typeP++) {
+                if (type == typeP)
+                    continue;
+
+                out.print(prefix + "expectedCount_" + typeSet.getTypeName(type)
+                        + "_to_" + typeSet.getTypeName(typeP) + "\t");
+
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        update();
+
+        double[] lengthVector = downwardPass.getExpectedLengths();
+        double[][] countMatrix = downwardPass.getExpectedCounts();
+
+        for (int type=0; type<nTypes; type++) {
+            out.print(lengthVector[type] + "\t");
+
+            for (int typeP = 0; typeP < nTypes; typeP++) {
+                if (type == typeP)
+                    continue;
+
+                out.print(countMatrix[type][typeP] + "\t");
+            }
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+}
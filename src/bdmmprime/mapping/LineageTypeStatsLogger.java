@@ -0,0 +1,37 @@
+package bdmmprime.mapping;
+
+import java.io.PrintStream;
+
+/**
+ * Logger for per-lineage statistics of type mapped trees: for each leaf,
+ * the number of type changes on its ancestral lineage and the time for
+ * which the lineage has been in the leaf's type.
+ */
+public class LineageTypeStatsLogger extends AbstractTypeTreeStatsLogger {
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix = tree.getID() != null
+                ? tree.getID() + "."
+                : "";
+
+        String[] taxaNames = tree.getTaxaNames();
+        for (int leafNr=0; leafNr<tree.getLeafNodeCount(); leafNr++) {
+            out.print(prefix + taxaNames[leafNr] + ".typeChanges\t");
+            out.print(prefix + taxaNames[leafNr] + ".dwellTime\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        stats.update(sample);
+
+        for (int leafNr=0; leafNr<tree.getLeafNodeCount(); leafNr++) {
+            out.print(stats.getLineageChangeCount(leafNr, includeRootEdge) + "\t");
+            out.print(stats.getLineageDwellTime(leafNr, includeRootEdge) + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+}
@@ -0,0 +1,149 @@
+package bdmmprime.mapping;
+
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+
+import java.io.PrintStream;
+
+/**
+ * <p>Logger which computes the exact marginal posterior type probabilities
+ * at every node of the untyped tree and at the midpoint of every edge,
+ * and logs these as metadata on the untyped tree.</p>
+ *
+ * <p>The calculation combines the backward-time (tip-to-root) integration
+ * results computed by the given TypeMappedTree with a single downward
+ * (root-to-tip) pass (see DownwardPass) in which the adjoint "outside"
+ * probabilities defined by DownwardODESystem are integrated forward in time.
+ * No stochastic mapping is performed, so the type mapped tree can be
+ * configured with mapOnInit="false" and remapOnLog="false".</p>
+ *
+ * <p>Type probabilities are logged as arrays ordered according to the type
+ * indices of the model TypeSet.  The probabilities at an internal node refer
+ * to the type of the parent lineage immediately before the birth event.</p>
+ */
+public class MarginalTypeProbLogger extends CalculationNode implements Loggable {
+
+    public Input<TypeMappedTree> typeMappedTreeInput = new Input<>("typeMappedTree",
+            "Type mapped tree providing the model, untyped tree and " +
+                    "backward-time integration.",
+            Input.Validate.REQUIRED);
+
+    private Tree untypedTree;
+    private String typeLabel;
+
+    private DownwardPass downwardPass;
+
+    @Override
+    public void initAndValidate() {
+        TypeMappedTree mappedTree = typeMappedTreeInput.get();
+        untypedTree = mappedTree.getUntypedTree();
+        typeLabel = mappedTree.typeLabelInput.get();
+
+        downwardPass = new DownwardPass(mappedTree, false);
+    }
+
+    /**
+     * Compute marginal type probabilities for the current state.
+     */
+    void update() {
+        downwardPass.update(true);
+    }
+
+    /**
+     * @param nodeNr number of node in untyped tree
+     * @return marginal type probabilities at node from most recent update
+     */
+    double[] getNodeTypeProbs(int nodeNr) {
+        return downwardPass.getNodeTypeProbs(nodeNr);
+    }
+
+    /**
+     * @param nodeNr number of node in untyped tree
+     * @return marginal type probabilities at midpoint of edge above node
+     * from most recent update
+     */
+    double[] getEdgeMidpointTypeProbs(int nodeNr) {
+        return downwardPass.getEdgeMidpointTypeProbs(nodeNr);
+    }
+
+    /*
+     * Loggable implementation
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        untypedTree.init(out);
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        update();
+
+        out.print("tree STATE_" + sample + " = ");
+        out.print(getAnnotatedNewick(untypedTree.getRoot()));
+        out.print(";");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        untypedTree.close(out);
+    }
+
+    /**
+     * Construct a newick representation of the untyped tree annotated with
+     * the marginal type probabilities.
+     *
+     * @param node root of subtree
+     * @return newick representation
+     */
+    private String getAnnotatedNewick(Node node) {
+        StringBuilder sb = new StringBuilder();
+
+        if (!node.isLeaf()) {
+            sb.append("(");
+            boolean isFirst = true;
+            for (Node child : node.getChildren()) {
+                if (isFirst)
+                    isFirst = false;
+                else
+                    sb.append(",");
+                sb.append(getAnnotatedNewick(child));
+            }
+            sb.append(")");
+        }
+
+        if (node.getID() != null)
+            sb.append(node.getNr()+Tree.taxaTranslationOffset);
+
+        sb.append("[&").append(typeLabel).append("_probs=")
+                .append(getArrayString(downwardPass.getNodeTypeProbs(node.getNr())))
+                .append(",").append(typeLabel).append("_edgeMidpointProbs=")
+                .append(getArrayString(downwardPass.getEdgeMidpointTypeProbs(node.getNr())))
+                .append("]");
+
+        double edgeLength = 0.0;
+        if (!node.isRoot())
+            edgeLength = node.getParent().getHeight()-node.getHeight();
+
+        sb.append(":").append(edgeLength);
+
+        return sb.toString();
+    }
+
+    private String getArrayString(double[] array) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{");
+        for (int i=0; i<array.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(array[i]);
+        }
+        sb.append("}");
+
+        return sb.toString();
+    }
+}
@@ -4,7 +4,6 @@ import bdmmprime.parameterization.Parameterization;
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.MaxCountExceededException;
 import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
-import org.apache.commons.math3.ode.events.EventHandler;
 
 /**
  * System of p0 and ge ODEs used in stochastic mapping.
@@ -13,7 +12,7 @@ import org.apache.commons.math3.ode.events.EventHandler;
  * package just because the stochastic mapper needs are more basic.  We can
  * potentially merge these later on though.
  */
-public class ODESystem implements FirstOrderDifferentialEquations, EventHandler {
+public class ODESystem implements FirstOrderDifferentialEquations {
 
     private Parameterization param;
     private int interval;
@@ -81,32 +80,14 @@ public class ODESystem implements FirstOrderDifferentialEquations, EventHandler
 
     }
 
-    /* EventHandler Implementation */
-
-    @Override
-    public void init(double v, double[] doubles, double v1) { }
-
-    @Override
-    public double g(double v, double[] doubles) {
-        double res = 1.0;
-        for (double boundary : param.getIntervalEndTimes())
-            res *= v - boundary;
-
-        return res;
-    }
-
-    @Override
-    public Action eventOccurred(double t, double[] y, boolean increasing) {
-        return Action.RESET_STATE;
-    }
-
-    @Override
-    public void resetState(double t, double[] y) {
-
-        interval -= 1;
-
-        // Include effect of any rho sampling times we pass:
-
+    /**
+     * Include the effect of the rho sampling event at the end of the
+     * given interval in the state vector y.
+     *
+     * @param interval index of interval whose end time is being crossed
+     * @param y state vector to modify
+     */
+    public void applyRhoSampling(int interval, double[] y) {
         for (int type=0; type<param.getNTypes(); type++) {
             y[type] *= 1.0 - param.getRhoValues()[interval][type];
             y[type+param.getNTypes()] *= 1.0 - param.getRhoValues()[interval][type];
@@ -1,7 +1,6 @@
 package bdmmprime.mapping;
 
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 
 import java.io.PrintStream;
 
@@ -17,9 +16,6 @@ public class TransitionTimeLogger extends AbstractTypeTreeStatsLogger {
             "Destination (younguest) type",
             Input.Validate.REQUIRED);
 
-    private Double earliest, latest;
-    private int count;
-
     int sourceTypeIdx, destTypeIdx;
 
     @Override
@@ -30,45 +26,6 @@ public class TransitionTimeLogger extends AbstractTypeTreeStatsLogger {
         destTypeIdx = typeSet.getTypeIndex(destTypeInput.get());
     }
 
-    public void update() {
-        earliest = null;
-        latest = null;
-        count = 0;
-
-        Node rootNode = tree.getRoot();
-        if (!includeRootEdge) {
-            while (rootNode.getChildCount() == 1)
-                rootNode = rootNode.getChild(0);
-        }
-        updateMetricsOnSubtree(rootNode);
-    }
-
-    boolean isTransition(Node node) {
-        if (node.isLeaf() || getType(node) != sourceTypeIdx)
-            return false;
-
-        for (Node child : node.getChildren())
-            if (getType(child) == destTypeIdx)
-                return true;
-
-        return false;
-    }
-
-    public void updateMetricsOnSubtree(Node subtreeRoot) {
-        if (isTransition(subtreeRoot)) {
-            if (earliest == null)
-                earliest = subtreeRoot.getHeight();
-
-            if (latest == null || subtreeRoot.getHeight()<latest)
-                latest = subtreeRoot.getHeight();
-
-            count += 1;
-        }
-
-        for (Node child : subtreeRoot.getChildren())
-            updateMetricsOnSubtree(child);
-    }
-
     @Override
     public void init(PrintStream out) {
         String prefix = (tree.getID() != null ? tree.getID() + "." : "")
@@ -81,13 +38,14 @@ public class TransitionTimeLogger extends AbstractTypeTreeStatsLogger {
 
     @Override
     public void log(long sample, PrintStream out) {
-        if (tree instanceof TypeMappedTree)
-            ((TypeMappedTree)tree).remapForLog(sample);
+        stats.update(sample);
 
-        update();
+        double earliest = stats.getOldestTransitionAge(sourceTypeIdx, destTypeIdx, includeRootEdge);
+        double latest = stats.getYoungestTransitionAge(sourceTypeIdx, destTypeIdx, includeRootEdge);
+        int count = stats.getTransitionCount(sourceTypeIdx, destTypeIdx, includeRootEdge);
 
-        out.print( (earliest == null ? "NA" : earliest) + "\t"
-                + (latest == null ? "NA" : latest) + "\t"
+        out.print( (Double.isNaN(earliest) ? "NA" : earliest) + "\t"
+                + (Double.isNaN(latest) ? "NA" : latest) + "\t"
                 + count + "\t");
     }
 
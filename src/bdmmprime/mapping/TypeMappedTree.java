@@ -1,7 +1,9 @@
 package bdmmprime.mapping;
 
 import bdmmprime.distribution.BirthDeathMigrationDistribution;
+import bdmmprime.parameterization.NodeTimeTable;
 import bdmmprime.parameterization.Parameterization;
+import bdmmprime.parameterization.ParameterizationSnapshot;
 import bdmmprime.util.Utils;
 import beast.base.core.Function;
 import beast.base.core.Input;
@@ -14,7 +16,18 @@ import org.apache.commons.math3.ode.ContinuousOutputModel;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
 import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>An instance of this class is a tree equivalent to untypedTree but with
@@ -39,10 +52,11 @@ import java.io.PrintStream;
  * this is a relatively small part of the mapping algorithm.</p>
  *
  * <p>As for the refactored BirthDeathMigrationDistribution class, the backward
- * integration strategy here is to have the integrator only handle rate shift and
- * rho sampling events which are _not_ coincident with nodes in the tree.
- * Events which _are_ coincident are handled as part of the ODE boundary
- * condition calculations done at each node.</p>
+ * integration strategy here is to step the integrator between the rate shift and
+ * rho sampling events which are _not_ coincident with nodes in the tree, applying
+ * these events directly at each interval boundary.  Events which _are_ coincident
+ * are handled as part of the ODE boundary condition calculations done at each
+ * node.</p>
  */
 public class TypeMappedTree extends Tree {
 
@@ -76,6 +90,27 @@ public class TypeMappedTree extends Tree {
             "If true, mapping will be regenerated when this object " +
                     "is logged.", false);
 
+    public Input<Boolean> asyncRemapOnLogInput = new Input<>("asyncRemapOnLog",
+            "If true, the remapping performed when this object is logged " +
+                    "is carried out on background threads.  Typed trees are " +
+                    "written to asyncFileName in sample order as the mappings " +
+                    "complete. The mappings are not available to other loggers, " +
+                    "so this object cannot then be used by other objects which " +
+                    "remap on log. Only has an effect when remapOnLog is true.", false);
+
+    public Input<String> asyncFileNameInput = new Input<>("asyncFileName",
+            "File to which typed trees are written when asyncRemapOnLog is " +
+                    "true, in place of the log this object is attached to. " +
+                    "(Entries lag behind the log calls, and BEAST loggers end " +
+                    "each call with a line break.)");
+
+    public Input<Integer> asyncQueueSizeInput = new Input<>("asyncQueueSize",
+            "Maximum number of pending asynchronous mappings before " +
+                    "logging blocks. (Default 8.)", 8);
+
+    public Input<Integer> asyncThreadsInput = new Input<>("asyncThreads",
+            "Number of threads used for asynchronous mapping. (Default 1.)", 1);
+
     public Input<Boolean> mapOnInitInput = new Input<>("mapOnInit",
             "If true, mapping will be performed when object is " +
                     "first initialize.", true);
@@ -84,15 +119,39 @@ public class TypeMappedTree extends Tree {
             "If provided, extract the parameterization from here.",
             Input.Validate.XOR, parameterizationInput);
 
+    public Input<TypedTreeNewickWriter.TypeChangeEncoding> typeChangeEncodingInput = new Input<>("typeChangeEncoding",
+            "Representation of type changes in logged trees: NODES writes " +
+                    "single-child type-change nodes, EDGE_ANNOTATIONS records the " +
+                    "changes as annotations on the edges of the untyped tree, and " +
+                    "NONE omits them. (Default NODES.)",
+            TypedTreeNewickWriter.TypeChangeEncoding.NODES,
+            TypedTreeNewickWriter.TypeChangeEncoding.values());
+
     private Parameterization param;
     private Function finalSampleOffset;
     private Tree untypedTree;
+    private NodeTimeTable nodeTimes;
 
     private ODESystem odeSystem;
     private ContinuousOutputModel[] integrationResults;
     double[] geScaleFactors;
     private FirstOrderIntegrator odeIntegrator;
 
+    /**
+     * Random number generator used by mappings performed at log time.
+     * Each such mapping, synchronous or asynchronous, is given a fresh
+     * generator seeded from the global Randomizer, so that both modes
+     * produce identical logs for a given seed.  When null (the default),
+     * the global Randomizer is used.
+     */
+    private SplittableRandom random = null;
+
+    ExecutorService asyncMappingExecutor;
+    private Deque<Future<TypeMappedTree>> pendingMappings;
+    private PrintStream asyncOut;
+
+    private TypedTreeNewickWriter logWriter;
+
     /**
      * Parameters for backward-time numerical integration.
      */
@@ -100,9 +159,6 @@ public class TypeMappedTree extends Tree {
     private final double BACKWARD_INTEGRATION_MAX_STEP = 0.1;
     private final double BACKWARD_INTEGRATION_ABS_TOLERANCE = 1e-100;
     private final double BACKWARD_INTEGRATION_REL_TOLERANCE = 1e-7;
-    private final int RATE_CHANGE_CHECKS_PER_EDGE = 100;
-    private final double RATE_CHANGE_CHECK_CONVERGENCE = 1e-5;
-    private final int RATE_CHANGE_MAX_ITERATIONS = 1000;
 
     /**
      * Maximum number of steps in each waiting time calculation in
@@ -121,35 +177,48 @@ public class TypeMappedTree extends Tree {
         untypedTree = treeInput.get();
 
         finalSampleOffset = finalSampleOffsetInput.get();
+        nodeTimes = new NodeTimeTable(param, untypedTree, finalSampleOffset);
+
+        if (remapOnLogInput.get() && asyncRemapOnLogInput.get()) {
+            if (asyncQueueSizeInput.get() < 1 || asyncThreadsInput.get() < 1)
+                throw new IllegalArgumentException("asyncQueueSize and asyncThreads must be positive.");
+
+            if (asyncFileNameInput.get() == null)
+                throw new IllegalArgumentException("asyncFileName must be given when asyncRemapOnLog is true.");
+
+            if (asyncMappingExecutor != null)
+                asyncMappingExecutor.shutdownNow();
+
+            asyncMappingExecutor = Executors.newFixedThreadPool(asyncThreadsInput.get(), r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+            pendingMappings = new ArrayDeque<>();
+        }
+
+        logWriter = getNewickWriter(typeChangeEncodingInput.get());
 
         if (mapOnInitInput.get())
             doStochasticMapping();
     }
 
+    /**
+     * @param encoding representation of type changes
+     * @return new writer for log entries of trees produced by this object
+     */
+    public TypedTreeNewickWriter getNewickWriter(TypedTreeNewickWriter.TypeChangeEncoding encoding) {
+        return new TypedTreeNewickWriter(encoding, typeLabelInput.get(), param.getTypeSet());
+    }
+
     /**
      * Generate new tree by stochastically mapping type changes on untyped tree.
      * Called both during initialization and at when logging.
      */
     private void doStochasticMapping() {
-         // Prepare the backward-time integrator!
-
-        odeIntegrator = new DormandPrince54Integrator(
-                param.getTotalProcessLength()*BACKWARD_INTEGRATION_MIN_STEP,
-                param.getTotalProcessLength()*BACKWARD_INTEGRATION_MAX_STEP,
-                BACKWARD_INTEGRATION_ABS_TOLERANCE, BACKWARD_INTEGRATION_REL_TOLERANCE);
-
-        // Prepare the ODE system and the arrays used to store the backward-time
-        // integration results.
-
-        odeSystem = new ODESystem(param);
-        integrationResults = new ContinuousOutputModel[untypedTree.getNodeCount()];
-        geScaleFactors = new double[untypedTree.getNodeCount()];
-
-        // Update leaf rho sampling status:
-        computeRhoSampledLeafStatus();
 
         // Perform the backward-time integration.
-        double[] y = backwardsIntegrateSubtree(untypedTree.getRoot(), 0.0);
+        double[] y = doBackwardIntegration();
 
         // Sample starting type
 
@@ -159,7 +228,7 @@ public class TypeMappedTree extends Tree {
             startTypeProbs[type] = y[type+param.getNTypes()]*frequenciesInput.get().getValue(type);
 
         // (startTypeProbs are unnormalized: this is okay for randomChoicePDF.)
-        int startType = Randomizer.randomChoicePDF(startTypeProbs);
+        int startType = randomChoicePDF(startTypeProbs);
 
         // Simulate type changes down tree
         // As tiny numerical errors can very occasionally lead to this failing,
@@ -188,13 +257,71 @@ public class TypeMappedTree extends Tree {
         assignFromWithoutID(new Tree(typedRoot));
     }
 
+    /**
+     * Perform the backward-time integration of p0 and ge over the whole untyped
+     * tree.  Results along each edge are subsequently available through
+     * getBackwardsIntegrationResult().
+     *
+     * @return (scaled) integration state at the start of the process
+     */
+    double[] doBackwardIntegration() {
+         // Prepare the backward-time integrator!
+
+        odeIntegrator = new DormandPrince54Integrator(
+                param.getTotalProcessLength()*BACKWARD_INTEGRATION_MIN_STEP,
+                param.getTotalProcessLength()*BACKWARD_INTEGRATION_MAX_STEP,
+                BACKWARD_INTEGRATION_ABS_TOLERANCE, BACKWARD_INTEGRATION_REL_TOLERANCE);
+
+        // Prepare the ODE system and the arrays used to store the backward-time
+        // integration results.
+
+        odeSystem = new ODESystem(param);
+        integrationResults = new ContinuousOutputModel[untypedTree.getNodeCount()];
+        geScaleFactors = new double[untypedTree.getNodeCount()];
+
+        // Update node times and leaf rho sampling status:
+        nodeTimes.update();
+        computeRhoSampledLeafStatus();
+
+        return backwardsIntegrateSubtree(untypedTree.getRoot(), 0.0);
+    }
+
+    /**
+     * @return parameterization used for the mapping
+     */
+    Parameterization getParameterization() {
+        return param;
+    }
+
+    /**
+     * @return untyped tree on which the mapping is performed
+     */
+    Tree getUntypedTree() {
+        return untypedTree;
+    }
+
+    /**
+     * @return table of untyped tree node times, current as of the most
+     * recent backward integration
+     */
+    NodeTimeTable getNodeTimes() {
+        return nodeTimes;
+    }
+
+    /**
+     * @return type frequencies at the start of the process
+     */
+    RealParameter getFrequencies() {
+        return frequenciesInput.get();
+    }
+
     /**
      * Obtain value of trait at leaf node.
      *
      * @param leafNode leaf node at which to obtain trait.
      * @return trait value.
      */
-    private int getLeafType(Node leafNode) {
+    int getLeafType(Node leafNode) {
             String nodeTypeName;
 
             if (typeTraitSetInput.get() != null)
@@ -233,7 +360,7 @@ public class TypeMappedTree extends Tree {
         rhoSamplingIndex = new int[untypedTree.getLeafNodeCount()];
 
         for (int nodeNr=0; nodeNr < treeInput.get().getLeafNodeCount(); nodeNr++) {
-            double nodeTime = param.getNodeTime(untypedTree.getNode(nodeNr), finalSampleOffset.getArrayValue());
+            double nodeTime = nodeTimes.getNodeTime(untypedTree.getNode(nodeNr));
             rhoSampled[nodeNr] = false;
             for (double rhoSamplingTime : param.getRhoSamplingTimes()) {
                 if (Utils.equalWithPrecision(nodeTime, rhoSamplingTime)) {
@@ -280,7 +407,7 @@ public class TypeMappedTree extends Tree {
      * @param node node to classify
      * @return node kind.
      */
-    private NodeKind getNodeKind(Node node) {
+    NodeKind getNodeKind(Node node) {
         if (node.isLeaf())
             return NodeKind.LEAF;
 
@@ -321,28 +448,14 @@ public class TypeMappedTree extends Tree {
 
         ContinuousOutputModel results = new ContinuousOutputModel();
 
-        // Prepare the integrator:
-
-        odeIntegrator.clearEventHandlers();
-        odeIntegrator.clearStepHandlers();
-
-        odeIntegrator.addStepHandler(results);
-
         double delta = 2*Utils.globalPrecisionThreshold;
 
-        double timeOfSubtreeRootEdgeBottom = param.getNodeTime(untypedSubtreeRoot, finalSampleOffset.getArrayValue());
-
-        odeIntegrator.addEventHandler(odeSystem,
-                (timeOfSubtreeRootEdgeBottom-timeOfSubtreeRootEdgeTop)/RATE_CHANGE_CHECKS_PER_EDGE,
-                RATE_CHANGE_CHECK_CONVERGENCE, RATE_CHANGE_MAX_ITERATIONS);
-
-        odeSystem.setInterval(param.getIntervalIndex(timeOfSubtreeRootEdgeBottom-delta));
+        double timeOfSubtreeRootEdgeBottom = nodeTimes.getNodeTime(untypedSubtreeRoot);
 
         // Perform the integration:
 
-        odeIntegrator.integrate(odeSystem,
-                timeOfSubtreeRootEdgeBottom - delta, y,
-                timeOfSubtreeRootEdgeTop+delta, y);
+        integrateBackward(timeOfSubtreeRootEdgeBottom - delta,
+                timeOfSubtreeRootEdgeTop + delta, y, results);
 
         // Save integration results
         integrationResults[untypedSubtreeRoot.getNr()] = results;
@@ -350,6 +463,68 @@ public class TypeMappedTree extends Tree {
         return y;
     }
 
+    /**
+     * Integrate p0 and ge backward in time from tStart to tEnd.  Rather than
+     * locating rate shifts by root-finding, the integration is broken up at
+     * each interval boundary lying between these times, with the rates
+     * switched and any rho sampling applied directly at each boundary.
+     *
+     * @param tStart time at which integration starts (the later time)
+     * @param tEnd time at which integration ends (the earlier time)
+     * @param y state at tStart, replaced by state at tEnd
+     * @param results if non-null, model to which integration results are appended
+     */
+    private void integrateBackward(double tStart, double tEnd, double[] y,
+                                   ContinuousOutputModel results) {
+
+        double thisTime = tStart;
+        int thisInterval = param.getIntervalIndex(thisTime);
+        int endInterval = param.getIntervalIndex(tEnd);
+
+        while (thisInterval > endInterval) {
+            double nextTime = param.getIntervalEndTimes()[thisInterval-1];
+
+            if (Utils.lessThanWithPrecision(nextTime, thisTime)) {
+                integrateSegment(thisInterval, thisTime, nextTime, y, results);
+                thisTime = nextTime;
+            }
+
+            thisInterval -= 1;
+
+            // Include effect of the rho sampling time we've just passed:
+            odeSystem.applyRhoSampling(thisInterval, y);
+        }
+
+        integrateSegment(thisInterval, thisTime, tEnd, y, results);
+    }
+
+    /**
+     * Integrate p0 and ge over a time period contained within a single interval.
+     *
+     * @param interval index of interval containing the time period
+     * @param tStart time at which integration starts
+     * @param tEnd time at which integration ends
+     * @param y state at tStart, replaced by state at tEnd
+     * @param results if non-null, model to which integration results are appended
+     */
+    private void integrateSegment(int interval, double tStart, double tEnd, double[] y,
+                                  ContinuousOutputModel results) {
+
+        odeSystem.setInterval(interval);
+        odeIntegrator.clearStepHandlers();
+
+        if (results == null) {
+            odeIntegrator.integrate(odeSystem, tStart, y, tEnd, y);
+            return;
+        }
+
+        ContinuousOutputModel segmentResults = new ContinuousOutputModel();
+        odeIntegrator.addStepHandler(segmentResults);
+        odeIntegrator.integrate(odeSystem, tStart, y, tEnd, y);
+
+        results.append(segmentResults);
+    }
+
     private double[] getLeafState(Node leafNode) {
 
         double[] y = new double[param.getNTypes()*2];
@@ -358,7 +533,7 @@ public class TypeMappedTree extends Tree {
             y[param.getNTypes()+type] = 0.0;
         }
 
-        double leafTime = param.getNodeTime(leafNode, finalSampleOffset.getArrayValue());
+        double leafTime = nodeTimes.getNodeTime(leafNode);
         double T = param.getTotalProcessLength();
 
         if (Utils.lessThanWithPrecision(leafTime, T)) {
@@ -370,12 +545,7 @@ public class TypeMappedTree extends Tree {
 
             double delta = 2*Utils.globalPrecisionThreshold;
 
-            odeSystem.setInterval(finalInterval);
-
-            odeIntegrator.clearStepHandlers();
-            odeIntegrator.clearEventHandlers();
-            odeIntegrator.addEventHandler(odeSystem, (T-leafTime)/100, 1e-5, 1000);
-            odeIntegrator.integrate(odeSystem, T-delta, y, leafTime+delta, y);
+            integrateBackward(T-delta, leafTime+delta, y, null);
         }
 
         int leafType = getLeafType(leafNode);
@@ -395,7 +565,7 @@ public class TypeMappedTree extends Tree {
 
         } else {
 
-            int nodeInterval = param.getNodeIntervalIndex(leafNode, finalSampleOffset.getArrayValue());
+            int nodeInterval = nodeTimes.getNodeInterval(leafNode);
 
             for (int type = 0; type< param.getNTypes(); type++) {
                 double psi = param.getSamplingRates()[nodeInterval][type];
@@ -416,7 +586,7 @@ public class TypeMappedTree extends Tree {
 
     private double[] getSAState(Node saNode) {
 
-        double saNodeTime = param.getNodeTime(saNode, finalSampleOffset.getArrayValue());
+        double saNodeTime = nodeTimes.getNodeTime(saNode);
 
         double[] y = backwardsIntegrateSubtree(saNode.getNonDirectAncestorChild(), saNodeTime);
 
@@ -439,7 +609,7 @@ public class TypeMappedTree extends Tree {
 
         } else {
 
-            int nodeInterval = param.getNodeIntervalIndex(saNode, finalSampleOffset.getArrayValue());
+            int nodeInterval = nodeTimes.getNodeInterval(saNode);
 
             for (int type = 0; type< param.getNTypes(); type++) {
                 double psi = param.getSamplingRates()[nodeInterval][type];
@@ -460,7 +630,7 @@ public class TypeMappedTree extends Tree {
 
     private double[] getInternalState(Node internalNode) {
 
-        double internalNodeTime = param.getNodeTime(internalNode, finalSampleOffset.getArrayValue());
+        double internalNodeTime = nodeTimes.getNodeTime(internalNode);
 
         double[] yLeft = backwardsIntegrateSubtree(internalNode.getChild(0), internalNodeTime);
         double[] yRight = backwardsIntegrateSubtree(internalNode.getChild(1), internalNodeTime);
@@ -470,7 +640,7 @@ public class TypeMappedTree extends Tree {
 
         double[] y = new double[param.getNTypes()*2];
 
-        int nodeInterval = param.getNodeIntervalIndex(internalNode, finalSampleOffset.getArrayValue());
+        int nodeInterval = nodeTimes.getNodeInterval(internalNode);
 
         int N = param.getNTypes();
 
@@ -535,7 +705,7 @@ public class TypeMappedTree extends Tree {
         int currentType = startType;
         double currentTime = startTime;
 
-        double endTime = param.getNodeTime(subtreeRoot, finalSampleOffset.getArrayValue());
+        double endTime = nodeTimes.getNodeTime(subtreeRoot);
 
         double[] rates = new double[param.getNTypes()];
         double[] ratesPrime = new double[param.getNTypes()];
@@ -552,18 +722,18 @@ public class TypeMappedTree extends Tree {
 
             // Determine time of next event
 
-            double K = -Math.log(Randomizer.nextDouble());
+            double K = -Math.log(nextDouble());
             double I = 0.0;
 
             double t = currentTime;
             double dt = (integrationEndTime-currentTime)/ FORWARD_INTEGRATION_STEPS;
-            totalRate = getTotalFowardsRate(currentType, currentTime, subtreeRoot, rates);
+            totalRate = getTotalFowardsRate(currentType, currentTime, interval, subtreeRoot, rates);
 
             int integrationStep;
             for (integrationStep=0; integrationStep< FORWARD_INTEGRATION_STEPS; integrationStep++) {
                 double tprime = currentTime + (integrationEndTime-currentTime)*(integrationStep+1)/ FORWARD_INTEGRATION_STEPS;
 
-                totalRatePrime = getTotalFowardsRate(currentType, tprime, subtreeRoot, ratesPrime);
+                totalRatePrime = getTotalFowardsRate(currentType, tprime, interval, subtreeRoot, ratesPrime);
 
                 I += dt*(totalRate + totalRatePrime)/2.0;
 
@@ -593,7 +763,7 @@ public class TypeMappedTree extends Tree {
 
             // Sample event type
 
-            currentType = Randomizer.randomChoicePDF(ratesPrime);
+            currentType = randomChoicePDF(ratesPrime);
 
             // Implement event in tree
 
@@ -643,8 +813,8 @@ public class TypeMappedTree extends Tree {
      * @param time time at which state is to be retrieved
      * @return backward-time integration result at this point on the tree
      */
-    private double[] getBackwardsIntegrationResult(Node node, double time) {
-        double parentTime = node.isRoot() ? 0.0 : param.getNodeTime(node.getParent(), finalSampleOffset.getArrayValue());
+    double[] getBackwardsIntegrationResult(Node node, double time) {
+        double parentTime = node.isRoot() ? 0.0 : nodeTimes.getNodeTime(node.getParent());
         double adjustedTime = Math.max(time, parentTime + 2*Utils.globalPrecisionThreshold);
 
         ContinuousOutputModel com = integrationResults[node.getNr()];
@@ -663,8 +833,8 @@ public class TypeMappedTree extends Tree {
 
     private int[] sampleChildTypes(Node node, int parentType) {
 
-        double t = param.getNodeTime(node, finalSampleOffset.getArrayValue());
-        int interval = param.getIntervalIndex(t);
+        double t = nodeTimes.getNodeTime(node);
+        int interval = nodeTimes.getNodeInterval(node);
 
         double[] y1 = getBackwardsIntegrationResult(node.getChild(0), t);
         double[] y2 = getBackwardsIntegrationResult(node.getChild(1), t);
@@ -693,7 +863,7 @@ public class TypeMappedTree extends Tree {
             }
         }
 
-        double u = Randomizer.nextDouble()*totalMass;
+        double u = nextDouble()*totalMass;
 
         for (int type1=0; type1<param.getNTypes(); type1++) {
             for (int type2 = 0; type2 < param.getNTypes(); type2++) {
@@ -716,15 +886,14 @@ public class TypeMappedTree extends Tree {
      *
      * @param fromType current type
      * @param time time at which to compute rates
+     * @param interval index of interval containing time
      * @param baseNode node at base of edge along which to compute rates.
      * @param result array in which results will be stored.
      * @return reference to array.
      */
-    private double[] getForwardsRates(int fromType, double time, Node baseNode, double[] result) {
+    private double[] getForwardsRates(int fromType, double time, int interval, Node baseNode, double[] result) {
         double[] y = getBackwardsIntegrationResult(baseNode, time);
 
-        int interval = param.getIntervalIndex(time);
-
         for (int type=0; type<param.getNTypes(); type++) {
             if (type == fromType) {
                 result[type] = 0.0;
@@ -770,19 +939,55 @@ public class TypeMappedTree extends Tree {
      *
      * @param fromType starting type for transition
      * @param time time at which to compute rates
+     * @param interval index of interval containing time
      * @param baseNode base node of edge on which to compute rates
      * @param rates array in which individual rates are stored
      * @return total forward-time transision rate.
      */
-    private double getTotalFowardsRate(int fromType, double time, Node baseNode, double[] rates) {
+    private double getTotalFowardsRate(int fromType, double time, int interval, Node baseNode, double[] rates) {
         double totalRate = 0.0;
-        getForwardsRates(fromType, time, baseNode, rates);
+        getForwardsRates(fromType, time, interval, baseNode, rates);
         for (int type=0; type<param.getNTypes(); type++)
             totalRate += rates[type];
 
         return totalRate;
     }
 
+    /**
+     * @return uniform random number drawn from the mapping RNG.
+     */
+    private double nextDouble() {
+        return random != null
+                ? random.nextDouble()
+                : Randomizer.nextDouble();
+    }
+
+    /**
+     * Draw index from an unnormalized discrete distribution using
+     * the mapping RNG.  Mirrors Randomizer.randomChoicePDF().
+     *
+     * @param pdf unnormalized probabilities
+     * @return sampled index
+     */
+    private int randomChoicePDF(double[] pdf) {
+        if (random == null)
+            return Randomizer.randomChoicePDF(pdf);
+
+        double total = 0.0;
+        for (double p : pdf)
+            total += p;
+
+        double u = random.nextDouble()*total;
+        for (int i=0; i<pdf.length; i++) {
+            u -= pdf[i];
+            if (u < 0.0)
+                return i;
+        }
+
+        throw new Error("randomChoicePDF fell through -- negative, infinite or " +
+                "NaN components in input distribution, or all zeroes?");
+    }
+
     /**
      * Apply node numbers to internal nodes below and including subtreeRoot.
      * Numbers are applied postorder, so parents always have larger numbers
@@ -819,34 +1024,125 @@ public class TypeMappedTree extends Tree {
      * @param sample sample number at log
      */
     public void remapForLog(long sample) {
+        if (isAsyncRemapOnLog())
+            throw new IllegalStateException("Mappings performed asynchronously " +
+                    "at log time are not available to other loggers.");
+
         if (!remapOnLogInput.get() || sample == lastRemapSample)
             return;
 
+        random = new SplittableRandom(Randomizer.nextLong());
         doStochasticMapping();
         lastRemapSample = sample;
     }
 
+    /**
+     * @return true if the mappings performed at log time are carried out
+     * asynchronously, in which case they are only written to asyncFileName
+     * and remapForLog() may not be used.
+     */
+    public boolean isAsyncRemapOnLog() {
+        return remapOnLogInput.get() && asyncRemapOnLogInput.get();
+    }
+
     @Override
     public void init(PrintStream out) {
-        untypedTree.init(out);
+        if (isAsyncRemapOnLog()) {
+            try {
+                asyncOut = new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(asyncFileNameInput.get()), 1 << 16));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error opening asynchronous typed tree log file.", e);
+            }
+
+            untypedTree.init(asyncOut);
+        } else
+            untypedTree.init(out);
     }
 
     @Override
     public void log(long sample, PrintStream out) {
+        if (isAsyncRemapOnLog()) {
+            if (asyncOut == null)
+                throw new IllegalStateException("Asynchronous typed tree log has not been initialized.");
+
+            submitAsyncMapping(sample);
+            writeCompletedMappings(asyncOut, false);
+            return;
+        }
+
         remapForLog(sample);
 
-        Tree tree = (Tree) getCurrent();
-        out.print("tree STATE_" + sample + " = ");
-        // Don't sort, this can confuse CalculationNodes relying on the tree
-        //tree.getRoot().sort();
-        final int[] dummy = new int[1];
-        final String newick = tree.getRoot().toSortedNewick(dummy, true);
-        out.print(newick);
-        out.print(";");
+        logWriter.writeEntry(out, (Tree) getCurrent(), sample);
+    }
+
+    /**
+     * Snapshot the untyped tree, the parameterization and a fresh RNG seed
+     * and hand the mapping of this snapshot to the background executor.
+     *
+     * @param sample sample number at log
+     */
+    private void submitAsyncMapping(long sample) {
+
+        TypeMappedTree mapper = new TypeMappedTree();
+        if (typeTraitSetInput.get() != null)
+            mapper.typeTraitSetInput.setValue(typeTraitSetInput.get(), mapper);
+
+        mapper.initByName(
+                "parameterization", new ParameterizationSnapshot(param),
+                "frequencies", new RealParameter(frequenciesInput.get().getValues()),
+                "finalSampleOffset", new RealParameter(new Double[] {finalSampleOffset.getArrayValue()}),
+                "typeLabel", typeLabelInput.get(),
+                "untypedTree", new Tree(untypedTree.getRoot().copy()),
+                "mapOnInit", false);
+
+        mapper.random = new SplittableRandom(Randomizer.nextLong());
+        mapper.lastRemapSample = sample;
+
+        // Only the mapping is done in the background: the log entry is
+        // streamed from the completed tree by writeCompletedMappings().
+        pendingMappings.addLast(asyncMappingExecutor.submit(() -> {
+            mapper.doStochasticMapping();
+            return mapper;
+        }));
+    }
+
+    /**
+     * Write log entries of completed asynchronous mappings in sample order.
+     * Blocks while more than asyncQueueSize mappings are pending, or until
+     * all pending mappings are complete if waitForAll is true.
+     *
+     * @param out stream to write entries to
+     * @param waitForAll if true, wait for and write all pending mappings
+     */
+    private void writeCompletedMappings(PrintStream out, boolean waitForAll) {
+        while (!pendingMappings.isEmpty()
+                && (waitForAll
+                || pendingMappings.size() > asyncQueueSizeInput.get()
+                || pendingMappings.peekFirst().isDone())) {
+
+            TypeMappedTree mapper;
+            try {
+                mapper = pendingMappings.pollFirst().get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Asynchronous stochastic mapping failed.", e);
+            }
+
+            logWriter.writeEntry(out, mapper, mapper.lastRemapSample);
+            out.println();
+        }
     }
 
     @Override
     public void close(PrintStream out) {
-        untypedTree.close(out);
+        if (asyncOut != null) {
+            writeCompletedMappings(asyncOut, true);
+            asyncMappingExecutor.shutdown();
+
+            untypedTree.close(asyncOut);
+            asyncOut.close();
+            asyncOut = null;
+        } else
+            untypedTree.close(out);
     }
 }
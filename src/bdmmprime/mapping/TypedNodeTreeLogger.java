@@ -2,11 +2,16 @@ package bdmmprime.mapping;
 
 import beast.base.core.Input;
 import beast.base.core.Loggable;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Logger which takes a typed tree generated by TypeMappedTree and
@@ -14,6 +19,13 @@ import java.io.PrintStream;
  * nodes are preserved, i.e. all type-change nodes are stripped away.
  *
  * This is useful for producing tree files which can be fed into TreeAnnotator.
+ * Alternatively, the type changes can be retained as edge annotations, or the
+ * type-change nodes written in full.
+ *
+ * Entries are streamed to the log using TypedTreeNewickWriter.  If a file name
+ * is given, the complete tree file is instead written through a large buffer
+ * to that file, which may optionally be gzip-compressed, and nothing is
+ * written to the log this logger is attached to.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
@@ -24,16 +36,61 @@ public class TypedNodeTreeLogger extends CalculationNode implements Loggable {
             "Typed tree whose node types to log.",
             Input.Validate.REQUIRED);
 
+    public Input<TypedTreeNewickWriter.TypeChangeEncoding> typeChangeEncodingInput = new Input<>("typeChangeEncoding",
+            "Representation of type changes: NONE strips them away, EDGE_ANNOTATIONS " +
+                    "records them as edge annotations and NODES writes the " +
+                    "type-change nodes. (Default NONE.)",
+            TypedTreeNewickWriter.TypeChangeEncoding.NONE,
+            TypedTreeNewickWriter.TypeChangeEncoding.values());
+
+    public Input<String> fileNameInput = new Input<>("fileName",
+            "If provided, trees are written to this file rather than to " +
+                    "the log this logger is attached to.");
+
+    public Input<Boolean> compressInput = new Input<>("compress",
+            "If true, gzip-compress the file given by fileName. (Default false.)",
+            false);
+
     private Tree typedTree;
+    private TypedTreeNewickWriter newickWriter;
+    private PrintStream fileOut;
 
     @Override
     public void initAndValidate() {
         typedTree = typedTreeInput.get();
+        if (typedTree instanceof TypeMappedTree && ((TypeMappedTree) typedTree).isAsyncRemapOnLog())
+            throw new IllegalArgumentException("TypedNodeTreeLogger cannot use a TypeMappedTree with " +
+                    "asyncRemapOnLog set, as its mappings are only written to its own log.");
+
+
+        TypedTreeNewickWriter.TypeChangeEncoding encoding = typeChangeEncodingInput.get();
+        if (typedTree instanceof TypeMappedTree)
+            newickWriter = ((TypeMappedTree) typedTree).getNewickWriter(encoding);
+        else if (encoding == TypedTreeNewickWriter.TypeChangeEncoding.EDGE_ANNOTATIONS)
+            throw new IllegalArgumentException("Edge annotation of type changes " +
+                    "requires a tree produced by TypeMappedTree.");
+        else
+            newickWriter = new TypedTreeNewickWriter(encoding, null, null);
+
+        if (compressInput.get() && fileNameInput.get() == null)
+            throw new IllegalArgumentException("Compression requires fileName to be set.");
     }
 
     @Override
     public void init(PrintStream out) {
-        typedTree.init(out);
+        if (fileNameInput.get() != null) {
+            try {
+                OutputStream os = new FileOutputStream(fileNameInput.get());
+                if (compressInput.get())
+                    os = new GZIPOutputStream(os, 1 << 16);
+                fileOut = new PrintStream(new BufferedOutputStream(os, 1 << 16));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error opening typed tree log file.", e);
+            }
+
+            typedTree.init(fileOut);
+        } else
+            typedTree.init(out);
     }
 
     @Override
@@ -42,61 +99,20 @@ public class TypedNodeTreeLogger extends CalculationNode implements Loggable {
         if (typedTree instanceof TypeMappedTree)
             ((TypeMappedTree)typedTree).remapForLog(nSample);
 
-        // Set up metadata string
-        out.print("tree STATE_" + nSample + " = ");
-        out.print(getStrippedNewick(typedTree.getRoot()));
-        out.print(";");
+        if (fileOut != null) {
+            newickWriter.writeEntry(fileOut, typedTree, nSample);
+            fileOut.println();
+        } else
+            newickWriter.writeEntry(out, typedTree, nSample);
     }
 
     @Override
     public void close(PrintStream out) {
-        typedTree.close(out);
-    }
-
-    /**
-     * Construct a newick representation of the given typed tree, but with
-     * type-change nodes stripped away.  Useful for feeding into TreeAnnotator
-     * to produce summary trees with (limited) type information.
-     *
-     * @param node root of typed tree.
-     * @return newick representation.
-     */
-    public String getStrippedNewick(Node node) {
-
-        StringBuilder resultBuilder = new StringBuilder();
-
-        Node topNode = node;
-
-        while (node.getChildren().size()==1)
-            node = node.getChild(0);
-
-        if (!node.isLeaf()) {
-
-            resultBuilder.append("(");
-            boolean isFirst = true;
-            for (Node child : node.getChildren()) {
-                if (isFirst)
-                    isFirst = false;
-                else
-                    resultBuilder.append(",");
-
-                resultBuilder.append(getStrippedNewick(child));
-            }
-
-            resultBuilder.append(")");
-        }
-
-        if (node.getID() != null)
-            resultBuilder.append(node.getNr()+Tree.taxaTranslationOffset);
-
-        resultBuilder.append("[&").append(node.metaDataString).append("]");
-
-        double edgeLength = 0.0;
-        if (topNode.getParent() != null)
-            edgeLength = topNode.getParent().getHeight()-node.getHeight();
-
-        resultBuilder.append(":").append(edgeLength);
-
-        return resultBuilder.toString();
+        if (fileOut != null) {
+            typedTree.close(fileOut);
+            fileOut.close();
+            fileOut = null;
+        } else
+            typedTree.close(out);
     }
-}
\ No newline at end of file
+}
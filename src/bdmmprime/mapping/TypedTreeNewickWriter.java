@@ -0,0 +1,294 @@
+package bdmmprime.mapping;
+
+import bdmmprime.parameterization.TypeSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes tree log entries for typed trees such as those produced by
+ * TypeMappedTree.  The Newick string is written directly to the output
+ * as the tree is traversed, rather than first being assembled in memory.
+ *
+ * Typed trees represent type changes using nodes with a single child,
+ * each of which carries the type of the edge above it.  These can be
+ * written in one of three ways:
+ *
+ * NODES: type-change nodes are written as they are, producing the same
+ * tree as Node.toSortedNewick(), as used by TypeMappedTree.log().
+ *
+ * NONE: type-change nodes are stripped away, leaving only the types at
+ * leaves, sampled ancestors and coalescent nodes.  This is useful for
+ * producing tree files which can be fed into TreeAnnotator.  The output is
+ * identical to that previously produced by TypedNodeTreeLogger: children are
+ * written in their stored order and only nodes with IDs are labelled.
+ *
+ * EDGE_ANNOTATIONS: type-change nodes are stripped away, but each change
+ * is recorded in a "typeLabel_changes" annotation on the node below the
+ * edge, as a list of {age,fromType,toType} triples in order of decreasing
+ * age.  This retains the full type mapping in a considerably smaller log.
+ *
+ * For NODES and EDGE_ANNOTATIONS, children are written in order of their
+ * minimum leaf number.
+ */
+public class TypedTreeNewickWriter {
+
+    public enum TypeChangeEncoding {NODES, NONE, EDGE_ANNOTATIONS}
+
+    private final TypeChangeEncoding encoding;
+    private final String typeLabel;
+    private final String[] quotedTypeNames;
+
+    // Pre-order traversal tables: subtree size and minimum leaf number
+    private int[] subtreeSizes = new int[0], minLeafNrs = new int[0];
+
+    /**
+     * @param encoding how type changes are to be represented
+     * @param typeLabel label used for node types, required for EDGE_ANNOTATIONS
+     * @param typeSet type set used to name types in edge annotations, or null
+     *                to use the type metadata values directly
+     */
+    public TypedTreeNewickWriter(TypeChangeEncoding encoding, String typeLabel, TypeSet typeSet) {
+        this.encoding = encoding;
+        this.typeLabel = typeLabel;
+
+        if (encoding == TypeChangeEncoding.EDGE_ANNOTATIONS && typeLabel == null)
+            throw new IllegalArgumentException("Edge annotation of type changes requires a type label.");
+
+        if (typeSet != null) {
+            quotedTypeNames = new String[typeSet.getNTypes()];
+            for (int type=0; type<quotedTypeNames.length; type++)
+                quotedTypeNames[type] = "\"" + typeSet.getTypeName(type) + "\"";
+        } else
+            quotedTypeNames = null;
+    }
+
+    /**
+     * Write a complete tree log entry for the given tree to the stream.
+     *
+     * @param out stream to write entry to
+     * @param tree tree to write
+     * @param sample sample number at log
+     */
+    public void writeEntry(PrintStream out, Tree tree, long sample) {
+        try {
+            writeEntry((Appendable) out, tree, sample);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing typed tree log entry.", e);
+        }
+    }
+
+    /**
+     * Write a complete tree log entry for the given tree.
+     *
+     * @param out destination to write entry to
+     * @param tree tree to write
+     * @param sample sample number at log
+     * @throws IOException if writing fails
+     */
+    public void writeEntry(Appendable out, Tree tree, long sample) throws IOException {
+        out.append("tree STATE_");
+        out.append(Long.toString(sample));
+        out.append(" = ");
+        writeNewick(out, tree.getRoot());
+        out.append(';');
+    }
+
+    /**
+     * Write the Newick representation of the tree below the given node.
+     *
+     * @param out destination to write to
+     * @param root root of typed tree
+     * @throws IOException if writing fails
+     */
+    public void writeNewick(Appendable out, Node root) throws IOException {
+        int nNodes = countNodes(root);
+        if (subtreeSizes.length < nNodes) {
+            subtreeSizes = new int[nNodes];
+            minLeafNrs = new int[nNodes];
+        }
+        tabulate(root, 0);
+
+        writeNode(out, root, 0);
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        for (Node child : node.getChildren())
+            count += countNodes(child);
+
+        return count;
+    }
+
+    /**
+     * Fill the subtree size and minimum leaf number tables for the subtree
+     * whose root has the given pre-order index.
+     */
+    private void tabulate(Node node, int idx) {
+        int size = 1;
+        int minLeafNr = node.isLeaf() ? node.getNr() : Integer.MAX_VALUE;
+
+        for (Node child : node.getChildren()) {
+            int childIdx = idx + size;
+            tabulate(child, childIdx);
+            size += subtreeSizes[childIdx];
+            minLeafNr = Math.min(minLeafNr, minLeafNrs[childIdx]);
+        }
+
+        subtreeSizes[idx] = size;
+        minLeafNrs[idx] = minLeafNr;
+    }
+
+    /**
+     * Write the subtree whose root has the given pre-order index.
+     */
+    private void writeNode(Appendable out, Node topNode, int topIdx) throws IOException {
+
+        Node node = topNode;
+        int idx = topIdx;
+
+        if (encoding != TypeChangeEncoding.NODES) {
+            while (node.getChildCount() == 1) {
+                node = node.getChild(0);
+                idx += 1;
+            }
+        }
+
+        int nChildren = node.getChildCount();
+        if (nChildren > 0) {
+            int[] order = getChildOrder(node, idx);
+
+            out.append('(');
+            for (int i=0; i<nChildren; i++) {
+                if (i > 0)
+                    out.append(',');
+
+                writeNode(out, node.getChild(order[2*i]), order[2*i+1]);
+            }
+            out.append(')');
+        }
+
+        if (encoding == TypeChangeEncoding.NONE) {
+            // Matches the output of the former TypedNodeTreeLogger.getStrippedNewick()
+            if (node.getID() != null)
+                out.append(Integer.toString(node.getNr() + Tree.taxaTranslationOffset));
+
+            out.append("[&");
+            out.append(String.valueOf(node.metaDataString));
+            out.append(']');
+        } else {
+            if (node.isLeaf() || node.getID() != null)
+                out.append(Integer.toString(node.getNr() + Tree.taxaTranslationOffset));
+
+            if (encoding == TypeChangeEncoding.EDGE_ANNOTATIONS)
+                writeAnnotatedMetaData(out, topNode, node);
+            else if (node.metaDataString != null) {
+                out.append("[&");
+                out.append(node.metaDataString);
+                out.append(']');
+            }
+        }
+
+        out.append(':');
+
+        double edgeLength = topNode.getParent() != null
+                ? topNode.getParent().getHeight() - node.getHeight()
+                : 0.0;
+        out.append(Double.toString(edgeLength));
+    }
+
+    /**
+     * Determine order in which children of the node at the given pre-order
+     * index are to be written: stored order for NONE, otherwise sorted by
+     * minimum leaf number.
+     *
+     * @return newly allocated array of (child number, pre-order index) pairs
+     */
+    private int[] getChildOrder(Node node, int idx) {
+        int nChildren = node.getChildCount();
+        int[] order = new int[2*nChildren];
+
+        int childIdx = idx + 1;
+        for (int c=0; c<nChildren; c++) {
+            order[2*c] = c;
+            order[2*c+1] = childIdx;
+            childIdx += subtreeSizes[childIdx];
+        }
+
+        if (encoding == TypeChangeEncoding.NONE)
+            return order;
+
+        // Insertion sort by minimum leaf number (usually just two children)
+        for (int i=1; i<nChildren; i++) {
+            int c = order[2*i], ci = order[2*i+1];
+            int j = i-1;
+            while (j >= 0 && minLeafNrs[order[2*j+1]] > minLeafNrs[ci]) {
+                order[2*(j+1)] = order[2*j];
+                order[2*(j+1)+1] = order[2*j+1];
+                j -= 1;
+            }
+            order[2*(j+1)] = c;
+            order[2*(j+1)+1] = ci;
+        }
+
+        return order;
+    }
+
+    /**
+     * Write the metadata of the node at the base of an edge, followed by
+     * the type changes represented by the single-child nodes on the edge.
+     *
+     * @param out writer to write to
+     * @param topNode node at top of edge
+     * @param node node at base of edge
+     */
+    private void writeAnnotatedMetaData(Appendable out, Node topNode, Node node) throws IOException {
+        out.append("[&");
+        if (node.metaDataString != null)
+            out.append(node.metaDataString);
+
+        if (topNode != node) {
+            if (node.metaDataString != null)
+                out.append(',');
+
+            out.append(typeLabel);
+            out.append("_changes={");
+
+            // Type-change nodes from the top of the edge down, i.e. in
+            // order of decreasing age.  Each node carries the type above
+            // the change, its child the type below.
+            boolean isFirst = true;
+            for (Node changeNode = topNode; changeNode != node; changeNode = changeNode.getChild(0)) {
+                if (isFirst)
+                    isFirst = false;
+                else
+                    out.append(',');
+
+                out.append('{');
+                out.append(Double.toString(changeNode.getHeight()));
+                out.append(',');
+                writeTypeName(out, changeNode);
+                out.append(',');
+                writeTypeName(out, changeNode.getChild(0));
+                out.append('}');
+            }
+            out.append('}');
+        }
+        out.append(']');
+    }
+
+    private void writeTypeName(Appendable out, Node node) throws IOException {
+        Object type = node.getMetaData(typeLabel);
+
+        if (quotedTypeNames != null && type instanceof Integer)
+            out.append(quotedTypeNames[(Integer) type]);
+        else {
+            out.append('"');
+            out.append(String.valueOf(type));
+            out.append('"');
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package bdmmprime.mapping;
+
+import bdmmprime.parameterization.TypeSet;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of a typed tree, such as that produced by
+ * TypeMappedTree, computed in a single iterative traversal.  Loggers which
+ * refer to the same instance via their "stats" input share its results, so
+ * that however many statistics are logged the tree is remapped (if
+ * necessary) and traversed only once per sample.
+ *
+ * Statistics accumulated along the root edge, i.e. the edge above the
+ * first node with more than one child, are held separately so that each
+ * logger can choose whether to include them.
+ *
+ * Computed statistics are:
+ *
+ * - the number of changes between each ordered pair of types and the total
+ *   edge length spent in each type (as logged by TypedTreeStatsLogger),
+ *
+ * - for each pair of types, the number of nodes of the source type having a
+ *   child of the destination type and the ages of the oldest and youngest
+ *   such nodes (as logged by TransitionTimeLogger),
+ *
+ * - for each leaf, the number of type changes on its lineage and the time
+ *   spent in its own type since the most recent of these.
+ */
+public class TypedTreeStats extends CalculationNode {
+
+    public Input<Tree> typedTreeInput = new Input<>("typedTree",
+            "Tree with type changes mapped.",
+            Input.Validate.REQUIRED);
+
+    public Input<TypeSet> typeSetInput = new Input<>("typeSet",
+            "Type set specifying model types.",
+            Input.Validate.REQUIRED);
+
+    public Input<String> typeLabelInput = new Input<>("typeLabel",
+            "Type label used to store type information on tree.",
+            Input.Validate.REQUIRED);
+
+    private Tree tree;
+    private TypeSet typeSet;
+    private String typeLabel;
+    private int nTypes;
+
+    private long lastSample = -1;
+    private boolean computed = false;
+
+    // First index: 0 for statistics excluding the root edge, 1 for the root edge only.
+    private int[][][] changeCounts;
+    private double[][] lengths;
+    private int[][][] transitionCounts;
+    private double[][][] oldestTransitionAges, youngestTransitionAges;
+
+    // Per-leaf statistics (excluding the root edge), indexed by leaf number
+    private int[] lineageChangeCounts = new int[0];
+    private double[] lineageLastChangeAges = new double[0];
+    private double[] leafAges = new double[0];
+    private int[] leafTypes = new int[0];
+
+    private int rootEdgeChangeCount;
+    private double rootEdgeLastChangeAge, rootEdgeBaseAge;
+
+    // Traversal stack
+    private Node[] stackNodes = new Node[16];
+    private int[] stackChangeCounts = new int[16];
+    private double[] stackLastChangeAges = new double[16];
+
+    @Override
+    public void initAndValidate() {
+        tree = typedTreeInput.get();
+        if (tree instanceof TypeMappedTree && ((TypeMappedTree) tree).isAsyncRemapOnLog())
+            throw new IllegalArgumentException("TypedTreeStats cannot use a TypeMappedTree with " +
+                    "asyncRemapOnLog set, as its mappings are only written to its own log.");
+
+        typeSet = typeSetInput.get();
+        typeLabel = typeLabelInput.get();
+        nTypes = typeSet.getNTypes();
+
+        changeCounts = new int[2][nTypes][nTypes];
+        lengths = new double[2][nTypes];
+        transitionCounts = new int[2][nTypes][nTypes];
+        oldestTransitionAges = new double[2][nTypes][nTypes];
+        youngestTransitionAges = new double[2][nTypes][nTypes];
+
+        computed = false;
+    }
+
+    public Tree getTree() {
+        return tree;
+    }
+
+    public TypeSet getTypeSet() {
+        return typeSet;
+    }
+
+    public String getTypeLabel() {
+        return typeLabel;
+    }
+
+    /**
+     * Ensure statistics are up to date for the given sample, remapping
+     * the tree first if it is a TypeMappedTree which remaps on log.
+     *
+     * @param sample sample number at log
+     */
+    public synchronized void update(long sample) {
+        if (tree instanceof TypeMappedTree)
+            ((TypeMappedTree)tree).remapForLog(sample);
+
+        if (computed && sample == lastSample)
+            return;
+
+        compute();
+
+        lastSample = sample;
+        computed = true;
+    }
+
+    int getType(Node node) {
+        Object typeObj = node.getMetaData(typeLabel);
+        if (typeObj == null)
+            throw new RuntimeException("Tree does not have type metadata with the label '" + typeLabel + "'");
+
+        if (typeObj instanceof Integer)
+            return (int)typeObj;
+
+        if (typeObj instanceof String)
+            return typeSet.getTypeIndex((String)typeObj);
+
+        throw new RuntimeException("Tree does not contain valid type metadata.");
+    }
+
+    private void reset() {
+        for (int part=0; part<2; part++) {
+            for (int i=0; i<nTypes; i++) {
+                lengths[part][i] = 0.0;
+                for (int j=0; j<nTypes; j++) {
+                    changeCounts[part][i][j] = 0;
+                    transitionCounts[part][i][j] = 0;
+                    oldestTransitionAges[part][i][j] = Double.NaN;
+                    youngestTransitionAges[part][i][j] = Double.NaN;
+                }
+            }
+        }
+
+        int nLeaves = tree.getLeafNodeCount();
+        if (lineageChangeCounts.length != nLeaves) {
+            lineageChangeCounts = new int[nLeaves];
+            lineageLastChangeAges = new double[nLeaves];
+            leafAges = new double[nLeaves];
+            leafTypes = new int[nLeaves];
+        }
+    }
+
+    /**
+     * Account for the edge between parent and child.
+     *
+     * @return true if the edge involves a type change
+     */
+    private boolean addEdge(int part, Node parent, int parentType, Node child, int childType) {
+        lengths[part][childType] += parent.getHeight() - child.getHeight();
+
+        if (parent.getChildCount() == 1 || childType != parentType) {
+            changeCounts[part][parentType][childType] += 1;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Account for the node as a potential transition from its own type to
+     * the types of its children.
+     */
+    private void addTransitions(int part, Node node, int type) {
+        int nChildren = node.getChildCount();
+        for (int c=0; c<nChildren; c++) {
+            int childType = getType(node.getChild(c));
+
+            // Count each destination type once per node
+            boolean seen = false;
+            for (int cp=0; cp<c; cp++) {
+                if (getType(node.getChild(cp)) == childType) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (seen)
+                continue;
+
+            double age = node.getHeight();
+            transitionCounts[part][type][childType] += 1;
+            if (!(oldestTransitionAges[part][type][childType] >= age))
+                oldestTransitionAges[part][type][childType] = age;
+            if (!(youngestTransitionAges[part][type][childType] <= age))
+                youngestTransitionAges[part][type][childType] = age;
+        }
+    }
+
+    private void compute() {
+        reset();
+
+        // Root edge
+
+        Node node = tree.getRoot();
+        int type = getType(node);
+        rootEdgeChangeCount = 0;
+        rootEdgeLastChangeAge = Double.NaN;
+
+        while (node.getChildCount() == 1) {
+            Node child = node.getChild(0);
+            int childType = getType(child);
+
+            addTransitions(1, node, type);
+            if (addEdge(1, node, type, child, childType)) {
+                rootEdgeChangeCount += 1;
+                rootEdgeLastChangeAge = node.getHeight();
+            }
+
+            node = child;
+            type = childType;
+        }
+
+        rootEdgeBaseAge = node.getHeight();
+
+        // Remainder of tree, traversed in pre-order
+
+        int top = 0;
+        stackNodes[0] = node;
+        stackChangeCounts[0] = 0;
+        stackLastChangeAges[0] = Double.NaN;
+
+        while (top >= 0) {
+            node = stackNodes[top];
+            int changeCount = stackChangeCounts[top];
+            double lastChangeAge = stackLastChangeAges[top];
+            top -= 1;
+
+            type = getType(node);
+
+            if (node.isLeaf()) {
+                int nr = node.getNr();
+                lineageChangeCounts[nr] = changeCount;
+                lineageLastChangeAges[nr] = lastChangeAge;
+                leafAges[nr] = node.getHeight();
+                leafTypes[nr] = type;
+                continue;
+            }
+
+            addTransitions(0, node, type);
+
+            for (Node child : node.getChildren()) {
+                int childType = getType(child);
+
+                int childChangeCount = changeCount;
+                double childLastChangeAge = lastChangeAge;
+                if (addEdge(0, node, type, child, childType)) {
+                    childChangeCount += 1;
+                    childLastChangeAge = node.getHeight();
+                }
+
+                top += 1;
+                if (top == stackNodes.length)
+                    growStack();
+
+                stackNodes[top] = child;
+                stackChangeCounts[top] = childChangeCount;
+                stackLastChangeAges[top] = childLastChangeAge;
+            }
+        }
+
+        // Release references to tree nodes
+        Arrays.fill(stackNodes, null);
+    }
+
+    private void growStack() {
+        int newSize = 2*stackNodes.length;
+        stackNodes = Arrays.copyOf(stackNodes, newSize);
+        stackChangeCounts = Arrays.copyOf(stackChangeCounts, newSize);
+        stackLastChangeAges = Arrays.copyOf(stackLastChangeAges, newSize);
+    }
+
+    public int getNTypes() {
+        return nTypes;
+    }
+
+    /**
+     * @param includeRootEdge if true, include changes on the root edge
+     * @param result nTypes x nTypes array to receive the number of changes
+     *               from each type (first index) to each other type
+     */
+    public void getChangeCounts(boolean includeRootEdge, int[][] result) {
+        for (int i=0; i<nTypes; i++) {
+            for (int j=0; j<nTypes; j++) {
+                result[i][j] = changeCounts[0][i][j]
+                        + (includeRootEdge ? changeCounts[1][i][j] : 0);
+            }
+        }
+    }
+
+    /**
+     * @param includeRootEdge if true, include the root edge
+     * @param result array to receive the total edge length spent in each type
+     */
+    public void getLengths(boolean includeRootEdge, double[] result) {
+        for (int i=0; i<nTypes; i++)
+            result[i] = lengths[0][i] + (includeRootEdge ? lengths[1][i] : 0.0);
+    }
+
+    /**
+     * @param includeRootEdge if true, include nodes on the root edge
+     * @return number of nodes of the source type with a child of the destination type
+     */
+    public int getTransitionCount(int sourceType, int destType, boolean includeRootEdge) {
+        return transitionCounts[0][sourceType][destType]
+                + (includeRootEdge ? transitionCounts[1][sourceType][destType] : 0);
+    }
+
+    /**
+     * @param includeRootEdge if true, include nodes on the root edge
+     * @return age of oldest node of the source type with a child of the
+     * destination type, or NaN if there is none
+     */
+    public double getOldestTransitionAge(int sourceType, int destType, boolean includeRootEdge) {
+        double age = oldestTransitionAges[0][sourceType][destType];
+        double rootEdgeAge = oldestTransitionAges[1][sourceType][destType];
+        if (includeRootEdge && !Double.isNaN(rootEdgeAge) && !(age >= rootEdgeAge))
+            age = rootEdgeAge;
+
+        return age;
+    }
+
+    /**
+     * @param includeRootEdge if true, include nodes on the root edge
+     * @return age of youngest node of the source type with a child of the
+     * destination type, or NaN if there is none
+     */
+    public double getYoungestTransitionAge(int sourceType, int destType, boolean includeRootEdge) {
+        double age = youngestTransitionAges[0][sourceType][destType];
+        if (includeRootEdge && Double.isNaN(age))
+            age = youngestTransitionAges[1][sourceType][destType];
+
+        return age;
+    }
+
+    /**
+     * @param leafNr leaf number
+     * @return type of leaf
+     */
+    public int getLeafType(int leafNr) {
+        return leafTypes[leafNr];
+    }
+
+    /**
+     * @param leafNr leaf number
+     * @param includeRootEdge if true, include changes on the root edge
+     * @return number of type changes on the lineage ancestral to the leaf
+     */
+    public int getLineageChangeCount(int leafNr, boolean includeRootEdge) {
+        return lineageChangeCounts[leafNr] + (includeRootEdge ? rootEdgeChangeCount : 0);
+    }
+
+    /**
+     * @param leafNr leaf number
+     * @param includeRootEdge if true, include the root edge
+     * @return time spent by the lineage ancestral to the leaf in the leaf's
+     * type since the most recent type change, or since the top of the
+     * tree (root edge excluded) if there has been no change
+     */
+    public double getLineageDwellTime(int leafNr, boolean includeRootEdge) {
+        double lastChangeAge = lineageLastChangeAges[leafNr];
+
+        if (Double.isNaN(lastChangeAge)) {
+            if (!includeRootEdge)
+                lastChangeAge = rootEdgeBaseAge;
+            else if (!Double.isNaN(rootEdgeLastChangeAge))
+                lastChangeAge = rootEdgeLastChangeAge;
+            else
+                lastChangeAge = tree.getRoot().getHeight();
+        }
+
+        return lastChangeAge - leafAges[leafNr];
+    }
+}
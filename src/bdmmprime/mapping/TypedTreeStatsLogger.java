@@ -1,7 +1,5 @@
 package bdmmprime.mapping;
 
-import beast.base.evolution.tree.Node;
-
 import java.io.PrintStream;
 
 /**
@@ -21,52 +19,12 @@ public class TypedTreeStatsLogger extends AbstractTypeTreeStatsLogger {
     }
 
 
-    private void update() {
-        // Zero length and count arrays
-        for (int i=0; i<nTypes; i++) {
-            lengthVector[i] = 0.0;
-            for (int j=0; j<nTypes; j++) {
-                countMatrix[i][j] = 0;
-            }
-        }
-
-        Node rootNode = tree.getRoot();
-        if (!includeRootEdge) {
-            while (rootNode.getChildCount() == 1)
-                rootNode = rootNode.getChild(0);
-        }
-
-        computeMetricsOnSubtree(rootNode);
+    private void update(long sample) {
+        stats.update(sample);
+        stats.getLengths(includeRootEdge, lengthVector);
+        stats.getChangeCounts(includeRootEdge, countMatrix);
     }
 
-    private void computeMetricsOnSubtree(Node subtreeRoot) {
-
-        Node node = subtreeRoot;
-        int type = getType(subtreeRoot);
-
-        while (node.getChildCount()==1) {
-            Node childNode = node.getChild(0);
-            int childType = getType(childNode);
-            countMatrix[type][childType] += 1;
-            lengthVector[childType] += node.getHeight() - childNode.getHeight();
-
-            type = childType;
-            node = childNode;
-        }
-
-        for (Node childNode : node.getChildren()) {
-            int childType = getType(childNode);
-
-            if (childType != type)
-                countMatrix[type][childType] += 1;
-
-            lengthVector[childType] += node.getHeight() - childNode.getHeight();
-
-            computeMetricsOnSubtree(childNode);
-        }
-    }
-
-
     @Override
     public void init(PrintStream out) {
 
@@ -90,10 +48,7 @@ public class TypedTreeStatsLogger extends AbstractTypeTreeStatsLogger {
 
     @Override
     public void log(long sample, PrintStream out) {
-        if (tree instanceof TypeMappedTree)
-            ((TypeMappedTree)tree).remapForLog(sample);
-
-        update();
+        update(sample);
 
         for (int type=0; type<nTypes; type++) {
             out.print(lengthVector[type] + "\t");
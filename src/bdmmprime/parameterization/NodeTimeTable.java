@@ -0,0 +1,124 @@
+package bdmmprime.parameterization;
+
+import beast.base.core.Function;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+
+import java.util.Arrays;
+
+/**
+ * Table holding the time of each node of a tree, the index of the
+ * parameterization interval containing that time and the index of the
+ * interval containing the top of the edge above the node.
+ *
+ * Traversals of the tree frequently need these quantities several times
+ * per node, and computing them directly involves Parameterization.getNodeTime()
+ * and a binary search in Parameterization.getIntervalIndex().  Instead, callers
+ * call update() once per evaluation and then query the table.  Entries are only
+ * recomputed for nodes whose heights have changed since the previous update,
+ * unless the interval end times, the process length or the final sample offset
+ * have changed, in which case the entire table is recomputed.
+ *
+ * Queries do not modify the table, so a single updated table can be shared
+ * between threads traversing different parts of the tree.
+ */
+public class NodeTimeTable {
+
+    private final Parameterization param;
+    private final TreeInterface tree;
+    private final Function finalSampleOffset;
+
+    private double[] nodeHeights, nodeTimes;
+    private int[] nodeIntervals, edgeTopIntervals;
+
+    private double[] intervalEndTimes;
+    private double endTime;
+
+    /**
+     * Create a new table.  The table must be updated before it is queried.
+     *
+     * @param param parameterization defining the time intervals
+     * @param tree tree whose node times to record
+     * @param finalSampleOffset time between final sample and end of process
+     */
+    public NodeTimeTable(Parameterization param, TreeInterface tree, Function finalSampleOffset) {
+        this.param = param;
+        this.tree = tree;
+        this.finalSampleOffset = finalSampleOffset;
+    }
+
+    /**
+     * Bring the table up to date with the current state of the tree and
+     * the parameterization.
+     */
+    public void update() {
+        int nodeCount = tree.getNodeCount();
+
+        boolean recomputeAll = false;
+
+        if (nodeTimes == null || nodeTimes.length != nodeCount) {
+            nodeHeights = new double[nodeCount];
+            nodeTimes = new double[nodeCount];
+            nodeIntervals = new int[nodeCount];
+            edgeTopIntervals = new int[nodeCount];
+            recomputeAll = true;
+        }
+
+        double newEndTime = param.getTotalProcessLength() - finalSampleOffset.getArrayValue();
+        if (newEndTime != endTime) {
+            endTime = newEndTime;
+            recomputeAll = true;
+        }
+
+        if (!Arrays.equals(param.getIntervalEndTimes(), intervalEndTimes)) {
+            intervalEndTimes = param.getIntervalEndTimes().clone();
+            recomputeAll = true;
+        }
+
+        for (int nodeNr=0; nodeNr<nodeCount; nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+
+            if (!recomputeAll && node.getHeight() == nodeHeights[nodeNr])
+                continue;
+
+            nodeHeights[nodeNr] = node.getHeight();
+            nodeTimes[nodeNr] = param.getNodeTime(node, finalSampleOffset.getArrayValue());
+            nodeIntervals[nodeNr] = param.getIntervalIndex(nodeTimes[nodeNr]);
+        }
+
+        // The topology may have changed even if no heights have, so the
+        // edge top intervals are always re-read from the parent entries.
+        int originInterval = param.getIntervalIndex(0.0);
+        for (int nodeNr=0; nodeNr<nodeCount; nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            edgeTopIntervals[nodeNr] = node.isRoot()
+                    ? originInterval
+                    : nodeIntervals[node.getParent().getNr()];
+        }
+    }
+
+    /**
+     * @param node node to query
+     * @return time of node, i.e. T - node_age - finalSampleOffset
+     */
+    public double getNodeTime(Node node) {
+        return nodeTimes[node.getNr()];
+    }
+
+    /**
+     * @param node node to query
+     * @return index of interval containing node time
+     */
+    public int getNodeInterval(Node node) {
+        return nodeIntervals[node.getNr()];
+    }
+
+    /**
+     * @param node node below edge
+     * @return index of interval containing the time of the parent of node,
+     * or the start of the process when node is the root.
+     */
+    public int getEdgeTopInterval(Node node) {
+        return edgeTopIntervals[node.getNr()];
+    }
+}
@@ -0,0 +1,143 @@
+package bdmmprime.parameterization;
+
+import beast.base.inference.parameter.RealParameter;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the piecewise-constant rates defined by another
+ * parameterization at the time the snapshot was taken.
+ *
+ * Snapshots are not connected to the state, so they can safely be handed
+ * to code running outside of the MCMC thread (e.g. asynchronous stochastic
+ * mapping) while the chain continues to modify the original parameterization.
+ */
+public class ParameterizationSnapshot extends Parameterization {
+
+    private final double[] snapshotIntervalEndTimes, snapshotRhoSamplingTimes;
+    private final double[][] snapshotBirthRates, snapshotDeathRates,
+            snapshotSamplingRates, snapshotRemovalProbs, snapshotRhoValues;
+    private final double[][][] snapshotMigRates, snapshotCrossBirthRates;
+
+    /**
+     * Construct snapshot of the current values of the given parameterization.
+     *
+     * @param source parameterization to copy
+     */
+    public ParameterizationSnapshot(Parameterization source) {
+        snapshotIntervalEndTimes = source.getIntervalEndTimes().clone();
+        snapshotRhoSamplingTimes = source.getRhoSamplingTimes().clone();
+
+        snapshotBirthRates = copyOf(source.getBirthRates());
+        snapshotDeathRates = copyOf(source.getDeathRates());
+        snapshotSamplingRates = copyOf(source.getSamplingRates());
+        snapshotRemovalProbs = copyOf(source.getRemovalProbs());
+        snapshotRhoValues = copyOf(source.getRhoValues());
+
+        snapshotMigRates = new double[snapshotIntervalEndTimes.length][][];
+        snapshotCrossBirthRates = new double[snapshotIntervalEndTimes.length][][];
+        for (int interval=0; interval<snapshotIntervalEndTimes.length; interval++) {
+            snapshotMigRates[interval] = copyOf(source.getMigRates()[interval]);
+            snapshotCrossBirthRates[interval] = copyOf(source.getCrossBirthRates()[interval]);
+        }
+
+        initByName("typeSet", source.getTypeSet(),
+                "processLength", new RealParameter(new Double[] {source.getTotalProcessLength()}));
+    }
+
+    private static double[][] copyOf(double[][] array) {
+        double[][] copy = new double[array.length][];
+        for (int i=0; i<array.length; i++)
+            copy[i] = array[i].clone();
+
+        return copy;
+    }
+
+    /**
+     * @param time interval end time of original parameterization
+     * @return index of the snapshot interval ending at this time
+     */
+    private int getSnapshotIntervalIndex(double time) {
+        int index = Arrays.binarySearch(snapshotIntervalEndTimes, time);
+
+        if (index < 0)
+            index = -index - 1;
+
+        return Math.max(0, Math.min(index, snapshotIntervalEndTimes.length-1));
+    }
+
+    /* All rate change times are simply the interval end times of the original. */
+
+    @Override
+    public double[] getBirthRateChangeTimes() {
+        return snapshotIntervalEndTimes;
+    }
+
+    @Override
+    public double[] getMigRateChangeTimes() {
+        return snapshotIntervalEndTimes;
+    }
+
+    @Override
+    public double[] getCrossBirthRateChangeTimes() {
+        return snapshotIntervalEndTimes;
+    }
+
+    @Override
+    public double[] getDeathRateChangeTimes() {
+        return snapshotIntervalEndTimes;
+    }
+
+    @Override
+    public double[] getSamplingRateChangeTimes() {
+        return snapshotIntervalEndTimes;
+    }
+
+    @Override
+    public double[] getRemovalProbChangeTimes() {
+        return snapshotIntervalEndTimes;
+    }
+
+    @Override
+    public double[] getRhoSamplingTimes() {
+        return snapshotRhoSamplingTimes;
+    }
+
+    @Override
+    protected double[] getBirthRateValues(double time) {
+        return snapshotBirthRates[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected double[][] getMigRateValues(double time) {
+        return snapshotMigRates[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected double[][] getCrossBirthRateValues(double time) {
+        return snapshotCrossBirthRates[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected double[] getDeathRateValues(double time) {
+        return snapshotDeathRates[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected double[] getSamplingRateValues(double time) {
+        return snapshotSamplingRates[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected double[] getRemovalProbValues(double time) {
+        return snapshotRemovalProbs[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected double[] getRhoValues(double time) {
+        return snapshotRhoValues[getSnapshotIntervalIndex(time)];
+    }
+
+    @Override
+    protected void validateParameterTypeCounts() { }
+}
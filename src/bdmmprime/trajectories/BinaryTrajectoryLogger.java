@@ -0,0 +1,83 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.trajectories.simulation.SimulatedTree;
+import beast.base.core.BEASTObject;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Logs trajectories to a separate file in the compact binary format of
+ * BinaryTrajectoryWriter, as an alternative to including their text
+ * representation in a log.  Nothing is written to the log this object
+ * is attached to.  Use BinaryTrajectoryReader to convert the resulting
+ * file to the text format.
+ */
+public class BinaryTrajectoryLogger extends BEASTObject implements Loggable {
+
+    public Input<SampledTrajectory> sampledTrajectoryInput = new Input<>("sampledTrajectory",
+            "Sampled trajectory to log.");
+
+    public Input<SimulatedTree> simulatedTreeInput = new Input<>("simulatedTree",
+            "Simulated tree whose trajectory you want to log.",
+            Input.Validate.XOR, sampledTrajectoryInput);
+
+    public Input<String> fileNameInput = new Input<>("fileName",
+            "Name of binary trajectory log file.",
+            Input.Validate.REQUIRED);
+
+    BinaryTrajectoryWriter writer;
+
+    @Override
+    public void initAndValidate() { }
+
+    @Override
+    public void init(PrintStream out) {
+        int nTypes = sampledTrajectoryInput.get() != null
+                ? sampledTrajectoryInput.get().param.getNTypes()
+                : simulatedTreeInput.get().parameterizationInput.get().getNTypes();
+
+        try {
+            writer = new BinaryTrajectoryWriter(
+                    new BufferedOutputStream(new FileOutputStream(fileNameInput.get())),
+                    nTypes, getID() == null ? "trajectory" : getID());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening binary trajectory log.", e);
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        Trajectory traj = sampledTrajectoryInput.get() != null
+                ? sampledTrajectoryInput.get().getTrajectoryForLog(sample)
+                : simulatedTreeInput.get().traj;
+
+        try {
+            writer.write(sample, traj);
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing binary trajectory log.", e);
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (simulatedTreeInput.get() != null)
+            simulatedTreeInput.get().closeTrajectory();
+
+        if (writer == null)
+            return;
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error closing binary trajectory log.", e);
+        }
+        writer = null;
+    }
+}
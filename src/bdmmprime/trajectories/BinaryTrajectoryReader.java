@@ -0,0 +1,468 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.trajectories.trajevents.EventBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming reader for logs written by BinaryTrajectoryWriter.  Only one
+ * block of events is held in memory at a time, so arbitrarily long
+ * trajectories can be read or converted.
+ *
+ * Typical use is to call nextTrajectory() for each logged sample and then
+ * either step through its events using nextEvent(), or convert it using
+ * writeText() or writeGridSummary().
+ *
+ * The main method converts a binary log to the text format produced by
+ * SampledTrajectory and SimulatedTrajectoryLogger, or to a table of the
+ * state of each trajectory at a grid of times.
+ */
+public class BinaryTrajectoryReader implements Closeable {
+
+    private final DataInputStream in;
+    private final int nTypes;
+    private final String columnName;
+
+    private long sample;
+    private boolean missing, trajectoryStarted, trajectoryEnded = true;
+    private final double[] state;
+
+    private final EventBuffer block = new EventBuffer();
+    private int blockIdx, eventIdx;
+    private long prevTimeBits;
+
+    // Decoded columns of the current block
+    private byte[] kinds = new byte[0];
+    private double[] times = new double[0];
+    private int[] srcTypes = new int[0], destTypes = new int[0], counts = new int[0];
+
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[1024], columns = new byte[1024];
+    private int columnsLength, pos;
+
+    /**
+     * @param in stream containing binary trajectory log
+     * @throws IOException if the stream does not start with a valid header
+     */
+    public BinaryTrajectoryReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+
+        if (this.in.readInt() != BinaryTrajectoryWriter.MAGIC)
+            throw new IOException("Input is not a binary trajectory log.");
+
+        int version = this.in.readUnsignedByte();
+        if (version != BinaryTrajectoryWriter.FORMAT_VERSION)
+            throw new IOException("Unsupported binary trajectory log version " + version + ".");
+
+        nTypes = (int) readVarLong(this.in);
+        columnName = this.in.readUTF();
+
+        state = new double[nTypes];
+    }
+
+    public int getNTypes() {
+        return nTypes;
+    }
+
+    /**
+     * @return name of trajectory column in the equivalent text log
+     */
+    public String getColumnName() {
+        return columnName;
+    }
+
+    /**
+     * Advance to the next logged trajectory, skipping any unread events
+     * of the current one.
+     *
+     * @return false if there are no more trajectories
+     * @throws IOException if the log cannot be read
+     */
+    public boolean nextTrajectory() throws IOException {
+        while (nextEvent()) { }
+
+        int marker = in.read();
+        if (marker < 0)
+            return false;
+
+        sample = readVarLong(in);
+
+        switch (marker) {
+            case BinaryTrajectoryWriter.RECORD_MISSING:
+                missing = true;
+                trajectoryEnded = true;
+                break;
+
+            case BinaryTrajectoryWriter.RECORD_TRAJECTORY:
+                missing = false;
+                trajectoryEnded = false;
+                for (int s=0; s<nTypes; s++)
+                    state[s] = in.readDouble();
+                break;
+
+            default:
+                throw new IOException("Corrupt binary trajectory log.");
+        }
+
+        trajectoryStarted = false;
+        block.clear();
+        blockIdx = 0;
+        eventIdx = -1;
+        prevTimeBits = Double.doubleToLongBits(0.0);
+
+        return true;
+    }
+
+    /**
+     * @return sample number of current trajectory
+     */
+    public long getSample() {
+        return sample;
+    }
+
+    /**
+     * @return true if no trajectory was available for the current sample
+     */
+    public boolean isMissing() {
+        return missing;
+    }
+
+    /**
+     * Advance to the next event of the current trajectory.
+     *
+     * @return false if there are no more events
+     * @throws IOException if the log cannot be read
+     */
+    public boolean nextEvent() throws IOException {
+        if (trajectoryEnded)
+            return false;
+
+        trajectoryStarted = true;
+
+        if (blockIdx == block.size() && !readBlock()) {
+            trajectoryEnded = true;
+            return false;
+        }
+
+        block.updateState(blockIdx, state);
+        blockIdx += 1;
+        eventIdx += 1;
+
+        return true;
+    }
+
+    /**
+     * Read and decode the next block of events.
+     *
+     * @return false if the end of the trajectory has been reached
+     */
+    private boolean readBlock() throws IOException {
+        int n = (int) readVarLong(in);
+        if (n == 0)
+            return false;
+
+        int columnsLength = (int) readVarLong(in);
+        int compressedLength = (int) readVarLong(in);
+
+        if (compressed.length < compressedLength)
+            compressed = new byte[compressedLength];
+        if (columns.length < columnsLength)
+            columns = new byte[columnsLength];
+
+        in.readFully(compressed, 0, compressedLength);
+        this.columnsLength = columnsLength;
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < columnsLength && !inflater.finished())
+                inflated += inflater.inflate(columns, inflated, columnsLength - inflated);
+
+            if (inflated != columnsLength)
+                throw new IOException("Corrupt binary trajectory log.");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt binary trajectory log.", e);
+        }
+
+        if (kinds.length < n) {
+            kinds = new byte[n];
+            times = new double[n];
+            srcTypes = new int[n];
+            destTypes = new int[n];
+            counts = new int[n];
+        }
+
+        pos = 0;
+        System.arraycopy(columns, 0, kinds, 0, n);
+        pos += n;
+
+        for (int i=0; i<n; i++) {
+            prevTimeBits += unZigZag(readVarLong());
+            times[i] = Double.longBitsToDouble(prevTimeBits);
+        }
+
+        for (int i=0; i<n; i++)
+            srcTypes[i] = (int) readVarLong();
+
+        for (int i=0; i<n; i++)
+            destTypes[i] = BinaryTrajectoryWriter.hasDestType(kinds[i]) ? (int) readVarLong() : 0;
+
+        for (int i=0; i<n; i++)
+            counts[i] = (int) readVarLong();
+
+        block.clear();
+        for (int i=0; i<n; i++) {
+            int secondaryCount = kinds[i] == EventBuffer.SAMPLING ? (int) readVarLong() : 0;
+            block.add(kinds[i], times[i], srcTypes[i], destTypes[i], counts[i], secondaryCount);
+        }
+
+        blockIdx = 0;
+        return true;
+    }
+
+    /**
+     * @return index of the current event, or -1 for the initial state
+     */
+    public int getEventIndex() {
+        return eventIdx;
+    }
+
+    /**
+     * @return time of current event, or 0 for the initial state
+     */
+    public double getTime() {
+        return eventIdx < 0 ? 0.0 : block.getTime(blockIdx-1);
+    }
+
+    public byte getKind() {
+        return block.getKind(blockIdx-1);
+    }
+
+    public int getSrcType() {
+        return block.getSrcType(blockIdx-1);
+    }
+
+    public int getDestType() {
+        return block.getDestType(blockIdx-1);
+    }
+
+    /**
+     * @return multiplicity of current event (number of removed samples for sampling events)
+     */
+    public int getCount() {
+        return block.getCount(blockIdx-1);
+    }
+
+    /**
+     * @return number of non-removed samples for sampling events
+     */
+    public int getSecondaryCount() {
+        return block.getSecondaryCount(blockIdx-1);
+    }
+
+    public String getEventCode() {
+        return eventIdx < 0 ? "O:::" : block.getEventCode(blockIdx-1);
+    }
+
+    /**
+     * @return state following the current event.  This array is overwritten by nextEvent().
+     */
+    public double[] getState() {
+        return state;
+    }
+
+    private void checkUnstarted() {
+        if (trajectoryStarted)
+            throw new IllegalStateException("Events of current trajectory have already been read.");
+    }
+
+    /**
+     * Write the current trajectory in the text format produced by
+     * Trajectory.toString(), or "NA" if the trajectory is missing.
+     * Must be called before any events of the trajectory have been read.
+     *
+     * @param out stream to write to
+     * @throws IOException if the log cannot be read
+     */
+    public void writeText(PrintStream out) throws IOException {
+        if (missing) {
+            out.print("NA");
+            return;
+        }
+
+        checkUnstarted();
+
+        out.print(getTime());
+        out.print(":" + getEventCode());
+        for (double n : state)
+            out.print(":" + n);
+
+        while (nextEvent()) {
+            out.print("," + getTime());
+            out.print(":" + getEventCode());
+            for (double n : state)
+                out.print(":" + n);
+        }
+    }
+
+    /**
+     * Write the state of the current trajectory at each of the given
+     * times, one line per time, each line holding the sample number, the
+     * time and the number of individuals of each type.  The state at a
+     * given time includes all events occurring at or before that time.
+     * Must be called before any events of the trajectory have been read.
+     *
+     * @param out stream to write to
+     * @param gridTimes times in ascending order
+     * @throws IOException if the log cannot be read
+     */
+    public void writeGridSummary(PrintStream out, double[] gridTimes) throws IOException {
+        if (missing) {
+            for (double t : gridTimes) {
+                out.print(sample + "\t" + t);
+                for (int s=0; s<nTypes; s++)
+                    out.print("\tNA");
+                out.println();
+            }
+            return;
+        }
+
+        checkUnstarted();
+
+        double[] gridState = state.clone();
+        int g = 0;
+        while (g < gridTimes.length && nextEvent()) {
+            while (g < gridTimes.length && gridTimes[g] < getTime())
+                printGridLine(out, gridTimes[g++], gridState);
+
+            System.arraycopy(state, 0, gridState, 0, nTypes);
+        }
+
+        while (g < gridTimes.length)
+            printGridLine(out, gridTimes[g++], gridState);
+    }
+
+    private void printGridLine(PrintStream out, double t, double[] gridState) {
+        out.print(sample + "\t" + t);
+        for (double n : gridState)
+            out.print("\t" + n);
+        out.println();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            if (pos >= columnsLength)
+                throw new IOException("Corrupt binary trajectory log.");
+
+            byte b = columns[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Corrupt binary trajectory log.");
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Unexpected end of binary trajectory log.");
+
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Corrupt binary trajectory log.");
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: BinaryTrajectoryReader [-grid endTime nPoints] input.bin [output.log]\n" +
+                "\n" +
+                "Converts a binary trajectory log to the text trajectory log format.\n" +
+                "If -grid is given, the state of each trajectory at nPoints equally\n" +
+                "spaced times between 0 and endTime is written instead.  Output is\n" +
+                "written to standard output if no output file is given.");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        double[] gridTimes = null;
+        String inFileName = null, outFileName = null;
+
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-grid")) {
+                if (i+2 >= args.length)
+                    printUsageAndExit();
+
+                double endTime = Double.parseDouble(args[++i]);
+                int nPoints = Integer.parseInt(args[++i]);
+                if (nPoints < 1)
+                    printUsageAndExit();
+
+                gridTimes = new double[nPoints];
+                for (int g=0; g<nPoints; g++)
+                    gridTimes[g] = nPoints > 1 ? g*endTime/(nPoints-1) : endTime;
+
+            } else if (inFileName == null) {
+                inFileName = args[i];
+            } else if (outFileName == null) {
+                outFileName = args[i];
+            } else {
+                printUsageAndExit();
+            }
+        }
+
+        if (inFileName == null)
+            printUsageAndExit();
+
+        try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(
+                new BufferedInputStream(new FileInputStream(inFileName)));
+             PrintStream out = outFileName == null
+                     ? new PrintStream(new BufferedOutputStream(System.out), false)
+                     : new PrintStream(new BufferedOutputStream(new FileOutputStream(outFileName)))) {
+
+            if (gridTimes == null) {
+                out.println("Sample\t" + reader.getColumnName() + "\t");
+                while (reader.nextTrajectory()) {
+                    out.print(reader.getSample() + "\t");
+                    reader.writeText(out);
+                    out.println("\t");
+                }
+            } else {
+                out.print("Sample\tt");
+                for (int s=0; s<reader.getNTypes(); s++)
+                    out.print("\tn" + s);
+                out.println();
+
+                while (reader.nextTrajectory())
+                    reader.writeGridSummary(out, gridTimes);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.trajectories.trajevents.EventBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes trajectories to a compact binary log, as an alternative to the
+ * text representation produced by Trajectory.toString().  Trajectories are
+ * written incrementally, so no string representation of a whole trajectory
+ * is ever built.  Use BinaryTrajectoryReader to read the log or convert it
+ * back to the text format.
+ *
+ * The log begins with a header holding a magic number, the format version,
+ * the number of types and the column name used for the text format.  Each
+ * logged sample is then written as a record consisting of a marker byte, the
+ * sample number and, unless the trajectory is missing, the initial state
+ * followed by the events.  Events are written in blocks of up to BLOCK_SIZE
+ * events, each stored column by column and compressed using DEFLATE.  Within a
+ * block, event times are stored as differences between the bit patterns of
+ * successive times, which are small for the non-decreasing times of a
+ * trajectory and reproduce the original times exactly.  Types and counts are
+ * stored as variable-length integers.  A block holding zero events marks the
+ * end of a trajectory.
+ */
+public class BinaryTrajectoryWriter implements Closeable {
+
+    static final int MAGIC = 0x42445452; // "BDTR"
+    static final int FORMAT_VERSION = 1;
+
+    static final byte RECORD_TRAJECTORY = 1;
+    static final byte RECORD_MISSING = 2;
+
+    /**
+     * Maximum number of events per compressed block.
+     */
+    static final int BLOCK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final int nTypes;
+
+    private final EventBuffer block = new EventBuffer();
+    private final ColumnBuffer columns = new ColumnBuffer();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed = new byte[1024];
+
+    private long prevTimeBits;
+
+    /**
+     * @param out stream to write log to
+     * @param nTypes number of types in logged trajectories
+     * @param columnName name of trajectory column in the equivalent text log
+     * @throws IOException if the header cannot be written
+     */
+    public BinaryTrajectoryWriter(OutputStream out, int nTypes, String columnName) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.nTypes = nTypes;
+
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(FORMAT_VERSION);
+        writeVarLong(this.out, nTypes);
+        this.out.writeUTF(columnName);
+    }
+
+    /**
+     * Write a trajectory to the log.
+     *
+     * @param sample sample number
+     * @param traj trajectory to write, or null if no trajectory is available
+     * @throws IOException if the trajectory cannot be written
+     */
+    public void write(long sample, Trajectory traj) throws IOException {
+        if (traj == null) {
+            out.writeByte(RECORD_MISSING);
+            writeVarLong(out, sample);
+            return;
+        }
+
+        if (traj.currentState.length != nTypes)
+            throw new IllegalArgumentException("Trajectory has " + traj.currentState.length
+                    + " types but log was created for " + nTypes + ".");
+
+        out.writeByte(RECORD_TRAJECTORY);
+        writeVarLong(out, sample);
+
+        block.clear();
+        prevTimeBits = Double.doubleToLongBits(0.0);
+
+        Trajectory.StateIterator it = traj.getStateIterator();
+        for (double n : it.getState())
+            out.writeDouble(n);
+
+        while (it.hasNext()) {
+            it.next();
+            block.add(it.getKind(), it.getTime(), it.getSrcType(), it.getDestType(),
+                    it.getCount(), it.getSecondaryCount());
+            if (block.size() == BLOCK_SIZE)
+                writeBlock();
+        }
+
+        writeBlock();
+
+        // Empty block marks the end of the trajectory
+        writeVarLong(out, 0);
+    }
+
+    /**
+     * Encode and compress the events currently held in the block buffer.
+     */
+    private void writeBlock() throws IOException {
+        int n = block.size();
+        if (n == 0)
+            return;
+
+        columns.reset();
+
+        for (int i=0; i<n; i++)
+            columns.write(block.getKind(i));
+
+        for (int i=0; i<n; i++) {
+            long timeBits = Double.doubleToLongBits(block.getTime(i));
+            writeVarLong(columns, zigZag(timeBits - prevTimeBits));
+            prevTimeBits = timeBits;
+        }
+
+        for (int i=0; i<n; i++)
+            writeVarLong(columns, block.getSrcType(i));
+
+        for (int i=0; i<n; i++) {
+            if (hasDestType(block.getKind(i)))
+                writeVarLong(columns, block.getDestType(i));
+        }
+
+        for (int i=0; i<n; i++)
+            writeVarLong(columns, block.getCount(i));
+
+        for (int i=0; i<n; i++) {
+            if (block.isSamplingEvent(i))
+                writeVarLong(columns, block.getSecondaryCount(i));
+        }
+
+        deflater.reset();
+        deflater.setInput(columns.getBuffer(), 0, columns.size());
+        deflater.finish();
+
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length)
+                compressed = Arrays.copyOf(compressed, 2*compressed.length);
+
+            compressedLength += deflater.deflate(compressed, compressedLength,
+                    compressed.length - compressedLength);
+        }
+
+        writeVarLong(out, n);
+        writeVarLong(out, columns.size());
+        writeVarLong(out, compressedLength);
+        out.write(compressed, 0, compressedLength);
+
+        block.clear();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        out.close();
+    }
+
+    /**
+     * @param kind event kind
+     * @return true if events of this kind involve two types
+     */
+    static boolean hasDestType(byte kind) {
+        return kind == EventBuffer.MIGRATION || kind == EventBuffer.CROSS_BIRTH;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Write a non-negative (or zig-zag encoded) value using 7 bits per byte.
+     */
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Byte array stream providing access to its internal buffer.
+     */
+    private static class ColumnBuffer extends ByteArrayOutputStream {
+        ColumnBuffer() {
+            super(1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.distribution.P0State;
+import bdmmprime.distribution.P0System;
+import bdmmprime.parameterization.Parameterization;
+
+/**
+ * Tabulated solution of the p0 equations, giving for each type the
+ * probability that an individual alive at time t leaves no sampled
+ * descendants.  Used as a lookahead function by guided particle proposals.
+ *
+ * The solution is recorded on a uniform grid within each parameterization
+ * interval, so that the discontinuities in p0 produced by rho sampling at
+ * interval boundaries are represented exactly.  Values between grid points
+ * are linearly interpolated.
+ */
+public class P0Lookahead {
+
+    private static final double RELATIVE_TOLERANCE = 1e-7;
+    private static final double ABSOLUTE_TOLERANCE = 1e-100;
+
+    private final Parameterization param;
+    private final int nGridPoints;
+
+    private double[][][] p0Grid;
+    private double[] intervalStartTimes, intervalEndTimes;
+
+    /**
+     * @param param parameterization for which to solve the p0 equations
+     * @param nGridPoints number of grid points within each interval (at least 2)
+     */
+    public P0Lookahead(Parameterization param, int nGridPoints) {
+        if (nGridPoints < 2)
+            throw new IllegalArgumentException("P0Lookahead requires at least 2 grid points per interval.");
+
+        this.param = param;
+        this.nGridPoints = nGridPoints;
+    }
+
+    /**
+     * Recompute the table using the current parameter values.
+     */
+    public void update() {
+        int nTypes = param.getNTypes();
+        int nIntervals = param.getTotalIntervalCount();
+
+        if (p0Grid == null || p0Grid.length != nIntervals || p0Grid[0][0].length != nTypes) {
+            p0Grid = new double[nIntervals][nGridPoints][nTypes];
+            intervalStartTimes = new double[nIntervals];
+            intervalEndTimes = new double[nIntervals];
+        }
+
+        P0System system = new P0System(param, ABSOLUTE_TOLERANCE, RELATIVE_TOLERANCE);
+        P0State state = new P0State(nTypes);
+        for (int type=0; type<nTypes; type++)
+            state.p0[type] = 1.0;
+
+        for (int interval=nIntervals-1; interval>=0; interval--) {
+            double tEnd = param.getIntervalEndTimes()[interval];
+            double tStart = interval > 0 ? param.getIntervalEndTimes()[interval-1] : 0.0;
+            intervalStartTimes[interval] = tStart;
+            intervalEndTimes[interval] = tEnd;
+
+            // Include probability of not being rho-sampled at the end of the interval
+            for (int type=0; type<nTypes; type++)
+                state.p0[type] *= 1.0 - param.getRhoValues()[interval][type];
+
+            system.setInterval(interval);
+
+            double tPrev = tEnd;
+            for (int g=nGridPoints-1; g>=0; g--) {
+                double t = getGridTime(interval, g);
+                if (t < tPrev)
+                    system.integrate(state, tPrev, t);
+
+                System.arraycopy(state.p0, 0, p0Grid[interval][g], 0, nTypes);
+                tPrev = t;
+            }
+        }
+    }
+
+    private double getGridTime(int interval, int g) {
+        return intervalStartTimes[interval]
+                + (intervalEndTimes[interval] - intervalStartTimes[interval])*g/(nGridPoints - 1);
+    }
+
+    /**
+     * Interpolate p0 at time t.
+     *
+     * @param t time at which to evaluate p0
+     * @param interval index of interval containing t
+     * @param p0 array in which to place the result
+     */
+    public void getP0(double t, int interval, double[] p0) {
+        double width = intervalEndTimes[interval] - intervalStartTimes[interval];
+        double x = width > 0.0
+                ? (t - intervalStartTimes[interval])/width*(nGridPoints - 1)
+                : 0.0;
+
+        int g = Math.max(0, Math.min((int) Math.floor(x), nGridPoints - 2));
+        double f = Math.max(0.0, Math.min(x - g, 1.0));
+
+        for (int type=0; type<p0.length; type++)
+            p0[type] = (1.0 - f)*p0Grid[interval][g][type] + f*p0Grid[interval][g+1][type];
+    }
+
+    /**
+     * @param t time
+     * @param interval index of interval containing t
+     * @return time of the first grid point after t within interval, or the
+     * end of the interval if there is none.
+     */
+    public double getNextGridTime(double t, int interval) {
+        double width = intervalEndTimes[interval] - intervalStartTimes[interval];
+        if (width <= 0.0)
+            return intervalEndTimes[interval];
+
+        int g = (int) Math.floor((t - intervalStartTimes[interval])/width*(nGridPoints - 1)) + 1;
+        g = Math.max(g, 1);
+        while (g < nGridPoints - 1 && getGridTime(interval, g) <= t)
+            g += 1;
+
+        return g >= nGridPoints - 1
+                ? intervalEndTimes[interval]
+                : getGridTime(interval, g);
+    }
+}
@@ -3,7 +3,9 @@ package bdmmprime.trajectories;
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.obsevents.ObservedEvent;
 import bdmmprime.trajectories.trajevents.*;
-import beast.base.util.Randomizer;
+import bdmmprime.util.RandomStream;
+import bdmmprime.util.SumTree;
+import org.apache.commons.math3.special.Erf;
 
 import static bdmmprime.util.Utils.*;
 
@@ -34,6 +36,41 @@ public class Particle {
     int minLeapCount;
     double epsilon;
 
+    /**
+     * Guided proposal state.  lookahead is null when guided proposals
+     * are disabled.
+     */
+    P0Lookahead lookahead;
+    double[] p0, logP0, stateBeforeEvent;
+    double[] ga_birth, ga_death;
+    double[][] ga_migration, ga_crossbirth;
+    double ga_tot;
+
+    /**
+     * Hybrid simulation state.  criticalCount is zero when hybrid
+     * simulation is disabled.
+     */
+    int criticalCount = 0;
+    boolean[] criticalTypes;
+    int[] nBirths, nDeaths;
+    int[][] nMigs, nCrossBirths;
+    double[] proposedState;
+    double[] leapMu, leapSigma2;
+
+    /**
+     * Source of random numbers used when propagating this particle.
+     */
+    RandomStream random = RandomStream.GLOBAL;
+
+    /**
+     * Partial sum trees holding the legal and illegal propensities of each
+     * reaction channel when incremental propensity updates are in use.
+     * Legal channels are indexed as follows: births (0..n-1), deaths (n..2n-1),
+     * migrations (2n + s*n + sp) and cross-births (2n + n^2 + s*n + sp).
+     * The illegal tree additionally holds the sampling propensities after these.
+     */
+    SumTree legalPropensities, illegalPropensities;
+
     public Particle(Parameterization param, double[] initialState, boolean useTauLeaping, int minLeapCount,
                     double epsilon) {
         this.param = param;
@@ -51,6 +88,90 @@ public class Particle {
         logWeight = 0.0;
     }
 
+    /**
+     * Set the random number stream used to propagate this particle.
+     * Giving each particle its own stream allows particles to be propagated
+     * in parallel with results that don't depend on the thread schedule.
+     *
+     * @param random stream to use
+     */
+    public void setRandomStream(RandomStream random) {
+        this.random = random;
+    }
+
+    /**
+     * Enable or disable incremental propensity updates in exact stochastic
+     * simulation.  When enabled, only the propensities of reaction channels
+     * involving types whose counts were changed by an event are recomputed,
+     * and events are selected using a partial sum tree.  This reduces the
+     * cost per event from O(n^2) to O(n log n) for n types.
+     *
+     * @param incremental if true, use incremental propensity updates
+     */
+    public void setIncrementalPropensities(boolean incremental) {
+        if (incremental) {
+            int nChannels = 2*nTypes + 2*nTypes*nTypes;
+            legalPropensities = new SumTree(nChannels);
+            illegalPropensities = new SumTree(nChannels + nTypes);
+        } else {
+            legalPropensities = null;
+            illegalPropensities = null;
+        }
+    }
+
+    /**
+     * Enable or disable guided proposals.  When enabled, exact simulation
+     * proposes events using propensities tilted by the ratio h(x')/h(x) of
+     * the lookahead function h(x) = prod_s p0_s(t)^x_s before and after each
+     * event.  Here p0_s(t) is the probability that a type s individual
+     * at time t leaves no sampled descendants, so the proposal favours
+     * trajectories in which unobserved individuals remain unsampled.
+     * The particle weight is corrected by the likelihood ratio between
+     * the untilted and tilted processes, so the tree probability estimate
+     * remains unbiased.
+     *
+     * @param lookahead up-to-date p0 table, or null to disable guided proposals.
+     */
+    public void setGuidedProposals(P0Lookahead lookahead) {
+        this.lookahead = lookahead;
+
+        if (lookahead != null && p0 == null) {
+            p0 = new double[nTypes];
+            logP0 = new double[nTypes];
+            stateBeforeEvent = new double[nTypes];
+            ga_birth = new double[nTypes];
+            ga_death = new double[nTypes];
+            ga_migration = new double[nTypes][nTypes];
+            ga_crossbirth = new double[nTypes][nTypes];
+        }
+    }
+
+    /**
+     * Enable or disable hybrid simulation.  In hybrid mode, types whose
+     * count exceeds the number of observed lineages by fewer than
+     * criticalCount individuals are critical: reactions with a critical
+     * source type are simulated exactly, while all other reactions are
+     * tau-leaped.  This avoids both the inaccuracy of leaping small
+     * populations and the cost of exactly simulating large ones.
+     *
+     * @param criticalCount threshold below which types are critical,
+     *                      or 0 to disable hybrid simulation.
+     */
+    public void setHybridSimulation(int criticalCount) {
+        this.criticalCount = criticalCount;
+
+        if (criticalCount > 0 && criticalTypes == null) {
+            criticalTypes = new boolean[nTypes];
+            nBirths = new int[nTypes];
+            nDeaths = new int[nTypes];
+            nMigs = new int[nTypes][nTypes];
+            nCrossBirths = new int[nTypes][nTypes];
+            proposedState = new double[nTypes];
+            leapMu = new double[nTypes];
+            leapSigma2 = new double[nTypes];
+        }
+    }
+
     /**
      * Assign trajectory from another particle and set weight to zero.
      * Used during particle ensemble resampling.
@@ -80,8 +201,14 @@ public class Particle {
             // Step particle
             double tmax = Math.min(param.getIntervalEndTimes()[interval], observedEvent.time);
 
-            if (useTauLeaping)
+            if (criticalCount > 0)
+                stepParticleHybrid(observedEvent, tmax);
+            else if (useTauLeaping)
                 stepParticleTauLeaping(observedEvent, tmax);
+            else if (legalPropensities != null)
+                stepParticleGillespieIncremental(observedEvent, tmax);
+            else if (lookahead != null)
+                stepParticleGillespieGuided(observedEvent, tmax);
             else
                 stepParticleGillespie(observedEvent, tmax);
 
@@ -111,7 +238,7 @@ public class Particle {
 
         // Compute tree event contribution
         if (!observedEvent.isFinalEvent())
-            logWeight += observedEvent.applyToTrajectory(param, interval, trajectory);
+            logWeight += observedEvent.applyToTrajectory(param, interval, trajectory, random);
 
         if (!trajectory.currentStateValid())
             throw new IllegalStateException("Observed event produced illegal state.");
@@ -188,7 +315,7 @@ public class Particle {
 
             double tprime;
             if (a_tot > 0.0)
-                tprime = t + Randomizer.nextExponential(a_tot);
+                tprime = t + random.nextExponential(a_tot);
             else
                 tprime = Double.POSITIVE_INFINITY;
 
@@ -204,49 +331,314 @@ public class Particle {
 
             // Implement event
 
-            double u = Randomizer.nextDouble() * a_tot;
+            implementEvent(random.nextDouble() * a_tot, null);
+        }
 
-            TrajectoryEvent event = null;
-            for (int s = 0; s < nTypes; s++) {
-                if (u < a_birth[s]) {
-                    event = new BirthEvent(t, s);
-                    break;
+    }
+
+    /**
+     * Add a single event to the trajectory, selected using the current
+     * propensities.
+     *
+     * @param u uniform random number on [0, total propensity of eligible channels)
+     * @param eligibleSources if non-null, only channels whose source type s
+     *                        has eligibleSources[s] true are considered.
+     */
+    private void implementEvent(double u, boolean[] eligibleSources) {
+        implementEvent(u, eligibleSources, a_birth, a_death, a_migration, a_crossbirth);
+    }
+
+    /**
+     * Add a single event to the trajectory, selected using the given
+     * propensities.
+     *
+     * @param u uniform random number on [0, total propensity of eligible channels)
+     * @param eligibleSources if non-null, only channels whose source type s
+     *                        has eligibleSources[s] true are considered.
+     * @param birth birth propensities
+     * @param death death propensities
+     * @param migration migration propensities
+     * @param crossbirth cross-birth propensities
+     */
+    private void implementEvent(double u, boolean[] eligibleSources,
+                                double[] birth, double[] death,
+                                double[][] migration, double[][] crossbirth) {
+        for (int s = 0; s < nTypes; s++) {
+            if (eligibleSources != null && !eligibleSources[s])
+                continue;
+
+            if (u < birth[s]) {
+                trajectory.addEvent(EventBuffer.BIRTH, t, s, s, 1);
+                return;
+            }
+            u -= birth[s];
+
+            if (u < death[s]) {
+                trajectory.addEvent(EventBuffer.DEATH, t, s, s, 1);
+                return;
+            }
+            u -= death[s];
+
+            for (int sp = 0; sp < nTypes; sp++) {
+                if (sp == s)
+                    continue;
+
+                if (u < migration[s][sp]) {
+                    trajectory.addEvent(EventBuffer.MIGRATION, t, s, sp, 1);
+                    return;
                 }
-                u -= a_birth[s];
+                u -= migration[s][sp];
 
-                if (u < a_death[s]) {
-                    event = new DeathEvent(t, s);
-                    break;
+                if (u < crossbirth[s][sp]) {
+                    trajectory.addEvent(EventBuffer.CROSS_BIRTH, t, s, sp, 1);
+                    return;
                 }
-                u -= a_death[s];
+                u -= crossbirth[s][sp];
+            }
+        }
 
-                for (int sp = 0; sp < nTypes; sp++) {
-                    if (sp == s)
-                        continue;
+        throw new IllegalStateException("Event selection loop fell through.");
+    }
 
-                    if (u < a_migration[s][sp]) {
-                        event = new MigrationEvent(t, s, sp);
-                        break;
-                    }
-                    u -= a_migration[s][sp];
+    /**
+     * Smallest value of p0 used to compute proposal tilts, ensuring that
+     * every legal event retains a positive proposal propensity.
+     */
+    private static final double MIN_GUIDE_P0 = 1e-10;
 
-                    if (u < a_crossbirth[s][sp]) {
-                        event = new CrossBirthEvent(t, s, sp);
-                        break;
-                    }
-                    u -= a_crossbirth[s][sp];
-                }
-                if (event != null)
-                    break;
+    /**
+     * Exact stochastic simulation using guided proposals.  Proposal
+     * propensities are held constant between events, but are recomputed
+     * at each point of the lookahead grid to follow the change in p0.
+     *
+     * @param observedEvent next observed event
+     * @param tmax time at which to stop simulating
+     */
+    public void stepParticleGillespieGuided(ObservedEvent observedEvent, double tmax) {
+
+        while (true) {
+            computePropensities(observedEvent);
+            computeGuidedPropensities();
+
+            double tStepMax = Math.min(tmax, lookahead.getNextGridTime(t, interval));
+
+            double tprime;
+            if (ga_tot > 0.0)
+                tprime = t + random.nextExponential(ga_tot);
+            else
+                tprime = Double.POSITIVE_INFINITY;
+
+            double tnew = Math.min(tprime, tStepMax);
+
+            // Update weight and time, including the likelihood ratio
+            // contribution from the difference in total propensity.
+
+            logWeight += -(a_illegal_tot + a_tot - ga_tot) * (tnew - t);
+            t = tnew;
+
+            if (tprime > tStepMax) {
+                if (tStepMax >= tmax)
+                    return;
+
+                continue;
             }
 
-            if (event == null) {
-                throw new IllegalStateException("Event selection loop fell through.");
+            // Implement event, correcting weight by ratio of true to proposal
+            // propensity: a/(a*h(x')/h(x)) = h(x)/h(x').
+
+            System.arraycopy(trajectory.currentState, 0, stateBeforeEvent, 0, nTypes);
+
+            implementEvent(random.nextDouble() * ga_tot, null,
+                    ga_birth, ga_death, ga_migration, ga_crossbirth);
+
+            for (int s = 0; s < nTypes; s++)
+                logWeight -= (trajectory.currentState[s] - stateBeforeEvent[s]) * logP0[s];
+        }
+    }
+
+    /**
+     * Compute tilted proposal propensities from the current propensities
+     * and the value of p0 at the current time.
+     */
+    private void computeGuidedPropensities() {
+        lookahead.getP0(t, interval, p0);
+        for (int s = 0; s < nTypes; s++) {
+            p0[s] = Math.max(p0[s], MIN_GUIDE_P0);
+            logP0[s] = Math.log(p0[s]);
+        }
+
+        ga_tot = 0.0;
+        for (int s = 0; s < nTypes; s++) {
+            ga_birth[s] = a_birth[s] * p0[s];
+            ga_death[s] = a_death[s] / p0[s];
+            ga_tot += ga_birth[s] + ga_death[s];
+
+            for (int sp = 0; sp < nTypes; sp++) {
+                if (sp == s)
+                    continue;
+
+                ga_migration[s][sp] = a_migration[s][sp] * p0[sp] / p0[s];
+                ga_crossbirth[s][sp] = a_crossbirth[s][sp] * p0[sp];
+                ga_tot += ga_migration[s][sp] + ga_crossbirth[s][sp];
             }
+        }
+    }
 
-            trajectory.addEvent(event);
+    /**
+     * Recompute the propensities of the birth, death and sampling channels
+     * of type s and update the propensity trees.
+     */
+    private void updateTypePropensities(int s, ObservedEvent observedEvent) {
+        double a_temp, p_obs;
+
+        double illegalBirth = 0.0;
+        a_temp = trajectory.currentState[s]*param.getBirthRates()[interval][s];
+        if (a_temp > 0) {
+            p_obs = observedEvent.lineages[s] * (observedEvent.lineages[s] - 1.0)
+                    / (trajectory.currentState[s] * (trajectory.currentState[s] + 1.0));
+            a_birth[s] = a_temp * (1 - p_obs);
+            illegalBirth = a_temp * p_obs;
+        } else {
+            a_birth[s] = 0.0;
         }
 
+        double illegalDeath = 0.0;
+        a_temp = trajectory.currentState[s] * param.getDeathRates()[interval][s];
+        if (trajectory.currentState[s] > observedEvent.lineages[s]) {
+            a_death[s] = a_temp;
+        } else {
+            a_death[s] = 0.0;
+            illegalDeath = a_temp;
+        }
+
+        legalPropensities.set(s, a_birth[s]);
+        illegalPropensities.set(s, illegalBirth);
+        legalPropensities.set(nTypes + s, a_death[s]);
+        illegalPropensities.set(nTypes + s, illegalDeath);
+        illegalPropensities.set(legalPropensities.size() + s,
+                trajectory.currentState[s]*param.getSamplingRates()[interval][s]);
+    }
+
+    /**
+     * Recompute the propensities of the migration and cross-birth channels
+     * from type s to type sp and update the propensity trees.
+     */
+    private void updatePairPropensities(int s, int sp, ObservedEvent observedEvent) {
+        double a_temp, p_obs;
+
+        double illegalMigration;
+        a_temp = trajectory.currentState[s] * param.getMigRates()[interval][s][sp];
+        if (trajectory.currentState[s]>observedEvent.lineages[s]) {
+            p_obs = observedEvent.lineages[sp] / (trajectory.currentState[sp] + 1.0);
+            a_migration[s][sp] = a_temp * (1.0 - p_obs);
+            illegalMigration = a_temp * p_obs;
+        } else {
+            a_migration[s][sp] = 0.0;
+            illegalMigration = a_temp;
+        }
+
+        double illegalCrossBirth = 0.0;
+        a_temp = trajectory.currentState[s]*param.getCrossBirthRates()[interval][s][sp];
+        if (a_temp > 0.0) {
+            p_obs = observedEvent.lineages[sp] / (trajectory.currentState[sp] + 1.0);
+            a_crossbirth[s][sp] = a_temp * (1.0 - p_obs);
+            illegalCrossBirth = a_temp * p_obs;
+        } else {
+            a_crossbirth[s][sp] = 0.0;
+        }
+
+        int migChannel = 2*nTypes + s*nTypes + sp;
+        int crossBirthChannel = migChannel + nTypes*nTypes;
+        legalPropensities.set(migChannel, a_migration[s][sp]);
+        illegalPropensities.set(migChannel, illegalMigration);
+        legalPropensities.set(crossBirthChannel, a_crossbirth[s][sp]);
+        illegalPropensities.set(crossBirthChannel, illegalCrossBirth);
+    }
+
+    /**
+     * Update the propensities of every channel whose propensity depends
+     * on the count of type s.
+     */
+    private void updateDependentPropensities(int s, ObservedEvent observedEvent) {
+        updateTypePropensities(s, observedEvent);
+        for (int sp=0; sp<nTypes; sp++) {
+            if (sp == s)
+                continue;
+
+            updatePairPropensities(s, sp, observedEvent);
+            updatePairPropensities(sp, s, observedEvent);
+        }
+    }
+
+    /**
+     * Exact stochastic simulation with incremental propensity updates.
+     * Equivalent in distribution to stepParticleGillespie(), but after
+     * each event only the propensities depending on the changed type
+     * counts are recomputed, and the event is selected by descending the
+     * legal propensity tree.
+     *
+     * @param observedEvent next observed event
+     * @param tmax time at which to stop simulating
+     */
+    public void stepParticleGillespieIncremental(ObservedEvent observedEvent, double tmax) {
+
+        // The interval and observed event may have changed since the previous
+        // call, so all propensities are recomputed once here.
+        for (int s=0; s<nTypes; s++) {
+            updateTypePropensities(s, observedEvent);
+            for (int sp=0; sp<nTypes; sp++) {
+                if (sp != s)
+                    updatePairPropensities(s, sp, observedEvent);
+            }
+        }
+
+        while (true) {
+            a_tot = legalPropensities.getTotal();
+            a_illegal_tot = illegalPropensities.getTotal();
+
+            double tprime;
+            if (a_tot > 0.0)
+                tprime = t + random.nextExponential(a_tot);
+            else
+                tprime = Double.POSITIVE_INFINITY;
+
+            double tnew = Math.min(tprime, tmax);
+
+            // Update weight and time
+
+            logWeight += -a_illegal_tot * (tnew - t);
+            t = tnew;
+
+            if (tprime > tmax)
+                return;
+
+            // Implement event
+
+            int channel = legalPropensities.find(random.nextDouble() * a_tot);
+
+            if (channel < nTypes) {
+                trajectory.addEvent(EventBuffer.BIRTH, t, channel, channel, 1);
+                updateDependentPropensities(channel, observedEvent);
+
+            } else if (channel < 2*nTypes) {
+                int s = channel - nTypes;
+                trajectory.addEvent(EventBuffer.DEATH, t, s, s, 1);
+                updateDependentPropensities(s, observedEvent);
+
+            } else if (channel < 2*nTypes + nTypes*nTypes) {
+                int s = (channel - 2*nTypes) / nTypes;
+                int sp = (channel - 2*nTypes) % nTypes;
+                trajectory.addEvent(EventBuffer.MIGRATION, t, s, sp, 1);
+                updateDependentPropensities(s, observedEvent);
+                updateDependentPropensities(sp, observedEvent);
+
+            } else {
+                int s = (channel - 2*nTypes - nTypes*nTypes) / nTypes;
+                int sp = (channel - 2*nTypes - nTypes*nTypes) % nTypes;
+                trajectory.addEvent(EventBuffer.CROSS_BIRTH, t, s, sp, 1);
+                updateDependentPropensities(sp, observedEvent);
+            }
+        }
     }
 
     double[] mu, sigma2;
@@ -302,15 +694,15 @@ public class Particle {
 
             for (int s = 0; s < nTypes; s++) {
                 if (a_birth[s] > 0) {
-                    int nBirths = (int)Randomizer.nextPoisson(a_birth[s]*dt);
+                    int nBirths = (int)random.nextPoisson(a_birth[s]*dt);
                     if (nBirths > 0)
-                        trajectory.addEvent(new BirthEvent(t, s, nBirths));
+                        trajectory.addEvent(EventBuffer.BIRTH, t, s, s, nBirths);
                 }
 
                 if (a_death[s] > 0) {
-                    int nDeaths = (int)Randomizer.nextPoisson(a_death[s]*dt);
+                    int nDeaths = (int)random.nextPoisson(a_death[s]*dt);
                     if (nDeaths > 0)
-                        trajectory.addEvent(new DeathEvent(t, s, nDeaths));
+                        trajectory.addEvent(EventBuffer.DEATH, t, s, s, nDeaths);
                 }
 
                 for (int sp = 0; sp < nTypes; sp++) {
@@ -318,24 +710,290 @@ public class Particle {
                         continue;
 
                     if (a_migration[s][sp] > 0) {
-                        int nMigs = (int)Randomizer.nextPoisson(a_migration[s][sp]*dt);
+                        int nMigs = (int)random.nextPoisson(a_migration[s][sp]*dt);
                         if (nMigs > 0)
-                            trajectory.addEvent(new MigrationEvent(t, s, sp, nMigs));
+                            trajectory.addEvent(EventBuffer.MIGRATION, t, s, sp, nMigs);
                     }
 
                     if (a_crossbirth[s][sp] > 0) {
-                        int nCrossBirths = (int)Randomizer.nextPoisson(a_crossbirth[s][sp]*dt);
+                        int nCrossBirths = (int)random.nextPoisson(a_crossbirth[s][sp]*dt);
                         if (nCrossBirths > 0)
-                            trajectory.addEvent(new CrossBirthEvent(t, s, sp, nCrossBirths));
+                            trajectory.addEvent(EventBuffer.CROSS_BIRTH, t, s, sp, nCrossBirths);
+                    }
+                }
+            }
+
+            if (!trajectory.currentStateValid(observedEvent.lineages)) {
+                logWeight = Double.NEGATIVE_INFINITY;
+                return;
+            }
+
+        }
+    }
+
+    /**
+     * Ratio of leap length to expected time until the next event below
+     * which the hybrid scheme switches to an exact step.  Value follows
+     * Cao et al., JCP 124, 044109 (2006).
+     */
+    private static final double HYBRID_SSA_FACTOR = 10.0;
+
+    /**
+     * Maximum number of times a leap is halved before the hybrid scheme
+     * falls back to an exact step.
+     */
+    private static final int MAX_LEAP_HALVINGS = 10;
+
+    /**
+     * Compute the Cao et al. leap length using only the non-critical
+     * reactions, i.e. those whose source type is not critical.  The mean
+     * and variance of the rate of change of each type are left in leapMu
+     * and leapSigma2.
+     *
+     * @return leap length
+     */
+    private double getNonCriticalTau() {
+        double tau = Double.POSITIVE_INFINITY;
+
+        for (int i=0; i<nTypes; i++) {
+            double mu_i = 0.0, sigma2_i = 0.0;
+
+            if (!criticalTypes[i]) {
+                mu_i += a_birth[i] - a_death[i];
+                sigma2_i += a_birth[i] + a_death[i];
+            }
+
+            for (int j=0; j<nTypes; j++) {
+                if (i == j)
+                    continue;
+
+                if (!criticalTypes[j]) {
+                    mu_i += a_migration[j][i] + a_crossbirth[j][i];
+                    sigma2_i += a_migration[j][i] + a_crossbirth[j][i];
+                }
+
+                if (!criticalTypes[i]) {
+                    mu_i -= a_migration[i][j];
+                    sigma2_i += a_migration[i][j];
+                }
+            }
+
+            leapMu[i] = mu_i;
+            leapSigma2[i] = sigma2_i;
+
+            double bound = Math.max(epsilon*trajectory.currentState[i], 1);
+
+            if (mu_i != 0)
+                tau = Math.min(tau, bound/Math.abs(mu_i));
+
+            if (sigma2_i > 0)
+                tau = Math.min(tau, bound*bound/sigma2_i);
+        }
+
+        return Math.min(tau, param.getTotalProcessLength()/minLeapCount);
+    }
+
+    /**
+     * Hybrid exact/tau-leaping simulation following the critical reaction
+     * scheme of Cao, Gillespie and Petzold, JCP 124, 044109 (2006).
+     *
+     * Each step draws a leap length from the non-critical reactions and a
+     * waiting time until the next critical reaction.  Non-critical reactions
+     * are leaped over the shorter of the two, and if the critical waiting time
+     * is the shorter a single critical reaction is also fired.  When the
+     * leap length becomes comparable to the expected time between events,
+     * an exact step is taken instead.
+     *
+     * A leap which would reduce a type count below the number of observed
+     * lineages is rejected and retried with half the length, using fresh
+     * reaction counts, until it is valid.  If that takes more than
+     * MAX_LEAP_HALVINGS attempts, or the leap becomes too short to be
+     * worth taking, an exact step is taken instead.  The rejected draws only
+     * affect the choice of leap length.  The accepted leap, however, is
+     * conditioned on validity, so the particle weight is multiplied by the
+     * probability that a leap of that length is valid
+     * (see getLeapValidityProb()).  This keeps the expected weight equal
+     * to that of setting the weight to zero on an invalid leap, without
+     * discarding the particle.
+     *
+     * @param observedEvent next observed event
+     * @param tmax time at which to stop simulating
+     */
+    public void stepParticleHybrid(ObservedEvent observedEvent, double tmax) {
+
+        while (t < tmax) {
+
+            computePropensities(observedEvent);
+
+            double a_critical = 0.0;
+            for (int s = 0; s < nTypes; s++) {
+                criticalTypes[s] = trajectory.currentState[s] - observedEvent.lineages[s] < criticalCount;
+
+                if (criticalTypes[s]) {
+                    a_critical += a_birth[s] + a_death[s];
+                    for (int sp = 0; sp < nTypes; sp++) {
+                        if (sp != s)
+                            a_critical += a_migration[s][sp] + a_crossbirth[s][sp];
                     }
                 }
             }
 
+            double tauLeap = getNonCriticalTau();
+            double tauCritical = a_critical > 0.0
+                    ? random.nextExponential(a_critical)
+                    : Double.POSITIVE_INFINITY;
+
+            if (tauLeap < HYBRID_SSA_FACTOR / a_tot) {
+                stepExact(tmax);
+            } else {
+                double tnext = Math.min(tmax, t + Math.min(tauLeap, tauCritical));
+                double tau = tnext - t;
+                boolean fireCritical = tauCritical <= tauLeap && t + tauCritical < tmax;
+
+                boolean leapValid = proposeLeap(tau, observedEvent);
+                for (int halvings = 0; !leapValid && halvings < MAX_LEAP_HALVINGS
+                        && tau/2 >= HYBRID_SSA_FACTOR / a_tot; halvings++) {
+
+                    // The critical waiting time is memoryless, so a fresh
+                    // one is drawn after the shortened leap.
+                    tau /= 2;
+                    tnext = t + tau;
+                    fireCritical = false;
+
+                    leapValid = proposeLeap(tau, observedEvent);
+                }
+
+                if (leapValid) {
+                    t = tnext;
+                    logWeight += -tau*a_illegal_tot + Math.log(getLeapValidityProb(tau, observedEvent));
+                    commitLeap();
+
+                    if (fireCritical)
+                        implementEvent(random.nextDouble() * a_critical, criticalTypes);
+                } else {
+                    stepExact(tmax);
+                }
+            }
+
             if (!trajectory.currentStateValid(observedEvent.lineages)) {
                 logWeight = Double.NEGATIVE_INFINITY;
                 return;
             }
+        }
+    }
+
+    /**
+     * Take a single exact step using the current propensities, stopping
+     * at tmax if no event occurs before then.
+     *
+     * @param tmax time at which to stop simulating
+     */
+    private void stepExact(double tmax) {
+        double tprime = a_tot > 0.0
+                ? t + random.nextExponential(a_tot)
+                : Double.POSITIVE_INFINITY;
+
+        double tnew = Math.min(tprime, tmax);
+        logWeight += -a_illegal_tot * (tnew - t);
+        t = tnew;
+
+        if (tprime <= tmax)
+            implementEvent(random.nextDouble() * a_tot, null);
+    }
+
+    /**
+     * Draw the numbers of each non-critical reaction occurring during a
+     * leap of length tau, and check whether the resulting state remains
+     * compatible with the observed lineages.
+     *
+     * @param tau leap length
+     * @param observedEvent next observed event
+     * @return true if the proposed state is valid
+     */
+    private boolean proposeLeap(double tau, ObservedEvent observedEvent) {
+        System.arraycopy(trajectory.currentState, 0, proposedState, 0, nTypes);
+
+        for (int s = 0; s < nTypes; s++) {
+            if (criticalTypes[s]) {
+                nBirths[s] = 0;
+                nDeaths[s] = 0;
+                for (int sp = 0; sp < nTypes; sp++) {
+                    nMigs[s][sp] = 0;
+                    nCrossBirths[s][sp] = 0;
+                }
+                continue;
+            }
 
+            nBirths[s] = a_birth[s] > 0 ? (int)random.nextPoisson(a_birth[s]*tau) : 0;
+            nDeaths[s] = a_death[s] > 0 ? (int)random.nextPoisson(a_death[s]*tau) : 0;
+            proposedState[s] += nBirths[s] - nDeaths[s];
+
+            for (int sp = 0; sp < nTypes; sp++) {
+                if (sp == s) {
+                    nMigs[s][sp] = 0;
+                    nCrossBirths[s][sp] = 0;
+                    continue;
+                }
+
+                nMigs[s][sp] = a_migration[s][sp] > 0 ? (int)random.nextPoisson(a_migration[s][sp]*tau) : 0;
+                nCrossBirths[s][sp] = a_crossbirth[s][sp] > 0 ? (int)random.nextPoisson(a_crossbirth[s][sp]*tau) : 0;
+                proposedState[s] -= nMigs[s][sp];
+                proposedState[sp] += nMigs[s][sp] + nCrossBirths[s][sp];
+            }
+        }
+
+        for (int s = 0; s < nTypes; s++) {
+            if (Math.round(proposedState[s]) < observedEvent.lineages[s])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Approximate the probability that a leap of length tau drawn by
+     * proposeLeap() is valid.  The net change in each non-critical type is
+     * treated as an independent normal variable with the mean and variance
+     * computed by getNonCriticalTau(), with a continuity correction.
+     * Critical types can only gain individuals during a leap.
+     *
+     * @param tau leap length
+     * @param observedEvent next observed event
+     * @return approximate probability of a valid leap
+     */
+    private double getLeapValidityProb(double tau, ObservedEvent observedEvent) {
+        double prob = 1.0;
+
+        for (int s = 0; s < nTypes; s++) {
+            if (criticalTypes[s] || leapSigma2[s] <= 0.0)
+                continue;
+
+            double margin = trajectory.currentState[s] - observedEvent.lineages[s] + 0.5 + leapMu[s]*tau;
+            prob *= 0.5*Erf.erfc(-margin/Math.sqrt(2*leapSigma2[s]*tau));
+        }
+
+        return prob;
+    }
+
+    /**
+     * Add the events drawn by the last successful call to proposeLeap()
+     * to the trajectory.
+     */
+    private void commitLeap() {
+        for (int s = 0; s < nTypes; s++) {
+            if (nBirths[s] > 0)
+                trajectory.addEvent(EventBuffer.BIRTH, t, s, s, nBirths[s]);
+
+            if (nDeaths[s] > 0)
+                trajectory.addEvent(EventBuffer.DEATH, t, s, s, nDeaths[s]);
+
+            for (int sp = 0; sp < nTypes; sp++) {
+                if (nMigs[s][sp] > 0)
+                    trajectory.addEvent(EventBuffer.MIGRATION, t, s, sp, nMigs[s][sp]);
+
+                if (nCrossBirths[s][sp] > 0)
+                    trajectory.addEvent(EventBuffer.CROSS_BIRTH, t, s, sp, nCrossBirths[s][sp]);
+            }
         }
     }
 }
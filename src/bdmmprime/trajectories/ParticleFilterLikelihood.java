@@ -0,0 +1,191 @@
+package bdmmprime.trajectories;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import org.apache.commons.math3.special.Erf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@Description("Particle filter estimate of the typed tree likelihood, for use in " +
+        "correlated pseudo-marginal MCMC.")
+public class ParticleFilterLikelihood extends Distribution {
+
+    public Input<SampledTrajectory> sampledTrajectoryInput = new Input<>("sampledTrajectory",
+            "Sampled trajectory object used to compute the particle filter estimate.",
+            Input.Validate.REQUIRED);
+
+    public Input<Double> correlationInput = new Input<>("correlation",
+            "Correlation between the auxiliary random numbers used to compute " +
+                    "successive estimates.  Zero gives the standard " +
+                    "(uncorrelated) pseudo-marginal method.",
+            0.99);
+
+    SampledTrajectory sampledTrajectory;
+    double correlation;
+
+    /**
+     * Auxiliary variables: one seed for each particle slot and one standard
+     * normal variate for each resampling step.  These are treated as part
+     * of the MCMC state, so they are stored and restored alongside logP.
+     */
+    long[] particleSeeds, storedParticleSeeds;
+    double[] resamplingNormals, storedResamplingNormals;
+    double[] resamplingUniforms;
+
+    boolean auxiliaryVariablesInitialized;
+
+    @Override
+    public void initAndValidate() {
+        sampledTrajectory = sampledTrajectoryInput.get();
+        correlation = correlationInput.get();
+
+        if (correlation < 0.0 || correlation >= 1.0)
+            throw new IllegalArgumentException("Correlation must lie in [0,1).");
+
+        if (sampledTrajectory.adaptiveParticleCount)
+            throw new IllegalArgumentException("ParticleFilterLikelihood requires a fixed particle count.");
+
+        int nParticles = sampledTrajectory.nParticles;
+
+        particleSeeds = new long[nParticles];
+        storedParticleSeeds = new long[nParticles];
+
+        // Sized from the number of observed events when first evaluated.
+        resamplingNormals = new double[0];
+        storedResamplingNormals = new double[0];
+        resamplingUniforms = new double[0];
+
+        auxiliaryVariablesInitialized = false;
+    }
+
+    /**
+     * Ensure that there is a resampling normal for each of the given number
+     * of resampling steps.  At most one resampling step occurs per observed
+     * event, and the number of these changes with the typed tree.  Normals
+     * for new steps are drawn from their prior, in both the current and the
+     * stored state, as they have not affected any previous estimate.
+     *
+     * @param nResamplingSteps required number of resampling steps
+     */
+    private void ensureResamplingCapacity(int nResamplingSteps) {
+        int oldLength = resamplingNormals.length;
+        if (nResamplingSteps <= oldLength)
+            return;
+
+        resamplingNormals = Arrays.copyOf(resamplingNormals, nResamplingSteps);
+        storedResamplingNormals = Arrays.copyOf(storedResamplingNormals, nResamplingSteps);
+        resamplingUniforms = new double[nResamplingSteps];
+
+        for (int k=oldLength; k<nResamplingSteps; k++) {
+            resamplingNormals[k] = Randomizer.nextGaussian();
+            storedResamplingNormals[k] = resamplingNormals[k];
+        }
+    }
+
+    /**
+     * Draw the auxiliary variables from their prior distribution.
+     */
+    private void drawAuxiliaryVariables() {
+        for (int p=0; p<particleSeeds.length; p++)
+            particleSeeds[p] = Randomizer.nextLong();
+
+        for (int k=0; k<resamplingNormals.length; k++)
+            resamplingNormals[k] = Randomizer.nextGaussian();
+    }
+
+    /**
+     * Propose new auxiliary variables correlated with the current ones.
+     * The normals driving resampling receive a Crank-Nicolson update
+     * u' = rho*u + sqrt(1-rho^2)*eps, while each particle seed is redrawn with
+     * probability 1-rho.  Both updates are reversible with respect to the
+     * prior on the auxiliary variables, so the acceptance probability
+     * depends only on the ratio of estimates and the remaining model terms.
+     */
+    private void perturbAuxiliaryVariables() {
+        double innovationScale = Math.sqrt(1.0 - correlation*correlation);
+
+        for (int k=0; k<resamplingNormals.length; k++)
+            resamplingNormals[k] = correlation*resamplingNormals[k]
+                    + innovationScale*Randomizer.nextGaussian();
+
+        for (int p=0; p<particleSeeds.length; p++) {
+            if (Randomizer.nextDouble() >= correlation)
+                particleSeeds[p] = Randomizer.nextLong();
+        }
+    }
+
+    @Override
+    public double calculateLogP() {
+        ensureResamplingCapacity(sampledTrajectory.getObservedEventList().size());
+
+        if (auxiliaryVariablesInitialized) {
+            perturbAuxiliaryVariables();
+        } else {
+            drawAuxiliaryVariables();
+            auxiliaryVariablesInitialized = true;
+        }
+
+        // Map normals to uniforms on [0,1) via the standard normal CDF
+        for (int k=0; k<resamplingNormals.length; k++)
+            resamplingUniforms[k] = Math.min(0.5*(1.0 + Erf.erf(resamplingNormals[k]/Math.sqrt(2.0))),
+                    Math.nextDown(1.0));
+
+        sampledTrajectory.setAuxiliaryRandomNumbers(particleSeeds, resamplingUniforms);
+        try {
+            logP = sampledTrajectory.getLogTreeProbEstimate();
+        } finally {
+            sampledTrajectory.setAuxiliaryRandomNumbers(null, null);
+        }
+
+        if (Double.isNaN(logP))
+            logP = Double.NEGATIVE_INFINITY;
+
+        return logP;
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+        throw new UnsupportedOperationException("Sampling from ParticleFilterLikelihood not supported.");
+    }
+
+    @Override
+    public boolean requiresRecalculation() {
+        return true;
+    }
+
+    @Override
+    public void store() {
+        super.store();
+
+        System.arraycopy(particleSeeds, 0, storedParticleSeeds, 0, particleSeeds.length);
+        System.arraycopy(resamplingNormals, 0, storedResamplingNormals, 0, resamplingNormals.length);
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+
+        long[] tmpSeeds = particleSeeds;
+        particleSeeds = storedParticleSeeds;
+        storedParticleSeeds = tmpSeeds;
+
+        double[] tmpNormals = resamplingNormals;
+        resamplingNormals = storedResamplingNormals;
+        storedResamplingNormals = tmpNormals;
+    }
+}
@@ -0,0 +1,207 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.util.RandomStream;
+
+/**
+ * Selects ancestor indices during particle ensemble resampling.
+ *
+ * All schemes run in O(N) time and write the selected ancestors into a
+ * caller-supplied array, so that no allocation occurs at each resampling
+ * step.  Ancestor indices are not randomly permuted: with the exception
+ * of residual resampling they are produced in non-decreasing order.
+ *
+ * The systematic, stratified and residual schemes produce ancestor counts
+ * with lower variance than multinomial resampling, while still having the
+ * correct expected counts.  See Douc, Cappé and Moulines (2005),
+ * "Comparison of resampling schemes for particle filtering",
+ * doi:10.1109/ISPA.2005.195385.
+ */
+public class ParticleResampler {
+
+    public enum Scheme {
+        /**
+         * Independent draws from the categorical distribution defined by the weights.
+         */
+        MULTINOMIAL,
+
+        /**
+         * A single uniform offset shared by N evenly spaced points.
+         */
+        SYSTEMATIC,
+
+        /**
+         * One independent uniform point within each of N equal strata.
+         */
+        STRATIFIED,
+
+        /**
+         * floor(N*w_i) deterministic copies of each particle, with the
+         * remainder drawn multinomially from the residual weights.
+         */
+        RESIDUAL
+    }
+
+    private final Scheme scheme;
+    private double[] residualWeights;
+
+    /**
+     * @param scheme resampling scheme to use
+     * @param nParticles number of particles in ensemble
+     */
+    public ParticleResampler(Scheme scheme, int nParticles) {
+        this.scheme = scheme;
+        this.residualWeights = scheme == Scheme.RESIDUAL
+                ? new double[nParticles]
+                : null;
+    }
+
+    /**
+     * Select ancestors for a new particle ensemble of the same size as
+     * the current ensemble.
+     *
+     * @param weights normalized particle weights
+     * @param ancestors array of length equal to weights, to be filled with ancestor indices
+     * @param random random number stream
+     */
+    public void resample(double[] weights, int[] ancestors, RandomStream random) {
+        resample(weights, weights.length, ancestors, ancestors.length, random);
+    }
+
+    /**
+     * Select ancestors for a new particle ensemble, possibly of a different
+     * size to the current ensemble.
+     *
+     * @param weights normalized particle weights (only the first N elements are used)
+     * @param N number of particles in current ensemble
+     * @param ancestors array to be filled with ancestor indices
+     * @param M number of particles in new ensemble (number of elements of ancestors to fill)
+     * @param random random number stream
+     */
+    public void resample(double[] weights, int N, int[] ancestors, int M, RandomStream random) {
+        switch (scheme) {
+            case MULTINOMIAL:
+                sampleMultinomial(weights, N, 1.0, ancestors, 0, M, random);
+                break;
+
+            case SYSTEMATIC:
+                resampleSystematic(weights, N, ancestors, M, random.nextDouble());
+                break;
+
+            case STRATIFIED:
+                sampleStratified(weights, N, ancestors, M, random);
+                break;
+
+            case RESIDUAL:
+                double[] residuals = residualWeights.length >= N
+                        ? residualWeights
+                        : (residualWeights = new double[N]);
+
+                int k = 0;
+                double residualTotal = 0.0;
+                for (int i=0; i<N; i++) {
+                    double expectedCount = M*weights[i];
+                    int nCopies = (int) Math.floor(expectedCount);
+
+                    // Guard against rounding errors pushing the count past M
+                    nCopies = Math.min(nCopies, M - k);
+                    for (int c=0; c<nCopies; c++)
+                        ancestors[k++] = i;
+
+                    residuals[i] = Math.max(expectedCount - nCopies, 0.0);
+                    residualTotal += residuals[i];
+                }
+
+                if (k < M)
+                    sampleMultinomial(residuals, N, residualTotal, ancestors, k, M, random);
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown resampling scheme.");
+        }
+    }
+
+    /**
+     * Systematic resampling using a given offset.  Supplying the offset
+     * directly allows the ancestor selection to be driven by externally
+     * controlled random numbers, as required by correlated pseudo-marginal
+     * methods.
+     *
+     * @param weights normalized particle weights (only the first N elements are used)
+     * @param N number of particles in current ensemble
+     * @param ancestors array to be filled with ancestor indices
+     * @param M number of particles in new ensemble
+     * @param offset uniform random number on [0,1)
+     */
+    public static void resampleSystematic(double[] weights, int N, int[] ancestors, int M, double offset) {
+        double cumulativeWeight = weights[0];
+        int i = 0;
+
+        for (int k=0; k<M; k++) {
+            double u = (k + offset)/M;
+
+            while (u > cumulativeWeight && i < N-1) {
+                i += 1;
+                cumulativeWeight += weights[i];
+            }
+
+            ancestors[k] = i;
+        }
+    }
+
+    /**
+     * Stratified resampling.
+     */
+    private static void sampleStratified(double[] weights, int N, int[] ancestors, int M,
+                                         RandomStream random) {
+        double cumulativeWeight = weights[0];
+        int i = 0;
+
+        for (int k=0; k<M; k++) {
+            double u = (k + random.nextDouble())/M;
+
+            while (u > cumulativeWeight && i < N-1) {
+                i += 1;
+                cumulativeWeight += weights[i];
+            }
+
+            ancestors[k] = i;
+        }
+    }
+
+    /**
+     * Draw ancestors[start..end) multinomially.  Sorted uniforms are generated
+     * directly in O(N) using the recursion for uniform order statistics,
+     * allowing the categories to be selected in a single pass over the
+     * cumulative weights.
+     *
+     * @param weights unnormalized weights
+     * @param N number of weights
+     * @param totalWeight sum of weights
+     * @param ancestors array to fill
+     * @param start first element of ancestors to fill
+     * @param end element of ancestors following the last to fill
+     * @param random random number stream
+     */
+    private static void sampleMultinomial(double[] weights, int N, double totalWeight,
+                                          int[] ancestors, int start, int end, RandomStream random) {
+        int nDraws = end - start;
+
+        double cumulativeWeight = weights[0];
+        int i = 0;
+
+        // x runs through the order statistics of nDraws uniforms from
+        // the largest down, so 1-x runs through them from the smallest up.
+        double x = 1.0;
+        for (int k=nDraws; k>=1; k--) {
+            x *= Math.pow(random.nextDouble(), 1.0/k);
+            double u = (1.0 - x)*totalWeight;
+
+            while (u > cumulativeWeight && i < N-1) {
+                i += 1;
+                cumulativeWeight += weights[i];
+            }
+
+            ancestors[start + nDraws - k] = i;
+        }
+    }
+}
@@ -2,8 +2,10 @@ package bdmmprime.trajectories;
 
 import bdmmprime.distribution.BirthDeathMigrationDistribution;
 import bdmmprime.mapping.TypeMappedTree;
+import bdmmprime.parameterization.NodeTimeTable;
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.obsevents.*;
+import bdmmprime.util.RandomStream;
 import bdmmprime.util.Utils;
 import beast.base.inference.CalculationNode;
 import beast.base.core.Function;
@@ -16,9 +18,14 @@ import beast.base.evolution.tree.Tree;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.math.special.Gamma.logGamma;
@@ -41,10 +48,46 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
     public Input<Integer> nParticlesInput = new Input<>("nParticles",
             "Number of particles to use in filtering calculation.", 1000);
 
+    public Input<Boolean> adaptiveParticleCountInput = new Input<>("adaptiveParticleCount",
+            "If true, the number of particles is adapted to achieve the target " +
+                    "variance of the log tree probability estimate.  In this case " +
+                    "nParticles gives the initial number of particles.",
+            false);
+
+    public Input<Integer> minParticlesInput = new Input<>("minParticles",
+            "Minimum number of particles used in adaptive mode.", 100);
+
+    public Input<Integer> maxParticlesInput = new Input<>("maxParticles",
+            "Maximum number of particles used in adaptive mode.", 100000);
+
+    public Input<Double> targetLogProbVarianceInput = new Input<>("targetLogProbVariance",
+            "Target variance of the log tree probability estimate in adaptive mode.", 1.0);
+
     public Input<Double> resampThreshInput = new Input<>("resampThresh",
             "Particle distribution resampling occurs when the relative effective particle count " +
                     "drops below this values.", 0.5);
 
+    public Input<ParticleResampler.Scheme> resamplingSchemeInput = new Input<>("resamplingScheme",
+            "Scheme used to select ancestors when resampling the particle ensemble. " +
+                    "Systematic, stratified and residual resampling have lower variance " +
+                    "than multinomial resampling.",
+            ParticleResampler.Scheme.MULTINOMIAL, ParticleResampler.Scheme.values());
+
+    public Input<Boolean> incrementalPropensitiesInput = new Input<>("incrementalPropensities",
+            "If true, exact trajectory simulation only recomputes the propensities " +
+                    "affected by each event and selects events using a partial sum tree. " +
+                    "Recommended for models with many types.",
+            false);
+
+    public Input<Boolean> guidedProposalsInput = new Input<>("guidedProposals",
+            "If true, exact trajectory simulation proposes events from dynamics " +
+                    "tilted towards trajectories in which unobserved individuals " +
+                    "leave no sampled descendants, using the solution of the p0 " +
+                    "equations. Particle weights are corrected accordingly. This " +
+                    "greatly reduces particle depletion. Not compatible with " +
+                    "tau-leaping, hybrid simulation or incremental propensities.",
+            false);
+
     public Input<Boolean> useTauLeapingInput = new Input<>("useTauLeaping",
             "If true, use tau-leaping to speed up trajectory simulation.", false);
 
@@ -54,6 +97,13 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
     public Input<Double> epsilonInput = new Input<>("epsilon",
             "Tolerance parameter for selecting tau leap length.", 0.03);
 
+    public Input<Integer> hybridCriticalCountInput = new Input<>("hybridCriticalCount",
+            "If positive, use hybrid simulation: reactions of types whose counts " +
+                    "exceed the observed lineage count by fewer than this many " +
+                    "individuals are simulated exactly, while all other reactions " +
+                    "are tau-leaped. Overrides useTauLeaping.",
+            0);
+
     public Input<String> typeLabelInput = new Input<>("typeLabel",
             "Type label used for traits in generated metadata.",
             "type");
@@ -62,6 +112,17 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
             "If true, trajectory simulations will be performed at the logging stage.",
             true);
 
+    public Input<Boolean> parallelPropagationInput = new Input<>("parallelPropagation",
+            "If true, particles are propagated in parallel.  Each particle " +
+                    "draws from its own random number stream derived from the " +
+                    "global seed, so results do not depend on the number of threads.",
+            false);
+
+    public Input<Integer> nThreadsInput = new Input<>("nThreads",
+            "Number of threads used for parallel particle propagation. " +
+                    "(Default is the number of available processors.)",
+            Runtime.getRuntime().availableProcessors());
+
     public Input<BirthDeathMigrationDistribution> bdmmDistribInput = new Input<>("bdmmDistrib",
             "If provided, extract the parameterization from here.",
             Input.Validate.XOR, parameterizationInput);
@@ -70,19 +131,68 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
     String typeLabel;
     Parameterization param;
     Function finalSampleOffset;
+    NodeTimeTable nodeTimes;
 
     int nTypes, nParticles;
     double resampThresh;
 
     boolean resampleOnLog;
 
-    boolean useTauLeaping;
-    int minLeapCount;
+    boolean useTauLeaping, incrementalPropensities;
+
+    P0Lookahead lookahead;
+
+    /**
+     * Number of lookahead grid points within each parameterization interval.
+     */
+    private static final int LOOKAHEAD_GRID_POINTS = 101;
+
+    int minLeapCount, hybridCriticalCount;
     double epsilon;
 
     Particle[] particles, particlesPrime;
     double[] particleWeights;
 
+    boolean adaptiveParticleCount;
+    int minParticles, maxParticles;
+    double targetLogProbVariance;
+
+    /**
+     * Smoothed estimate of the number of particles needed to achieve the
+     * target variance, or a negative number if no estimate is available.
+     */
+    double requiredParticles;
+
+    /**
+     * Estimated variance of the most recent log tree probability estimate.
+     */
+    double logTreeProbVariance;
+
+    double[] initialState;
+    RandomStream runStream;
+
+    /**
+     * Externally supplied random numbers which, when non-null, drive the
+     * particle filter in place of the internal sources.
+     * See setAuxiliaryRandomNumbers().
+     */
+    long[] auxParticleSeeds;
+    double[] auxResamplingUniforms;
+    long[] sortKeys;
+    double[] sortedWeights;
+    int[] sortedAncestors;
+
+    ParticleResampler resampler;
+    int[] ancestors;
+
+    boolean parallelPropagation;
+    ForkJoinPool propagationPool;
+
+    /**
+     * Number of particles propagated by each parallel task.
+     */
+    private static final int PARTICLE_CHUNK_SIZE = 64;
+
     @Override
     public void initAndValidate() {
 
@@ -94,6 +204,11 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
         finalSampleOffset = finalSampleOffsetInput.get();
 
         mappedTree = mappedTreeInput.get();
+        if (mappedTree instanceof TypeMappedTree && ((TypeMappedTree) mappedTree).isAsyncRemapOnLog())
+            throw new IllegalArgumentException("SampledTrajectory cannot use a TypeMappedTree with " +
+                    "asyncRemapOnLog set, as its mappings are only written to its own log.");
+
+        nodeTimes = new NodeTimeTable(param, mappedTree, finalSampleOffset);
         typeLabel = typeLabelInput.get();
         nTypes = param.getNTypes();
         nParticles = nParticlesInput.get();
@@ -102,12 +217,55 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
         resampleOnLog = resampleOnLogInput.get();
 
         useTauLeaping = useTauLeapingInput.get();
+        incrementalPropensities = incrementalPropensitiesInput.get();
+
+        if (guidedProposalsInput.get()) {
+            if (useTauLeaping || incrementalPropensities || hybridCriticalCountInput.get() > 0)
+                throw new IllegalArgumentException("Guided proposals cannot be combined with " +
+                        "tau-leaping, hybrid simulation or incremental propensities.");
+
+            lookahead = new P0Lookahead(param, LOOKAHEAD_GRID_POINTS);
+        } else {
+            lookahead = null;
+        }
+
         minLeapCount = minLeapCountInput.get();
+        hybridCriticalCount = hybridCriticalCountInput.get();
         epsilon = epsilonInput.get();
 
+        adaptiveParticleCount = adaptiveParticleCountInput.get();
+        minParticles = minParticlesInput.get();
+        maxParticles = maxParticlesInput.get();
+        targetLogProbVariance = targetLogProbVarianceInput.get();
+        requiredParticles = -1;
+
+        if (adaptiveParticleCount) {
+            if (minParticles < 1 || maxParticles < minParticles)
+                throw new IllegalArgumentException("Particle count bounds must satisfy 0 < minParticles <= maxParticles.");
+
+            if (targetLogProbVariance <= 0.0)
+                throw new IllegalArgumentException("targetLogProbVariance must be positive.");
+
+            nParticles = Math.max(minParticles, Math.min(nParticles, maxParticles));
+        }
+
         particles = new Particle[nParticles];
         particlesPrime = new Particle[nParticles];
         particleWeights = new double[nParticles];
+
+        resampler = new ParticleResampler(resamplingSchemeInput.get(), nParticles);
+        ancestors = new int[nParticles];
+
+        parallelPropagation = parallelPropagationInput.get();
+        if (parallelPropagation) {
+            if (nThreadsInput.get() < 1)
+                throw new IllegalArgumentException("nThreads must be positive.");
+
+            if (propagationPool != null)
+                propagationPool.shutdownNow();
+
+            propagationPool = new ForkJoinPool(nThreadsInput.get());
+        }
     }
 
     public double logTreeProbEstimate;
@@ -115,40 +273,81 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
     public Trajectory sampleTrajectory() {
         logTreeProbEstimate = 0.0;
 
-        List<ObservedEvent> observedEvents = getObservedEventList(mappedTree);
+        List<ObservedEvent> observedEvents = getObservedEventList();
 
         int rootType = observedEvents.get(0).type;
 
+        if (lookahead != null)
+            lookahead.update();
+
         // Initialize particles
 
-        double[] initialState = new double[param.getNTypes()];
+        initialState = new double[param.getNTypes()];
         initialState[rootType] = 1.0;
 
+        if (adaptiveParticleCount && requiredParticles > 0)
+            nParticles = (int) Math.max(minParticles, Math.min(Math.ceil(requiredParticles), maxParticles));
+
+        ensureCapacity(nParticles);
+
+        // In parallel mode, each particle gets its own stream.  These are
+        // split off in a fixed order from a single stream seeded by the
+        // global Randomizer, making the results reproducible.
+        runStream = parallelPropagation
+                ? RandomStream.GLOBAL.split()
+                : null;
+
         for (int p=0; p<nParticles; p++) {
-            particles[p] = new Particle(param, initialState, useTauLeaping, minLeapCount, epsilon);
-            particlesPrime[p] = new Particle(param, initialState, useTauLeaping, minLeapCount, epsilon);
+            particles[p] = createParticle();
+            particlesPrime[p] = createParticle();
             particleWeights[p] = 0.0;
         }
 
+        if (auxParticleSeeds != null) {
+            if (auxParticleSeeds.length < nParticles)
+                throw new IllegalStateException("Too few auxiliary particle seeds supplied.");
+
+            for (int p=0; p<nParticles; p++) {
+                // Both particles in each slot share one stream, so each
+                // slot consumes a single sequence determined by its seed.
+                RandomStream slotStream = RandomStream.fromSeed(auxParticleSeeds[p]);
+                particles[p].setRandomStream(slotStream);
+                particlesPrime[p].setRandomStream(slotStream);
+            }
+        }
+
+        int resamplingStep = 0;
+
+        // Estimated variance of the log tree probability estimate, and
+        // the same quantity multiplied by the ensemble size at each step.
+        // The latter is approximately independent of the ensemble size.
+        double logProbVariance = 0.0;
+        double scaledLogProbVariance = 0.0;
+
         // Iterate over tree events:
 
         double t = 0.0;
+        int interval = param.getIntervalIndex(t);
 
-        for (ObservedEvent observedEvent : observedEvents) {
+        for (int eventIdx=0; eventIdx<observedEvents.size(); eventIdx++) {
+            ObservedEvent observedEvent = observedEvents.get(eventIdx);
 
             // Propagate particles to next event
 
-            int interval = param.getIntervalIndex(t);
+            propagateParticles(t, interval, observedEvent);
 
             double maxLogWeight = Double.NEGATIVE_INFINITY;
             for (int p=0; p<nParticles; p++) {
-                particles[p].propagateParticle(t, interval, observedEvent);
-
                 if (particles[p].logWeight > maxLogWeight)
                     maxLogWeight = particles[p].logWeight;
             }
 
             if (maxLogWeight == Double.NEGATIVE_INFINITY) {
+                if (adaptiveParticleCount) {
+                    requiredParticles = Math.min(2.0*nParticles, maxParticles);
+                    logTreeProbVariance = Double.POSITIVE_INFINITY;
+                }
+
                 Log.warning.println("Particle ensemble depleted. Consider re-running with a larger number of particles.");
                 return null;
             }
@@ -167,28 +366,232 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
 
                 logTreeProbEstimate += Math.log(sumOfScaledWeights/nParticles) + maxLogWeight;
 
+                // The relative variance of the incremental estimate is
+                // approximately 1/Neff - 1/N.
+                double stepVariance = Math.max(1.0/Neff - 1.0/nParticles, 0.0);
+                logProbVariance += stepVariance;
+                scaledLogProbVariance += stepVariance*nParticles;
+
                 // Normalize weights:
                 for (int p = 0; p < nParticles; p++)
                     particleWeights[p] = particleWeights[p] / sumOfScaledWeights;
 
-                // Resample particle ensemble
-
-                ReplacementSampler sampler = new ReplacementSampler(particleWeights);
-                for (int p = 0; p < nParticles; p++)
-                    particlesPrime[p].assignTrajAndZeroWeight(particles[sampler.next()]);
+                // Resample particle ensemble, growing it if the variance
+                // accumulated so far is on track to exceed the target.
+
+                int nNewParticles = nParticles;
+                if (adaptiveParticleCount && !observedEvent.isFinalEvent()) {
+                    double projectedVariance = logProbVariance*observedEvents.size()/(eventIdx + 1);
+                    if (projectedVariance > 2.0*targetLogProbVariance) {
+                        nNewParticles = (int) Math.min(Math.min(2L*nParticles,
+                                Math.ceil(nParticles*projectedVariance/targetLogProbVariance)), maxParticles);
+                        ensureCapacity(nNewParticles);
+                    }
+                }
+
+                if (auxResamplingUniforms != null) {
+                    // Steps beyond the supplied numbers use fresh uniforms,
+                    // equivalent to always refreshing those auxiliary variables.
+                    resampleCorrelated(resamplingStep < auxResamplingUniforms.length
+                            ? auxResamplingUniforms[resamplingStep]
+                            : RandomStream.GLOBAL.nextDouble());
+                } else {
+                    resampler.resample(particleWeights, nParticles, ancestors, nNewParticles, RandomStream.GLOBAL);
+                }
+                resamplingStep += 1;
+                for (int p = 0; p < nNewParticles; p++)
+                    particlesPrime[p].assignTrajAndZeroWeight(particles[ancestors[p]]);
 
                 Particle[] tmp = particles;
                 particles = particlesPrime;
                 particlesPrime = tmp;
+                nParticles = nNewParticles;
 
             }
 
             t = observedEvent.time;
+            interval = observedEvent.interval;
+        }
+
+        logTreeProbVariance = logProbVariance;
+
+        if (adaptiveParticleCount) {
+            // Variance scales approximately as 1/N, so this is the
+            // ensemble size which would have achieved the target.
+            double required = scaledLogProbVariance/targetLogProbVariance;
+            requiredParticles = requiredParticles > 0
+                    ? 0.5*(requiredParticles + required)
+                    : required;
+        }
+
+        // Resampled ancestors are ordered by index, so the particle to
+        // return must be chosen uniformly rather than taking the 0th:
+
+        return particles[RandomStream.GLOBAL.nextInt(nParticles)].trajectory;
+    }
+
+    /**
+     * Supply the random numbers used by subsequent particle filter runs.
+     * When set, particle slot p draws all of its random numbers from a stream
+     * seeded with particleSeeds[p], and the k-th resampling step uses systematic
+     * resampling with offset resamplingUniforms[k] applied to the particles
+     * sorted by total population size.  The tree probability estimate is then
+     * a deterministic function of these numbers, which allows estimates at
+     * different parameter values to be correlated by perturbing them slightly.
+     * Adaptive particle counts are not supported in this mode.
+     *
+     * @param particleSeeds one seed per particle, or null to use internal sources
+     * @param resamplingUniforms uniform random numbers on [0,1), one per resampling step
+     */
+    public void setAuxiliaryRandomNumbers(long[] particleSeeds, double[] resamplingUniforms) {
+        if (particleSeeds != null && adaptiveParticleCount)
+            throw new IllegalArgumentException("Auxiliary random numbers cannot be used " +
+                    "with adaptive particle counts.");
+
+        auxParticleSeeds = particleSeeds;
+        auxResamplingUniforms = resamplingUniforms;
+    }
+
+    /**
+     * Resample the ensemble using systematic resampling with the given offset,
+     * after sorting particles by their total population size.  The sorting
+     * ensures that similar ensembles produced by similar random numbers are
+     * resampled similarly.
+     *
+     * @param offset uniform random number on [0,1)
+     */
+    private void resampleCorrelated(double offset) {
+        if (sortKeys == null || sortKeys.length < nParticles) {
+            sortKeys = new long[nParticles];
+            sortedWeights = new double[nParticles];
+            sortedAncestors = new int[nParticles];
+        }
+
+        // Pack population size and index into one primitive sort key
+        for (int p=0; p<nParticles; p++) {
+            double total = 0.0;
+            for (double n : particles[p].trajectory.currentState)
+                total += n;
+
+            sortKeys[p] = (Math.min(Math.round(total), Integer.MAX_VALUE) << 32) | p;
+        }
+        Arrays.sort(sortKeys, 0, nParticles);
+
+        for (int k=0; k<nParticles; k++)
+            sortedWeights[k] = particleWeights[(int) (sortKeys[k] & 0xffffffffL)];
+
+        ParticleResampler.resampleSystematic(sortedWeights, nParticles, sortedAncestors, nParticles, offset);
+
+        for (int k=0; k<nParticles; k++)
+            ancestors[k] = (int) (sortKeys[sortedAncestors[k]] & 0xffffffffL);
+    }
+
+    /**
+     * Create a new particle in the initial state, configured according
+     * to the simulation inputs.
+     *
+     * @return new particle
+     */
+    private Particle createParticle() {
+        Particle particle = new Particle(param, initialState, useTauLeaping, minLeapCount, epsilon);
+
+        if (incrementalPropensities)
+            particle.setIncrementalPropensities(true);
+
+        if (lookahead != null)
+            particle.setGuidedProposals(lookahead);
+
+        if (hybridCriticalCount > 0)
+            particle.setHybridSimulation(hybridCriticalCount);
+
+        if (parallelPropagation)
+            particle.setRandomStream(runStream.split());
+
+        return particle;
+    }
+
+    /**
+     * Ensure that the particle arrays can hold at least n particles, creating
+     * new particles for any positions between the current ensemble size and n.
+     *
+     * @param n required capacity
+     */
+    private void ensureCapacity(int n) {
+        if (particles.length < n) {
+            particles = Arrays.copyOf(particles, n);
+            particlesPrime = Arrays.copyOf(particlesPrime, n);
+            particleWeights = Arrays.copyOf(particleWeights, n);
+            ancestors = Arrays.copyOf(ancestors, n);
         }
 
-        // WLOG choose 0th particle as the particle to return:
+        for (int p=nParticles; p<n; p++) {
+            particles[p] = createParticle();
+            particlesPrime[p] = createParticle();
+        }
+    }
 
-        return particles[0].trajectory;
+    /**
+     * @return number of particles in the ensemble at the end of the most recent run
+     */
+    public int getParticleCount() {
+        return nParticles;
+    }
+
+    /**
+     * @return estimated variance of the most recent log tree probability estimate
+     */
+    public double getLogTreeProbVariance() {
+        return logTreeProbVariance;
+    }
+
+    /**
+     * Propagate all particles from time t to the time of the next observed event.
+     * In parallel mode, the particles are divided into chunks which are
+     * propagated on the fork/join pool.  The parameterization has already
+     * been brought up to date at this point, so it is only read by the workers.
+     *
+     * @param t time at which propagation starts
+     * @param interval index of interval containing t
+     * @param observedEvent next observed event
+     */
+    private void propagateParticles(double t, int interval, ObservedEvent observedEvent) {
+
+        if (!parallelPropagation) {
+            for (int p=0; p<nParticles; p++)
+                particles[p].propagateParticle(t, interval, observedEvent);
+
+            return;
+        }
+
+        Particle[] currentParticles = particles;
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int chunkStart=0; chunkStart<nParticles; chunkStart += PARTICLE_CHUNK_SIZE) {
+            int start = chunkStart;
+            int end = Math.min(chunkStart + PARTICLE_CHUNK_SIZE, nParticles);
+
+            tasks.add(() -> {
+                for (int p=start; p<end; p++)
+                    currentParticles[p].propagateParticle(t, interval, observedEvent);
+
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : propagationPool.invokeAll(tasks))
+                future.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during particle propagation.", e);
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new RuntimeException("Error during particle propagation.", e.getCause());
+        }
     }
 
     /**
@@ -223,13 +626,15 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
     }
 
     /**
-     * Condense tree down into a list of observed events for use by the particle filter.
+     * Condense mapped tree down into a list of observed events for use by the particle filter.
      *
-     * @param tree Input tree.
      * @return List of observed event objects.
      *
      */
-    List<ObservedEvent> getObservedEventList(Tree tree) {
+    List<ObservedEvent> getObservedEventList() {
+
+        Tree tree = mappedTree;
+        nodeTimes.update();
 
         // Extract sample times first:
         List<Node> sampleNodes = new ArrayList<>(tree.getExternalNodes());
@@ -239,11 +644,12 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
         List<ObservedEvent> eventList = new ArrayList<>();
         ObservedSamplingEvent[] thisSamplingEvent = new ObservedSamplingEvent[param.getNTypes()];
         for (Node node : sampleNodes) {
-            double t = param.getNodeTime(node, finalSampleOffset.getArrayValue());
+            double t = nodeTimes.getNodeTime(node);
             int type = getNodeType(node, typeLabel);
 
             if (thisSamplingEvent[type] == null || !Utils.equalWithPrecision(t,thisSamplingEvent[type].time)) {
                 thisSamplingEvent[type] = new ObservedSamplingEvent(t, type, 0, 0);
+                thisSamplingEvent[type].interval = nodeTimes.getNodeInterval(node);
                 eventList.add(thisSamplingEvent[type]);
             }
 
@@ -258,20 +664,24 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
                 .collect(Collectors.toList());
 
         for (Node node : internalNodes) {
+            ObservedEvent event;
             if (node.getChildCount() == 1) {
                 // Observed type change
 
-                eventList.add(new TypeChangeEvent(param.getNodeTime(node, finalSampleOffset.getArrayValue()),
+                event = new TypeChangeEvent(nodeTimes.getNodeTime(node),
                         getNodeType(node, typeLabel),
-                        getNodeType(node.getChild(0), typeLabel),1));
+                        getNodeType(node.getChild(0), typeLabel),1);
             } else {
                 // Coalescence
 
-                eventList.add(new CoalescenceEvent(param.getNodeTime(node, finalSampleOffset.getArrayValue()),
+                event = new CoalescenceEvent(nodeTimes.getNodeTime(node),
                         getNodeType(node, typeLabel),
                         getNodeType(node.getChild(0), typeLabel),
-                        getNodeType(node.getChild(1), typeLabel), 1));
+                        getNodeType(node.getChild(1), typeLabel), 1);
             }
+
+            event.interval = nodeTimes.getNodeInterval(node);
+            eventList.add(event);
         }
 
         eventList.sort(Comparator.comparingDouble(e -> e.time));
@@ -299,6 +709,7 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
 
         // Add event marking end of observation period:
         ObservationEndEvent observationEndEvent = new ObservationEndEvent(param.getTotalProcessLength());
+        observationEndEvent.interval = param.getIntervalIndex(observationEndEvent.time);
         observationEndEvent.lineages = new int[nTypes];
         eventList.add(observationEndEvent);
 
@@ -329,8 +740,15 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
     Trajectory traj = null;
     long prevSimulationSample = -1;
 
-    @Override
-    public void log(long sample, PrintStream out) {
+    /**
+     * Retrieve the trajectory to be logged for the given sample, simulating
+     * a new one if resampleOnLog is set.  Repeated calls for the same sample
+     * return the same trajectory, so that several loggers may share it.
+     *
+     * @param sample sample number
+     * @return trajectory, or null if none is available
+     */
+    public Trajectory getTrajectoryForLog(long sample) {
         if (mappedTree instanceof TypeMappedTree)
             ((TypeMappedTree) mappedTree).remapForLog(sample);
 
@@ -339,6 +757,13 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
             prevSimulationSample = sample;
         }
 
+        return traj;
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        Trajectory traj = getTrajectoryForLog(sample);
+
         if (traj == null)
             out.print("NA");
         else
@@ -349,6 +774,7 @@ public class SampledTrajectory extends CalculationNode implements Loggable {
 
     @Override
     public void close(PrintStream out) {
-
+        if (propagationPool != null)
+            propagationPool.shutdown();
     }
 }
@@ -1,61 +1,337 @@
 package bdmmprime.trajectories;
 
+import bdmmprime.trajectories.trajevents.EventBuffer;
 import bdmmprime.trajectories.trajevents.TrajectoryEvent;
 
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.RandomAccess;
 
 /**
  * A simulated birth-death trajectory.
  *
  * At bare minimum, objects of this class have a list of events and the state following the final event.
  * This is sufficient to (a) continue simulating, or (b) reconstruct all previous states.
+ *
+ * Events are stored as a chain of segments, each holding the events which
+ * follow those of its parent segment.  Assigning one trajectory from another
+ * (as happens for every particle at every resampling step) simply shares the
+ * other trajectory's chain, freezing its final segment so that subsequent
+ * events added to either trajectory start new segments.  Assignment is therefore
+ * O(1) rather than O(number of events), with common ancestry stored only once.
+ * Segments which are no longer reachable from any trajectory are reclaimed by
+ * the garbage collector.
+ *
+ * Within each segment, events are held in an EventBuffer of primitive columns
+ * rather than as individual event objects.  The object API provided by
+ * getEvents() is a read-only view which creates event objects on access, while
+ * the StateIterator allows the state sequence to be traversed without
+ * allocating a new state array per event.
  */
 public class Trajectory {
-    public List<TrajectoryEvent> events = new ArrayList<>();
     public double[] currentState;
 
+    private EventSegment head;
+    private EventSegment[] segmentChain;
+
+    /**
+     * Segment of events following the events of the parent segment.
+     */
+    private static class EventSegment {
+        final EventSegment parent;
+        final int startIndex;
+        final EventBuffer events = new EventBuffer();
+        boolean frozen = false;
+
+        EventSegment(EventSegment parent) {
+            this.parent = parent;
+            this.startIndex = parent == null ? 0 : parent.startIndex + parent.events.size();
+        }
+    }
+
     public Trajectory(double[] currentState) {
         this.currentState = currentState.clone();
+        head = new EventSegment(null);
     }
 
     public Trajectory(double[] currentState, List<TrajectoryEvent> events) {
-        this.currentState = currentState.clone();
-        this.events = new ArrayList<>(events);
+        this(currentState);
+        for (TrajectoryEvent event : events)
+            head.events.add(event);
+    }
+
+    private void prepareHead() {
+        if (head.frozen) {
+            // Empty frozen segments are skipped to keep chains short.
+            head = new EventSegment(head.events.size() == 0 ? head.parent : head);
+        }
     }
 
     public void addEvent(TrajectoryEvent event) {
-        events.add(event);
+        prepareHead();
+
+        head.events.add(event);
         event.updateState(currentState);
     }
 
+    /**
+     * Add an event without creating an event object.
+     *
+     * @param kind kind of event, one of the EventBuffer constants other than SAMPLING
+     * @param time time of event
+     * @param srcType source type (or type of single-type event)
+     * @param destType destination type (ignored for single-type events)
+     * @param multiplicity event multiplicity
+     */
+    public void addEvent(byte kind, double time, int srcType, int destType, int multiplicity) {
+        prepareHead();
+
+        head.events.add(kind, time, srcType, destType, multiplicity, 0);
+        head.events.updateState(head.events.size()-1, currentState);
+    }
+
     /**
      * Replace current trajectory events and state with those from
-     * another trajectory.
+     * another trajectory.  The events themselves are shared, not copied.
      *
      * @param other Trajectory whose events and state will replace the current values.
      */
     public void assignFrom(Trajectory other) {
-        events.clear();
-        events.addAll(other.events);
+        other.head.frozen = true;
+        head = other.head;
+        segmentChain = other.segmentChain;
 
         System.arraycopy(other.currentState, 0, currentState, 0, currentState.length);
     }
 
-    public List<double[]> getStateList() {
-        List<double[]> states = new ArrayList<>();
+    /**
+     * @return number of events in trajectory
+     */
+    public int getEventCount() {
+        return head.startIndex + head.events.size();
+    }
+
+    /**
+     * @return segments making up this trajectory, oldest first
+     */
+    private EventSegment[] getSegments() {
+        if (segmentChain == null || segmentChain[segmentChain.length-1] != head) {
+            int nSegments = 0;
+            for (EventSegment segment = head; segment != null; segment = segment.parent)
+                nSegments += 1;
+
+            segmentChain = new EventSegment[nSegments];
+            for (EventSegment segment = head; segment != null; segment = segment.parent)
+                segmentChain[--nSegments] = segment;
+        }
+
+        return segmentChain;
+    }
+
+    /**
+     * Retrieve the events making up this trajectory in the order in which
+     * they occurred.  The returned list is a read-only view of the events
+     * present at the time of the call.  Event objects are created on access,
+     * so callers needing only times, types or counts should prefer the
+     * StateIterator.
+     *
+     * @return list of events
+     */
+    public List<TrajectoryEvent> getEvents() {
+        return new EventListView(getSegments(), getEventCount());
+    }
+
+    private static class EventListView extends AbstractList<TrajectoryEvent> implements RandomAccess {
+        final EventSegment[] segments;
+        final int size;
+
+        EventListView(EventSegment[] segments, int size) {
+            this.segments = segments;
+            this.size = size;
+        }
+
+        @Override
+        public TrajectoryEvent get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+            // Find last segment starting at or before index
+            int lo = 0, hi = segments.length-1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (segments[mid].startIndex <= index)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+
+            // Empty segments share their start index with the following
+            // segment, so the search always lands on a non-empty one.
+            return segments[lo].events.getEvent(index - segments[lo].startIndex);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Iterator over the sequence of states visited by a trajectory.
+     * A single state array is reused: its contents are overwritten by each
+     * call to next(), so callers needing to keep a state must copy it.
+     *
+     * Subclasses storing their events elsewhere can provide their own
+     * iterator by overriding next() to load each event into the buffer
+     * referenced by events, at index idxInBuffer, and update the state.
+     */
+    public class StateIterator {
+        private final EventSegment[] segments;
+        private final int eventCount;
+        protected final double[] state;
+
+        /**
+         * Buffer holding the most recent event and its index within it.
+         */
+        protected EventBuffer events;
+        protected int idxInBuffer = -1;
+
+        protected int eventIdx = -1;
+        private int segIdx = 0;
+
+        private StateIterator() {
+            segments = getSegments();
+            eventCount = getEventCount();
+            events = segments[0].events;
+
+            // Recover initial state by undoing all events
+            state = currentState.clone();
+            for (int s=segments.length-1; s>=0; s--) {
+                EventBuffer segEvents = segments[s].events;
+                int end = s == segments.length-1
+                        ? eventCount - segments[s].startIndex
+                        : segments[s+1].startIndex - segments[s].startIndex;
+                for (int i=end-1; i>=0; i--)
+                    segEvents.reverseUpdateState(i, state);
+            }
+        }
 
-        double[] state = currentState.clone();
-        states.add(state.clone());
-        for (int i=events.size()-1; i>=0; i--) {
-            events.get(i).reverseUpdateState(state);
-            states.add(state.clone());
+        /**
+         * Constructor for iterators whose events are supplied by a
+         * subclass implementation of next().
+         *
+         * @param initialState state at start of trajectory
+         * @param eventCount number of events in trajectory
+         */
+        protected StateIterator(double[] initialState, int eventCount) {
+            segments = null;
+            this.eventCount = eventCount;
+            state = initialState.clone();
         }
 
-        Collections.reverse(states);
+        /**
+         * @return true if there is at least one more event
+         */
+        public boolean hasNext() {
+            return eventIdx + 1 < eventCount;
+        }
+
+        /**
+         * Advance to the state following the next event.
+         */
+        public void next() {
+            eventIdx += 1;
+            idxInBuffer += 1;
+            while (segIdx < segments.length-1 && eventIdx >= segments[segIdx+1].startIndex) {
+                segIdx += 1;
+                idxInBuffer = eventIdx - segments[segIdx].startIndex;
+            }
+
+            events = segments[segIdx].events;
+            events.updateState(idxInBuffer, state);
+        }
+
+        /**
+         * @return index of the most recent event, or -1 for the initial state
+         */
+        public int getEventIndex() {
+            return eventIdx;
+        }
+
+        /**
+         * @return time of most recent event, or 0 for the initial state
+         */
+        public double getTime() {
+            return eventIdx < 0 ? 0.0 : events.getTime(idxInBuffer);
+        }
+
+        public boolean isSamplingEvent() {
+            return eventIdx >= 0 && events.isSamplingEvent(idxInBuffer);
+        }
+
+        public int getMultiplicity() {
+            return events.getMultiplicity(idxInBuffer);
+        }
+
+        public String getEventCode() {
+            return eventIdx < 0 ? "O:::" : events.getEventCode(idxInBuffer);
+        }
+
+        /**
+         * @return kind of most recent event, one of the EventBuffer constants
+         */
+        public byte getKind() {
+            return events.getKind(idxInBuffer);
+        }
+
+        public int getSrcType() {
+            return events.getSrcType(idxInBuffer);
+        }
+
+        public int getDestType() {
+            return events.getDestType(idxInBuffer);
+        }
+
+        /**
+         * @return multiplicity of most recent event (number of removed samples for sampling events)
+         */
+        public int getCount() {
+            return events.getCount(idxInBuffer);
+        }
+
+        /**
+         * @return number of non-removed samples for sampling events
+         */
+        public int getSecondaryCount() {
+            return events.getSecondaryCount(idxInBuffer);
+        }
+
+        /**
+         * @return current state.  This array is overwritten by next().
+         */
+        public double[] getState() {
+            return state;
+        }
+    }
+
+    /**
+     * @return new iterator positioned at the initial state
+     */
+    public StateIterator getStateIterator() {
+        return new StateIterator();
+    }
+
+    public List<double[]> getStateList() {
+        List<double[]> states = new ArrayList<>(getEventCount() + 1);
+
+        StateIterator it = getStateIterator();
+        states.add(it.getState().clone());
+        while (it.hasNext()) {
+            it.next();
+            states.add(it.getState().clone());
+        }
 
         return states;
     }
@@ -88,33 +364,52 @@ public class Trajectory {
     }
 
     public List<Double> getEventTimes() {
-        return this.events.stream().map(e -> e.time).collect(Collectors.toList());
+        List<Double> eventTimes = new ArrayList<>(getEventCount());
+        for (EventSegment segment : getSegments()) {
+            for (int i=0; i<segment.events.size(); i++)
+                eventTimes.add(segment.events.getTime(i));
+        }
+
+        return eventTimes;
     }
 
     public int getSampleCount() {
-        return (int) this.events.stream()
-                .filter(TrajectoryEvent::isSamplingEvent)
-                .mapToInt(e -> e.multiplicity)
-                .sum();
+        int count = 0;
+        for (EventSegment segment : getSegments()) {
+            for (int i=0; i<segment.events.size(); i++) {
+                if (segment.events.isSamplingEvent(i))
+                    count += segment.events.getMultiplicity(i);
+            }
+        }
+
+        return count;
     }
 
     public double getFinalSampleTime() {
-        return this.events.stream()
-                .filter(TrajectoryEvent::isSamplingEvent)
-                .mapToDouble(e -> e.time)
-                .max().getAsDouble();
+        EventSegment[] segments = getSegments();
+        for (int s=segments.length-1; s>=0; s--) {
+            for (int i=segments[s].events.size()-1; i>=0; i--) {
+                if (segments[s].events.isSamplingEvent(i))
+                    return segments[s].events.getTime(i);
+            }
+        }
+
+        throw new IllegalStateException("Trajectory contains no sampling events.");
     }
 
     public double getFirstSampleTime() {
-        return this.events.stream()
-                .filter(TrajectoryEvent::isSamplingEvent)
-                .mapToDouble(e -> e.time)
-                .min().getAsDouble();
+        for (EventSegment segment : getSegments()) {
+            for (int i=0; i<segment.events.size(); i++) {
+                if (segment.events.isSamplingEvent(i))
+                    return segment.events.getTime(i);
+            }
+        }
+
+        throw new IllegalStateException("Trajectory contains no sampling events.");
     }
 
     public void dump(PrintStream out, boolean includeEvents) {
-        List<double[]> states = getStateList();
-        List<Double> eventTimes = getEventTimes();
+        List<TrajectoryEvent> events = includeEvents ? getEvents() : null;
 
         out.print("t");
         for (int s=0; s<currentState.length; s++)
@@ -125,24 +420,27 @@ public class Trajectory {
 
         out.println();
 
-        for (int i=0; i<states.size(); i++ ) {
-            if (i == 0)
-                out.print(0.0);
-            else
-                out.print(eventTimes.get(i - 1));
+        StateIterator it = getStateIterator();
+        while (true) {
+            out.print(it.getTime());
 
             for (int s = 0; s < currentState.length; s++) {
-                out.print("\t" + states.get(i)[s]);
+                out.print("\t" + it.getState()[s]);
             }
 
             if (includeEvents) {
-                if (i == 0)
+                if (it.getEventIndex() < 0)
                     out.print("\tSTART");
                 else
-                    out.print("\t" + events.get(i - 1));
+                    out.print("\t" + events.get(it.getEventIndex()));
             }
 
             out.println();
+
+            if (!it.hasNext())
+                break;
+
+            it.next();
         }
     }
 
@@ -150,23 +448,24 @@ public class Trajectory {
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
-        List<double[]> states = getStateList();
-        List<Double> eventTimes = getEventTimes();
-
-        for (int i=0; i<states.size(); i++ ) {
+        StateIterator it = getStateIterator();
+        while (true) {
 
-            if (i==0)
-                sb.append(0.0);
-            else
-                sb.append(",").append(eventTimes.get(i - 1));
+            if (it.getEventIndex() >= 0)
+                sb.append(",");
+            sb.append(it.getTime());
 
-            sb.append(":").append(i == 0 ? "O:::" : events.get(i-1).getEventCode());
+            sb.append(":").append(it.getEventCode());
 
             for (int s=0; s<currentState.length; s++) {
                 sb.append(":");
-                sb.append(states.get(i)[s]);
+                sb.append(it.getState()[s]);
             }
 
+            if (!it.hasNext())
+                break;
+
+            it.next();
         }
 
         return sb.toString();
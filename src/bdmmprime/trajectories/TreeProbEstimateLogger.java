@@ -11,20 +11,33 @@ public class TreeProbEstimateLogger extends CalculationNode implements Loggable
     public Input<SampledTrajectory> sampledTrajectoryInput = new Input<>("sampledTrajectory",
             "Sampled trajectory object.", Input.Validate.REQUIRED);
 
+    public Input<Boolean> logDiagnosticsInput = new Input<>("logDiagnostics",
+            "If true, also log the number of particles used and the estimated " +
+                    "variance of the log tree probability estimate.",
+            false);
+
     @Override
     public void initAndValidate() { }
 
     @Override
     public void init(PrintStream out) {
-        if (getID() != null)
-            out.print(getID() + "\t");
-        else
-            out.print("logProbEst\t");
+        String prefix = getID() != null ? getID() : "logProbEst";
+
+        out.print(prefix + "\t");
+
+        if (logDiagnosticsInput.get())
+            out.print(prefix + "_nParticles\t" + prefix + "_variance\t");
     }
 
     @Override
     public void log(long sample, PrintStream out) {
-        out.print(sampledTrajectoryInput.get().getLogTreeProbEstimate() + "\t");
+        SampledTrajectory sampledTrajectory = sampledTrajectoryInput.get();
+
+        out.print(sampledTrajectory.getLogTreeProbEstimate() + "\t");
+
+        if (logDiagnosticsInput.get())
+            out.print(sampledTrajectory.getParticleCount() + "\t"
+                    + sampledTrajectory.getLogTreeProbVariance() + "\t");
     }
 
     @Override
@@ -4,6 +4,7 @@ import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.Trajectory;
 import bdmmprime.trajectories.trajevents.BirthEvent;
 import bdmmprime.trajectories.trajevents.CrossBirthEvent;
+import bdmmprime.util.RandomStream;
 
 public class CoalescenceEvent extends ObservedEvent {
 
@@ -29,7 +30,8 @@ public class CoalescenceEvent extends ObservedEvent {
     }
 
     @Override
-    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory) {
+    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory,
+                                    RandomStream random) {
         double logWeightContrib = 0.0;
 
         int s = type;
@@ -2,6 +2,7 @@ package bdmmprime.trajectories.obsevents;
 
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.Trajectory;
+import bdmmprime.util.RandomStream;
 
 public class ObservationEndEvent extends ObservedEvent {
 
@@ -15,7 +16,8 @@ public class ObservationEndEvent extends ObservedEvent {
     }
 
     @Override
-    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory) {
+    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory,
+                                    RandomStream random) {
         throw new RuntimeException("applyToTrajectory() not implemented for ObservationEndEvent!");
     }
 
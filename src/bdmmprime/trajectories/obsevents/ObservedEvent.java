@@ -2,12 +2,14 @@ package bdmmprime.trajectories.obsevents;
 
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.Trajectory;
+import bdmmprime.util.RandomStream;
 
 public abstract class ObservedEvent {
 
     public double time;
     public int type, multiplicity;
     public int[] lineages; // before the event
+    public int interval; // index of interval containing event time
 
     public boolean isFinalEvent() {
         return false;
@@ -22,7 +24,9 @@ public abstract class ObservedEvent {
      * @param param parameterization object
      * @param interval skyline interval
      * @param trajectory trajectory to update
+     * @param random stream used to draw random numbers
      * @return log probability of observed event given trajectory.
      */
-    public abstract double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory);
+    public abstract double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory,
+                                             RandomStream random);
 }
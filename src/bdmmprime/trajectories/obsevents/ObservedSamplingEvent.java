@@ -3,12 +3,11 @@ package bdmmprime.trajectories.obsevents;
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.Trajectory;
 import bdmmprime.trajectories.trajevents.SamplingEvent;
+import bdmmprime.util.RandomStream;
 import bdmmprime.util.Utils;
-import beast.base.util.Randomizer;
 import org.apache.commons.math.special.Gamma;
 
 import static bdmmprime.util.Utils.logChoose;
-import static bdmmprime.util.Utils.nextBinomial;
 
 public class ObservedSamplingEvent extends ObservedEvent {
     public int nLeaves, nSampledAncestors;
@@ -29,7 +28,8 @@ public class ObservedSamplingEvent extends ObservedEvent {
     }
 
     @Override
-    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory) {
+    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory,
+                                    RandomStream random) {
 
         double logWeightContrib = 0;
 
@@ -58,7 +58,7 @@ public class ObservedSamplingEvent extends ObservedEvent {
                 trajectory.addEvent(new SamplingEvent(time, s, nLeaves, 0));
 
             } else {
-                int nUnremovedLeaves = nextBinomial(nLeaves, 1.0-param.getRemovalProbs()[interval][s]);
+                int nUnremovedLeaves = random.nextBinomial(nLeaves, 1.0-param.getRemovalProbs()[interval][s]);
 
                 trajectory.addEvent(new SamplingEvent(time, s,
                         nLeaves - nUnremovedLeaves,
@@ -87,7 +87,7 @@ public class ObservedSamplingEvent extends ObservedEvent {
                 logWeightContrib += Math.log(sampling_prop);
 
                 boolean isRemoval = (param.getRemovalProbs()[interval][s] == 1.0) ||
-                        (Randomizer.nextDouble() < param.getRemovalProbs()[interval][s]);
+                        (random.nextDouble() < param.getRemovalProbs()[interval][s]);
                 if (isRemoval) {
                     trajectory.addEvent(new SamplingEvent(time, s, 1, 0));
                 } else {
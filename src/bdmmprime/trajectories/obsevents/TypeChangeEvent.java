@@ -4,7 +4,7 @@ import bdmmprime.parameterization.Parameterization;
 import bdmmprime.trajectories.Trajectory;
 import bdmmprime.trajectories.trajevents.CrossBirthEvent;
 import bdmmprime.trajectories.trajevents.MigrationEvent;
-import beast.base.util.Randomizer;
+import bdmmprime.util.RandomStream;
 
 public class TypeChangeEvent extends ObservedEvent {
 
@@ -27,7 +27,8 @@ public class TypeChangeEvent extends ObservedEvent {
     }
 
     @Override
-    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory) {
+    public double applyToTrajectory(Parameterization param, int interval, Trajectory trajectory,
+                                    RandomStream random) {
 
         double logWeightContrib = 0;
 
@@ -46,7 +47,7 @@ public class TypeChangeEvent extends ObservedEvent {
             else if (crossbirth_prop == 0.0)
                 isMigration = true;
             else {
-                isMigration = Randomizer.nextDouble() * (migration_prop + crossbirth_prop) < migration_prop;
+                isMigration = random.nextDouble() * (migration_prop + crossbirth_prop) < migration_prop;
             }
 
             if (isMigration) {
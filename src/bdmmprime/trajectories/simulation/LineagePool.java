@@ -0,0 +1,102 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.util.RandomStream;
+import beast.base.evolution.tree.Node;
+
+import java.util.Arrays;
+
+/**
+ * Lineages active at the current point of a reverse-time tree
+ * reconstruction, grouped by type.
+ *
+ * The lineages of each type are held in an unordered array.  A lineage
+ * chosen uniformly at random is removed by moving the last lineage of the
+ * same type into its slot, so that addition, random selection and removal
+ * all take O(1) time.
+ */
+public class LineagePool {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Node[][] lineages;
+    private final int[] sizes;
+
+    /**
+     * @param nTypes number of types
+     */
+    public LineagePool(int nTypes) {
+        lineages = new Node[nTypes][INITIAL_CAPACITY];
+        sizes = new int[nTypes];
+    }
+
+    /**
+     * @param type lineage type
+     * @return number of active lineages of this type
+     */
+    public int size(int type) {
+        return sizes[type];
+    }
+
+    /**
+     * @param type lineage type
+     * @return true if there are no active lineages of this type
+     */
+    public boolean isEmpty(int type) {
+        return sizes[type] == 0;
+    }
+
+    /**
+     * @return number of active lineages of all types
+     */
+    public int getTotalSize() {
+        int total = 0;
+        for (int size : sizes)
+            total += size;
+
+        return total;
+    }
+
+    /**
+     * @param type lineage type
+     * @param i index of lineage within type (order is arbitrary)
+     * @return lineage
+     */
+    public Node get(int type, int i) {
+        if (i < 0 || i >= sizes[type])
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + sizes[type]);
+
+        return lineages[type][i];
+    }
+
+    /**
+     * Add a lineage.
+     *
+     * @param type lineage type
+     * @param node node at the base of the lineage
+     */
+    public void add(int type, Node node) {
+        if (sizes[type] == lineages[type].length)
+            lineages[type] = Arrays.copyOf(lineages[type], 2*lineages[type].length);
+
+        lineages[type][sizes[type]++] = node;
+    }
+
+    /**
+     * Remove a lineage of the given type chosen uniformly at random.
+     *
+     * @param type lineage type
+     * @param random random number stream
+     * @return removed lineage
+     */
+    public Node removeRandom(int type, RandomStream random) {
+        Node[] typeLineages = lineages[type];
+        int i = random.nextInt(sizes[type]);
+        int last = --sizes[type];
+
+        Node node = typeLineages[i];
+        typeLineages[i] = typeLineages[last];
+        typeLineages[last] = null;
+
+        return node;
+    }
+}
@@ -9,39 +9,42 @@ public class NodeFactory {
     int nextLeafNr, nextIntNr;
 
     String typeLabel;
-    TypeSet typeSet;
+    String[] typeMetaDataStrings;
 
     public NodeFactory(double origin, int nSamples, String typeLabel, TypeSet typeSet) {
         this.origin = origin;
         this.nextIntNr = nSamples;
         this.nextLeafNr = 0;
         this.typeLabel = typeLabel;
-        this.typeSet = typeSet;
+
+        // Metadata strings are shared by all nodes of the same type
+        typeMetaDataStrings = new String[typeSet.getNTypes()];
+        for (int type=0; type<typeMetaDataStrings.length; type++)
+            typeMetaDataStrings[type] = typeLabel + "=\"" + typeSet.getTypeName(type) + "\"";
     }
 
-    private Node newNode(int type, double time, int nextNodeNr) {
-        Node node = new Node(String.valueOf(nextLeafNr));
+    private Node newNode(String id, int type, double time, int nextNodeNr) {
+        Node node = new Node(id);
         node.setNr(nextNodeNr);
 
         node.setHeight(origin-time);
 
         if (type >= 0) {
             node.setMetaData(typeLabel, type);
-            node.metaDataString = String.format("%s=\"%s\"", typeLabel, typeSet.getTypeName(type));
+            node.metaDataString = typeMetaDataStrings[type];
         }
 
         return node;
     }
 
     public Node newLeafNode(int type, double time) {
-        Node node = newNode(type, time, nextLeafNr);
-        node.setID(String.valueOf(nextLeafNr));
+        Node node = newNode(String.valueOf(nextLeafNr), type, time, nextLeafNr);
         nextLeafNr += 1;
         return node;
     }
 
     public Node newIntNode(int type, double time) {
-        Node node = newNode(type, time, nextIntNr);
+        Node node = newNode(String.valueOf(nextLeafNr), type, time, nextIntNr);
         nextIntNr += 1;
         return node;
     }
@@ -0,0 +1,449 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.parameterization.Parameterization;
+import bdmmprime.parameterization.ParameterizationSnapshot;
+import bdmmprime.trajectories.Trajectory;
+import bdmmprime.util.RandomStream;
+import beast.base.core.BEASTInterface;
+import beast.base.evolution.tree.Tree;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many independent replicate simulations of the birth-death process
+ * in parallel, e.g. for simulation-based calibration or power analyses.
+ *
+ * Replicate i is simulated using the i'th stream split from a master
+ * stream seeded with a user-provided seed.  The streams are split in
+ * replicate order on the calling thread, so the output depends only on
+ * the seed and not on the number of threads or on scheduling.  Replicates
+ * are passed to the sink in replicate order, with at most a bounded number
+ * of completed replicates held in memory at any time.
+ *
+ * The rates are copied into a ParameterizationSnapshot when the simulator
+ * is constructed; this snapshot is shared read-only by all worker threads.
+ */
+public class ReplicateSimulator {
+
+    /**
+     * Number of replicates per thread which may be in flight at once.
+     */
+    private static final int REPLICATES_IN_FLIGHT_PER_THREAD = 16;
+
+    /**
+     * Result of a single replicate simulation.
+     */
+    public static class Replicate {
+        public final int index;
+        public final Trajectory trajectory;
+        public final Tree tree;
+        public final double finalSampleOffset;
+        public final int attemptCount;
+        public final TrajectorySimulator.LeapStatistics leapStatistics;
+
+        Replicate(int index, Trajectory trajectory, Tree tree, double finalSampleOffset, int attemptCount,
+                  TrajectorySimulator.LeapStatistics leapStatistics) {
+            this.index = index;
+            this.trajectory = trajectory;
+            this.tree = tree;
+            this.finalSampleOffset = finalSampleOffset;
+            this.attemptCount = attemptCount;
+            this.leapStatistics = leapStatistics;
+        }
+    }
+
+    /**
+     * Destination for completed replicates.  Only ever called from the
+     * thread which invoked run(), so implementations need not be thread safe.
+     */
+    public interface ReplicateSink {
+        void accept(Replicate replicate) throws IOException;
+    }
+
+    /**
+     * Statistics describing the rejection of trajectories with fewer than
+     * minSamples samples, together with the combined tau-leaping statistics
+     * of all replicates.
+     */
+    public static class AcceptanceStatistics {
+        public final int replicateCount;
+        public final long attemptCount;
+        public final int maxAttemptCount;
+        public final TrajectorySimulator.LeapStatistics leapStatistics;
+
+        AcceptanceStatistics(int replicateCount, long attemptCount, int maxAttemptCount,
+                             TrajectorySimulator.LeapStatistics leapStatistics) {
+            this.replicateCount = replicateCount;
+            this.attemptCount = attemptCount;
+            this.maxAttemptCount = maxAttemptCount;
+            this.leapStatistics = leapStatistics;
+        }
+
+        /**
+         * @return fraction of simulated trajectories which were accepted
+         */
+        public double getAcceptanceRate() {
+            return attemptCount > 0 ? replicateCount/(double)attemptCount : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return "Replicates: " + replicateCount
+                    + ", trajectories simulated: " + attemptCount
+                    + ", acceptance rate: " + getAcceptanceRate()
+                    + ", max attempts for a single replicate: " + maxAttemptCount;
+        }
+    }
+
+    private final Parameterization param;
+    private final double[] frequencies;
+    private final int minSamples;
+    private final String typeLabel;
+    private final boolean simulateUntypedTree;
+
+    private TrajectorySimulator.Engine engine = TrajectorySimulator.Engine.DIRECT;
+    private double epsilon = 0.03;
+    private boolean spillToDisk = false;
+    private Path spillDirectory = null;
+
+    /**
+     * @param param parameterization of birth-death process
+     * @param frequencies (unnormalized) probabilities of each start type
+     * @param minSamples minimum number of samples in accepted trajectories
+     * @param typeLabel label used to annotate tree nodes with types
+     * @param simulateUntypedTree if true, migration events are omitted from trees
+     */
+    public ReplicateSimulator(Parameterization param, double[] frequencies, int minSamples,
+                              String typeLabel, boolean simulateUntypedTree) {
+        if (frequencies.length != param.getNTypes())
+            throw new IllegalArgumentException("Number of frequencies must equal number of types.");
+
+        this.param = new ParameterizationSnapshot(param);
+        this.frequencies = frequencies.clone();
+        this.minSamples = minSamples;
+        this.typeLabel = typeLabel;
+        this.simulateUntypedTree = simulateUntypedTree;
+
+        // Values are computed lazily, so compute them now on this thread
+        // to ensure the workers only ever read them.
+        this.param.getIntervalEndTimes();
+        this.param.getBirthRates();
+    }
+
+    /**
+     * @param engine algorithm used to simulate trajectories
+     */
+    public void setEngine(TrajectorySimulator.Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @param epsilon tolerance parameter for selecting tau leap length
+     */
+    public void setEpsilon(double epsilon) {
+        if (!(epsilon > 0.0))
+            throw new IllegalArgumentException("Epsilon must be positive.");
+
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * Choose whether replicate trajectory events are held in memory or
+     * written to temporary files.  Each file is deleted once its replicate
+     * has been passed to the sink.
+     *
+     * @param spillToDisk if true, events are written to temporary files
+     * @param spillDirectory directory for temporary files, or null for the default
+     */
+    public void setSpillToDisk(boolean spillToDisk, Path spillDirectory) {
+        this.spillToDisk = spillToDisk;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Simulate replicates, passing each to the sink in replicate order.
+     *
+     * @param nReplicates number of replicates to simulate
+     * @param seed seed of master random number stream
+     * @param nThreads number of worker threads
+     * @param sink destination for completed replicates
+     * @return acceptance statistics
+     * @throws IOException if thrown by the sink
+     */
+    public AcceptanceStatistics run(int nReplicates, long seed, int nThreads, ReplicateSink sink) throws IOException {
+        if (nReplicates < 0)
+            throw new IllegalArgumentException("Number of replicates must be non-negative.");
+
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive.");
+
+        RandomStream masterStream = RandomStream.fromSeed(seed);
+        int maxInFlight = nThreads*REPLICATES_IN_FLIGHT_PER_THREAD;
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long attemptCount = 0;
+        int maxAttemptCount = 0;
+        TrajectorySimulator.LeapStatistics leapStatistics = new TrajectorySimulator.LeapStatistics();
+
+        Deque<Future<Replicate>> inFlight = new ArrayDeque<>();
+
+        try {
+            int nextReplicate = 0;
+
+            while (nextReplicate < nReplicates || !inFlight.isEmpty()) {
+                while (nextReplicate < nReplicates && inFlight.size() < maxInFlight) {
+                    int index = nextReplicate;
+                    RandomStream stream = masterStream.split();
+                    inFlight.add(executor.submit(() -> simulateReplicate(index, stream)));
+                    nextReplicate += 1;
+                }
+
+                // Only remove the replicate once complete, so that it is
+                // discarded properly if waiting for it is interrupted.
+                Replicate replicate = inFlight.peekFirst().get();
+                inFlight.removeFirst();
+                attemptCount += replicate.attemptCount;
+                maxAttemptCount = Math.max(maxAttemptCount, replicate.attemptCount);
+                leapStatistics.add(replicate.leapStatistics);
+
+                try {
+                    sink.accept(replicate);
+                } finally {
+                    if (replicate.trajectory instanceof SpilledTrajectory)
+                        ((SpilledTrajectory) replicate.trajectory).close();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during replicate simulation.", e);
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new RuntimeException("Error during replicate simulation.", e.getCause());
+
+        } finally {
+            discardReplicates(inFlight);
+            executor.shutdownNow();
+        }
+
+        return new AcceptanceStatistics(nReplicates, attemptCount, maxAttemptCount, leapStatistics);
+    }
+
+    /**
+     * Discard replicates left in flight when a run is aborted.  Replicates
+     * which have not started are cancelled, while those already running are
+     * allowed to finish so that their spilled trajectories can be closed.
+     *
+     * @param inFlight pending replicates
+     */
+    private void discardReplicates(Deque<Future<Replicate>> inFlight) {
+        for (Future<Replicate> future : inFlight)
+            future.cancel(false);
+
+        boolean interrupted = false;
+
+        for (Future<Replicate> future : inFlight) {
+            if (future.isCancelled())
+                continue;
+
+            Replicate replicate;
+            while (true) {
+                try {
+                    replicate = future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    replicate = null;
+                    break;
+                }
+            }
+
+            if (replicate != null && replicate.trajectory instanceof SpilledTrajectory)
+                ((SpilledTrajectory) replicate.trajectory).close();
+        }
+
+        inFlight.clear();
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private Replicate simulateReplicate(int index, RandomStream stream) {
+        TrajectorySimulator simulator = new TrajectorySimulator(param, frequencies, stream);
+        simulator.setEngine(engine);
+        simulator.setEpsilon(epsilon);
+        simulator.setSpillToDisk(spillToDisk, spillDirectory);
+
+        Trajectory traj = simulator.simulateTrajectory(minSamples);
+
+        Tree tree;
+        try {
+            tree = simulator.simulateTree(traj, typeLabel, simulateUntypedTree);
+        } catch (RuntimeException e) {
+            if (traj instanceof SpilledTrajectory)
+                ((SpilledTrajectory) traj).close();
+            throw e;
+        }
+
+        return new Replicate(index, traj, tree,
+                param.getTotalProcessLength() - traj.getFinalSampleTime(),
+                simulator.getAttemptCount(), simulator.getLeapStatistics());
+    }
+
+    /**
+     * Sink which writes one tab-delimited line per replicate.
+     */
+    public static class TabDelimitedSink implements ReplicateSink {
+
+        private final PrintStream out;
+        private final boolean includeTrajectories;
+
+        /**
+         * @param out stream to write to (also receives the header line)
+         * @param includeTrajectories if true, a column containing the trajectory is included
+         */
+        public TabDelimitedSink(PrintStream out, boolean includeTrajectories) {
+            this.out = out;
+            this.includeTrajectories = includeTrajectories;
+
+            out.print("replicate\tattempts\tfinalSampleOffset\ttree");
+            if (includeTrajectories)
+                out.print("\ttrajectory");
+            out.println();
+        }
+
+        @Override
+        public void accept(Replicate replicate) throws IOException {
+            out.print(replicate.index + "\t" + replicate.attemptCount
+                    + "\t" + replicate.finalSampleOffset
+                    + "\t" + replicate.tree.getRoot().toSortedNewick(new int[1], true) + ";");
+
+            if (includeTrajectories)
+                out.print("\t" + replicate.trajectory);
+
+            out.println();
+
+            if (out.checkError())
+                throw new IOException("Error writing replicate " + replicate.index + ".");
+        }
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: ReplicateSimulator [options] simulation.xml\n\n"
+                + "The XML file must contain a <beast> element whose first child is a\n"
+                + "SimulatedTree; its parameterization, frequencies, minSamples, typeLabel,\n"
+                + "simulateUntypedTree, simulationEngine, epsilon, spillToDisk and\n"
+                + "spillDirectory inputs define the replicate simulations.\n\n"
+                + "Options:\n"
+                + "  -n N                 number of replicates (default 1000)\n"
+                + "  -seed S              seed of master random number stream (default: random)\n"
+                + "  -threads T           number of worker threads (default: available processors)\n"
+                + "  -out FILE            output file (default: standard output)\n"
+                + "  -trajectories        include trajectories in output");
+        System.exit(1);
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args see printUsageAndExit()
+     */
+    public static void main(String[] args) throws Exception {
+        int nReplicates = 1000;
+        long seed = Randomizer.nextLong();
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        String outFileName = null;
+        boolean includeTrajectories = false;
+        String xmlFileName = null;
+
+        try {
+            for (int i=0; i<args.length; i++) {
+                switch (args[i]) {
+                    case "-n":
+                        nReplicates = Integer.parseInt(args[++i]);
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "-threads":
+                        nThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-out":
+                        outFileName = args[++i];
+                        break;
+                    case "-trajectories":
+                        includeTrajectories = true;
+                        break;
+                    default:
+                        if (xmlFileName != null || args[i].startsWith("-"))
+                            printUsageAndExit();
+                        xmlFileName = args[i];
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            printUsageAndExit();
+        }
+
+        if (xmlFileName == null)
+            printUsageAndExit();
+
+        String xml = new String(Files.readAllBytes(Paths.get(xmlFileName)), StandardCharsets.UTF_8);
+        BEASTInterface beastObject = new XMLParser().parseFragment(xml, true);
+        if (!(beastObject instanceof SimulatedTree))
+            throw new IllegalArgumentException("First element of XML file must be a SimulatedTree.");
+
+        SimulatedTree simulatedTree = (SimulatedTree) beastObject;
+        ReplicateSimulator simulator = new ReplicateSimulator(
+                simulatedTree.parameterizationInput.get(),
+                simulatedTree.frequenciesInput.get().getDoubleValues(),
+                simulatedTree.minSamplesInput.get(),
+                simulatedTree.typeLabelInput.get(),
+                simulatedTree.simulateUntypedTreeInput.get());
+        simulator.setEngine(simulatedTree.simulationEngineInput.get());
+        simulator.setEpsilon(simulatedTree.epsilonInput.get());
+        simulator.setSpillToDisk(simulatedTree.spillToDiskInput.get(),
+                simulatedTree.spillDirectoryInput.get() != null
+                        ? Paths.get(simulatedTree.spillDirectoryInput.get())
+                        : null);
+
+        AcceptanceStatistics stats;
+        if (outFileName == null) {
+            stats = simulator.run(nReplicates, seed, nThreads,
+                    new TabDelimitedSink(System.out, includeTrajectories));
+            System.out.flush();
+        } else {
+            try (PrintStream out = new PrintStream(new FileOutputStream(outFileName), false, "UTF-8")) {
+                stats = simulator.run(nReplicates, seed, nThreads,
+                        new TabDelimitedSink(out, includeTrajectories));
+            }
+        }
+
+        System.err.println("Seed: " + seed);
+        System.err.println(stats);
+        if (simulatedTree.simulationEngineInput.get() == TrajectorySimulator.Engine.TAU_LEAPING)
+            System.err.println(stats.leapStatistics);
+    }
+}
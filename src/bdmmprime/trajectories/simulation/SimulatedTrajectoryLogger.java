@@ -40,6 +40,6 @@ public class SimulatedTrajectoryLogger extends BEASTObject implements Loggable {
 
     @Override
     public void close(PrintStream out) {
-
+        simulatedTree.closeTrajectory();
     }
 }
@@ -2,22 +2,16 @@ package bdmmprime.trajectories.simulation;
 
 import bdmmprime.parameterization.*;
 import bdmmprime.trajectories.Trajectory;
-import bdmmprime.trajectories.trajevents.*;
+import bdmmprime.util.RandomStream;
 import beast.base.core.Function;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
-import static bdmmprime.util.Utils.nextBinomial;
-import static org.apache.commons.math3.stat.StatUtils.sum;
+import java.nio.file.Paths;
 
 /**
  * Simulates a tree from a multi-type birth-death skyline process.
@@ -56,45 +50,53 @@ public class SimulatedTree extends Tree {
             "If true, an untyped tree will be simulated (i.e. migration events will be removed).",
             false);
 
+    public Input<TrajectorySimulator.Engine> simulationEngineInput = new Input<>("simulationEngine",
+            "Algorithm used to simulate trajectories.  LOGARITHMIC_DIRECT produces " +
+                    "the same distribution as DIRECT, but is much faster for many types. " +
+                    "TAU_LEAPING is approximate, but much faster for large populations.",
+            TrajectorySimulator.Engine.DIRECT, TrajectorySimulator.Engine.values());
+
+    public Input<Double> epsilonInput = new Input<>("epsilon",
+            "Tolerance parameter for selecting tau leap length (TAU_LEAPING only).", 0.03);
+
+    public Input<Boolean> spillToDiskInput = new Input<>("spillToDisk",
+            "If true, trajectory events are written to a temporary file rather " +
+                    "than held in memory.  Use for very large simulated populations.",
+            false);
+
+    public Input<String> spillDirectoryInput = new Input<>("spillDirectory",
+            "Directory in which to create temporary files when spillToDisk is true. " +
+                    "Defaults to the system temporary directory.");
+
     Parameterization param;
     RealParameter frequencies;
-    double simulationTime;
 
-    double[] a_birth, a_death, a_sampling;
-    double[][] a_migration, a_crossbirth;
-
-    int nTypes;
     String typeLabel;
-
     int minSamples;
-
     boolean simulateUntypedTree;
 
+    TrajectorySimulator simulator;
+
     public Trajectory traj;
 
     @Override
     public void initAndValidate() {
         param = parameterizationInput.get();
         frequencies = frequenciesInput.get();
-        simulationTime = param.processLengthInput.get().getArrayValue();
 
         minSamples = minSamplesInput.get();
-
-        nTypes = param.getNTypes();
         typeLabel = typeLabelInput.get();
-
         simulateUntypedTree = simulateUntypedTreeInput.get();
 
-        a_birth = new double[nTypes];
-        a_death = new double[nTypes];
-        a_sampling = new double[nTypes];
-        a_migration = new double[nTypes][nTypes];
-        a_crossbirth = new double[nTypes][nTypes];
+        closeTrajectory();
+
+        simulator = new TrajectorySimulator(param, frequencies.getDoubleValues(), RandomStream.GLOBAL);
+        simulator.setEngine(simulationEngineInput.get());
+        simulator.setEpsilon(epsilonInput.get());
+        simulator.setSpillToDisk(spillToDiskInput.get(),
+                spillDirectoryInput.get() != null ? Paths.get(spillDirectoryInput.get()) : null);
 
-        traj = null;
-        do {
-            traj = simulateTrajectory();
-        } while (traj.getSampleCount() < Math.max(minSamples,1));
+        traj = simulator.simulateTrajectory(minSamples);
 
         RealParameter fso = (RealParameter) finalSampleOffsetInput.get();
         fso.setValue(param.processLengthInput.get().getArrayValue() - traj.getFinalSampleTime());
@@ -125,132 +127,6 @@ public class SimulatedTree extends Tree {
         super.initAndValidate();
     }
 
-    Trajectory simulateTrajectory() {
-        double t = 0;
-        int interval = 0;
-
-        double[] initialState = new double[nTypes];
-        int startType;
-        double u = Randomizer.nextDouble()*sum(frequencies.getDoubleValues());
-        for (startType=0; startType<nTypes-1; startType++) {
-            if (u < frequencies.getValue(startType))
-                break;
-            u -= frequencies.getValue(startType);
-        }
-        initialState[startType] = 1.0;
-
-        Trajectory traj = new Trajectory(initialState);
-        while (true) {
-
-            double a_tot = 0.0;
-            for (int s=0; s<nTypes; s++) {
-                a_birth[s] = traj.currentState[s] * param.getBirthRates()[interval][s];
-                a_death[s] = traj.currentState[s] * param.getDeathRates()[interval][s];
-                a_sampling[s] = traj.currentState[s] * param.getSamplingRates()[interval][s];
-                a_tot += a_birth[s] + a_death[s] + a_sampling[s];
-
-                for (int sp = 0; sp < nTypes; sp++) {
-                    if (sp == s)
-                        continue;
-
-                    a_migration[s][sp] = traj.currentState[s] * param.getMigRates()[interval][s][sp];
-                    a_crossbirth[s][sp] = traj.currentState[s] * param.getCrossBirthRates()[interval][s][sp];
-                    a_tot += a_migration[s][sp] + a_crossbirth[s][sp];
-                }
-            }
-
-            double tnew;
-            if (a_tot > 0)
-                tnew = t + Randomizer.nextExponential(a_tot);
-            else
-                tnew = Double.POSITIVE_INFINITY;
-
-            if (param.getIntervalEndTimes()[interval] <= simulationTime
-                    && tnew > param.getIntervalEndTimes()[interval]
-                    && t < param.getIntervalEndTimes()[interval]) {
-                t = param.getIntervalEndTimes()[interval];
-
-                for (int s=0; s<nTypes; s++) {
-                    double rho = param.getRhoValues()[interval][s];
-                    if (rho > 0) {
-                        int nRhoSamp = nextBinomial((int)Math.round(traj.currentState[s]), rho);
-                        int nRemoveSamp = nextBinomial(nRhoSamp, param.getRemovalProbs()[interval][s]);
-                        int nNoRemoveSamp = nRhoSamp - nRemoveSamp;
-
-                        if (nRhoSamp > 0)
-                            traj.addEvent(new SamplingEvent(t, s, nRemoveSamp, nNoRemoveSamp));
-                    }
-                }
-
-                if (t == simulationTime) {
-                    break;
-                } else {
-                    interval += 1;
-                    continue;
-                }
-            }
-
-            if (tnew > simulationTime)
-                break;
-
-            t = tnew;
-
-            u = Randomizer.nextDouble()*a_tot;
-
-            TrajectoryEvent event = null;
-            for (int s=0; s<nTypes; s++) {
-
-                if (u < a_birth[s]) {
-                    event = new BirthEvent(t, s);
-                    break;
-                }
-                u -= a_birth[s];
-
-                if (u < a_death[s]) {
-                    event = new DeathEvent(t, s);
-                    break;
-                }
-                u -= a_death[s];
-
-                if (u < a_sampling[s]) {
-                    if (u < param.getRemovalProbs()[interval][s]*a_sampling[s])
-                        event = new SamplingEvent(t, s, 1, 0);
-                    else
-                        event = new SamplingEvent(t, s, 0, 1);
-                    break;
-                }
-                u -= a_sampling[s];
-
-                for (int sp=0; sp<nTypes; sp++) {
-                    if (sp == s)
-                        continue;
-
-                    if (u < a_migration[s][sp]) {
-                        event = new MigrationEvent(t, s, sp);
-                        break;
-                    }
-                    u -= a_migration[s][sp];
-
-                    if (u < a_crossbirth[s][sp]) {
-                        event = new CrossBirthEvent(t, s, sp);
-                        break;
-                    }
-                    u -= a_crossbirth[s][sp];
-                }
-
-                if (event != null)
-                    break;
-            }
-
-            if (event == null)
-                throw new IllegalStateException("Event selection loop fell through.");
-
-            traj.addEvent(event);
-        }
-
-        return traj;
-    }
-
     /**
      * Simulate tree by iterating over simulated trajectory events
      * in reverse.
@@ -258,43 +134,28 @@ public class SimulatedTree extends Tree {
      * @return simulated tree
      */
     public Tree simulateTree() {
+        return simulator.simulateTree(traj, typeLabel, simulateUntypedTree);
+    }
 
-        List<TrajectoryEvent> events = new ArrayList<>(traj.events);
-        Collections.reverse(events);
-
-        double[] state = traj.currentState.clone();
-
-        List<List<Node>> activeLineages = new ArrayList<>();
-        for (int s=0; s<nTypes; s++)
-            activeLineages.add(new ArrayList<>());
-
-        NodeFactory nodeFactory = new NodeFactory(traj.getFinalSampleTime(), traj.getSampleCount(),
-                typeLabel, param.getTypeSet());
-
-        for (TrajectoryEvent event : events) {
-                event.simulateTreeEvent(state, activeLineages, nodeFactory, simulateUntypedTree);
-                event.reverseUpdateState(state);
-        }
-
-        int nRemainingLineages = 0;
-        for (int s=0; s<nTypes; s++)
-            nRemainingLineages += activeLineages.get(s).size();
-
-        if (nRemainingLineages != 1)
-            throw new IllegalStateException("Number of remaining lineages not equal to 1.");
-
-        Node root = null;
-        for (int s=0; s<nTypes; s++) {
-            if (!activeLineages.get(s).isEmpty()) {
-                root = activeLineages.get(s).get(0);
-                break;
-            }
+    /**
+     * Close the temporary file holding the simulated trajectory when
+     * spillToDisk is true, after which the trajectory is no longer
+     * available.  Called when the loggers of this tree or its trajectory
+     * are closed.  In-memory trajectories are left untouched.
+     */
+    public void closeTrajectory() {
+        if (traj instanceof SpilledTrajectory) {
+            ((SpilledTrajectory) traj).close();
+            traj = null;
         }
+    }
 
-        if (root == null)
-            throw new IllegalStateException("Tree simulation failed.");
-
-        return new Tree(root);
+    /**
+     * @return statistics describing the steps taken by the tau-leaping
+     * engine while simulating this tree.
+     */
+    public TrajectorySimulator.LeapStatistics getLeapStatistics() {
+        return simulator.getLeapStatistics();
     }
 
     @Override
@@ -307,6 +168,12 @@ public class SimulatedTree extends Tree {
         out.print(";");
     }
 
+    @Override
+    public void close(PrintStream out) {
+        super.close(out);
+        closeTrajectory();
+    }
+
     /**
      * Debug method for testing
      * @param args unused
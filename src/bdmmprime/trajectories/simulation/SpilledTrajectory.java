@@ -0,0 +1,368 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.trajectories.Trajectory;
+import bdmmprime.trajectories.trajevents.EventBuffer;
+import bdmmprime.trajectories.trajevents.TrajectoryEvent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Trajectory whose events are written to a temporary file rather than
+ * held in memory.  Only the current state, the initial state and a few
+ * summary statistics are kept on the heap, so forward simulations of
+ * very large populations are limited by disk space rather than memory.
+ *
+ * Events are stored as fixed-length binary records, so that the event list
+ * returned by getEvents() can be accessed randomly by memory-mapping the
+ * relevant part of the file.  This allows simulateTree() to scan the events
+ * backwards without reading them into memory, leaving the heap usage of
+ * tree reconstruction proportional to the number of sampled lineages.
+ * The state iterator replays the same mapped records forwards from the
+ * stored initial state.
+ *
+ * The temporary file is deleted by close(), which must be called once the
+ * trajectory is no longer needed.
+ */
+public class SpilledTrajectory extends Trajectory implements AutoCloseable {
+
+    /**
+     * Record layout: time (8 bytes), kind (1), padding (3), source type (2),
+     * destination type (2), count (4), secondary count (4).
+     */
+    private static final int RECORD_SIZE = 24;
+
+    /**
+     * Number of events staged in memory before being written to the file.
+     */
+    private static final int STAGING_SIZE = 4096;
+
+    /**
+     * Number of records covered by each memory-mapped window.
+     */
+    private static final int WINDOW_RECORDS = 1 << 22;
+
+    private double[] initialState;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer;
+    private final EventBuffer staging = new EventBuffer();
+
+    private long eventCount = 0;
+    private int sampleCount = 0;
+    private double firstSampleTime = Double.NaN, finalSampleTime = Double.NaN;
+
+    private MappedByteBuffer window;
+    private long windowStart = -1;
+
+    /**
+     * @param initialState initial state of trajectory
+     * @param directory directory in which to create the temporary file,
+     *                  or null to use the default temporary directory
+     */
+    public SpilledTrajectory(double[] initialState, Path directory) {
+        super(initialState);
+        this.initialState = initialState.clone();
+
+        try {
+            file = directory != null
+                    ? Files.createTempFile(directory, "trajectory", ".bin")
+                    : Files.createTempFile("trajectory", ".bin");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error creating trajectory spill file.", e);
+        }
+
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException deleteException) {
+                e.addSuppressed(deleteException);
+            }
+            throw new UncheckedIOException("Error opening trajectory spill file.", e);
+        }
+
+        writeBuffer = ByteBuffer.allocateDirect(STAGING_SIZE*RECORD_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public void addEvent(TrajectoryEvent event) {
+        staging.add(event);
+        stagedEventAdded();
+    }
+
+    @Override
+    public void addEvent(byte kind, double time, int srcType, int destType, int multiplicity) {
+        staging.add(kind, time, srcType, destType, multiplicity, 0);
+        stagedEventAdded();
+    }
+
+    private void stagedEventAdded() {
+        int i = staging.size() - 1;
+        staging.updateState(i, currentState);
+
+        if (staging.isSamplingEvent(i)) {
+            if (sampleCount == 0)
+                firstSampleTime = staging.getTime(i);
+            finalSampleTime = staging.getTime(i);
+            sampleCount += staging.getMultiplicity(i);
+        }
+
+        eventCount += 1;
+
+        if (staging.size() == STAGING_SIZE)
+            flush();
+    }
+
+    /**
+     * Write all staged events to the file.
+     */
+    private void flush() {
+        if (staging.size() == 0)
+            return;
+
+        writeBuffer.clear();
+        for (int i=0; i<staging.size(); i++) {
+            writeBuffer.putDouble(staging.getTime(i));
+            writeBuffer.put(staging.getKind(i));
+            writeBuffer.put((byte) 0);
+            writeBuffer.putShort((short) 0);
+            writeBuffer.putShort((short) staging.getSrcType(i));
+            writeBuffer.putShort((short) staging.getDestType(i));
+            writeBuffer.putInt(staging.getCount(i));
+            writeBuffer.putInt(staging.getSecondaryCount(i));
+        }
+        writeBuffer.flip();
+
+        try {
+            long position = (eventCount - staging.size())*RECORD_SIZE;
+            while (writeBuffer.hasRemaining())
+                position += channel.write(writeBuffer, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing trajectory spill file.", e);
+        }
+
+        staging.clear();
+    }
+
+    /**
+     * Map the window containing event i if necessary.
+     *
+     * @return offset of the record for event i within the window
+     */
+    private int mapWindow(long i) {
+        long start = (i/WINDOW_RECORDS)*WINDOW_RECORDS;
+
+        if (start != windowStart) {
+            long nRecords = Math.min(WINDOW_RECORDS, eventCount - start);
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start*RECORD_SIZE, nRecords*RECORD_SIZE);
+                window.order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error mapping trajectory spill file.", e);
+            }
+            windowStart = start;
+        }
+
+        return (int) (i - start)*RECORD_SIZE;
+    }
+
+    /**
+     * Read event i from the file.
+     */
+    private TrajectoryEvent readEvent(long i) {
+        int offset = mapWindow(i);
+        return EventBuffer.createEvent(
+                window.get(offset + 8),
+                window.getDouble(offset),
+                window.getShort(offset + 12),
+                window.getShort(offset + 14),
+                window.getInt(offset + 16),
+                window.getInt(offset + 20));
+    }
+
+    @Override
+    public int getEventCount() {
+        if (eventCount > Integer.MAX_VALUE)
+            throw new IllegalStateException("Event count exceeds maximum list size.");
+
+        return (int) eventCount;
+    }
+
+    /**
+     * Retrieve a read-only view of the events in this trajectory.  Event
+     * objects are read from the file on access.  The view is only valid
+     * until further events are added to the trajectory.
+     *
+     * @return list of events
+     */
+    @Override
+    public List<TrajectoryEvent> getEvents() {
+        flush();
+
+        // Discard any window mapped before the latest events were written
+        windowStart = -1;
+
+        int size = getEventCount();
+        return new SpilledEventList(size);
+    }
+
+    private class SpilledEventList extends AbstractList<TrajectoryEvent> implements RandomAccess {
+        final int size;
+
+        SpilledEventList(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public TrajectoryEvent get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+            return readEvent(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Replace the events and state of this trajectory with those of
+     * another.  Unlike for in-memory trajectories the events are copied,
+     * so this takes time proportional to the number of events.
+     *
+     * @param other Trajectory whose events and state will replace the current values.
+     */
+    @Override
+    public void assignFrom(Trajectory other) {
+        StateIterator it = other.getStateIterator();
+
+        staging.clear();
+        eventCount = 0;
+        sampleCount = 0;
+        firstSampleTime = Double.NaN;
+        finalSampleTime = Double.NaN;
+        window = null;
+        windowStart = -1;
+
+        try {
+            channel.truncate(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error truncating trajectory spill file.", e);
+        }
+
+        initialState = it.getState().clone();
+        System.arraycopy(initialState, 0, currentState, 0, currentState.length);
+
+        while (it.hasNext()) {
+            it.next();
+            staging.add(it.getKind(), it.getTime(), it.getSrcType(), it.getDestType(),
+                    it.getCount(), it.getSecondaryCount());
+            stagedEventAdded();
+        }
+    }
+
+    /**
+     * Retrieve an iterator which replays the events in the file forwards
+     * from the initial state.  The iterator is only valid until further
+     * events are added to the trajectory.
+     *
+     * @return new iterator positioned at the initial state
+     */
+    @Override
+    public StateIterator getStateIterator() {
+        flush();
+
+        // Discard any window mapped before the latest events were written
+        windowStart = -1;
+
+        return new SpilledStateIterator();
+    }
+
+    private class SpilledStateIterator extends StateIterator {
+
+        SpilledStateIterator() {
+            super(initialState, getEventCount());
+
+            events = new EventBuffer();
+            idxInBuffer = 0;
+        }
+
+        @Override
+        public void next() {
+            eventIdx += 1;
+
+            int offset = mapWindow(eventIdx);
+            events.clear();
+            events.add(
+                    window.get(offset + 8),
+                    window.getDouble(offset),
+                    window.getShort(offset + 12),
+                    window.getShort(offset + 14),
+                    window.getInt(offset + 16),
+                    window.getInt(offset + 20));
+            events.updateState(0, state);
+        }
+    }
+
+    @Override
+    public List<Double> getEventTimes() {
+        List<Double> eventTimes = new ArrayList<>();
+        for (TrajectoryEvent event : getEvents())
+            eventTimes.add(event.time);
+
+        return eventTimes;
+    }
+
+    @Override
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public double getFinalSampleTime() {
+        if (sampleCount == 0)
+            throw new IllegalStateException("Trajectory contains no sampling events.");
+
+        return finalSampleTime;
+    }
+
+    @Override
+    public double getFirstSampleTime() {
+        if (sampleCount == 0)
+            throw new IllegalStateException("Trajectory contains no sampling events.");
+
+        return firstSampleTime;
+    }
+
+    /**
+     * Close and delete the temporary file.
+     */
+    @Override
+    public void close() {
+        window = null;
+        windowStart = -1;
+
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error deleting trajectory spill file.", e);
+        }
+    }
+}
@@ -0,0 +1,808 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.parameterization.Parameterization;
+import bdmmprime.trajectories.Trajectory;
+import bdmmprime.trajectories.trajevents.EventBuffer;
+import bdmmprime.trajectories.trajevents.SamplingEvent;
+import bdmmprime.trajectories.trajevents.TrajectoryEvent;
+import bdmmprime.util.RandomStream;
+import bdmmprime.util.SumTree;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Simulates trajectories and trees from a multi-type birth-death skyline
+ * process using a given random number stream.
+ *
+ * The parameterization is only read, so a single parameterization may be
+ * shared between simulators running on different threads provided its
+ * values have been brought up to date beforehand and are not modified
+ * while the simulators are running.  Each simulator owns its own
+ * propensity arrays and so must not itself be shared between threads.
+ */
+public class TrajectorySimulator {
+
+    public enum Engine {
+        /**
+         * Gillespie's direct method: all propensities are recomputed and
+         * scanned linearly at each event, costing O(nTypes^2) per event.
+         */
+        DIRECT,
+
+        /**
+         * Logarithmic direct method: the source type of each event is
+         * selected using a sum tree over per-type total propensities,
+         * and the reaction channel is selected by binary search over
+         * per-capita rates tabulated once per interval.  Only the
+         * propensities of the (at most two) types affected by an event are
+         * updated, so each event costs O(log nTypes).  The distribution of
+         * trajectories is identical to that of the direct method.
+         */
+        LOGARITHMIC_DIRECT,
+
+        /**
+         * Approximate tau-leaping simulation, with accuracy controlled by
+         * epsilon.  Sample times are still drawn individually.
+         */
+        TAU_LEAPING
+    }
+
+    /**
+     * Summary of the steps taken by the tau-leaping engine.
+     */
+    public static class LeapStatistics {
+        public long leapCount, exactStepCount, rejectedLeapCount;
+        public long leapedEventCount;
+        public int maxEventsPerLeap;
+        public double totalLeapLength;
+
+        /**
+         * Add the counts from another set of statistics to these.
+         *
+         * @param other statistics to add
+         */
+        public void add(LeapStatistics other) {
+            leapCount += other.leapCount;
+            exactStepCount += other.exactStepCount;
+            rejectedLeapCount += other.rejectedLeapCount;
+            leapedEventCount += other.leapedEventCount;
+            maxEventsPerLeap = Math.max(maxEventsPerLeap, other.maxEventsPerLeap);
+            totalLeapLength += other.totalLeapLength;
+        }
+
+        /**
+         * @return mean number of events per accepted leap
+         */
+        public double getMeanEventsPerLeap() {
+            return leapCount > 0 ? leapedEventCount/(double)leapCount : Double.NaN;
+        }
+
+        /**
+         * @return mean length of accepted leaps
+         */
+        public double getMeanLeapLength() {
+            return leapCount > 0 ? totalLeapLength/leapCount : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return "Leaps: " + leapCount
+                    + ", exact steps: " + exactStepCount
+                    + ", rejected leaps: " + rejectedLeapCount
+                    + ", mean events per leap: " + getMeanEventsPerLeap()
+                    + ", max events per leap: " + maxEventsPerLeap
+                    + ", mean leap length: " + getMeanLeapLength();
+        }
+    }
+
+    /**
+     * Ratio of leap length to expected time until the next event below
+     * which the tau-leaping engine takes an exact step.  Value follows
+     * Cao et al., JCP 124, 044109 (2006).
+     */
+    private static final double TAU_SSA_FACTOR = 10.0;
+
+    final Parameterization param;
+    final double[] frequencies;
+    final RandomStream random;
+
+    final int nTypes;
+    final double simulationTime;
+
+    final double[] a_birth, a_death, a_sampling;
+    final double[][] a_migration, a_crossbirth;
+
+    Engine engine = Engine.DIRECT;
+
+    /*
+     * Logarithmic direct method state.  Channels for source type s are
+     * ordered birth, death, sampling, then migration and cross-birth to each
+     * other type in turn.
+     */
+    SumTree typePropensities;
+    double[] perCapitaTotals;
+    double[][] channelCumulativeRates;
+    byte[] channelKinds;
+    int[][] channelDestTypes;
+
+    /*
+     * Tau-leaping state.
+     */
+    double epsilon = 0.03;
+    double[] proposedState;
+    int[] nBirths, nDeaths, nRemoveSamples, nNoRemoveSamples;
+    int[][] nMigs, nCrossBirths;
+    final LeapStatistics leapStatistics = new LeapStatistics();
+
+    boolean spillToDisk = false;
+    Path spillDirectory = null;
+
+    int attemptCount;
+
+    /**
+     * @param param parameterization of birth-death process
+     * @param frequencies (unnormalized) probabilities of each start type
+     * @param random random number stream used for all draws
+     */
+    public TrajectorySimulator(Parameterization param, double[] frequencies, RandomStream random) {
+        this.param = param;
+        this.frequencies = frequencies.clone();
+        this.random = random;
+
+        nTypes = param.getNTypes();
+        simulationTime = param.getTotalProcessLength();
+
+        a_birth = new double[nTypes];
+        a_death = new double[nTypes];
+        a_sampling = new double[nTypes];
+        a_migration = new double[nTypes][nTypes];
+        a_crossbirth = new double[nTypes][nTypes];
+    }
+
+    /**
+     * Select the engine used for subsequent simulations.
+     *
+     * @param engine simulation engine
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+
+        if (engine == Engine.LOGARITHMIC_DIRECT && typePropensities == null) {
+            int nChannels = 3 + 2*(nTypes - 1);
+
+            typePropensities = new SumTree(nTypes);
+            perCapitaTotals = new double[nTypes];
+            channelCumulativeRates = new double[nTypes][nChannels];
+            channelKinds = new byte[nChannels];
+            channelDestTypes = new int[nTypes][nChannels];
+
+            channelKinds[0] = EventBuffer.BIRTH;
+            channelKinds[1] = EventBuffer.DEATH;
+            channelKinds[2] = EventBuffer.SAMPLING;
+            for (int k=3; k<nChannels; k+=2) {
+                channelKinds[k] = EventBuffer.MIGRATION;
+                channelKinds[k+1] = EventBuffer.CROSS_BIRTH;
+            }
+
+            for (int s=0; s<nTypes; s++) {
+                channelDestTypes[s][0] = s;
+                channelDestTypes[s][1] = s;
+                channelDestTypes[s][2] = s;
+
+                int k = 3;
+                for (int sp=0; sp<nTypes; sp++) {
+                    if (sp == s)
+                        continue;
+
+                    channelDestTypes[s][k] = sp;
+                    channelDestTypes[s][k+1] = sp;
+                    k += 2;
+                }
+            }
+        }
+
+        if (engine == Engine.TAU_LEAPING && proposedState == null) {
+            proposedState = new double[nTypes];
+            nBirths = new int[nTypes];
+            nDeaths = new int[nTypes];
+            nRemoveSamples = new int[nTypes];
+            nNoRemoveSamples = new int[nTypes];
+            nMigs = new int[nTypes][nTypes];
+            nCrossBirths = new int[nTypes][nTypes];
+        }
+    }
+
+    /**
+     * @param epsilon tolerance parameter for selecting tau leap length
+     */
+    public void setEpsilon(double epsilon) {
+        if (!(epsilon > 0.0))
+            throw new IllegalArgumentException("Epsilon must be positive.");
+
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * @return statistics for all tau-leaping simulations performed by this
+     * simulator, including those of rejected trajectories.
+     */
+    public LeapStatistics getLeapStatistics() {
+        return leapStatistics;
+    }
+
+    /**
+     * Choose whether trajectory events are held in memory or written to a
+     * temporary file (see SpilledTrajectory).  Spilled trajectories should be
+     * closed once they are no longer needed to remove the file.
+     *
+     * @param spillToDisk if true, events are written to a temporary file
+     * @param spillDirectory directory for temporary files, or null for the default
+     */
+    public void setSpillToDisk(boolean spillToDisk, Path spillDirectory) {
+        this.spillToDisk = spillToDisk;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Simulate trajectories until one is produced with at least the given
+     * number of samples.
+     *
+     * @param minSamples minimum number of samples (values below 1 are treated as 1)
+     * @return accepted trajectory
+     */
+    public Trajectory simulateTrajectory(int minSamples) {
+        attemptCount = 0;
+
+        while (true) {
+            Trajectory traj = simulateTrajectory();
+            attemptCount += 1;
+
+            if (traj.getSampleCount() >= Math.max(minSamples, 1))
+                return traj;
+
+            if (traj instanceof SpilledTrajectory)
+                ((SpilledTrajectory) traj).close();
+        }
+    }
+
+    /**
+     * @return number of trajectories simulated by the most recent call
+     * to simulateTrajectory(minSamples), including the accepted one.
+     */
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    /**
+     * Simulate a single trajectory, regardless of the number of samples.
+     *
+     * @return simulated trajectory
+     */
+    public Trajectory simulateTrajectory() {
+        double t = 0;
+        int interval = 0;
+
+        double freqSum = 0.0;
+        for (double f : frequencies)
+            freqSum += f;
+
+        double[] initialState = new double[nTypes];
+        int startType;
+        double u = random.nextDouble()*freqSum;
+        for (startType=0; startType<nTypes-1; startType++) {
+            if (u < frequencies[startType])
+                break;
+            u -= frequencies[startType];
+        }
+        initialState[startType] = 1.0;
+
+        Trajectory traj = spillToDisk
+                ? new SpilledTrajectory(initialState, spillDirectory)
+                : new Trajectory(initialState);
+
+        if (engine == Engine.TAU_LEAPING) {
+            simulateTauLeaping(traj);
+            return traj;
+        }
+
+        if (engine == Engine.LOGARITHMIC_DIRECT)
+            updateChannelRates(interval, traj.currentState);
+
+        while (true) {
+
+            double a_tot = engine == Engine.LOGARITHMIC_DIRECT
+                    ? typePropensities.getTotal()
+                    : computePropensities(traj.currentState, interval);
+
+            double tnew;
+            if (a_tot > 0)
+                tnew = t + random.nextExponential(a_tot);
+            else
+                tnew = Double.POSITIVE_INFINITY;
+
+            if (param.getIntervalEndTimes()[interval] <= simulationTime
+                    && tnew > param.getIntervalEndTimes()[interval]
+                    && t < param.getIntervalEndTimes()[interval]) {
+                t = param.getIntervalEndTimes()[interval];
+                applyRhoSampling(traj, t, interval);
+
+                if (t == simulationTime) {
+                    break;
+                } else {
+                    interval += 1;
+
+                    if (engine == Engine.LOGARITHMIC_DIRECT)
+                        updateChannelRates(interval, traj.currentState);
+
+                    continue;
+                }
+            }
+
+            if (tnew > simulationTime)
+                break;
+
+            t = tnew;
+
+            if (engine == Engine.LOGARITHMIC_DIRECT) {
+                implementEventLogarithmic(traj, t, interval, a_tot);
+                continue;
+            }
+
+            u = random.nextDouble()*a_tot;
+
+            if (!implementEvent(traj, t, interval, u))
+                throw new IllegalStateException("Event selection loop fell through.");
+        }
+
+        return traj;
+    }
+
+    /**
+     * Add rho sampling events occurring at the end of an interval.
+     */
+    private void applyRhoSampling(Trajectory traj, double t, int interval) {
+        for (int s=0; s<nTypes; s++) {
+            double rho = param.getRhoValues()[interval][s];
+            if (rho > 0) {
+                int nRhoSamp = random.nextBinomial((int)Math.round(traj.currentState[s]), rho);
+                int nRemoveSamp = random.nextBinomial(nRhoSamp, param.getRemovalProbs()[interval][s]);
+                int nNoRemoveSamp = nRhoSamp - nRemoveSamp;
+
+                if (nRhoSamp > 0)
+                    traj.addEvent(new SamplingEvent(t, s, nRemoveSamp, nNoRemoveSamp));
+            }
+        }
+    }
+
+    /**
+     * Simulate a trajectory using tau-leaping.  Leap lengths are chosen
+     * using the approach of Cao et al., JCP 124, 044109 (2006),
+     * doi:10.1063/1.2159468.  When the leap length becomes comparable to the
+     * expected time between events, an exact step is taken instead.
+     *
+     * Birth, death, migration and cross-birth events drawn during a leap
+     * are recorded with multiplicities at the start of the leap.  Sampling
+     * events are recorded individually at uniformly distributed times within
+     * the leap, so that sample times, and hence the tree reconstructed from
+     * the trajectory, remain exact given the population sizes.  Leaps which
+     * would make any count negative are retried with half the leap length.
+     *
+     * @param traj trajectory holding the initial state
+     */
+    private void simulateTauLeaping(Trajectory traj) {
+        double t = 0;
+        int interval = 0;
+
+        while (true) {
+            double tBoundary = Math.min(param.getIntervalEndTimes()[interval], simulationTime);
+
+            double a_tot = computePropensities(traj.currentState, interval);
+            double tau = getTau(traj.currentState, interval);
+
+            if (a_tot == 0.0 || tau < TAU_SSA_FACTOR/a_tot) {
+                double tnew = a_tot > 0.0
+                        ? t + random.nextExponential(a_tot)
+                        : Double.POSITIVE_INFINITY;
+
+                if (tnew < tBoundary) {
+                    t = tnew;
+                    if (!implementEvent(traj, t, interval, random.nextDouble()*a_tot))
+                        throw new IllegalStateException("Event selection loop fell through.");
+
+                    leapStatistics.exactStepCount += 1;
+                    continue;
+                }
+
+                t = tBoundary;
+
+            } else {
+                while (true) {
+                    double tnext = Math.min(tBoundary, t + tau);
+
+                    if (proposeLeap(traj.currentState, tnext - t, interval)) {
+                        commitLeap(traj, t, tnext, interval);
+                        t = tnext;
+                        break;
+                    }
+
+                    leapStatistics.rejectedLeapCount += 1;
+                    tau /= 2.0;
+                }
+
+                if (t < tBoundary)
+                    continue;
+            }
+
+            if (param.getIntervalEndTimes()[interval] <= simulationTime)
+                applyRhoSampling(traj, t, interval);
+
+            if (t >= simulationTime)
+                break;
+
+            interval += 1;
+        }
+    }
+
+    /**
+     * Estimate tau-leaping step size from the current propensities.  Sampling
+     * with removal is included as a loss.
+     */
+    private double getTau(double[] state, int interval) {
+        double tau = Double.POSITIVE_INFINITY;
+
+        for (int i=0; i<nTypes; i++) {
+            double a_removal = a_sampling[i]*param.getRemovalProbs()[interval][i];
+            double mu_i = a_birth[i] - a_death[i] - a_removal;
+            double sigma2_i = a_birth[i] + a_death[i] + a_removal;
+
+            for (int j=0; j<nTypes; j++) {
+                if (i == j)
+                    continue;
+
+                mu_i += a_migration[j][i] - a_migration[i][j] + a_crossbirth[j][i];
+                sigma2_i += a_migration[j][i] + a_migration[i][j] + a_crossbirth[j][i];
+            }
+
+            double bound = Math.max(epsilon*state[i], 1);
+
+            if (mu_i != 0)
+                tau = Math.min(tau, bound/Math.abs(mu_i));
+
+            if (sigma2_i > 0)
+                tau = Math.min(tau, bound*bound/sigma2_i);
+        }
+
+        return tau;
+    }
+
+    /**
+     * Draw the numbers of each event occurring during a leap of length dt.
+     * Events within the leap are applied in the order births, cross-births,
+     * migrations, deaths, then sampling, and the leap is accepted only if no
+     * count becomes negative at any point in this sequence.  This guarantees
+     * that the reverse-time tree reconstruction never sees a negative count.
+     *
+     * @return true if the leap is valid
+     */
+    private boolean proposeLeap(double[] state, double dt, int interval) {
+        System.arraycopy(state, 0, proposedState, 0, nTypes);
+
+        for (int s=0; s<nTypes; s++) {
+            nBirths[s] = a_birth[s] > 0 ? (int) random.nextPoisson(a_birth[s]*dt) : 0;
+            nDeaths[s] = a_death[s] > 0 ? (int) random.nextPoisson(a_death[s]*dt) : 0;
+
+            double r = param.getRemovalProbs()[interval][s];
+            nRemoveSamples[s] = a_sampling[s] > 0 ? (int) random.nextPoisson(a_sampling[s]*r*dt) : 0;
+            nNoRemoveSamples[s] = a_sampling[s] > 0 ? (int) random.nextPoisson(a_sampling[s]*(1.0-r)*dt) : 0;
+
+            proposedState[s] += nBirths[s];
+
+            for (int sp=0; sp<nTypes; sp++) {
+                if (sp == s) {
+                    nMigs[s][sp] = 0;
+                    nCrossBirths[s][sp] = 0;
+                    continue;
+                }
+
+                nMigs[s][sp] = a_migration[s][sp] > 0 ? (int) random.nextPoisson(a_migration[s][sp]*dt) : 0;
+                nCrossBirths[s][sp] = a_crossbirth[s][sp] > 0 ? (int) random.nextPoisson(a_crossbirth[s][sp]*dt) : 0;
+            }
+        }
+
+        // Counts following births, cross-births and emigrations (but not immigrations)
+        for (int s=0; s<nTypes; s++) {
+            for (int sp=0; sp<nTypes; sp++) {
+                proposedState[sp] += nCrossBirths[s][sp];
+                proposedState[s] -= nMigs[s][sp];
+            }
+        }
+
+        for (int s=0; s<nTypes; s++) {
+            if (proposedState[s] < 0)
+                return false;
+        }
+
+        // Counts following immigrations, deaths and sampling
+        for (int s=0; s<nTypes; s++) {
+            for (int sp=0; sp<nTypes; sp++)
+                proposedState[sp] += nMigs[s][sp];
+        }
+
+        // Samples taken without removal need someone to sample
+        for (int s=0; s<nTypes; s++) {
+            proposedState[s] -= nDeaths[s] + nRemoveSamples[s];
+            if (proposedState[s] < (nNoRemoveSamples[s] > 0 ? 1 : 0))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Add the events drawn by the last successful call to proposeLeap()
+     * to the trajectory.
+     */
+    private void commitLeap(Trajectory traj, double t, double tnext, int interval) {
+        int nEvents = 0;
+
+        for (int s=0; s<nTypes; s++) {
+            if (nBirths[s] > 0)
+                traj.addEvent(EventBuffer.BIRTH, t, s, s, nBirths[s]);
+            nEvents += nBirths[s];
+        }
+
+        for (int s=0; s<nTypes; s++) {
+            for (int sp=0; sp<nTypes; sp++) {
+                if (nCrossBirths[s][sp] > 0)
+                    traj.addEvent(EventBuffer.CROSS_BIRTH, t, s, sp, nCrossBirths[s][sp]);
+                nEvents += nCrossBirths[s][sp];
+            }
+        }
+
+        for (int s=0; s<nTypes; s++) {
+            for (int sp=0; sp<nTypes; sp++) {
+                if (nMigs[s][sp] > 0)
+                    traj.addEvent(EventBuffer.MIGRATION, t, s, sp, nMigs[s][sp]);
+                nEvents += nMigs[s][sp];
+            }
+        }
+
+        int nSamples = 0;
+        for (int s=0; s<nTypes; s++) {
+            if (nDeaths[s] > 0)
+                traj.addEvent(EventBuffer.DEATH, t, s, s, nDeaths[s]);
+            nEvents += nDeaths[s];
+            nSamples += nRemoveSamples[s] + nNoRemoveSamples[s];
+        }
+
+        // Place samples at sorted uniform times within the leap, generated
+        // directly using the recursion for uniform order statistics.  Each
+        // time is assigned a sample drawn without replacement from those
+        // remaining, which distributes the samples uniformly over the times.
+        double x = 1.0;
+        for (int k=nSamples; k>=1; k--) {
+            x *= Math.pow(random.nextDouble(), 1.0/k);
+            double time = t + (1.0 - x)*(tnext - t);
+
+            int u = random.nextInt(k);
+            for (int s=0; s<nTypes; s++) {
+                if (u < nRemoveSamples[s]) {
+                    traj.addEvent(new SamplingEvent(time, s, 1, 0));
+                    nRemoveSamples[s] -= 1;
+                    break;
+                }
+                u -= nRemoveSamples[s];
+
+                if (u < nNoRemoveSamples[s]) {
+                    traj.addEvent(new SamplingEvent(time, s, 0, 1));
+                    nNoRemoveSamples[s] -= 1;
+                    break;
+                }
+                u -= nNoRemoveSamples[s];
+            }
+        }
+        nEvents += nSamples;
+
+        leapStatistics.leapCount += 1;
+        leapStatistics.leapedEventCount += nEvents;
+        leapStatistics.maxEventsPerLeap = Math.max(leapStatistics.maxEventsPerLeap, nEvents);
+        leapStatistics.totalLeapLength += tnext - t;
+    }
+
+    /**
+     * Compute all event propensities for the direct method.
+     *
+     * @return total propensity
+     */
+    private double computePropensities(double[] state, int interval) {
+        double a_tot = 0.0;
+        for (int s=0; s<nTypes; s++) {
+            a_birth[s] = state[s] * param.getBirthRates()[interval][s];
+            a_death[s] = state[s] * param.getDeathRates()[interval][s];
+            a_sampling[s] = state[s] * param.getSamplingRates()[interval][s];
+            a_tot += a_birth[s] + a_death[s] + a_sampling[s];
+
+            for (int sp = 0; sp < nTypes; sp++) {
+                if (sp == s)
+                    continue;
+
+                a_migration[s][sp] = state[s] * param.getMigRates()[interval][s][sp];
+                a_crossbirth[s][sp] = state[s] * param.getCrossBirthRates()[interval][s][sp];
+                a_tot += a_migration[s][sp] + a_crossbirth[s][sp];
+            }
+        }
+
+        return a_tot;
+    }
+
+    /**
+     * Tabulate cumulative per-capita channel rates for the given interval
+     * and reset the per-type propensities held in the sum tree.
+     */
+    private void updateChannelRates(int interval, double[] state) {
+        for (int s=0; s<nTypes; s++) {
+            double[] cumulative = channelCumulativeRates[s];
+
+            double total = param.getBirthRates()[interval][s];
+            cumulative[0] = total;
+            total += param.getDeathRates()[interval][s];
+            cumulative[1] = total;
+            total += param.getSamplingRates()[interval][s];
+            cumulative[2] = total;
+
+            for (int k=3; k<cumulative.length; k+=2) {
+                int sp = channelDestTypes[s][k];
+                total += param.getMigRates()[interval][s][sp];
+                cumulative[k] = total;
+                total += param.getCrossBirthRates()[interval][s][sp];
+                cumulative[k+1] = total;
+            }
+
+            perCapitaTotals[s] = total;
+            typePropensities.set(s, state[s]*total);
+        }
+    }
+
+    /**
+     * Select and implement an event using the logarithmic direct method.
+     * The source type is chosen with probability proportional to its total
+     * propensity, then the channel is chosen with probability proportional
+     * to its per-capita rate.
+     */
+    private void implementEventLogarithmic(Trajectory traj, double t, int interval, double a_tot) {
+        int s = typePropensities.find(random.nextDouble()*a_tot);
+
+        double[] cumulative = channelCumulativeRates[s];
+        double v = random.nextDouble()*perCapitaTotals[s];
+
+        // Binary search for the first channel whose cumulative rate exceeds v.
+        // Channels with zero rate can never be selected in this way.
+        int lo = 0, hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (v < cumulative[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+
+        // Guard against rounding placing v at the total, which would
+        // otherwise select a trailing zero-rate channel.
+        while (lo > 0 && cumulative[lo] == cumulative[lo-1])
+            lo -= 1;
+
+        int sp = channelDestTypes[s][lo];
+        switch (channelKinds[lo]) {
+            case EventBuffer.SAMPLING:
+                double w = v - cumulative[1];
+                if (w < param.getRemovalProbs()[interval][s]*param.getSamplingRates()[interval][s])
+                    traj.addEvent(new SamplingEvent(t, s, 1, 0));
+                else
+                    traj.addEvent(new SamplingEvent(t, s, 0, 1));
+                break;
+
+            default:
+                traj.addEvent(channelKinds[lo], t, s, sp, 1);
+        }
+
+        typePropensities.set(s, traj.currentState[s]*perCapitaTotals[s]);
+        if (sp != s)
+            typePropensities.set(sp, traj.currentState[sp]*perCapitaTotals[sp]);
+    }
+
+    /**
+     * Select the event corresponding to u and add it to the trajectory.
+     *
+     * @return false if u did not select an event
+     */
+    private boolean implementEvent(Trajectory traj, double t, int interval, double u) {
+        for (int s=0; s<nTypes; s++) {
+
+            if (u < a_birth[s]) {
+                traj.addEvent(EventBuffer.BIRTH, t, s, s, 1);
+                return true;
+            }
+            u -= a_birth[s];
+
+            if (u < a_death[s]) {
+                traj.addEvent(EventBuffer.DEATH, t, s, s, 1);
+                return true;
+            }
+            u -= a_death[s];
+
+            if (u < a_sampling[s]) {
+                if (u < param.getRemovalProbs()[interval][s]*a_sampling[s])
+                    traj.addEvent(new SamplingEvent(t, s, 1, 0));
+                else
+                    traj.addEvent(new SamplingEvent(t, s, 0, 1));
+                return true;
+            }
+            u -= a_sampling[s];
+
+            for (int sp=0; sp<nTypes; sp++) {
+                if (sp == s)
+                    continue;
+
+                if (u < a_migration[s][sp]) {
+                    traj.addEvent(EventBuffer.MIGRATION, t, s, sp, 1);
+                    return true;
+                }
+                u -= a_migration[s][sp];
+
+                if (u < a_crossbirth[s][sp]) {
+                    traj.addEvent(EventBuffer.CROSS_BIRTH, t, s, sp, 1);
+                    return true;
+                }
+                u -= a_crossbirth[s][sp];
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Simulate tree by iterating over simulated trajectory events
+     * in reverse.
+     *
+     * @param traj trajectory containing at least one sample
+     * @param typeLabel label used to annotate nodes with types
+     * @param untyped if true, migration events are omitted from the tree
+     * @return simulated tree
+     */
+    public Tree simulateTree(Trajectory traj, String typeLabel, boolean untyped) {
+
+        List<TrajectoryEvent> events = traj.getEvents();
+
+        double[] state = traj.currentState.clone();
+
+        LineagePool activeLineages = new LineagePool(nTypes);
+
+        NodeFactory nodeFactory = new NodeFactory(traj.getFinalSampleTime(), traj.getSampleCount(),
+                typeLabel, param.getTypeSet());
+
+        for (int i=events.size()-1; i>=0; i--) {
+            TrajectoryEvent event = events.get(i);
+            event.simulateTreeEvent(state, activeLineages, nodeFactory, untyped, random);
+            event.reverseUpdateState(state);
+        }
+
+        if (activeLineages.getTotalSize() != 1)
+            throw new IllegalStateException("Number of remaining lineages not equal to 1.");
+
+        Node root = null;
+        for (int s=0; s<nTypes; s++) {
+            if (!activeLineages.isEmpty(s)) {
+                root = activeLineages.get(s, 0);
+                break;
+            }
+        }
+
+        if (root == null)
+            throw new IllegalStateException("Tree simulation failed.");
+
+        return new Tree(root);
+    }
+}
@@ -1,10 +1,9 @@
 package bdmmprime.trajectories.trajevents;
 
+import bdmmprime.trajectories.simulation.LineagePool;
 import bdmmprime.trajectories.simulation.NodeFactory;
+import bdmmprime.util.RandomStream;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
-
-import java.util.List;
 
 public class BirthEvent extends TrajectoryEvent {
 
@@ -31,22 +30,27 @@ public class BirthEvent extends TrajectoryEvent {
     }
 
     @Override
-    public void simulateSingleTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory nodeFactory,
-                                        Boolean untypedTree) {
-        double probCoal = activeLineages.get(type).size()*(activeLineages.get(type).size()-1)
+    public void reverseUpdateStateSingle(double[] state) {
+        state[type] -= 1;
+    }
+
+    @Override
+    public void simulateSingleTreeEvent(double[] state, LineagePool activeLineages, NodeFactory nodeFactory,
+                                        Boolean untypedTree, RandomStream random) {
+        double probCoal = activeLineages.size(type)*(activeLineages.size(type)-1)
                 /(state[type]*(state[type]-1));
 
-        if (Randomizer.nextDouble() >= probCoal)
+        if (random.nextDouble() >= probCoal)
             return;
 
-        Node child1 = activeLineages.get(type).remove(Randomizer.nextInt(activeLineages.get(type).size()));
-        Node child2 = activeLineages.get(type).remove(Randomizer.nextInt(activeLineages.get(type).size()));
+        Node child1 = activeLineages.removeRandom(type, random);
+        Node child2 = activeLineages.removeRandom(type, random);
 
         Node parent = nodeFactory.newIntNode(untypedTree ? -1 : type, time);
         parent.addChild(child1);
         parent.addChild(child2);
 
-        activeLineages.get(type).add(parent);
+        activeLineages.add(type, parent);
     }
 
     @Override
@@ -1,10 +1,9 @@
 package bdmmprime.trajectories.trajevents;
 
+import bdmmprime.trajectories.simulation.LineagePool;
 import bdmmprime.trajectories.simulation.NodeFactory;
+import bdmmprime.util.RandomStream;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
-
-import java.util.List;
 
 public class CrossBirthEvent extends TrajectoryEvent {
 
@@ -32,38 +31,43 @@ public class CrossBirthEvent extends TrajectoryEvent {
     }
 
     @Override
-    public void simulateSingleTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory nodeFactory,
-                                        Boolean untypedTree) {
-        if (activeLineages.get(destType).isEmpty())
+    public void reverseUpdateStateSingle(double[] state) {
+        state[destType] -= 1;
+    }
+
+    @Override
+    public void simulateSingleTreeEvent(double[] state, LineagePool activeLineages, NodeFactory nodeFactory,
+                                        Boolean untypedTree, RandomStream random) {
+        if (activeLineages.isEmpty(destType))
             return;
 
-        double pObsStateChange = activeLineages.get(destType).size()/state[destType];
-        double pCoal = pObsStateChange*activeLineages.get(srcType).size()/state[srcType];
+        double pObsStateChange = activeLineages.size(destType)/state[destType];
+        double pCoal = pObsStateChange*activeLineages.size(srcType)/state[srcType];
 
-        double u = Randomizer.nextDouble();
+        double u = random.nextDouble();
 
         if (u < pCoal) {
             // Coalescence
 
-            Node child1 = activeLineages.get(srcType).remove(Randomizer.nextInt(activeLineages.get(srcType).size()));
-            Node child2 = activeLineages.get(destType).remove(Randomizer.nextInt(activeLineages.get(destType).size()));
+            Node child1 = activeLineages.removeRandom(srcType, random);
+            Node child2 = activeLineages.removeRandom(destType, random);
 
             Node parent = nodeFactory.newIntNode(untypedTree ? -1 : srcType, time);
             parent.addChild(child1);
             parent.addChild(child2);
 
-            activeLineages.get(srcType).add(parent);
+            activeLineages.add(srcType, parent);
 
         } else if (u < pObsStateChange) {
             // Lineage state change
 
-            Node child = activeLineages.get(destType).remove(Randomizer.nextInt(activeLineages.get(destType).size()));
+            Node child = activeLineages.removeRandom(destType, random);
             if (untypedTree) {
-                activeLineages.get(srcType).add(child);
+                activeLineages.add(srcType, child);
             } else {
                 Node parent = nodeFactory.newIntNode(srcType, time);
                 parent.addChild(child);
-                activeLineages.get(srcType).add(parent);
+                activeLineages.add(srcType, parent);
             }
         }
     }
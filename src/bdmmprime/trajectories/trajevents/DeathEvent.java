@@ -1,9 +1,8 @@
 package bdmmprime.trajectories.trajevents;
 
+import bdmmprime.trajectories.simulation.LineagePool;
 import bdmmprime.trajectories.simulation.NodeFactory;
-import beast.base.evolution.tree.Node;
-
-import java.util.List;
+import bdmmprime.util.RandomStream;
 
 public class DeathEvent extends TrajectoryEvent {
 
@@ -29,8 +28,13 @@ public class DeathEvent extends TrajectoryEvent {
     }
 
     @Override
-    public void simulateSingleTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory nodeFactory,
-                                        Boolean untypedTree) {
+    public void reverseUpdateStateSingle(double[] state) {
+        state[type] += 1;
+    }
+
+    @Override
+    public void simulateSingleTreeEvent(double[] state, LineagePool activeLineages, NodeFactory nodeFactory,
+                                        Boolean untypedTree, RandomStream random) {
         // Death events don't affect the tree.
     }
 
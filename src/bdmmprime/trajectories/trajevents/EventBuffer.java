@@ -0,0 +1,278 @@
+package bdmmprime.trajectories.trajevents;
+
+import java.util.Arrays;
+
+/**
+ * Compact columnar store for trajectory events.  Rather than holding one
+ * TrajectoryEvent object per event, the event time, kind, types and counts
+ * are held in growable primitive arrays.  Event objects are only created on
+ * request, as views of individual rows.
+ *
+ * For sampling events, count holds the number of samples with removal and
+ * secondaryCount the number without.  For all other kinds, count holds the
+ * multiplicity and secondaryCount is unused.  Birth, death and sampling events
+ * record their type as the source type.
+ */
+public class EventBuffer {
+
+    public static final byte BIRTH = 0;
+    public static final byte DEATH = 1;
+    public static final byte MIGRATION = 2;
+    public static final byte CROSS_BIRTH = 3;
+    public static final byte SAMPLING = 4;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] times = new double[INITIAL_CAPACITY];
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private short[] srcTypes = new short[INITIAL_CAPACITY];
+    private short[] destTypes = new short[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int[] secondaryCounts = new int[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    /**
+     * @return number of events in buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append an event to the buffer.
+     *
+     * @param kind kind of event
+     * @param time time of event
+     * @param srcType source type (or type of single-type event)
+     * @param destType destination type (unused for single-type events)
+     * @param count event multiplicity (number of removed samples for sampling events)
+     * @param secondaryCount number of non-removed samples for sampling events
+     */
+    public void add(byte kind, double time, int srcType, int destType, int count, int secondaryCount) {
+        if (size == times.length) {
+            int newCapacity = 2*times.length;
+            times = Arrays.copyOf(times, newCapacity);
+            kinds = Arrays.copyOf(kinds, newCapacity);
+            srcTypes = Arrays.copyOf(srcTypes, newCapacity);
+            destTypes = Arrays.copyOf(destTypes, newCapacity);
+            counts = Arrays.copyOf(counts, newCapacity);
+            secondaryCounts = Arrays.copyOf(secondaryCounts, newCapacity);
+        }
+
+        times[size] = time;
+        kinds[size] = kind;
+        srcTypes[size] = (short)srcType;
+        destTypes[size] = (short)destType;
+        counts[size] = count;
+        secondaryCounts[size] = secondaryCount;
+
+        size += 1;
+    }
+
+    /**
+     * Append the contents of an event object to the buffer.
+     *
+     * @param event event to append
+     */
+    public void add(TrajectoryEvent event) {
+        if (event instanceof BirthEvent) {
+            BirthEvent e = (BirthEvent) event;
+            add(BIRTH, e.time, e.type, 0, e.multiplicity, 0);
+
+        } else if (event instanceof DeathEvent) {
+            DeathEvent e = (DeathEvent) event;
+            add(DEATH, e.time, e.type, 0, e.multiplicity, 0);
+
+        } else if (event instanceof MigrationEvent) {
+            MigrationEvent e = (MigrationEvent) event;
+            add(MIGRATION, e.time, e.srcType, e.destType, e.multiplicity, 0);
+
+        } else if (event instanceof CrossBirthEvent) {
+            CrossBirthEvent e = (CrossBirthEvent) event;
+            add(CROSS_BIRTH, e.time, e.srcType, e.destType, e.multiplicity, 0);
+
+        } else if (event instanceof SamplingEvent) {
+            SamplingEvent e = (SamplingEvent) event;
+            add(SAMPLING, e.time, e.type, 0, e.nRemoveSamp, e.nNoRemoveSamp);
+
+        } else {
+            throw new IllegalArgumentException("Unsupported event type " + event.getClass().getName());
+        }
+    }
+
+    /**
+     * Remove all events from the buffer, retaining its capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public double getTime(int i) {
+        return times[i];
+    }
+
+    public byte getKind(int i) {
+        return kinds[i];
+    }
+
+    public int getSrcType(int i) {
+        return srcTypes[i];
+    }
+
+    public int getDestType(int i) {
+        return destTypes[i];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    public int getSecondaryCount(int i) {
+        return secondaryCounts[i];
+    }
+
+    public boolean isSamplingEvent(int i) {
+        return kinds[i] == SAMPLING;
+    }
+
+    /**
+     * @param i event index
+     * @return multiplicity of event (total number of samples for sampling events)
+     */
+    public int getMultiplicity(int i) {
+        return kinds[i] == SAMPLING
+                ? counts[i] + secondaryCounts[i]
+                : counts[i];
+    }
+
+    /**
+     * Update state to account for event i.
+     *
+     * @param i event index
+     * @param state state to update
+     */
+    public void updateState(int i, double[] state) {
+        switch (kinds[i]) {
+            case BIRTH:
+                state[srcTypes[i]] += counts[i];
+                break;
+
+            case CROSS_BIRTH:
+                state[destTypes[i]] += counts[i];
+                break;
+
+            case DEATH:
+            case SAMPLING:
+                state[srcTypes[i]] -= counts[i];
+                break;
+
+            case MIGRATION:
+                state[srcTypes[i]] -= counts[i];
+                state[destTypes[i]] += counts[i];
+                break;
+        }
+    }
+
+    /**
+     * Update state to undo the effect of event i.
+     *
+     * @param i event index
+     * @param state state to update
+     */
+    public void reverseUpdateState(int i, double[] state) {
+        switch (kinds[i]) {
+            case BIRTH:
+                state[srcTypes[i]] -= counts[i];
+                break;
+
+            case CROSS_BIRTH:
+                state[destTypes[i]] -= counts[i];
+                break;
+
+            case DEATH:
+            case SAMPLING:
+                state[srcTypes[i]] += counts[i];
+                break;
+
+            case MIGRATION:
+                state[srcTypes[i]] += counts[i];
+                state[destTypes[i]] -= counts[i];
+                break;
+        }
+    }
+
+    /**
+     * Create an event object equivalent to event i.  Note that a new
+     * object is created on each call.
+     *
+     * @param i event index
+     * @return event object
+     */
+    public TrajectoryEvent getEvent(int i) {
+        return createEvent(kinds[i], times[i], srcTypes[i], destTypes[i], counts[i], secondaryCounts[i]);
+    }
+
+    /**
+     * Create an event object from its primitive representation.
+     *
+     * @param kind kind of event
+     * @param time time of event
+     * @param srcType source type (or type of single-type event)
+     * @param destType destination type (unused for single-type events)
+     * @param count event multiplicity (number of removed samples for sampling events)
+     * @param secondaryCount number of non-removed samples for sampling events
+     * @return event object
+     */
+    public static TrajectoryEvent createEvent(byte kind, double time, int srcType, int destType,
+                                              int count, int secondaryCount) {
+        switch (kind) {
+            case BIRTH:
+                return new BirthEvent(time, srcType, count);
+
+            case DEATH:
+                return new DeathEvent(time, srcType, count);
+
+            case MIGRATION:
+                return new MigrationEvent(time, srcType, destType, count);
+
+            case CROSS_BIRTH:
+                return new CrossBirthEvent(time, srcType, destType, count);
+
+            case SAMPLING:
+                return new SamplingEvent(time, srcType, count, secondaryCount);
+
+            default:
+                throw new IllegalStateException("Unknown event kind.");
+        }
+    }
+
+    /**
+     * Produce the same code as TrajectoryEvent.getEventCode() without
+     * creating an event object.
+     *
+     * @param i event index
+     * @return event code
+     */
+    public String getEventCode(int i) {
+        switch (kinds[i]) {
+            case BIRTH:
+                return "B" + ":" + srcTypes[i] + "::" + counts[i];
+
+            case DEATH:
+                return "D" + ":" + srcTypes[i] + "::" + counts[i];
+
+            case MIGRATION:
+                return "M" + ":" + srcTypes[i] + ":" + destTypes[i] + ":" + counts[i];
+
+            case CROSS_BIRTH:
+                return "C" + ":" + srcTypes[i] + ":" + destTypes[i] + ":" + counts[i];
+
+            case SAMPLING:
+                return "S" + ":" + srcTypes[i] + "::" + (counts[i] + secondaryCounts[i]);
+
+            default:
+                throw new IllegalStateException("Unknown event kind.");
+        }
+    }
+}
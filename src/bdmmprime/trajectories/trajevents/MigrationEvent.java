@@ -1,10 +1,9 @@
 package bdmmprime.trajectories.trajevents;
 
+import bdmmprime.trajectories.simulation.LineagePool;
 import bdmmprime.trajectories.simulation.NodeFactory;
+import bdmmprime.util.RandomStream;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
-
-import java.util.List;
 
 public class MigrationEvent extends TrajectoryEvent {
 
@@ -34,26 +33,32 @@ public class MigrationEvent extends TrajectoryEvent {
     }
 
     @Override
-    public void simulateSingleTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory nodeFactory,
-                                        Boolean untypedTree) {
-        if (activeLineages.get(destType).isEmpty())
+    public void reverseUpdateStateSingle(double[] state) {
+        state[srcType] += 1;
+        state[destType] -= 1;
+    }
+
+    @Override
+    public void simulateSingleTreeEvent(double[] state, LineagePool activeLineages, NodeFactory nodeFactory,
+                                        Boolean untypedTree, RandomStream random) {
+        if (activeLineages.isEmpty(destType))
             return;
 
-        double pMig = activeLineages.get(destType).size()/state[destType];
+        double pMig = activeLineages.size(destType)/state[destType];
 
-        if (Randomizer.nextDouble() >= pMig)
+        if (random.nextDouble() >= pMig)
             return;
 
-        Node child = activeLineages.get(destType).remove(Randomizer.nextInt(activeLineages.get(destType).size()));
+        Node child = activeLineages.removeRandom(destType, random);
 
         if (untypedTree) {
-            activeLineages.get(srcType).add(child);
+            activeLineages.add(srcType, child);
 
         } else {
             Node parent = nodeFactory.newIntNode(srcType, time);
             parent.addChild(child);
 
-            activeLineages.get(srcType).add(parent);
+            activeLineages.add(srcType, parent);
         }
     }
 
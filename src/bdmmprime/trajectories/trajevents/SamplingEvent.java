@@ -1,11 +1,9 @@
 package bdmmprime.trajectories.trajevents;
 
+import bdmmprime.trajectories.simulation.LineagePool;
 import bdmmprime.trajectories.simulation.NodeFactory;
+import bdmmprime.util.RandomStream;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
-
-import java.util.ArrayList;
-import java.util.List;
 
 public class SamplingEvent extends TrajectoryEvent {
 
@@ -31,38 +29,42 @@ public class SamplingEvent extends TrajectoryEvent {
     }
 
     @Override
-    public void simulateTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory factory,
-                                  Boolean untypedTree) {
+    public void simulateTreeEvent(double[] state, LineagePool activeLineages, NodeFactory factory,
+                                  Boolean untypedTree, RandomStream random) {
 
-        // Add nodes corresponding to sampling WITHOUT removal
+        // Add nodes corresponding to sampling WITHOUT removal.  New lineages
+        // are only added to the pool once all sampled ancestors have been
+        // chosen, so that these are drawn from the pre-existing lineages.
 
-        List<Node> unsampledLineages = new ArrayList<>(activeLineages.get(type));
+        Node[] newLineages = new Node[nNoRemoveSamp];
         double N = state[type];
 
         for (int i=0; i<nNoRemoveSamp; i++) {
             Node sampledNode = factory.newLeafNode(type, time);
-            double pSampledAncestor = unsampledLineages.size() / N;
+            double pSampledAncestor = activeLineages.size(type) / N;
 
-            if (pSampledAncestor == 1.0 || (pSampledAncestor > 0.0 && Randomizer.nextDouble() < pSampledAncestor)) {
-                Node child = unsampledLineages.remove(Randomizer.nextInt(unsampledLineages.size()));
-                activeLineages.get(type).remove(child);
+            if (pSampledAncestor == 1.0 || (pSampledAncestor > 0.0 && random.nextDouble() < pSampledAncestor)) {
+                Node child = activeLineages.removeRandom(type, random);
 
                 Node fake = factory.newIntNode(untypedTree ? -1 : type, time);
                 fake.addChild(child);
                 fake.addChild(sampledNode);
 
-                activeLineages.get(type).add(fake);
+                newLineages[i] = fake;
             } else {
-                activeLineages.get(type).add(sampledNode);
+                newLineages[i] = sampledNode;
             }
 
             N -= 1;
         }
 
+        for (Node node : newLineages)
+            activeLineages.add(type, node);
+
         // Add nodes corresponding to sampling WITH removal
 
         for (int i=0; i<nRemoveSamp; i++)
-            activeLineages.get(type).add(factory.newLeafNode(type, time));
+            activeLineages.add(type, factory.newLeafNode(type, time));
     }
 
     @Override
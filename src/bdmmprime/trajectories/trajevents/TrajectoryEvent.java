@@ -1,9 +1,8 @@
 package bdmmprime.trajectories.trajevents;
 
+import bdmmprime.trajectories.simulation.LineagePool;
 import bdmmprime.trajectories.simulation.NodeFactory;
-import beast.base.evolution.tree.Node;
-
-import java.util.List;
+import bdmmprime.util.RandomStream;
 
 public abstract class TrajectoryEvent {
     public double time;
@@ -24,9 +23,10 @@ public abstract class TrajectoryEvent {
      * @param activeLineages Lineages active immediately after the event.
      * @param factory Factory object for creating new tree nodes.
      * @param untypedTree If true, don't record types/type changes on resulting tree.
+     * @param random Random number stream used for lineage selection.
      */
-    public void simulateSingleTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory factory,
-                                        Boolean untypedTree) {
+    public void simulateSingleTreeEvent(double[] state, LineagePool activeLineages, NodeFactory factory,
+                                        Boolean untypedTree, RandomStream random) {
         throw new UnsupportedOperationException("Tree event simulation unsupported for this event type.");
     }
 
@@ -37,11 +37,32 @@ public abstract class TrajectoryEvent {
      * @param activeLineages Lineages active immediately after the event.
      * @param factory Factory object for generating new tree nodes.
      * @param untypedTree If true, don't record types/type changes on resulting tree.
+     * @param random Random number stream used for lineage selection.
+     */
+    public void simulateTreeEvent(double[] state, LineagePool activeLineages, NodeFactory factory,
+                                  Boolean untypedTree, RandomStream random) {
+        if (multiplicity == 1) {
+            simulateSingleTreeEvent(state, activeLineages, factory, untypedTree, random);
+            return;
+        }
+
+        // Treat the individual events as occurring one after another, so
+        // that each sees the state immediately following it.
+        double[] singleState = state.clone();
+        for (int i=0; i<multiplicity; i++) {
+            simulateSingleTreeEvent(singleState, activeLineages, factory, untypedTree, random);
+            reverseUpdateStateSingle(singleState);
+        }
+    }
+
+    /**
+     * Undo the state change produced by just one of the individual events
+     * represented by this object.
+     *
+     * @param state Number of individuals immediately after the event.
      */
-    public void simulateTreeEvent(double[] state, List<List<Node>> activeLineages, NodeFactory factory,
-                                  Boolean untypedTree) {
-        for (int i=0; i<multiplicity; i++)
-            simulateSingleTreeEvent(state, activeLineages, factory, untypedTree);
+    public void reverseUpdateStateSingle(double[] state) {
+        throw new UnsupportedOperationException("Single event state update unsupported for this event type.");
     }
 
     public abstract String getEventCode();
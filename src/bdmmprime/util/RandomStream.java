@@ -0,0 +1,294 @@
+package bdmmprime.util;
+
+import beast.base.util.GammaFunction;
+import beast.base.util.Randomizer;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of random variates for the simulation code.  The GLOBAL stream
+ * draws from BEAST's Randomizer, while streams produced by split() draw
+ * from independent SplittableRandom generators.
+ *
+ * Independent streams allow simulations to be distributed across threads
+ * without the results depending on the order in which the threads happen
+ * to draw numbers: as long as each unit of work owns its own stream and the
+ * streams are split off in a fixed order, the results depend only on the
+ * seed of the Randomizer.
+ */
+public class RandomStream {
+
+    /**
+     * Stream which draws from BEAST's global Randomizer.
+     */
+    public static final RandomStream GLOBAL = new RandomStream(null);
+
+    private final SplittableRandom random;
+
+    private RandomStream(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Create a stream whose output is entirely determined by the given seed.
+     *
+     * @param seed seed for stream
+     * @return new stream
+     */
+    public static RandomStream fromSeed(long seed) {
+        return new RandomStream(new SplittableRandom(seed));
+    }
+
+    /**
+     * Create a new stream which is statistically independent of this one.
+     * Splitting the GLOBAL stream seeds the new stream from the Randomizer.
+     *
+     * @return new stream
+     */
+    public RandomStream split() {
+        return random != null
+                ? new RandomStream(random.split())
+                : new RandomStream(new SplittableRandom(Randomizer.nextLong()));
+    }
+
+    /**
+     * @return uniform random number on [0,1)
+     */
+    public double nextDouble() {
+        return random != null
+                ? random.nextDouble()
+                : Randomizer.nextDouble();
+    }
+
+    /**
+     * @param n upper bound (exclusive)
+     * @return uniform random integer on [0,n)
+     */
+    public int nextInt(int n) {
+        return random != null
+                ? random.nextInt(n)
+                : Randomizer.nextInt(n);
+    }
+
+    /**
+     * @param rate rate of exponential distribution
+     * @return exponentially distributed random number
+     */
+    public double nextExponential(double rate) {
+        if (random == null)
+            return Randomizer.nextExponential(rate);
+
+        return -Math.log(1.0 - random.nextDouble())/rate;
+    }
+
+    /**
+     * Draw a Poisson variate.  Small means use multiplication of uniforms,
+     * larger means use the transformed rejection method with squeeze (PTRS)
+     * of Hörmann (1993), Insurance: Mathematics and Economics 12:39-45,
+     * which has O(1) expected cost.  No allocation occurs in either case.
+     *
+     * @param mean mean of Poisson distribution
+     * @return Poisson distributed random number
+     */
+    public long nextPoisson(double mean) {
+        if (mean <= 0.0)
+            return 0;
+
+        if (mean < 10.0) {
+            double L = Math.exp(-mean);
+            long k = 0;
+            double p = nextDouble();
+            while (p > L) {
+                k += 1;
+                p *= nextDouble();
+            }
+
+            return k;
+        }
+
+        double slam = Math.sqrt(mean);
+        double loglam = Math.log(mean);
+        double b = 0.931 + 2.53*slam;
+        double a = -0.059 + 0.02483*b;
+        double invalpha = 1.1239 + 1.1328/(b - 3.4);
+        double vr = 0.9277 - 3.6224/(b - 2);
+
+        while (true) {
+            double U = nextDouble() - 0.5;
+            double V = nextDouble();
+            double us = 0.5 - Math.abs(U);
+            long k = (long) Math.floor((2*a/us + b)*U + mean + 0.43);
+
+            if (us >= 0.07 && V <= vr)
+                return k;
+
+            if (k < 0 || (us < 0.013 && V > us))
+                continue;
+
+            if (Math.log(V) + Math.log(invalpha) - Math.log(a/(us*us) + b)
+                    <= -mean + k*loglam - GammaFunction.lnGamma(k + 1.0))
+                return k;
+        }
+    }
+
+    /**
+     * Mean below which binomial variates are drawn by inversion.
+     */
+    private static final double BINOMIAL_INVERSION_THRESHOLD = 30.0;
+
+    /**
+     * Draw a binomial variate.  When the smaller of n*p and n*(1-p) is below
+     * 30, sequential inversion is used.  Otherwise the BTPE algorithm of
+     * Kachitvichyanukul and Schmeiser (1988), Communications of the ACM
+     * 31:216-222 is used, which has O(1) expected cost.
+     *
+     * @param n number of trials
+     * @param p success probability
+     * @return sampled number of successes
+     */
+    public int nextBinomial(int n, double p) {
+        if (n <= 0 || p <= 0.0)
+            return 0;
+
+        if (p >= 1.0)
+            return n;
+
+        double r = Math.min(p, 1.0 - p);
+
+        int y = n*r < BINOMIAL_INVERSION_THRESHOLD
+                ? nextBinomialInversion(n, r)
+                : nextBinomialBTPE(n, r);
+
+        return p > 0.5 ? n - y : y;
+    }
+
+    /**
+     * Binomial sampling by sequential search of the CDF, for p at most 0.5.
+     */
+    private int nextBinomialInversion(int n, double p) {
+        double q = 1.0 - p;
+        double qn = Math.exp(n*Math.log(q));
+        double np = n*p;
+        double bound = Math.min(n, np + 10.0*Math.sqrt(np*q + 1));
+
+        int x = 0;
+        double px = qn;
+        double u = nextDouble();
+
+        while (u > px) {
+            x += 1;
+            if (x > bound) {
+                // Rounding has pushed us off the end of the distribution: restart.
+                x = 0;
+                px = qn;
+                u = nextDouble();
+            } else {
+                u -= px;
+                px = ((n - x + 1)*p*px)/(x*q);
+            }
+        }
+
+        return x;
+    }
+
+    /**
+     * Binomial sampling using the BTPE algorithm, for p at most 0.5.
+     */
+    private int nextBinomialBTPE(int n, double p) {
+        double q = 1.0 - p;
+        double fm = n*p + p;
+        int m = (int) Math.floor(fm);
+        double nrq = n*p*q;
+
+        double p1 = Math.floor(2.195*Math.sqrt(nrq) - 4.6*q) + 0.5;
+        double xm = m + 0.5;
+        double xl = xm - p1;
+        double xr = xm + p1;
+        double c = 0.134 + 20.5/(15.3 + m);
+        double a = (fm - xl)/(fm - xl*p);
+        double laml = a*(1.0 + a/2.0);
+        a = (xr - fm)/(xr*q);
+        double lamr = a*(1.0 + a/2.0);
+        double p2 = p1*(1.0 + 2.0*c);
+        double p3 = p2 + c/laml;
+        double p4 = p3 + c/lamr;
+
+        while (true) {
+            double u = nextDouble()*p4;
+            double v = nextDouble();
+            int y;
+
+            if (u <= p1) {
+                // Triangular region: accept immediately
+                return (int) Math.floor(xm - p1*v + u);
+            }
+
+            if (u <= p2) {
+                // Parallelogram region
+                double x = xl + (u - p1)/c;
+                v = v*c + 1.0 - Math.abs(m - x + 0.5)/p1;
+                if (v > 1.0)
+                    continue;
+                y = (int) Math.floor(x);
+
+            } else if (u <= p3) {
+                // Left exponential tail
+                y = (int) Math.floor(xl + Math.log(v)/laml);
+                if (y < 0 || v == 0.0)
+                    continue;
+                v = v*(u - p2)*laml;
+
+            } else {
+                // Right exponential tail
+                y = (int) Math.floor(xr - Math.log(v)/lamr);
+                if (y > n || v == 0.0)
+                    continue;
+                v = v*(u - p3)*lamr;
+            }
+
+            int k = Math.abs(y - m);
+            if (k <= 20 || k >= nrq/2.0 - 1) {
+                // Explicit evaluation of f(y)/f(m)
+                double s = p/q;
+                double aa = s*(n + 1);
+                double F = 1.0;
+                if (m < y) {
+                    for (int i = m + 1; i <= y; i++)
+                        F *= aa/i - s;
+                } else if (m > y) {
+                    for (int i = y + 1; i <= m; i++)
+                        F /= aa/i - s;
+                }
+
+                if (v <= F)
+                    return y;
+
+                continue;
+            }
+
+            // Squeeze using upper and lower bounds on log(f(y))
+            double rho = (k/nrq)*((k*(k/3.0 + 0.625) + 0.16666666666666666)/nrq + 0.5);
+            double t = -k*k/(2.0*nrq);
+            double A = Math.log(v);
+            if (A < t - rho)
+                return y;
+            if (A > t + rho)
+                continue;
+
+            // Final comparison using Stirling's formula
+            double x1 = y + 1, f1 = m + 1, z = n + 1 - m, w = n - y + 1;
+            double x2 = x1*x1, f2 = f1*f1, z2 = z*z, w2 = w*w;
+            double bound = xm*Math.log(f1/x1) + (n - m + 0.5)*Math.log(z/w)
+                    + (y - m)*Math.log(w*p/(x1*q))
+                    + stirlingCorrection(f1, f2) + stirlingCorrection(z, z2)
+                    + stirlingCorrection(x1, x2) + stirlingCorrection(w, w2);
+
+            if (A <= bound)
+                return y;
+        }
+    }
+
+    private static double stirlingCorrection(double x, double x2) {
+        return (13680. - (462. - (132. - (99. - 140./x2)/x2)/x2)/x2)/x/166320.;
+    }
+}
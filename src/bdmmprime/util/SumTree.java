@@ -0,0 +1,102 @@
+package bdmmprime.util;
+
+import java.util.Arrays;
+
+/**
+ * Complete binary tree of partial sums over a fixed number of non-negative
+ * values.  Updating a single value and selecting an index with probability
+ * proportional to its value both take O(log n) time, which makes this
+ * structure suitable for holding reaction propensities in stochastic
+ * simulations where each event changes only a few of them.
+ *
+ * Internal sums are recomputed from their children on every update
+ * rather than adjusted by differences, so no rounding error accumulates.
+ */
+public class SumTree {
+
+    private final int size, nLeaves;
+    private final double[] tree;
+
+    /**
+     * @param size number of values held by the tree (all initially zero)
+     */
+    public SumTree(int size) {
+        this.size = size;
+
+        int n = 1;
+        while (n < size)
+            n *= 2;
+        nLeaves = n;
+
+        tree = new double[2*nLeaves];
+    }
+
+    /**
+     * @return number of values held by the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Set all values to zero.
+     */
+    public void clear() {
+        Arrays.fill(tree, 0.0);
+    }
+
+    /**
+     * @param i index of value
+     * @return value with index i
+     */
+    public double get(int i) {
+        return tree[nLeaves + i];
+    }
+
+    /**
+     * Set value i and update the sums above it.
+     *
+     * @param i index of value
+     * @param value new (non-negative) value
+     */
+    public void set(int i, double value) {
+        int node = nLeaves + i;
+        if (tree[node] == value)
+            return;
+
+        tree[node] = value;
+        for (node >>>= 1; node > 0; node >>>= 1)
+            tree[node] = tree[2*node] + tree[2*node + 1];
+    }
+
+    /**
+     * @return sum of all values
+     */
+    public double getTotal() {
+        return tree[1];
+    }
+
+    /**
+     * Find the index i for which the cumulative sum of values 0..i-1 is
+     * at most u and the cumulative sum of values 0..i exceeds u.  Indices
+     * with zero value are never returned, even when rounding places u at
+     * or beyond the total.
+     *
+     * @param u number in [0, getTotal())
+     * @return selected index
+     */
+    public int find(double u) {
+        int node = 1;
+        while (node < nLeaves) {
+            int left = 2*node;
+            if (tree[left + 1] == 0.0 || (u < tree[left] && tree[left] > 0.0)) {
+                node = left;
+            } else {
+                u -= tree[left];
+                node = left + 1;
+            }
+        }
+
+        return node - nLeaves;
+    }
+}
@@ -1,7 +1,6 @@
 package bdmmprime.util;
 
 import beast.base.util.GammaFunction;
-import beast.base.util.Randomizer;
 
 /**
  * @author dkuh004
@@ -94,24 +93,15 @@ public class Utils {
     }
 
     /**
-     * Inefficient (expected time complexity O(np)) ICDF-based binomial sampler.
+     * Binomial sampler drawing from the global random number stream.
+     * See RandomStream.nextBinomial().
      *
      * @param n number of trials
      * @param p success probability
      * @return sampled number of successes
      */
     public static int nextBinomial(int n, double p) {
-        double u = Randomizer.nextDouble();
-
-        double acc = Math.pow(1-p, n);
-        int m = 0;
-
-        while (u > acc && m < n) {
-            m += 1;
-            acc += Math.exp(logChoose(n, m) + (n - m) * Math.log(1 - p) + m * Math.log(p));
-        }
-
-        return m;
+        return RandomStream.GLOBAL.nextBinomial(n, p);
     }
 
     /**
@@ -0,0 +1,229 @@
+package bdmmprime.util.priors;
+
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.parameter.Parameter;
+
+import java.util.List;
+
+/**
+ * Base class for skygrid-type priors, whose log density is made up of the
+ * logs of the elements of x together with terms involving each pair of
+ * neighbouring log elements.
+ *
+ * The log elements and pair terms are cached between calls together with
+ * their sums.  When x is a parameter, only the entries touching elements
+ * flagged as dirty are recomputed, so that an operator changing a single
+ * element costs O(1) rather than O(n) to evaluate.  Subclasses combine the
+ * sums with their hyperparameters, which therefore rarely require the cache
+ * to be rebuilt.
+ */
+public abstract class AbstractSkyGridPrior extends Distribution {
+
+    public Input<Function> xInput = new Input<>("x",
+            "Parameter to place prior on.", Input.Validate.REQUIRED);
+
+    protected Function x;
+    protected int n;
+
+    protected final double logOneOnSqrt2Pi = -0.5*Math.log(2*Math.PI);
+
+    // pairTerms[i] is the term for elements i-1 and i, so pairTerms[0] is unused.
+    private double[] logX, storedLogX;
+    private double[] pairTerms, storedPairTerms;
+    private double sumLogX, storedSumLogX;
+    private double sumPairTerms, storedSumPairTerms;
+    private boolean cacheValid, storedCacheValid;
+
+    private int[] changedIndices;
+    private int updatesSinceSum;
+
+    @Override
+    public void initAndValidate() {
+        x = xInput.get();
+        n = x.getDimension();
+
+        logX = new double[n];
+        storedLogX = new double[n];
+        pairTerms = new double[n];
+        storedPairTerms = new double[n];
+        changedIndices = new int[n];
+
+        cacheValid = false;
+    }
+
+    /**
+     * Compute the term for a pair of neighbouring log elements using the
+     * current hyperparameter values.
+     *
+     * @param prevLogEl log of earlier element
+     * @param logEl log of later element
+     * @return pair term
+     */
+    protected abstract double getPairTerm(double prevLogEl, double logEl);
+
+    /**
+     * Bring the cached log elements and pair terms up to date with x.
+     *
+     * @param pairTermsChanged true if the pair terms have changed for
+     *                         reasons other than changes to x, for
+     *                         instance due to a change in hyperparameters.
+     */
+    protected void updateCache(boolean pairTermsChanged) {
+        int nChanged = findChangedIndices();
+
+        if (nChanged < 0) {
+            for (int i=0; i<n; i++)
+                logX[i] = Math.log(x.getArrayValue(i));
+
+            recomputePairTerms();
+            cacheValid = true;
+            return;
+        }
+
+        for (int k=0; k<nChanged; k++) {
+            int i = changedIndices[k];
+            double newLogEl = Math.log(x.getArrayValue(i));
+            sumLogX += newLogEl - logX[i];
+            logX[i] = newLogEl;
+        }
+
+        if (pairTermsChanged) {
+            recomputePairTerms();
+            return;
+        }
+
+        // Terms for pairs shared by two changed elements are computed
+        // twice, but the second computation leaves the sum unchanged.
+        for (int k=0; k<nChanged; k++) {
+            int i = changedIndices[k];
+            if (i > 0)
+                updatePairTerm(i);
+            if (i < n-1)
+                updatePairTerm(i+1);
+        }
+
+        // Periodically re-sum to prevent accumulation of rounding error,
+        // and re-sum whenever infinite terms appear or disappear.
+        updatesSinceSum += nChanged;
+        if (updatesSinceSum > n || !Double.isFinite(sumLogX) || !Double.isFinite(sumPairTerms))
+            resum();
+    }
+
+    /**
+     * Fill changedIndices with the indices of elements of x which have
+     * changed since the cache was last updated.
+     *
+     * @return number of changed elements, or -1 if the cache must be
+     * rebuilt from scratch
+     */
+    private int findChangedIndices() {
+        if (!cacheValid || !(x instanceof Parameter.Base))
+            return -1;
+
+        Parameter.Base<?> param = (Parameter.Base<?>) x;
+        if (!param.somethingIsDirty())
+            return 0;
+
+        int nChanged = 0;
+        for (int i=0; i<n; i++) {
+            if (param.isDirty(i)) {
+                // Beyond this point a full rebuild is cheaper.
+                if (nChanged == n/2)
+                    return -1;
+
+                changedIndices[nChanged++] = i;
+            }
+        }
+
+        return nChanged;
+    }
+
+    private void updatePairTerm(int i) {
+        double newTerm = getPairTerm(logX[i-1], logX[i]);
+        sumPairTerms += newTerm - pairTerms[i];
+        pairTerms[i] = newTerm;
+    }
+
+    private void recomputePairTerms() {
+        for (int i=1; i<n; i++)
+            pairTerms[i] = getPairTerm(logX[i-1], logX[i]);
+
+        resum();
+    }
+
+    private void resum() {
+        sumLogX = 0.0;
+        for (int i=0; i<n; i++)
+            sumLogX += logX[i];
+
+        sumPairTerms = 0.0;
+        for (int i=1; i<n; i++)
+            sumPairTerms += pairTerms[i];
+
+        updatesSinceSum = 0;
+    }
+
+    /**
+     * @param i element index
+     * @return cached log of element i of x
+     */
+    protected double getLogX(int i) {
+        return logX[i];
+    }
+
+    /**
+     * @return sum of the logs of all elements of x
+     */
+    protected double getSumLogX() {
+        return sumLogX;
+    }
+
+    /**
+     * @return sum of the terms for all pairs of neighbouring elements
+     */
+    protected double getSumPairTerms() {
+        return sumPairTerms;
+    }
+
+    @Override
+    public void store() {
+        super.store();
+
+        System.arraycopy(logX, 0, storedLogX, 0, n);
+        System.arraycopy(pairTerms, 0, storedPairTerms, 0, n);
+        storedSumLogX = sumLogX;
+        storedSumPairTerms = sumPairTerms;
+        storedCacheValid = cacheValid;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+
+        double[] tmp;
+
+        tmp = logX;
+        logX = storedLogX;
+        storedLogX = tmp;
+
+        tmp = pairTerms;
+        pairTerms = storedPairTerms;
+        storedPairTerms = tmp;
+
+        sumLogX = storedSumLogX;
+        sumPairTerms = storedSumPairTerms;
+        cacheValid = storedCacheValid;
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+}
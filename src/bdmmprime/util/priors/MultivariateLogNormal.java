@@ -30,6 +30,12 @@ public class MultivariateLogNormal extends Distribution {
             "S parameter of the multivariate lognormal distribution.",
             Input.Validate.REQUIRED);
 
+    public Input<Boolean> useCholeskyInput = new Input<>("useCholesky",
+            "If true, factorise S using a Cholesky decomposition which is " +
+                    "reused until S changes, rather than decomposing and " +
+                    "inverting S on every evaluation.",
+            false);
+
     List<Function> xs;
     Function M, S;
     int n, m;
@@ -38,6 +44,14 @@ public class MultivariateLogNormal extends Distribution {
 
     Algebra al = Algebra.DEFAULT;
 
+    // Cholesky mode: lower triangular factor L of S (row-major), together
+    // with the values of S from which it was computed.
+    boolean useCholesky;
+    double[] cholS, storedCholS, cholL, storedCholL;
+    double detSigma, storedDetSigma;
+    boolean cholPosDef, storedCholPosDef, cholValid, storedCholValid;
+    double[] yVec, zVec;
+
     public MultivariateLogNormal() { }
 
     @Override
@@ -69,10 +83,24 @@ public class MultivariateLogNormal extends Distribution {
         y = new DenseDoubleMatrix2D(n,1);
         mu = new DenseDoubleMatrix2D(n, 1);
         sigma = new DenseDoubleMatrix2D(n, n);
+
+        useCholesky = useCholeskyInput.get();
+        if (useCholesky) {
+            cholS = new double[n*n];
+            storedCholS = new double[n*n];
+            cholL = new double[n*n];
+            storedCholL = new double[n*n];
+            yVec = new double[n];
+            zVec = new double[n];
+            cholValid = false;
+        }
     }
 
     @Override
     public double calculateLogP() {
+        if (useCholesky)
+            return calculateLogPCholesky();
+
         logP = 0.0;
 
         for (int j=0; j<n; j++) {
@@ -108,6 +136,142 @@ public class MultivariateLogNormal extends Distribution {
         return logP;
     }
 
+    /**
+     * Evaluate the same density as calculateLogP(), but using a Cholesky
+     * factorisation S = LL' which is only recomputed when the values of S
+     * change.  The quadratic form y'S^{-1}y is then |z|^2, where z solves
+     * Lz = y by forward substitution, and det(S) is the squared product of
+     * the diagonal elements of L.
+     *
+     * @return log probability density
+     */
+    private double calculateLogPCholesky() {
+        updateCholesky();
+
+        if (!cholPosDef) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        logP = -m*(0.5*n*Math.log(Math.PI) + 0.5*detSigma);
+
+        for (int i=0; i<m; i++) {
+            double ySum = 0.0;
+            for (int j=0; j<n; j++) {
+                yVec[j] = Math.log(xs.get(j).getArrayValue(i)) - M.getArrayValue(j);
+                ySum += yVec[j];
+            }
+
+            double quadForm = 0.0;
+            for (int j=0; j<n; j++) {
+                double z = yVec[j];
+                for (int k=0; k<j; k++)
+                    z -= cholL[j*n + k]*zVec[k];
+                z /= cholL[j*n + j];
+
+                zVec[j] = z;
+                quadForm += z*z;
+            }
+
+            logP += -quadForm - ySum; // ySum results from change of variables
+        }
+
+        return logP;
+    }
+
+    /**
+     * Recompute Cholesky factor of S if S has changed since the factor
+     * was last computed.
+     */
+    private void updateCholesky() {
+        if (cholValid) {
+            boolean sChanged = false;
+            for (int i=0; i<n*n; i++) {
+                if (S.getArrayValue(i) != cholS[i]) {
+                    sChanged = true;
+                    break;
+                }
+            }
+
+            if (!sChanged)
+                return;
+        }
+
+        for (int i=0; i<n*n; i++)
+            cholS[i] = S.getArrayValue(i);
+        cholValid = true;
+
+        for (int j=0; j<n; j++) {
+            for (int k=0; k<n; k++)
+                sigma.setQuick(j, k, cholS[j*n + k]);
+        }
+
+        // Check that sigma is symmetric (required for covariance matrices):
+        if (!Property.DEFAULT.isSymmetric(sigma)) {
+            // Ensure check is repeated if this S is encountered again
+            cholValid = false;
+            throw new IllegalArgumentException("Covariance matrix is not symmetric.");
+        }
+
+        // Cholesky-Banachiewicz factorisation.  This fails precisely
+        // when sigma is not positive definite.
+        cholPosDef = true;
+        double diagProd = 1.0;
+        for (int j=0; j<n && cholPosDef; j++) {
+            for (int k=0; k<=j; k++) {
+                double sum = cholS[j*n + k];
+                for (int l=0; l<k; l++)
+                    sum -= cholL[j*n + l]*cholL[k*n + l];
+
+                if (k < j) {
+                    cholL[j*n + k] = sum/cholL[k*n + k];
+                } else if (sum > 0.0) {
+                    cholL[j*n + j] = Math.sqrt(sum);
+                    diagProd *= cholL[j*n + j];
+                } else {
+                    cholPosDef = false;
+                    break;
+                }
+            }
+        }
+
+        detSigma = diagProd*diagProd;
+    }
+
+    @Override
+    public void store() {
+        super.store();
+
+        if (useCholesky) {
+            System.arraycopy(cholS, 0, storedCholS, 0, n*n);
+            System.arraycopy(cholL, 0, storedCholL, 0, n*n);
+            storedDetSigma = detSigma;
+            storedCholPosDef = cholPosDef;
+            storedCholValid = cholValid;
+        }
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+
+        if (useCholesky) {
+            double[] tmp;
+
+            tmp = cholS;
+            cholS = storedCholS;
+            storedCholS = tmp;
+
+            tmp = cholL;
+            cholL = storedCholL;
+            storedCholL = tmp;
+
+            detSigma = storedDetSigma;
+            cholPosDef = storedCholPosDef;
+            cholValid = storedCholValid;
+        }
+    }
+
 
     @Override
     public List<String> getArguments() {
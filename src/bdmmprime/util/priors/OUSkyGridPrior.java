@@ -1,17 +1,12 @@
 package bdmmprime.util.priors;
 
-import beast.base.inference.Distribution;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.inference.State;
 
-import java.util.List;
 import java.util.Random;
 
-public class OUSkyGridPrior extends Distribution {
-
-    public Input<Function> xInput = new Input<>("x",
-            "Parameter to place prior on.", Input.Validate.REQUIRED);
+public class OUSkyGridPrior extends AbstractSkyGridPrior {
 
     public Input<Function> MInput = new Input<>("M",
             "M parameter for log-normal distribution.", Input.Validate.REQUIRED);
@@ -28,20 +23,19 @@ public class OUSkyGridPrior extends Distribution {
 
     public OUSkyGridPrior() { }
 
-    Function x;
-    int n;
-
-    final double logOneOnSqrt2Pi = -0.5*Math.log(2*Math.PI);
+    // Conditional mean of each log element is prevEl*expNegTheta + meanOffset.
+    // The pair terms depend on these, so they are stored alongside them.
+    double expNegTheta, meanOffset;
+    double storedExpNegTheta, storedMeanOffset;
 
     @Override
-    public void initAndValidate() {
-        x = xInput.get();
-        n = x.getDimension();
+    protected double getPairTerm(double prevLogEl, double logEl) {
+        double delta = logEl - (prevLogEl*expNegTheta + meanOffset);
+        return delta*delta;
     }
 
     @Override
     public double calculateLogP() {
-        logP = 0.0;
 
         // Parameters for O-U process:
         double M = MInput.get().getArrayValue();
@@ -51,40 +45,50 @@ public class OUSkyGridPrior extends Distribution {
         if (meanInRealSpaceInput.get())
             M = Math.log(M);
 
-        double expNegTheta = Math.exp(-theta);
+        double newExpNegTheta = Math.exp(-theta);
+        double newMeanOffset = M*(1.0 - newExpNegTheta);
+
+        // Changes to M or theta shift every conditional mean, but changes
+        // to S only rescale the variance.
+        boolean pairTermsChanged = newExpNegTheta != expNegTheta || newMeanOffset != meanOffset;
+        expNegTheta = newExpNegTheta;
+        meanOffset = newMeanOffset;
+
+        updateCache(pairTermsChanged);
+
         double S2 = S*S;
 
         double var = S2*(1.0 - expNegTheta*expNegTheta);
         double logGausNorm = logOneOnSqrt2Pi - 0.5*Math.log(var);
 
-        // Keep track of previous value:
-        double prevEl = Math.log(x.getArrayValue(0));
+        double firstEl = getLogX(0);
 
         // Log normal distribution for initial value
-        logP +=  logOneOnSqrt2Pi - Math.log(S) - 0.5*(prevEl-M)*(prevEl-M)/S2 - prevEl;
+        logP = logOneOnSqrt2Pi - Math.log(S) - 0.5*(firstEl-M)*(firstEl-M)/S2;
 
-        for (int i=1; i<n; i++) {
+        // Transition densities for remaining values
+        logP += (n-1)*logGausNorm - 0.5*getSumPairTerms()/var;
 
-            double el = Math.log(x.getArrayValue(i));
-            double mean = prevEl*expNegTheta + M*(1.0 - expNegTheta);
-            double delta = el - mean;
-
-            logP += logGausNorm - 0.5*delta*delta/var - el;
-
-            prevEl = el;
-        }
+        // Jacobian for the log transform of each value
+        logP -= getSumLogX();
 
         return logP;
     }
 
     @Override
-    public List<String> getArguments() {
-        return null;
+    public void store() {
+        super.store();
+
+        storedExpNegTheta = expNegTheta;
+        storedMeanOffset = meanOffset;
     }
 
     @Override
-    public List<String> getConditions() {
-        return null;
+    public void restore() {
+        super.restore();
+
+        expNegTheta = storedExpNegTheta;
+        meanOffset = storedMeanOffset;
     }
 
     @Override
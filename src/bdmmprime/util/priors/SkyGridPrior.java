@@ -1,17 +1,12 @@
 package bdmmprime.util.priors;
 
-import beast.base.inference.Distribution;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.inference.State;
 
-import java.util.List;
 import java.util.Random;
 
-public class SkyGridPrior extends Distribution {
-
-    public Input<Function> xInput = new Input<>("x",
-            "Parameter to place prior on.", Input.Validate.REQUIRED);
+public class SkyGridPrior extends AbstractSkyGridPrior {
 
     public Input<Function> MInput = new Input<>("M",
             "M parameter for log normal distribution of first element.",
@@ -26,55 +21,37 @@ public class SkyGridPrior extends Distribution {
 
     public SkyGridPrior() { }
 
-    Function x;
-    int n;
-
-    final double logOneOnSqrt2Pi = -0.5*Math.log(2*Math.PI);
-
     @Override
-    public void initAndValidate() {
-        x = xInput.get();
-        n = x.getDimension();
+    protected double getPairTerm(double prevLogEl, double logEl) {
+        double delta = logEl - prevLogEl;
+        return delta*delta;
     }
 
     @Override
     public double calculateLogP() {
-        logP = 0.0;
-
         double sigma = sigmaInput.get().getArrayValue();
         double M = MInput.get().getArrayValue();
         double S = SInput.get().getArrayValue();
 
-        double prevEl = Math.log(x.getArrayValue(0));
+        // The squared increments do not depend on the hyperparameters,
+        // so only elements of x which have changed need be revisited.
+        updateCache(false);
+
+        double firstEl = getLogX(0);
 
         // Log normal distribution for initial element:
-        logP += logOneOnSqrt2Pi - Math.log(S) - prevEl - 0.5*(prevEl - M)*(prevEl - M)/S/S;
+        logP = logOneOnSqrt2Pi - Math.log(S) - 0.5*(firstEl - M)*(firstEl - M)/S/S;
 
+        // Normal distributions for increments:
         double logGausNorm = logOneOnSqrt2Pi - Math.log(sigma);
-        double sigma2 = sigma*sigma;
-
-        for (int i=1; i<n; i++) {
-            double el = Math.log(x.getArrayValue(i));
-            double delta = el - prevEl;
-
-            logP += logGausNorm - el - 0.5*delta*delta/sigma2;
+        logP += (n-1)*logGausNorm - 0.5*getSumPairTerms()/(sigma*sigma);
 
-            prevEl = el;
-        }
+        // Jacobian for the log transform of each element:
+        logP -= getSumLogX();
 
         return logP;
     }
 
-    @Override
-    public List<String> getArguments() {
-        return null;
-    }
-
-    @Override
-    public List<String> getConditions() {
-        return null;
-    }
-
     @Override
     public void sample(State state, Random random) {
         throw new UnsupportedOperationException("Sampling from SkygridPrior not supported.");
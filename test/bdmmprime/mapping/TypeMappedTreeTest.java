@@ -4,13 +4,28 @@ import bdmmprime.distribution.BirthDeathMigrationDistribution;
 import bdmmprime.parameterization.*;
 import bdmmprime.trajectories.simulation.SimulatedTree;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
 import beast.base.evolution.tree.TreeParser;
 import org.apache.commons.math.special.Gamma;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 public class TypeMappedTreeTest {
 
@@ -420,4 +435,542 @@ public class TypeMappedTreeTest {
 
         assertEquals(logProbTrue, logProb, 1e-4); // result from BEAST, not checked in R
     }
+
+    @Test
+    public void testMarginalTypeProbs() {
+        Randomizer.setSeed(42);
+
+        Tree tree = new TreeParser(
+                "((3[&type=0] : 1.5, 4[&type=1] : 0.5) : 1 , (1[&type=1] : 2, 2[&type=0] : 1) : 3);",
+                false);
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(
+                "processLength", new RealParameter("6.0"),
+                "typeSet", new TypeSet(2),
+                "R0", new SkylineVectorParameter(
+                        null,
+                        new RealParameter((4.0 / 3.0) + " " + 5.0)),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5 1.25")),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter((1.0 / 3.0) + " " + (1.0/2.0))),
+                "migrationRate", new SkylineMatrixParameter(
+                        new RealParameter("2.0"),
+                        new RealParameter("0.2 0.1 0.5 0.3")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        RealParameter frequencies = new RealParameter("0.5 0.5");
+
+        TypeMappedTree typeMappedTree = new TypeMappedTree();
+        typeMappedTree.initByName(
+                "parameterization", parameterization,
+                "frequencies", frequencies,
+                "untypedTree", tree,
+                "typeLabel", "type",
+                "remapOnLog", true);
+
+        MarginalTypeProbLogger logger = new MarginalTypeProbLogger();
+        logger.initByName("typeMappedTree", typeMappedTree);
+        logger.update();
+
+        // Compare type probabilities at each node and at the midpoint of
+        // each non-root edge with the frequencies of these types in
+        // stochastically mapped trees
+
+        int nNodes = tree.getNodeCount();
+        int nMaps = 10000;
+        double[][] nodeTypeFreqs = new double[nNodes][2];
+        double[][] midpointTypeFreqs = new double[nNodes][2];
+        for (int i=0; i<nMaps; i++) {
+            typeMappedTree.remapForLog(i);
+
+            for (Node node : tree.getNodesAsArray()) {
+                Node typedNode = getTypedNode(typeMappedTree.getRoot(), node.getHeight());
+                nodeTypeFreqs[node.getNr()][(int)typedNode.getMetaData("type")] += 1.0/nMaps;
+
+                if (node.isRoot())
+                    continue;
+
+                double midpointHeight = 0.5*(node.getHeight() + node.getParent().getHeight());
+                while (typedNode.getParent().getHeight() < midpointHeight)
+                    typedNode = typedNode.getParent();
+
+                midpointTypeFreqs[node.getNr()][(int)typedNode.getMetaData("type")] += 1.0/nMaps;
+            }
+        }
+
+        for (Node node : tree.getNodesAsArray()) {
+            double[] nodeProbs = logger.getNodeTypeProbs(node.getNr());
+            assertEquals(1.0, nodeProbs[0] + nodeProbs[1], 1e-10);
+            assertEquals(nodeTypeFreqs[node.getNr()][0], nodeProbs[0], 0.025);
+
+            if (node.isRoot())
+                continue;
+
+            double[] midpointProbs = logger.getEdgeMidpointTypeProbs(node.getNr());
+            assertEquals(1.0, midpointProbs[0] + midpointProbs[1], 1e-10);
+            assertEquals(midpointTypeFreqs[node.getNr()][0], midpointProbs[0], 0.025);
+        }
+
+        // Leaf type probabilities are fixed by the sampled types
+
+        for (Node leaf : tree.getExternalNodes()) {
+            int leafType = (int)Math.round((double)leaf.getMetaData("type"));
+            assertEquals(1.0, logger.getNodeTypeProbs(leaf.getNr())[leafType], 1e-5);
+        }
+    }
+
+    @Test
+    public void testExpectedTypeTreeStats() {
+        Randomizer.setSeed(42);
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(
+                "processLength", new RealParameter("6.0"),
+                "typeSet", new TypeSet(2),
+                "R0", new SkylineVectorParameter(
+                        null,
+                        new RealParameter((4.0 / 3.0) + " " + 5.0)),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5 1.25")),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter((1.0 / 3.0) + " " + (1.0/2.0))),
+                "migrationRate", new SkylineMatrixParameter(
+                        new RealParameter("2.0"),
+                        new RealParameter("0.2 0.1 0.5 0.3")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        checkExpectedTypeTreeStats(parameterization);
+    }
+
+    /**
+     * With births among demes, type changes also occur at birth nodes, and
+     * the reward ODEs acquire flux terms from the cross-birth rates.
+     */
+    @Test
+    public void testExpectedTypeTreeStatsCrossBirth() {
+        Randomizer.setSeed(42);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "processLength", new RealParameter("6.0"),
+                "typeSet", new TypeSet(2),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0 2.5")),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0 0.75")),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5 0.5")),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.2 0.1")),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        new RealParameter("2.0"),
+                        new RealParameter("0.8 0.4 0.3 1.2")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        checkExpectedTypeTreeStats(parameterization);
+    }
+
+    /**
+     * Compare the expected time spent in each type and the expected numbers
+     * of type changes computed by ExpectedTypeTreeStatsLogger with averages
+     * over stochastically mapped trees, to within five standard errors.
+     *
+     * @param parameterization two-type model to use
+     */
+    private void checkExpectedTypeTreeStats(Parameterization parameterization) {
+        Tree tree = new TreeParser(
+                "((3[&type=0] : 1.5, 4[&type=1] : 0.5) : 1 , (1[&type=1] : 2, 2[&type=0] : 1) : 3);",
+                false);
+
+        RealParameter frequencies = new RealParameter("0.5 0.5");
+
+        TypeMappedTree typeMappedTree = new TypeMappedTree();
+        typeMappedTree.initByName(
+                "parameterization", parameterization,
+                "frequencies", frequencies,
+                "untypedTree", tree,
+                "typeLabel", "type",
+                "remapOnLog", true);
+
+        ExpectedTypeTreeStatsLogger expectedLogger = new ExpectedTypeTreeStatsLogger();
+        expectedLogger.initByName("typeMappedTree", typeMappedTree);
+        expectedLogger.update();
+
+        TypedTreeStatsLogger sampledLogger = new TypedTreeStatsLogger();
+        sampledLogger.initByName(
+                "typedTree", typeMappedTree,
+                "typeSet", parameterization.getTypeSet(),
+                "typeLabel", "type");
+
+        PrintStream nullStream = new PrintStream(OutputStream.nullOutputStream());
+
+        int nMaps = 10000;
+        double[] meanLengths = new double[2], meanSqLengths = new double[2];
+        double[][] meanCounts = new double[2][2], meanSqCounts = new double[2][2];
+        for (int i=0; i<nMaps; i++) {
+            sampledLogger.log(i, nullStream);
+
+            for (int type=0; type<2; type++) {
+                double length = sampledLogger.lengthVector[type];
+                meanLengths[type] += length/nMaps;
+                meanSqLengths[type] += length*length/nMaps;
+
+                for (int typeP=0; typeP<2; typeP++) {
+                    double count = sampledLogger.countMatrix[type][typeP];
+                    meanCounts[type][typeP] += count/nMaps;
+                    meanSqCounts[type][typeP] += count*count/nMaps;
+                }
+            }
+        }
+
+        double[] expectedLengths = expectedLogger.getExpectedLengths();
+        double[][] expectedCounts = expectedLogger.getExpectedCounts();
+
+        assertEquals(9.0, expectedLengths[0] + expectedLengths[1], 1e-5);
+
+        for (int type=0; type<2; type++) {
+            double lengthStdErr = Math.sqrt((meanSqLengths[type] - meanLengths[type]*meanLengths[type])/nMaps);
+            assertEquals(meanLengths[type], expectedLengths[type], Math.max(5*lengthStdErr, 1e-3));
+
+            for (int typeP=0; typeP<2; typeP++) {
+                if (type == typeP)
+                    continue;
+
+                double countStdErr = Math.sqrt((meanSqCounts[type][typeP]
+                        - meanCounts[type][typeP]*meanCounts[type][typeP])/nMaps);
+                assertEquals(meanCounts[type][typeP], expectedCounts[type][typeP],
+                        Math.max(5*countStdErr, 1e-3));
+            }
+        }
+    }
+
+    /**
+     * @param typedNode root of typed subtree
+     * @param height height of a node in the untyped tree
+     * @return node of the typed tree corresponding to the untyped tree node
+     * at the given height, or null if there is none in the subtree.
+     * Heights of untyped tree nodes are assumed to be distinct.
+     */
+    private Node getTypedNode(Node typedNode, double height) {
+        if (typedNode.getChildCount() != 1 && Math.abs(typedNode.getHeight() - height) < 1e-10)
+            return typedNode;
+
+        for (Node child : typedNode.getChildren()) {
+            Node result = getTypedNode(child, height);
+            if (result != null)
+                return result;
+        }
+
+        return null;
+    }
+
+    private int countTypeChangeNodes(Node node) {
+        int count = node.getChildCount() == 1 ? 1 : 0;
+        for (Node child : node.getChildren())
+            count += countTypeChangeNodes(child);
+
+        return count;
+    }
+
+    /**
+     * Reference implementation of the stripped Newick format written by
+     * TypedNodeTreeLogger before it used TypedTreeNewickWriter.
+     */
+    private String getStrippedNewick(Node node) {
+        StringBuilder resultBuilder = new StringBuilder();
+
+        Node topNode = node;
+
+        while (node.getChildren().size()==1)
+            node = node.getChild(0);
+
+        if (!node.isLeaf()) {
+            resultBuilder.append("(");
+            boolean isFirst = true;
+            for (Node child : node.getChildren()) {
+                if (isFirst)
+                    isFirst = false;
+                else
+                    resultBuilder.append(",");
+
+                resultBuilder.append(getStrippedNewick(child));
+            }
+            resultBuilder.append(")");
+        }
+
+        if (node.getID() != null)
+            resultBuilder.append(node.getNr()+Tree.taxaTranslationOffset);
+
+        resultBuilder.append("[&").append(node.metaDataString).append("]");
+
+        double edgeLength = 0.0;
+        if (topNode.getParent() != null)
+            edgeLength = topNode.getParent().getHeight()-node.getHeight();
+
+        resultBuilder.append(":").append(edgeLength);
+
+        return resultBuilder.toString();
+    }
+
+    @Test
+    public void testNewickWriterEncodings() throws IOException {
+        Randomizer.setSeed(1);
+
+        Tree tree = new TreeParser(
+                "((3[&type=0] : 1.5, 4[&type=1] : 0.5) : 1 , (1[&type=1] : 2, 2[&type=0] : 1) : 3);",
+                false);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "processLength", new RealParameter("6.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0"), 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("2.0"), 2));
+
+        TypeMappedTree typeMappedTree = new TypeMappedTree();
+        typeMappedTree.initByName(
+                "parameterization", parameterization,
+                "frequencies", new RealParameter("0.5 0.5"),
+                "untypedTree", tree,
+                "typeLabel", "type");
+
+        Node root = typeMappedTree.getRoot();
+        int nChanges = countTypeChangeNodes(root);
+
+        StringWriter nodes = new StringWriter();
+        typeMappedTree.getNewickWriter(TypedTreeNewickWriter.TypeChangeEncoding.NODES)
+                .writeNewick(nodes, root);
+        assertEquals(root.toSortedNewick(new int[1], true), nodes.toString());
+
+        StringWriter stripped = new StringWriter();
+        typeMappedTree.getNewickWriter(TypedTreeNewickWriter.TypeChangeEncoding.NONE)
+                .writeNewick(stripped, root);
+        assertEquals(getStrippedNewick(root), stripped.toString());
+        Tree strippedTree = new TreeParser(stripped + ";", false);
+        assertEquals(tree.getLeafNodeCount(), strippedTree.getLeafNodeCount());
+        assertEquals(0, countTypeChangeNodes(strippedTree.getRoot()));
+
+        StringWriter annotated = new StringWriter();
+        typeMappedTree.getNewickWriter(TypedTreeNewickWriter.TypeChangeEncoding.EDGE_ANNOTATIONS)
+                .writeNewick(annotated, root);
+        String annotatedString = annotated.toString();
+
+        int nTriples = annotatedString.split("\\{", -1).length - 1
+                - (annotatedString.split("_changes=", -1).length - 1);
+        assertEquals(nChanges, nTriples);
+    }
+
+    private TypeMappedTree getLogMappedTree(boolean async, Object... asyncArgs) {
+        Tree tree = new TreeParser(
+                "((3[&type=0] : 1.5, 4[&type=1] : 0.5) : 1 , (1[&type=1] : 2, 2[&type=0] : 1) : 3);",
+                false);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "processLength", new RealParameter("6.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0"), 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("2.0"), 2));
+
+        List<Object> args = new ArrayList<>(Arrays.asList(
+                "parameterization", parameterization,
+                "frequencies", new RealParameter("0.5 0.5"),
+                "untypedTree", tree,
+                "typeLabel", "type",
+                "remapOnLog", true,
+                "asyncRemapOnLog", async));
+        args.addAll(Arrays.asList(asyncArgs));
+
+        TypeMappedTree typeMappedTree = new TypeMappedTree();
+        typeMappedTree.initByName(args.toArray());
+
+        return typeMappedTree;
+    }
+
+    /**
+     * Log nSamples samples in the same way as BEAST's Logger, which
+     * terminates the output of each call to log() with a newline, then
+     * close the log.
+     *
+     * @param asyncFile file given as asyncFileName, or null in synchronous mode
+     * @return the tree entries written, in the order written
+     */
+    private List<String> getLoggedEntries(TypeMappedTree typeMappedTree, int nSamples,
+                                          Path asyncFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+
+        typeMappedTree.init(out);
+        for (int sample=0; sample<nSamples; sample++) {
+            typeMappedTree.log(sample, out);
+            out.println();
+        }
+        typeMappedTree.close(out);
+
+        List<String> lines = asyncFile != null
+                ? Files.readAllLines(asyncFile)
+                : Arrays.asList(bytes.toString().split("\n"));
+
+        if (asyncFile != null)
+            assertTrue(bytes.toString().trim().isEmpty());
+
+        return getEntries(lines);
+    }
+
+    /**
+     * @return tree entries among the given lines, checking that they are
+     * not separated by blank lines.
+     */
+    private List<String> getEntries(List<String> lines) {
+        List<String> entries = new ArrayList<>();
+        int firstEntryIdx = -1;
+        for (int i=0; i<lines.size(); i++) {
+            if (lines.get(i).startsWith("tree ")) {
+                if (firstEntryIdx < 0)
+                    firstEntryIdx = i;
+
+                assertEquals(firstEntryIdx + entries.size(), i);
+                entries.add(lines.get(i));
+            }
+        }
+
+        return entries;
+    }
+
+    @Test
+    public void testAsyncLogOrder() throws IOException {
+        Randomizer.setSeed(1);
+
+        Path asyncFile = Files.createTempFile("asyncTrees", ".trees");
+        TypeMappedTree typeMappedTree = getLogMappedTree(true,
+                "asyncThreads", 4, "asyncQueueSize", 3,
+                "asyncFileName", asyncFile.toString());
+
+        int nSamples = 50;
+        List<String> entries = getLoggedEntries(typeMappedTree, nSamples, asyncFile);
+
+        assertEquals(nSamples, entries.size());
+        for (int sample=0; sample<nSamples; sample++)
+            assertTrue(entries.get(sample).startsWith("tree STATE_" + sample + " = "));
+
+        Files.delete(asyncFile);
+    }
+
+    @Test
+    public void testAsyncFlushOnClose() throws InterruptedException, IOException {
+        Randomizer.setSeed(1);
+
+        Path asyncFile = Files.createTempFile("asyncTrees", ".trees");
+        TypeMappedTree typeMappedTree = getLogMappedTree(true,
+                "asyncThreads", 1, "asyncQueueSize", 10,
+                "asyncFileName", asyncFile.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        typeMappedTree.init(out);
+
+        // Occupy the only mapping thread so that no mapping can complete.
+        CountDownLatch latch = new CountDownLatch(1);
+        typeMappedTree.asyncMappingExecutor.submit(() -> {
+            latch.await();
+            return null;
+        });
+
+        int nSamples = 5;
+        for (int sample=0; sample<nSamples; sample++)
+            typeMappedTree.log(sample, out);
+
+        assertEquals(0, bytes.size());
+
+        latch.countDown();
+        typeMappedTree.close(out);
+
+        assertEquals(0, bytes.size());
+
+        List<String> entries = getEntries(Files.readAllLines(asyncFile));
+        assertEquals(nSamples, entries.size());
+        for (int sample=0; sample<nSamples; sample++)
+            assertTrue(entries.get(sample).startsWith("tree STATE_" + sample + " = "));
+
+        Files.delete(asyncFile);
+    }
+
+    @Test
+    public void testAsyncMatchesSync() throws IOException {
+        int nSamples = 20;
+
+        Randomizer.setSeed(7);
+        List<String> syncEntries = getLoggedEntries(getLogMappedTree(false), nSamples, null);
+
+        Randomizer.setSeed(7);
+        Path asyncFile = Files.createTempFile("asyncTrees", ".trees");
+        List<String> asyncEntries = getLoggedEntries(getLogMappedTree(true,
+                "asyncThreads", 2, "asyncQueueSize", 4,
+                "asyncFileName", asyncFile.toString()), nSamples, asyncFile);
+
+        assertEquals(nSamples, syncEntries.size());
+        assertEquals(syncEntries, asyncEntries);
+
+        Files.delete(asyncFile);
+    }
+
+    @Test
+    public void testAsyncRejectsLogTimeConsumers() {
+        TypeMappedTree typeMappedTree = getLogMappedTree(true,
+                "asyncFileName", "unused.trees");
+
+        TypedTreeStats stats = new TypedTreeStats();
+        try {
+            stats.initByName("typedTree", typeMappedTree,
+                    "typeSet", new TypeSet(2), "typeLabel", "type");
+            fail("Expected asynchronously remapped tree to be rejected.");
+        } catch (IllegalArgumentException ignored) { }
+
+        try {
+            typeMappedTree.remapForLog(0);
+            fail("Expected remapForLog() to fail in asynchronous mode.");
+        } catch (IllegalStateException ignored) { }
+    }
 }
@@ -0,0 +1,130 @@
+package bdmmprime.mapping;
+
+import bdmmprime.parameterization.TypeSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class TypedTreeStatsTest {
+
+    private Node getNode(String id, int nr, double height, int type) {
+        Node node = new Node(id);
+        node.setNr(nr);
+        node.setHeight(height);
+        node.setMetaData("type", type);
+
+        return node;
+    }
+
+    /**
+     * Typed tree with a root edge carrying one type change, and a type
+     * change on the edge above leaf t1:
+     *
+     * root edge: type 0 above height 3, type 1 below it
+     * node at height 2 (type 1) with children:
+     *   t1 (type 0, change from 1 at height 1)
+     *   t2 (type 1)
+     */
+    private Tree getTypedTree() {
+        Node t1 = getNode("t1", 0, 0.0, 0);
+        Node t2 = getNode("t2", 1, 0.0, 1);
+
+        Node change = getNode(null, 2, 1.0, 1);
+        change.addChild(t1);
+
+        Node coal = getNode(null, 3, 2.0, 1);
+        coal.addChild(change);
+        coal.addChild(t2);
+
+        Node root = getNode(null, 4, 3.0, 0);
+        root.addChild(coal);
+
+        return new Tree(root);
+    }
+
+    @Test
+    public void testStatistics() {
+        Tree tree = getTypedTree();
+        TypedTreeStats stats = new TypedTreeStats();
+        stats.initByName("typedTree", tree, "typeSet", new TypeSet(2), "typeLabel", "type");
+        stats.update(0);
+
+        double[] lengths = new double[2];
+        int[][] counts = new int[2][2];
+
+        stats.getLengths(false, lengths);
+        stats.getChangeCounts(false, counts);
+        assertEquals(1.0, lengths[0], 1e-10);
+        assertEquals(3.0, lengths[1], 1e-10);
+        assertEquals(1, counts[1][0]);
+        assertEquals(0, counts[0][1]);
+
+        stats.getLengths(true, lengths);
+        stats.getChangeCounts(true, counts);
+        assertEquals(1.0, lengths[0], 1e-10);
+        assertEquals(4.0, lengths[1], 1e-10);
+        assertEquals(1, counts[1][0]);
+        assertEquals(1, counts[0][1]);
+
+        assertEquals(1, stats.getTransitionCount(1, 0, false));
+        assertEquals(1.0, stats.getOldestTransitionAge(1, 0, false), 1e-10);
+        assertEquals(1.0, stats.getYoungestTransitionAge(1, 0, false), 1e-10);
+        assertEquals(0, stats.getTransitionCount(0, 1, false));
+        assertEquals(Double.NaN, stats.getOldestTransitionAge(0, 1, false), 0.0);
+        assertEquals(1, stats.getTransitionCount(0, 1, true));
+        assertEquals(3.0, stats.getOldestTransitionAge(0, 1, true), 1e-10);
+
+        assertEquals(1, stats.getLineageChangeCount(0, false));
+        assertEquals(2, stats.getLineageChangeCount(0, true));
+        assertEquals(1.0, stats.getLineageDwellTime(0, false), 1e-10);
+        assertEquals(0, stats.getLineageChangeCount(1, false));
+        assertEquals(2.0, stats.getLineageDwellTime(1, false), 1e-10);
+        assertEquals(3.0, stats.getLineageDwellTime(1, true), 1e-10);
+    }
+
+    @Test
+    public void testSharedLoggers() {
+        Tree tree = getTypedTree();
+        TypeSet typeSet = new TypeSet(2);
+
+        TypedTreeStats stats = new TypedTreeStats();
+        stats.initByName("typedTree", tree, "typeSet", typeSet, "typeLabel", "type");
+
+        TypedTreeStatsLogger statsLogger = new TypedTreeStatsLogger();
+        statsLogger.initByName("stats", stats);
+
+        TransitionTimeLogger transitionLogger = new TransitionTimeLogger();
+        transitionLogger.initByName("stats", stats,
+                "sourceType", "1", "destType", "0", "includeRootEdge", true);
+
+        assertSame(stats, statsLogger.stats);
+        assertSame(stats, transitionLogger.stats);
+
+        // Loggers without a stats input use private instances.
+        TypedTreeStatsLogger privateLogger = new TypedTreeStatsLogger();
+        privateLogger.initByName("typedTree", tree, "typeSet", typeSet, "typeLabel", "type");
+        assertNotSame(stats, privateLogger.stats);
+
+        PrintStream nullStream = new PrintStream(OutputStream.nullOutputStream());
+        statsLogger.log(0, nullStream);
+        transitionLogger.log(0, nullStream);
+
+        assertEquals(1.0, statsLogger.lengthVector[0], 1e-10);
+        assertEquals(3.0, statsLogger.lengthVector[1], 1e-10);
+        assertEquals(1, statsLogger.countMatrix[1][0]);
+
+        // The root edge holds no 1->0 transition, so the age comes from
+        // the transition below the root.
+        assertEquals(1.0, stats.getOldestTransitionAge(1, 0, true), 1e-10);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        transitionLogger.log(0, new PrintStream(bytes));
+        assertEquals("1.0\t1.0\t1\t", bytes.toString());
+    }
+}
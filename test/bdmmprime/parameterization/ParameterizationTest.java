@@ -1,5 +1,8 @@
 package bdmmprime.parameterization;
 
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
 import beast.base.inference.parameter.RealParameter;
 import org.junit.Assert;
 import org.junit.Test;
@@ -107,4 +110,70 @@ public class ParameterizationTest {
         Assert.assertEquals(1, parameterization.getIntervalIndex(1.9));
         Assert.assertEquals(1, parameterization.getIntervalIndex(2.0));
     }
+
+    @Test
+    public void testNodeTimeTable() {
+        RealParameter originParam = new RealParameter("2.0");
+
+        Parameterization parameterization = new CanonicalParameterization();
+		parameterization.initByName(
+		        "typeSet", new TypeSet(2),
+                "processLength", originParam,
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("4.0"), 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("3.0"), 2),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("0.1 0.2"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        Tree tree = new TreeParser("(A:0.5,B:1.5):0.0;", false);
+        Node nodeA = getLeafWithID(tree, "A");
+        Node nodeB = getLeafWithID(tree, "B");
+
+        NodeTimeTable nodeTimes = new NodeTimeTable(parameterization, tree, new RealParameter("0.0"));
+        nodeTimes.update();
+
+        Assert.assertEquals(0.5, nodeTimes.getNodeTime(tree.getRoot()), 1e-10);
+        Assert.assertEquals(1.0, nodeTimes.getNodeTime(nodeA), 1e-10);
+        Assert.assertEquals(2.0, nodeTimes.getNodeTime(nodeB), 1e-10);
+
+        Assert.assertEquals(0, nodeTimes.getNodeInterval(tree.getRoot()));
+        Assert.assertEquals(0, nodeTimes.getNodeInterval(nodeA));
+        Assert.assertEquals(1, nodeTimes.getNodeInterval(nodeB));
+
+        Assert.assertEquals(0, nodeTimes.getEdgeTopInterval(tree.getRoot()));
+        Assert.assertEquals(0, nodeTimes.getEdgeTopInterval(nodeA));
+        Assert.assertEquals(0, nodeTimes.getEdgeTopInterval(nodeB));
+
+        // Moving a node only affects its own entries
+
+        nodeA.setHeight(0.5);
+        nodeTimes.update();
+
+        Assert.assertEquals(1.5, nodeTimes.getNodeTime(nodeA), 1e-10);
+        Assert.assertEquals(1, nodeTimes.getNodeInterval(nodeA));
+        Assert.assertEquals(0, nodeTimes.getEdgeTopInterval(nodeA));
+        Assert.assertEquals(0, nodeTimes.getNodeInterval(tree.getRoot()));
+    }
+
+    private Node getLeafWithID(Tree tree, String id) {
+        for (Node leaf : tree.getExternalNodes()) {
+            if (leaf.getID().equals(id))
+                return leaf;
+        }
+
+        throw new IllegalArgumentException("No leaf with ID " + id);
+    }
 }
@@ -0,0 +1,177 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.trajectories.simulation.SpilledTrajectory;
+import bdmmprime.trajectories.trajevents.EventBuffer;
+import bdmmprime.trajectories.trajevents.SamplingEvent;
+import bdmmprime.util.RandomStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class BinaryTrajectoryLogTest {
+
+    private Trajectory getSmallTrajectory() {
+        Trajectory traj = new Trajectory(new double[] {1.0, 0.0});
+        traj.addEvent(EventBuffer.BIRTH, 0.1, 0, 0, 3);
+        traj.addEvent(EventBuffer.MIGRATION, 0.2, 0, 1, 2);
+        traj.addEvent(EventBuffer.CROSS_BIRTH, 0.2, 1, 0, 1);
+        traj.addEvent(new SamplingEvent(0.3, 1, 1, 2));
+        traj.addEvent(EventBuffer.DEATH, 0.4, 0, 0, 1);
+
+        return traj;
+    }
+
+    /**
+     * @return trajectory spanning several compressed blocks
+     */
+    private Trajectory getLargeTrajectory() {
+        RandomStream random = RandomStream.fromSeed(1);
+
+        Trajectory traj = new Trajectory(new double[] {1000.0, 1000.0});
+        double t = 0.0;
+        for (int i=0; i<3*BinaryTrajectoryWriter.BLOCK_SIZE; i++) {
+            t += random.nextExponential(1000.0);
+            int type = random.nextInt(2);
+            if (random.nextDouble() < 0.5)
+                traj.addEvent(EventBuffer.BIRTH, t, type, 0, 1);
+            else
+                traj.addEvent(EventBuffer.MIGRATION, t, type, 1-type, 1);
+        }
+        traj.addEvent(new SamplingEvent(t + 0.1, 0, 1, 0));
+
+        return traj;
+    }
+
+    private BinaryTrajectoryReader getReader(ByteArrayOutputStream bytes) throws IOException {
+        return new BinaryTrajectoryReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private String getText(BinaryTrajectoryReader reader) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(text);
+        reader.writeText(ps);
+        ps.flush();
+
+        return text.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Trajectory small = getSmallTrajectory();
+        Trajectory large = getLargeTrajectory();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(bytes, 2, "traj")) {
+            writer.write(0, small);
+            writer.write(1000, null);
+            writer.write(2000, large);
+            writer.write(3000, small);
+        }
+
+        try (BinaryTrajectoryReader reader = getReader(bytes)) {
+            assertEquals(2, reader.getNTypes());
+            assertEquals("traj", reader.getColumnName());
+
+            assertTrue(reader.nextTrajectory());
+            assertEquals(0, reader.getSample());
+            assertEquals(small.toString(), getText(reader));
+
+            assertTrue(reader.nextTrajectory());
+            assertEquals(1000, reader.getSample());
+            assertTrue(reader.isMissing());
+            assertEquals("NA", getText(reader));
+
+            assertTrue(reader.nextTrajectory());
+            assertEquals(2000, reader.getSample());
+            assertEquals(large.toString(), getText(reader));
+
+            // Skip remaining events of partly-read trajectory
+            assertTrue(reader.nextTrajectory());
+            assertTrue(reader.nextEvent());
+            assertEquals(EventBuffer.BIRTH, reader.getKind());
+            assertEquals(4.0, reader.getState()[0], 0.0);
+
+            assertFalse(reader.nextTrajectory());
+        }
+    }
+
+    @Test
+    public void testEventAccess() throws IOException {
+        Trajectory traj = getSmallTrajectory();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(bytes, 2, "traj")) {
+            writer.write(0, traj);
+        }
+
+        try (BinaryTrajectoryReader reader = getReader(bytes)) {
+            assertTrue(reader.nextTrajectory());
+
+            Trajectory.StateIterator it = traj.getStateIterator();
+            assertArrayEquals(it.getState(), reader.getState(), 0.0);
+
+            while (it.hasNext()) {
+                it.next();
+                assertTrue(reader.nextEvent());
+
+                assertEquals(it.getTime(), reader.getTime(), 0.0);
+                assertEquals(it.getKind(), reader.getKind());
+                assertEquals(it.getSrcType(), reader.getSrcType());
+                assertEquals(it.getCount(), reader.getCount());
+                assertEquals(it.getSecondaryCount(), reader.getSecondaryCount());
+                assertEquals(it.getEventCode(), reader.getEventCode());
+                assertArrayEquals(it.getState(), reader.getState(), 0.0);
+            }
+
+            assertFalse(reader.nextEvent());
+        }
+    }
+
+    @Test
+    public void testGridSummary() throws IOException {
+        Trajectory traj = getSmallTrajectory();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(bytes, 2, "traj")) {
+            writer.write(5, traj);
+        }
+
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        try (BinaryTrajectoryReader reader = getReader(bytes);
+             PrintStream ps = new PrintStream(summary)) {
+            assertTrue(reader.nextTrajectory());
+            reader.writeGridSummary(ps, new double[] {0.0, 0.2, 0.35, 1.0});
+        }
+
+        String[] lines = summary.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("5\t0.0\t1.0\t0.0", lines[0]);
+        assertEquals("5\t0.2\t3.0\t2.0", lines[1]);
+        assertEquals("5\t0.35\t3.0\t1.0", lines[2]);
+        assertEquals("5\t1.0\t2.0\t1.0", lines[3]);
+    }
+
+    @Test
+    public void testSpilledTrajectory() throws IOException {
+        Trajectory traj = getSmallTrajectory();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SpilledTrajectory spilled = new SpilledTrajectory(new double[] {1.0, 0.0}, null);
+             BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(bytes, 2, "traj")) {
+            for (int i=0; i<traj.getEventCount(); i++)
+                spilled.addEvent(traj.getEvents().get(i));
+
+            writer.write(0, spilled);
+        }
+
+        try (BinaryTrajectoryReader reader = getReader(bytes)) {
+            assertTrue(reader.nextTrajectory());
+            assertEquals(traj.toString(), getText(reader));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.util.RandomStream;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParticleResamplerTest {
+
+    private static final double[] weights = {0.05, 0.0, 0.4, 0.15, 0.3, 0.1};
+
+    @Test
+    public void testExpectedCounts() {
+        Randomizer.setSeed(1);
+
+        int N = weights.length;
+        int nReps = 100000;
+
+        for (ParticleResampler.Scheme scheme : ParticleResampler.Scheme.values()) {
+            ParticleResampler resampler = new ParticleResampler(scheme, N);
+            int[] ancestors = new int[N];
+            double[] meanCounts = new double[N];
+
+            for (int rep=0; rep<nReps; rep++) {
+                resampler.resample(weights, ancestors, RandomStream.GLOBAL);
+
+                for (int k=0; k<N; k++) {
+                    if (k > 0 && scheme != ParticleResampler.Scheme.RESIDUAL)
+                        assertTrue(ancestors[k] >= ancestors[k-1]);
+
+                    meanCounts[ancestors[k]] += 1.0/nReps;
+                }
+            }
+
+            for (int i=0; i<N; i++)
+                assertEquals(scheme + " particle " + i, N*weights[i], meanCounts[i], 0.02);
+        }
+    }
+
+    @Test
+    public void testSystematicCountBounds() {
+        Randomizer.setSeed(1);
+
+        int N = weights.length;
+        ParticleResampler resampler = new ParticleResampler(ParticleResampler.Scheme.SYSTEMATIC, N);
+        int[] ancestors = new int[N];
+
+        for (int rep=0; rep<1000; rep++) {
+            resampler.resample(weights, ancestors, RandomStream.GLOBAL);
+
+            int[] counts = new int[N];
+            for (int k=0; k<N; k++)
+                counts[ancestors[k]] += 1;
+
+            // Systematic resampling only ever rounds N*w_i up or down.
+            for (int i=0; i<N; i++) {
+                assertTrue(counts[i] >= Math.floor(N*weights[i] - 1e-10));
+                assertTrue(counts[i] <= Math.ceil(N*weights[i] + 1e-10));
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import beast.base.evolution.tree.TreeParser;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TrajectorySamplerTest {
 
@@ -68,6 +69,156 @@ public class TrajectorySamplerTest {
         assertEquals(logProbEst, logProbTrue, 1e-1);
     }
 
+    @Test
+    public void untypedSimpleAdaptiveLikelihoodTest() {
+        Randomizer.setSeed(53);
+//        Randomizer.setSeed(42);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(1),
+                "processLength", new RealParameter("5.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0")),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")));
+
+        RealParameter finalSampleOffset = new RealParameter("0.0");
+
+        SimulatedTree simulatedTree = new SimulatedTree();
+        simulatedTree.initByName(
+                "parameterization", parameterization,
+                "finalSampleOffset", finalSampleOffset,
+                "frequencies", new RealParameter("1.0"),
+                "minSamples", 2);
+
+//        System.out.println(simulatedTree);
+        System.out.println("Final sample offset: " + finalSampleOffset.getValue());
+
+        SampledTrajectory sampledTrajectory = new SampledTrajectory();
+        sampledTrajectory.initByName("typeMappedTree", simulatedTree,
+                "parameterization", parameterization,
+                "nParticles", 100,
+                "adaptiveParticleCount", true,
+                "minParticles", 100,
+                "maxParticles", 50000,
+                "targetLogProbVariance", 0.002);
+
+        // Allow the particle count to adapt over a few runs
+        double logProbEst = Double.NaN;
+        for (int i=0; i<5; i++) {
+            logProbEst = sampledTrajectory.getLogTreeProbEstimate();
+            System.out.println("Log probability estimate: " + logProbEst
+                    + " (" + sampledTrajectory.getParticleCount() + " particles, variance estimate "
+                    + sampledTrajectory.getLogTreeProbVariance() + ")");
+
+            assertTrue(sampledTrajectory.getParticleCount() >= 100);
+            assertTrue(sampledTrajectory.getParticleCount() <= 50000);
+        }
+
+        BirthDeathMigrationDistribution bdmm = new BirthDeathMigrationDistribution();
+        bdmm.initByName("parameterization", parameterization,
+                "frequencies", new RealParameter("1.0"),
+                "typeLabel", "type",
+                "conditionOnSurvival", false,
+                "tree", simulatedTree);
+
+        double logProbTrue = bdmm.calculateLogP();
+
+        System.out.println("Log probability true: " + logProbTrue);
+
+        assertEquals(logProbEst, logProbTrue, 1e-1);
+    }
+
+    @Test
+    public void untypedSimpleCorrelatedLikelihoodTest() {
+        Randomizer.setSeed(53);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(1),
+                "processLength", new RealParameter("5.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0")),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")));
+
+        RealParameter finalSampleOffset = new RealParameter("0.0");
+
+        SimulatedTree simulatedTree = new SimulatedTree();
+        simulatedTree.initByName(
+                "parameterization", parameterization,
+                "finalSampleOffset", finalSampleOffset,
+                "frequencies", new RealParameter("1.0"),
+                "minSamples", 2);
+
+        SampledTrajectory sampledTrajectory = new SampledTrajectory();
+        sampledTrajectory.initByName("typeMappedTree", simulatedTree,
+                "parameterization", parameterization,
+                "nParticles", 10000);
+
+        // Identical auxiliary random numbers must give identical estimates
+        long[] seeds = new long[10000];
+        for (int p=0; p<seeds.length; p++)
+            seeds[p] = Randomizer.nextLong();
+        double[] uniforms = new double[2*simulatedTree.getNodeCount() + 2];
+        for (int k=0; k<uniforms.length; k++)
+            uniforms[k] = Randomizer.nextDouble();
+
+        sampledTrajectory.setAuxiliaryRandomNumbers(seeds, uniforms);
+        double logProbEstA = sampledTrajectory.getLogTreeProbEstimate();
+        double logProbEstB = sampledTrajectory.getLogTreeProbEstimate();
+        sampledTrajectory.setAuxiliaryRandomNumbers(null, null);
+
+        assertEquals(logProbEstA, logProbEstB, 0.0);
+
+        ParticleFilterLikelihood likelihood = new ParticleFilterLikelihood();
+        likelihood.initByName("sampledTrajectory", sampledTrajectory,
+                "correlation", 0.99);
+
+        double logProbEst = likelihood.calculateLogP();
+        System.out.println("Log probability estimate: " + logProbEst);
+
+        // Every resampling step is driven by a correlated auxiliary variable
+        assertTrue(likelihood.resamplingNormals.length
+                >= sampledTrajectory.getObservedEventList().size());
+
+        BirthDeathMigrationDistribution bdmm = new BirthDeathMigrationDistribution();
+        bdmm.initByName("parameterization", parameterization,
+                "frequencies", new RealParameter("1.0"),
+                "typeLabel", "type",
+                "conditionOnSurvival", false,
+                "tree", simulatedTree);
+
+        double logProbTrue = bdmm.calculateLogP();
+
+        System.out.println("Log probability true: " + logProbTrue);
+
+        assertEquals(logProbEst, logProbTrue, 1e-1);
+
+        // Restoring after a rejected proposal recovers the previous estimate
+        likelihood.store();
+        likelihood.calculateLogP();
+        likelihood.restore();
+        assertEquals(logProbEst, likelihood.getCurrentLogP(), 0.0);
+    }
+
     @Test
     public void untypedSimpleTLLikelihoodTest() {
 //        Randomizer.setSeed(53);
@@ -127,6 +278,148 @@ public class TrajectorySamplerTest {
         assertEquals(logProbTrue, logProbEst, 1e-1);
     }
 
+    @Test
+    public void untypedSimpleHybridLikelihoodTest() {
+//        Randomizer.setSeed(53);
+        Randomizer.setSeed(42);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(1),
+                "processLength", new RealParameter("5.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0")),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")));
+
+        RealParameter finalSampleOffset = new RealParameter("0.0");
+
+        SimulatedTree simulatedTree = new SimulatedTree();
+        simulatedTree.initByName(
+                "parameterization", parameterization,
+                "finalSampleOffset", finalSampleOffset,
+                "frequencies", new RealParameter("1.0"),
+                "minSamples", 2);
+
+//        System.out.println(simulatedTree);
+        System.out.println("Final sample offset: " + finalSampleOffset.getValue());
+
+        SampledTrajectory sampledTrajectory = new SampledTrajectory();
+        sampledTrajectory.initByName("typeMappedTree", simulatedTree,
+                "parameterization", parameterization,
+                "nParticles", 10000,
+                "hybridCriticalCount", 10,
+                "minLeapCount", 100,
+                "epsilon", 0.01);
+
+        double logProbEst = sampledTrajectory.getLogTreeProbEstimate();
+        System.out.println("Log probability estimate: " + logProbEst);
+
+        BirthDeathMigrationDistribution bdmm = new BirthDeathMigrationDistribution();
+        bdmm.initByName("parameterization", parameterization,
+                "frequencies", new RealParameter("1.0"),
+                "typeLabel", "type",
+                "conditionOnSurvival", false,
+                "tree", simulatedTree);
+
+        double logProbTrue = bdmm.calculateLogP();
+
+        System.out.println("Log probability true: " + logProbTrue);
+
+        assertEquals(logProbTrue, logProbEst, 1e-1);
+    }
+
+    /**
+     * Average tree probability estimates over independent particle filter
+     * runs.  Averaging is done on the probability scale, as it is the
+     * probability estimate (rather than its log) which is unbiased.
+     */
+    private double getLogMeanTreeProbEstimate(SimulatedTree tree, Parameterization parameterization,
+                                              int nReps, Object... extraArgs) {
+        Object[] args = new Object[6 + extraArgs.length];
+        args[0] = "typeMappedTree";
+        args[1] = tree;
+        args[2] = "parameterization";
+        args[3] = parameterization;
+        args[4] = "nParticles";
+        args[5] = 1000;
+        System.arraycopy(extraArgs, 0, args, 6, extraArgs.length);
+
+        double[] logProbEsts = new double[nReps];
+        double maxLogProbEst = Double.NEGATIVE_INFINITY;
+        for (int rep=0; rep<nReps; rep++) {
+            SampledTrajectory sampledTrajectory = new SampledTrajectory();
+            sampledTrajectory.initByName(args);
+
+            // Runs in which all particles die give NaN: a zero estimate.
+            logProbEsts[rep] = sampledTrajectory.getLogTreeProbEstimate();
+            if (Double.isNaN(logProbEsts[rep]))
+                logProbEsts[rep] = Double.NEGATIVE_INFINITY;
+
+            maxLogProbEst = Math.max(maxLogProbEst, logProbEsts[rep]);
+        }
+
+        double sum = 0.0;
+        for (double logProbEst : logProbEsts)
+            sum += Math.exp(logProbEst - maxLogProbEst);
+
+        return maxLogProbEst + Math.log(sum/nReps);
+    }
+
+    @Test
+    public void untypedHybridInvalidLeapTest() {
+        Randomizer.setSeed(42);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(1),
+                "processLength", new RealParameter("5.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0")),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5")),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")));
+
+        SimulatedTree simulatedTree = new SimulatedTree();
+        simulatedTree.initByName(
+                "parameterization", parameterization,
+                "finalSampleOffset", new RealParameter("0.0"),
+                "frequencies", new RealParameter("1.0"),
+                "minSamples", 5);
+
+        // A small critical count and long leaps mean that leaps frequently
+        // take type counts below the number of observed lineages.  These
+        // leaps are halved and retried, and weights must be corrected for
+        // the conditioning on validity so that the hybrid estimate agrees
+        // with the exact one.
+
+        double logProbExact = getLogMeanTreeProbEstimate(simulatedTree, parameterization, 20);
+        System.out.println("Log probability estimate (exact): " + logProbExact);
+
+        double logProbHybrid = getLogMeanTreeProbEstimate(simulatedTree, parameterization, 20,
+                "hybridCriticalCount", 1,
+                "minLeapCount", 1,
+                "epsilon", 0.5);
+        System.out.println("Log probability estimate (hybrid): " + logProbHybrid);
+
+        assertEquals(logProbExact, logProbHybrid, 2e-1);
+    }
+
     @Test
     public void untypedSimpleSALikelihoodTest() {
 //        Randomizer.setSeed(53);
@@ -185,6 +478,65 @@ public class TrajectorySamplerTest {
         assertEquals(logProbEst, logProbTrue, 1e-1);
     }
 
+    @Test
+    public void untypedSimpleSAGuidedLikelihoodTest() {
+//        Randomizer.setSeed(53);
+        Randomizer.setSeed(42);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(1),
+                "processLength", new RealParameter("5.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0")),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5")));
+
+        RealParameter finalSampleOffset = new RealParameter("0.0");
+
+        SimulatedTree simulatedTree = new SimulatedTree();
+        simulatedTree.initByName(
+                "parameterization", parameterization,
+                "finalSampleOffset", finalSampleOffset,
+                "frequencies", new RealParameter("1.0"),
+                "minSamples", 2);
+
+//        System.out.println(simulatedTree);
+        System.out.println("Final sample offset: " + finalSampleOffset.getValue());
+        System.out.println("Sampled ancestor count: " + simulatedTree.getDirectAncestorNodeCount());
+
+        SampledTrajectory sampledTrajectory = new SampledTrajectory();
+        sampledTrajectory.initByName("typeMappedTree", simulatedTree,
+                "parameterization", parameterization,
+                "nParticles", 2000,
+                "guidedProposals", true);
+
+        double logProbEst = sampledTrajectory.getLogTreeProbEstimate();
+        System.out.println("Log probability estimate: " + logProbEst);
+
+        BirthDeathMigrationDistribution bdmm = new BirthDeathMigrationDistribution();
+        bdmm.initByName("parameterization", parameterization,
+                "frequencies", new RealParameter("1.0"),
+                "typeLabel", "type",
+                "conditionOnSurvival", false,
+                "tree", simulatedTree);
+
+        double logProbTrue = bdmm.calculateLogP();
+
+        System.out.println("Log probability true: " + logProbTrue);
+
+
+        assertEquals(logProbEst, logProbTrue, 1e-1);
+    }
+
     @Test
     public void untypedSimpleSATLLikelihoodTest() {
 //        Randomizer.setSeed(53);
@@ -603,4 +955,101 @@ public class TrajectorySamplerTest {
         assertEquals(logProbTrue, logProbEst, 1e-1);
     }
 
+    @Test
+    public void parallelPropagationTest() {
+
+        RealParameter frequencies = new RealParameter("0.5 0.5");
+        int nTypes = 2;
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(nTypes),
+                "processLength", new RealParameter("1.2"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0"), nTypes),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), nTypes),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), nTypes),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), nTypes),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("1.0"), nTypes));
+
+        TreeParser typedTree = new TreeParser("((0[&type=\"0\"]:0.75)2[&type=\"1\"]:0.25,1[&type=\"1\"]:0.5)3[&type=\"1\"]:0.2;",
+                false, true, true, 0);
+
+        // Estimates must not depend on the number of threads used
+
+        double[] logProbEsts = new double[2];
+        int[] threadCounts = {1, 4};
+        for (int i=0; i<threadCounts.length; i++) {
+            Randomizer.setSeed(42);
+
+            SampledTrajectory sampledTrajectory = new SampledTrajectory();
+            sampledTrajectory.initByName("typeMappedTree", typedTree,
+                    "parameterization", parameterization,
+                    "frequencies", frequencies,
+                    "nParticles", 10000,
+                    "parallelPropagation", true,
+                    "nThreads", threadCounts[i]);
+
+            logProbEsts[i] = sampledTrajectory.getLogTreeProbEstimate();
+            System.out.println("Log probability estimate (" + threadCounts[i] + " threads): " + logProbEsts[i]);
+        }
+
+        assertEquals(logProbEsts[0], logProbEsts[1], 0.0);
+
+        double logProbTrue = -4.365784; // From R script validation/trajectories/multi_type/mttree_prob.R
+        assertEquals(logProbTrue, logProbEsts[0], 1e-1);
+    }
+
+    @Test
+    public void incrementalPropensitiesTest() {
+        Randomizer.setSeed(42);
+
+        RealParameter frequencies = new RealParameter("0.5 0.5");
+        int nTypes = 2;
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(nTypes),
+                "processLength", new RealParameter("1.2"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0"), nTypes),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), nTypes),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), nTypes),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), nTypes),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("1.0"), nTypes));
+
+        TreeParser typedTree = new TreeParser("((0[&type=\"0\"]:0.75)2[&type=\"1\"]:0.25,1[&type=\"1\"]:0.5)3[&type=\"1\"]:0.2;",
+                false, true, true, 0);
+
+        SampledTrajectory sampledTrajectory = new SampledTrajectory();
+        sampledTrajectory.initByName("typeMappedTree", typedTree,
+                "parameterization", parameterization,
+                "frequencies", frequencies,
+                "nParticles", 10000,
+                "incrementalPropensities", true);
+
+        double logProbEst = sampledTrajectory.getLogTreeProbEstimate();
+        System.out.println("Log probability estimate: " + logProbEst);
+
+        double logProbTrue = -4.365784; // From R script validation/trajectories/multi_type/mttree_prob.R
+        assertEquals(logProbTrue, logProbEst, 1e-1);
+    }
 }
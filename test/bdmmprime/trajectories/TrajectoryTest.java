@@ -0,0 +1,86 @@
+package bdmmprime.trajectories;
+
+import bdmmprime.trajectories.trajevents.BirthEvent;
+import bdmmprime.trajectories.trajevents.DeathEvent;
+import bdmmprime.trajectories.trajevents.EventBuffer;
+import bdmmprime.trajectories.trajevents.MigrationEvent;
+import bdmmprime.trajectories.trajevents.SamplingEvent;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrajectoryTest {
+
+    @Test
+    public void testSharedAncestry() {
+        Trajectory parent = new Trajectory(new double[] {1.0});
+        parent.addEvent(new BirthEvent(0.1, 0));
+        parent.addEvent(new BirthEvent(0.2, 0));
+
+        Trajectory child1 = new Trajectory(new double[] {1.0});
+        Trajectory child2 = new Trajectory(new double[] {1.0});
+        child1.assignFrom(parent);
+        child2.assignFrom(parent);
+
+        child1.addEvent(new DeathEvent(0.3, 0));
+        child2.addEvent(new BirthEvent(0.4, 0));
+        parent.addEvent(new BirthEvent(0.5, 0));
+
+        assertEquals(3, child1.getEventCount());
+        assertEquals(3, child2.getEventCount());
+        assertEquals(3, parent.getEventCount());
+
+        assertEquals(2.0, child1.currentState[0], 0.0);
+        assertEquals(4.0, child2.currentState[0], 0.0);
+        assertEquals(4.0, parent.currentState[0], 0.0);
+
+        assertEquals(0.1, child1.getEvents().get(0).time, 0.0);
+        assertEquals(0.2, child1.getEvents().get(1).time, 0.0);
+        assertEquals(0.3, child1.getEvents().get(2).time, 0.0);
+        assertEquals(0.4, child2.getEvents().get(2).time, 0.0);
+        assertEquals(0.5, parent.getEvents().get(2).time, 0.0);
+
+        // Reassignment discards previous events
+        child1.assignFrom(child2);
+        child1.addEvent(new DeathEvent(0.6, 0));
+
+        assertEquals(4, child1.getEventCount());
+        assertEquals(3, child2.getEventCount());
+        assertEquals(0.4, child1.getEvents().get(2).time, 0.0);
+        assertEquals(0.6, child1.getEvents().get(3).time, 0.0);
+
+        assertEquals(1.0, child1.getStateList().get(0)[0], 0.0);
+        assertEquals(3.0, child1.getStateList().get(4)[0], 0.0);
+    }
+
+    @Test
+    public void testPrimitiveEvents() {
+        Trajectory traj = new Trajectory(new double[] {1.0, 0.0});
+        traj.addEvent(EventBuffer.BIRTH, 0.1, 0, 0, 3);
+        traj.addEvent(EventBuffer.MIGRATION, 0.2, 0, 1, 2);
+        traj.addEvent(new SamplingEvent(0.3, 1, 1, 0));
+        traj.addEvent(EventBuffer.DEATH, 0.4, 0, 0, 1);
+
+        assertEquals(1.0, traj.currentState[0], 0.0);
+        assertEquals(1.0, traj.currentState[1], 0.0);
+
+        assertTrue(traj.getEvents().get(1) instanceof MigrationEvent);
+        assertEquals(2, traj.getEvents().get(1).multiplicity);
+        assertEquals(1, traj.getSampleCount());
+        assertEquals(0.3, traj.getFirstSampleTime(), 0.0);
+        assertEquals(0.3, traj.getFinalSampleTime(), 0.0);
+
+        List<double[]> states = traj.getStateList();
+        Trajectory.StateIterator it = traj.getStateIterator();
+        assertArrayEquals(states.get(0), it.getState(), 0.0);
+        for (int i=1; i<states.size(); i++) {
+            assertTrue(it.hasNext());
+            it.next();
+            assertEquals(traj.getEventTimes().get(i-1), it.getTime(), 0.0);
+            assertArrayEquals(states.get(i), it.getState(), 0.0);
+        }
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,61 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.util.RandomStream;
+import beast.base.evolution.tree.Node;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LineagePoolTest {
+
+    @Test
+    public void testAddRemove() {
+        LineagePool pool = new LineagePool(2);
+
+        Set<Node> added = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            Node node = new Node(String.valueOf(i));
+            pool.add(i % 2, node);
+            added.add(node);
+        }
+
+        assertEquals(50, pool.size(0));
+        assertEquals(50, pool.size(1));
+        assertEquals(100, pool.getTotalSize());
+
+        RandomStream random = RandomStream.fromSeed(1);
+        Set<Node> removed = new HashSet<>();
+        for (int i=0; i<50; i++) {
+            Node node = pool.removeRandom(0, random);
+            assertTrue(added.contains(node));
+            assertTrue(removed.add(node));
+        }
+
+        assertTrue(pool.isEmpty(0));
+        assertEquals(50, pool.size(1));
+    }
+
+    @Test
+    public void testRemoveUniform() {
+        int nLineages = 5, nReps = 50000;
+        int[] counts = new int[nLineages];
+
+        RandomStream random = RandomStream.fromSeed(1);
+        for (int rep=0; rep<nReps; rep++) {
+            LineagePool pool = new LineagePool(1);
+            for (int i=0; i<nLineages; i++)
+                pool.add(0, new Node(String.valueOf(i)));
+
+            // Remove a lineage so that the second pick sees a reordered pool
+            pool.removeRandom(0, random);
+            counts[Integer.parseInt(pool.removeRandom(0, random).getID())] += 1;
+        }
+
+        for (int i=0; i<nLineages; i++)
+            assertEquals(1.0/nLineages, counts[i]/(double)nReps, 0.01);
+    }
+}
@@ -0,0 +1,108 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.parameterization.*;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplicateSimulatorTest {
+
+    private ReplicateSimulator getSimulator(int minSamples) {
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "processLength", new RealParameter("4.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0 1.5"), 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.2"), 2));
+
+        return new ReplicateSimulator(parameterization, new double[] {0.5, 0.5},
+                minSamples, "type", false);
+    }
+
+    @Test
+    public void testReproducibleAcrossThreadCounts() throws IOException {
+        ReplicateSimulator simulator = getSimulator(2);
+
+        List<String> serialOutput = new ArrayList<>();
+        ReplicateSimulator.AcceptanceStatistics serialStats = simulator.run(200, 42, 1,
+                r -> {
+                    assertEquals(serialOutput.size(), r.index);
+                    serialOutput.add(r.trajectory + " " + r.tree.getRoot().toSortedNewick(new int[1], true));
+                });
+
+        List<String> parallelOutput = new ArrayList<>();
+        ReplicateSimulator.AcceptanceStatistics parallelStats = simulator.run(200, 42, 4,
+                r -> {
+                    assertEquals(parallelOutput.size(), r.index);
+                    parallelOutput.add(r.trajectory + " " + r.tree.getRoot().toSortedNewick(new int[1], true));
+                });
+
+        assertEquals(serialOutput, parallelOutput);
+        assertEquals(serialStats.attemptCount, parallelStats.attemptCount);
+    }
+
+    @Test
+    public void testAcceptanceStatistics() throws IOException {
+        ReplicateSimulator simulator = getSimulator(5);
+
+        long[] attemptSum = new long[1];
+        ReplicateSimulator.AcceptanceStatistics stats = simulator.run(100, 1, 2,
+                r -> {
+                    assertTrue(r.trajectory.getSampleCount() >= 5);
+                    assertTrue(r.finalSampleOffset >= 0.0);
+                    attemptSum[0] += r.attemptCount;
+                });
+
+        assertEquals(100, stats.replicateCount);
+        assertEquals(attemptSum[0], stats.attemptCount);
+        assertTrue(stats.getAcceptanceRate() > 0.0 && stats.getAcceptanceRate() <= 1.0);
+    }
+
+    @Test
+    public void testSpillFilesRemovedOnAbort() throws IOException {
+        Path spillDirectory = Files.createTempDirectory("spillTest");
+
+        ReplicateSimulator simulator = getSimulator(2);
+        simulator.setSpillToDisk(true, spillDirectory);
+
+        int[] nAccepted = new int[1];
+        try {
+            simulator.run(200, 3, 4, r -> {
+                if (++nAccepted[0] == 5)
+                    throw new IOException("Sink failure.");
+            });
+            fail("Expected sink failure to abort the run.");
+        } catch (IOException e) {
+            assertEquals("Sink failure.", e.getMessage());
+        }
+
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            assertEquals(0, files.count());
+        }
+
+        Files.delete(spillDirectory);
+    }
+}
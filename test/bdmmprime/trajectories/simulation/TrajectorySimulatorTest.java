@@ -0,0 +1,283 @@
+package bdmmprime.trajectories.simulation;
+
+import bdmmprime.parameterization.*;
+import bdmmprime.trajectories.Trajectory;
+import bdmmprime.trajectories.trajevents.EventBuffer;
+import bdmmprime.util.RandomStream;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TrajectorySimulatorTest {
+
+    private Parameterization getParameterization(String processLength) {
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(3),
+                "processLength", new RealParameter(processLength),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5"), 3),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 3),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 3),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 3),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.3"), 3),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.25"), 3));
+
+        return parameterization;
+    }
+
+    private Parameterization getAsymmetricParameterization(String processLength) {
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(3),
+                "processLength", new RealParameter(processLength),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.2 0.8 1.6"), 3),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0 0.9 1.3"), 3),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.3 0.5 0.2"), 3),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 3),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.1 0.4 0.2 0.05 0.3 0.15"), 3),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.2 0.05 0.1 0.15 0.25 0.1"), 3));
+
+        return parameterization;
+    }
+
+    /**
+     * Simulate nReps trajectories and record, for each replicate, the final
+     * size of each type followed by the number of events of each kind.
+     */
+    private double[][] getTrajectoryStatistics(TrajectorySimulator simulator, int nReps) {
+        double[][] stats = new double[nReps][3 + 5];
+
+        for (int rep=0; rep<nReps; rep++) {
+            Trajectory traj = simulator.simulateTrajectory();
+
+            for (int s=0; s<3; s++)
+                stats[rep][s] = traj.currentState[s];
+
+            Trajectory.StateIterator it = traj.getStateIterator();
+            while (it.hasNext()) {
+                it.next();
+                stats[rep][3 + it.getKind()] += it.getCount();
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * With distinct birth, death, sampling and migration rates in each type,
+     * errors in the bookkeeping of the per-type propensities used by the
+     * logarithmic direct method show up as differences in the per-type
+     * population sizes and in the numbers of events of each kind.  These are
+     * compared against the direct method to within five standard errors.
+     */
+    @Test
+    public void testEngineExpectedPopulationSize() {
+        Parameterization parameterization = getAsymmetricParameterization("4.0");
+        double[] frequencies = {1.0, 1.0, 1.0};
+
+        int nReps = 20000;
+
+        TrajectorySimulator directSimulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(1));
+        TrajectorySimulator logDirectSimulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(2));
+        logDirectSimulator.setEngine(TrajectorySimulator.Engine.LOGARITHMIC_DIRECT);
+
+        double[][] directStats = getTrajectoryStatistics(directSimulator, nReps);
+        double[][] logDirectStats = getTrajectoryStatistics(logDirectSimulator, nReps);
+
+        for (int i=0; i<directStats[0].length; i++) {
+            double directMean = 0.0, directMeanSq = 0.0;
+            double logDirectMean = 0.0, logDirectMeanSq = 0.0;
+            for (int rep=0; rep<nReps; rep++) {
+                directMean += directStats[rep][i]/nReps;
+                directMeanSq += directStats[rep][i]*directStats[rep][i]/nReps;
+                logDirectMean += logDirectStats[rep][i]/nReps;
+                logDirectMeanSq += logDirectStats[rep][i]*logDirectStats[rep][i]/nReps;
+            }
+
+            double stdErr = Math.sqrt((directMeanSq - directMean*directMean
+                    + logDirectMeanSq - logDirectMean*logDirectMean)/nReps);
+
+            String label = i < 3 ? "type " + i : "event kind " + (i - 3);
+            assertTrue(label + " should occur", directMean > 0.0);
+            assertEquals(label, directMean, logDirectMean, 5*stdErr);
+        }
+    }
+
+    /**
+     * With identical per-capita rates in every type, the total population
+     * size is a linear birth-death process with birth rate 2 and death rate
+     * 1.5, whose expected size at time 4 is exp(2).
+     */
+    @Test
+    public void testTauLeapingExpectedPopulationSize() {
+        Parameterization parameterization = getParameterization("4.0");
+        double[] frequencies = {1.0, 1.0, 1.0};
+
+        int nReps = 20000;
+        double expectedSize = Math.exp(2.0);
+
+        TrajectorySimulator simulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(1));
+        simulator.setEngine(TrajectorySimulator.Engine.TAU_LEAPING);
+
+        double meanSize = 0.0;
+        for (int rep=0; rep<nReps; rep++) {
+            Trajectory traj = simulator.simulateTrajectory();
+
+            for (int s=0; s<3; s++)
+                meanSize += traj.currentState[s]/nReps;
+        }
+
+        assertEquals(expectedSize, meanSize, 0.6);
+    }
+
+    @Test
+    public void testTauLeapingTreeReconstruction() {
+        Parameterization parameterization = getParameterization("8.0");
+        double[] frequencies = {1.0, 1.0, 1.0};
+
+        TrajectorySimulator simulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(1));
+        simulator.setEngine(TrajectorySimulator.Engine.TAU_LEAPING);
+        simulator.setEpsilon(0.1);
+
+        for (int rep=0; rep<10; rep++) {
+            Trajectory traj = simulator.simulateTrajectory(100);
+            Tree tree = simulator.simulateTree(traj, "type", false);
+
+            assertEquals(traj.getSampleCount(), tree.getLeafNodeCount());
+        }
+
+        assertTrue(simulator.getLeapStatistics().leapCount > 0);
+    }
+
+    @Test
+    public void testSpilledTrajectoryMatchesInMemory() {
+        Parameterization parameterization = getParameterization("6.0");
+        double[] frequencies = {1.0, 1.0, 1.0};
+
+        TrajectorySimulator memorySimulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(3));
+        TrajectorySimulator spillSimulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(3));
+        spillSimulator.setSpillToDisk(true, null);
+
+        for (int rep=0; rep<5; rep++) {
+            Trajectory memoryTraj = memorySimulator.simulateTrajectory(5);
+            Tree memoryTree = memorySimulator.simulateTree(memoryTraj, "type", false);
+
+            try (SpilledTrajectory spillTraj = (SpilledTrajectory) spillSimulator.simulateTrajectory(5)) {
+                Tree spillTree = spillSimulator.simulateTree(spillTraj, "type", false);
+
+                assertEquals(memoryTraj.getEventCount(), spillTraj.getEventCount());
+                assertEquals(memoryTraj.getSampleCount(), spillTraj.getSampleCount());
+                assertEquals(memoryTraj.getFinalSampleTime(), spillTraj.getFinalSampleTime(), 0.0);
+                assertEquals(memoryTraj.toString(), spillTraj.toString());
+                assertStatesEqual(memoryTraj, spillTraj);
+                assertEquals(memoryTree.getRoot().toSortedNewick(new int[1], true),
+                        spillTree.getRoot().toSortedNewick(new int[1], true));
+            }
+        }
+    }
+
+    private void assertStatesEqual(Trajectory expected, Trajectory actual) {
+        Trajectory.StateIterator expectedIt = expected.getStateIterator();
+        Trajectory.StateIterator actualIt = actual.getStateIterator();
+        assertArrayEquals(expectedIt.getState(), actualIt.getState(), 0.0);
+
+        while (expectedIt.hasNext()) {
+            assertTrue(actualIt.hasNext());
+            expectedIt.next();
+            actualIt.next();
+
+            assertEquals(expectedIt.getTime(), actualIt.getTime(), 0.0);
+            assertEquals(expectedIt.getKind(), actualIt.getKind());
+            assertEquals(expectedIt.getCount(), actualIt.getCount());
+            assertEquals(expectedIt.getSecondaryCount(), actualIt.getSecondaryCount());
+            assertArrayEquals(expectedIt.getState(), actualIt.getState(), 0.0);
+        }
+
+        assertFalse(actualIt.hasNext());
+    }
+
+    @Test
+    public void testSpilledTrajectoryAssignment() {
+        Parameterization parameterization = getParameterization("6.0");
+        double[] frequencies = {1.0, 1.0, 1.0};
+
+        TrajectorySimulator simulator = new TrajectorySimulator(parameterization, frequencies,
+                RandomStream.fromSeed(4));
+        Trajectory memoryTraj = simulator.simulateTrajectory(5);
+
+        try (SpilledTrajectory spillTraj = new SpilledTrajectory(new double[] {0.0, 1.0, 0.0}, null)) {
+            spillTraj.addEvent(EventBuffer.BIRTH, 0.1, 1, 1, 1);
+
+            spillTraj.assignFrom(memoryTraj);
+
+            assertEquals(memoryTraj.getEventCount(), spillTraj.getEventCount());
+            assertEquals(memoryTraj.getSampleCount(), spillTraj.getSampleCount());
+            assertArrayEquals(memoryTraj.currentState, spillTraj.currentState, 0.0);
+            assertStatesEqual(memoryTraj, spillTraj);
+        }
+    }
+
+    @Test
+    public void testSimulatedTreeSpillFileClosed() throws IOException {
+        Path spillDirectory = Files.createTempDirectory("spillTest");
+
+        SimulatedTree simulatedTree = new SimulatedTree();
+        simulatedTree.initByName(
+                "parameterization", getParameterization("4.0"),
+                "finalSampleOffset", new RealParameter("0.0"),
+                "frequencies", new RealParameter("1.0 1.0 1.0"),
+                "minSamples", 2,
+                "spillToDisk", true,
+                "spillDirectory", spillDirectory.toString());
+
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            assertEquals(1, files.count());
+        }
+
+        simulatedTree.closeTrajectory();
+        assertNull(simulatedTree.traj);
+
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            assertEquals(0, files.count());
+        }
+
+        Files.delete(spillDirectory);
+    }
+}
@@ -0,0 +1,63 @@
+package bdmmprime.util;
+
+import beast.base.util.Randomizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RandomStreamTest {
+
+    @Test
+    public void testBinomialMoments() {
+        Randomizer.setSeed(1);
+
+        // Cases cover inversion, BTPE and the p > 0.5 reflection
+        int[] ns = {10, 1000, 100000, 200};
+        double[] ps = {0.1, 0.5, 0.01, 0.95};
+
+        for (RandomStream random : new RandomStream[] {RandomStream.GLOBAL, RandomStream.GLOBAL.split()}) {
+            for (int c = 0; c < ns.length; c++) {
+                int n = ns[c];
+                double p = ps[c];
+
+                int N = 100000;
+                double mean = 0.0, var = 0.0;
+                for (int i = 0; i < N; i++) {
+                    int x = random.nextBinomial(n, p);
+                    assertTrue(x >= 0 && x <= n);
+                    mean += x;
+                    var += (double) x * x;
+                }
+                mean /= N;
+                var = var/N - mean*mean;
+
+                assertEquals(n*p, mean, 0.02*Math.sqrt(n*p*(1-p)) + 0.01);
+                assertEquals(n*p*(1-p), var, 0.03*n*p*(1-p));
+            }
+        }
+    }
+
+    @Test
+    public void testPoissonMoments() {
+        Randomizer.setSeed(1);
+
+        for (RandomStream random : new RandomStream[] {RandomStream.GLOBAL, RandomStream.GLOBAL.split()}) {
+            for (double lambda : new double[] {0.5, 5.0, 15.0, 1000.0}) {
+                int N = 100000;
+                double mean = 0.0, var = 0.0;
+                for (int i = 0; i < N; i++) {
+                    long x = random.nextPoisson(lambda);
+                    assertTrue(x >= 0);
+                    mean += x;
+                    var += (double) x * x;
+                }
+                mean /= N;
+                var = var/N - mean*mean;
+
+                assertEquals(lambda, mean, 0.02*Math.sqrt(lambda));
+                assertEquals(lambda, var, 0.03*lambda);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package bdmmprime.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SumTreeTest {
+
+    @Test
+    public void testFind() {
+        SumTree tree = new SumTree(5);
+        tree.set(0, 0.2);
+        tree.set(2, 0.5);
+        tree.set(3, 0.3);
+
+        assertEquals(1.0, tree.getTotal(), 1e-15);
+        assertEquals(0, tree.find(0.0));
+        assertEquals(0, tree.find(0.1));
+        assertEquals(2, tree.find(0.2));
+        assertEquals(2, tree.find(0.69));
+        assertEquals(3, tree.find(0.7));
+
+        // Zero-valued entries are never selected, even at the upper limit
+        assertEquals(3, tree.find(1.0));
+
+        tree.set(2, 0.0);
+        assertEquals(0.5, tree.getTotal(), 1e-15);
+        assertEquals(3, tree.find(0.2));
+    }
+}
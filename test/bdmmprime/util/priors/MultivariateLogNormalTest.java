@@ -43,4 +43,42 @@ public class MultivariateLogNormalTest {
 
         assertEquals(Double.NEGATIVE_INFINITY, dist.calculateLogP(), 0.0);
     }
+
+    @Test
+    public void testCholesky() {
+        RealParameter x1 = new RealParameter("1 0.5 2");
+        RealParameter x2 = new RealParameter("2 1.5 0.3");
+        RealParameter x3 = new RealParameter("0.7 1.2 1");
+        RealParameter M = new RealParameter("0.1 0.2 -0.1");
+        RealParameter S = new RealParameter("1 0.3 0.1 0.3 2 0.2 0.1 0.2 0.5");
+
+        MultivariateLogNormal dist = new MultivariateLogNormal();
+        dist.initByName("x", x1, "x", x2, "x", x3, "M", M, "S", S);
+
+        MultivariateLogNormal cholDist = new MultivariateLogNormal();
+        cholDist.initByName("x", x1, "x", x2, "x", x3, "M", M, "S", S,
+                "useCholesky", true);
+
+        assertEquals(dist.calculateLogP(), cholDist.calculateLogP(), 1e-10);
+
+        // Change x only, reusing the factorisation
+        cholDist.store();
+        x2.setValue(1, 0.8);
+        assertEquals(dist.calculateLogP(), cholDist.calculateLogP(), 1e-10);
+
+        // Change S, requiring refactorisation
+        S.setValue(4, 1.5);
+        assertEquals(dist.calculateLogP(), cholDist.calculateLogP(), 1e-10);
+
+        // Revert S and restore the stored factorisation
+        S.setValue(4, 2.0);
+        cholDist.restore();
+        assertEquals(dist.calculateLogP(), cholDist.calculateLogP(), 1e-10);
+
+        // Non-positive-definite S
+        S.setValue(1, 1.1);
+        S.setValue(3, 1.1);
+        S.setValue(4, 1.0);
+        assertEquals(Double.NEGATIVE_INFINITY, cholDist.calculateLogP(), 0.0);
+    }
 }
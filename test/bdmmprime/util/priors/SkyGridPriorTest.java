@@ -0,0 +1,137 @@
+package bdmmprime.util.priors;
+
+import bdmmprime.util.RandomStream;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SkyGridPriorTest {
+
+    private static final double logOneOnSqrt2Pi = -0.5*Math.log(2*Math.PI);
+
+    private double getSkyGridLogP(Double[] x, double M, double S, double sigma) {
+        double prevEl = Math.log(x[0]);
+        double logP = logOneOnSqrt2Pi - Math.log(S) - prevEl - 0.5*(prevEl - M)*(prevEl - M)/S/S;
+
+        for (int i=1; i<x.length; i++) {
+            double el = Math.log(x[i]);
+            double delta = el - prevEl;
+            logP += logOneOnSqrt2Pi - Math.log(sigma) - el - 0.5*delta*delta/sigma/sigma;
+            prevEl = el;
+        }
+
+        return logP;
+    }
+
+    private double getOUSkyGridLogP(Double[] x, double M, double S, double theta) {
+        double expNegTheta = Math.exp(-theta);
+        double var = S*S*(1.0 - expNegTheta*expNegTheta);
+
+        double prevEl = Math.log(x[0]);
+        double logP = logOneOnSqrt2Pi - Math.log(S) - prevEl - 0.5*(prevEl - M)*(prevEl - M)/S/S;
+
+        for (int i=1; i<x.length; i++) {
+            double el = Math.log(x[i]);
+            double delta = el - (prevEl*expNegTheta + M*(1.0 - expNegTheta));
+            logP += logOneOnSqrt2Pi - 0.5*Math.log(var) - el - 0.5*delta*delta/var;
+            prevEl = el;
+        }
+
+        return logP;
+    }
+
+    private RealParameter getGrid(RandomStream random, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<n; i++)
+            sb.append(" ").append(Math.exp(random.nextDouble() - 0.5));
+
+        return new RealParameter(sb.toString().trim());
+    }
+
+    @Test
+    public void testSkyGridUpdates() {
+        RandomStream random = RandomStream.fromSeed(1);
+
+        RealParameter x = getGrid(random, 50);
+        RealParameter sigma = new RealParameter("0.5");
+
+        SkyGridPrior prior = new SkyGridPrior();
+        prior.initByName("x", x, "M", new RealParameter("0.0"),
+                "S", new RealParameter("1.0"), "sigma", sigma);
+
+        assertEquals(getSkyGridLogP(x.getValues(), 0.0, 1.0, 0.5), prior.calculateLogP(), 1e-10);
+
+        for (int step=0; step<200; step++) {
+            prior.store();
+            double before = prior.calculateLogP();
+
+            int idx = random.nextInt(x.getDimension());
+            double oldValue = x.getValue(idx);
+            x.setValue(idx, oldValue*Math.exp(random.nextDouble() - 0.5));
+
+            double oldSigma = sigma.getValue();
+            if (step % 10 == 0)
+                sigma.setValue(oldSigma*Math.exp(random.nextDouble() - 0.5));
+
+            assertEquals(getSkyGridLogP(x.getValues(), 0.0, 1.0, sigma.getValue()),
+                    prior.calculateLogP(), 1e-10);
+
+            if (random.nextDouble() < 0.5) {
+                x.setValue(idx, oldValue);
+                sigma.setValue(oldSigma);
+                prior.restore();
+
+                assertEquals(before, prior.calculateLogP(), 1e-10);
+            }
+
+            // Clear dirty flags, as the state would on accept or reject
+            x.setEverythingDirty(false);
+        }
+    }
+
+    @Test
+    public void testOUSkyGridUpdates() {
+        RandomStream random = RandomStream.fromSeed(2);
+
+        RealParameter x = getGrid(random, 50);
+        RealParameter theta = new RealParameter("0.5");
+        RealParameter S = new RealParameter("1.0");
+
+        OUSkyGridPrior prior = new OUSkyGridPrior();
+        prior.initByName("x", x, "M", new RealParameter("0.2"), "S", S, "theta", theta);
+
+        assertEquals(getOUSkyGridLogP(x.getValues(), 0.2, 1.0, 0.5), prior.calculateLogP(), 1e-10);
+
+        for (int step=0; step<200; step++) {
+            prior.store();
+            double before = prior.calculateLogP();
+
+            int idx = random.nextInt(x.getDimension());
+            double oldValue = x.getValue(idx);
+            x.setValue(idx, oldValue*Math.exp(random.nextDouble() - 0.5));
+
+            double oldTheta = theta.getValue();
+            double oldS = S.getValue();
+            if (step % 10 == 0)
+                theta.setValue(oldTheta*Math.exp(random.nextDouble() - 0.5));
+            if (step % 10 == 5)
+                S.setValue(oldS*Math.exp(random.nextDouble() - 0.5));
+
+            assertEquals(getOUSkyGridLogP(x.getValues(), 0.2, S.getValue(), theta.getValue()),
+                    prior.calculateLogP(), 1e-10);
+
+            if (random.nextDouble() < 0.5) {
+                x.setValue(idx, oldValue);
+                theta.setValue(oldTheta);
+                S.setValue(oldS);
+                prior.restore();
+
+                assertEquals(before, prior.calculateLogP(), 1e-10);
+            }
+
+            // Clear dirty flags, as the state would on accept or reject
+            x.setEverythingDirty(false);
+        }
+    }
+}